@@ -0,0 +1,339 @@
+package com.MobileSLAM.RosCameraCapture;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Native CameraUtil kernels against the Java references in CameraKernels, on device
+ * Random inputs, odd sizes, dirty outputs, planar and semi-planar YUV layouts
+ */
+@RunWith(AndroidJUnit4.class)
+public class CameraUtilConformanceTest {
+
+    private static final float CONFIDENCE_THRESHOLD = 0.1f;
+    private static final short MAX_DEPTH = 5000;
+
+    private static final int[][] SIZES = { {320, 240}, {640, 480}, {33, 7} };
+
+    @BeforeClass
+    public static void loadLibrary() {
+        System.loadLibrary("camera-util");
+    }
+
+    private static short[] randomShorts(int length, long seed){
+        Random random = new Random(seed);
+        short[] data = new short[length];
+        for(int i = 0; i < length; i++){
+            data[i] = (short) random.nextInt(1 << 16);
+        }
+        return data;
+    }
+
+    /**
+     * Parsed depth, every value in [0, 8191]
+     */
+    private static short[] randomDepth(int length, long seed){
+        short[] depth = new short[length];
+        CameraKernels.parseDepth16(randomShorts(length, seed), depth, length, CONFIDENCE_THRESHOLD);
+        return depth;
+    }
+
+    private static ByteBuffer nativeBuffer(short[] data){
+        ByteBuffer buffer = ByteBuffer.allocateDirect(data.length * 2).order(ByteOrder.nativeOrder());
+        buffer.asShortBuffer().put(data);
+        return buffer;
+    }
+
+    private static byte[] toArray(ByteBuffer buffer, int length){
+        byte[] res = new byte[length];
+        ByteBuffer view = buffer.duplicate();
+        view.clear();
+        view.get(res);
+        return res;
+    }
+
+    @Test
+    public void parseDepth16_matchesReference() {
+        for(int[] size : SIZES){
+            int length = size[0] * size[1];
+            short[] raw = randomShorts(length, length);
+            short[] expected = new short[length];
+            CameraKernels.parseDepth16(raw, expected, length, CONFIDENCE_THRESHOLD);
+
+            short[] out = new short[length];
+            Arrays.fill(out, (short) 1234);
+            CameraUtil.parseDepth16Into(raw, out, size[0], size[1], CONFIDENCE_THRESHOLD);
+            assertArrayEquals(expected, out);
+            assertArrayEquals(expected, CameraUtil.parseDepth16(raw, size[0], size[1], CONFIDENCE_THRESHOLD));
+
+            // row bands, uneven split
+            short[] bands = new short[length];
+            ByteBuffer rawData = nativeBuffer(raw);
+            int split = size[1] / 3;
+            CameraUtil.parseDepth16Rows(rawData, bands, size[0], split, size[1], CONFIDENCE_THRESHOLD);
+            CameraUtil.parseDepth16Rows(rawData, bands, size[0], 0, split, CONFIDENCE_THRESHOLD);
+            assertArrayEquals(expected, bands);
+        }
+    }
+
+    @Test
+    public void convertShortToARGB_matchesReference() {
+        for(int[] size : SIZES){
+            int length = size[0] * size[1];
+            short[] depth = randomDepth(length, length);
+            int[] expected = new int[length];
+            CameraKernels.convertShortToARGB(depth, expected, length, MAX_DEPTH);
+
+            int[] out = new int[length];
+            Arrays.fill(out, 0x12345678);
+            CameraUtil.convertShortToARGBInto(depth, out, size[0], size[1], MAX_DEPTH);
+            assertArrayEquals(expected, out);
+            assertArrayEquals(expected, CameraUtil.convertShortToARGB(depth, size[0], size[1], MAX_DEPTH));
+        }
+    }
+
+    @Test
+    public void convertShortToGray_matchesReference() {
+        for(int[] size : SIZES){
+            int length = size[0] * size[1];
+            short[] depth = randomDepth(length, length);
+            byte[] expected = new byte[length];
+            CameraKernels.convertShortToGray(depth, expected, length, MAX_DEPTH);
+
+            byte[] out = new byte[length];
+            Arrays.fill(out, (byte) 0x5A);
+            CameraUtil.convertShortToGrayInto(depth, out, length, MAX_DEPTH);
+            assertArrayEquals(expected, out);
+            assertArrayEquals(expected, CameraUtil.convertShortToGray(depth, length, MAX_DEPTH));
+
+            ByteBuffer bands = ByteBuffer.allocateDirect(length);
+            int split = size[1] / 2;
+            CameraUtil.convertShortToGrayRows(depth, bands, size[0], split, size[1], MAX_DEPTH);
+            CameraUtil.convertShortToGrayRows(depth, bands, size[0], 0, split, MAX_DEPTH);
+            assertArrayEquals(expected, toArray(bands, length));
+        }
+    }
+
+    @Test
+    public void convertShortToByte_matchesReference() {
+        for(int[] size : SIZES){
+            int length = size[0] * size[1];
+            short[] data = randomShorts(length, length);
+            byte[] expected = new byte[length * 2];
+            CameraKernels.convertShortToByte(data, expected, length);
+
+            byte[] out = new byte[length * 2];
+            Arrays.fill(out, (byte) 0x5A);
+            CameraUtil.convertShortToByteInto(data, out, length);
+            assertArrayEquals(expected, out);
+            assertArrayEquals(expected, CameraUtil.convertShortToByte(data, length));
+
+            ByteBuffer bands = ByteBuffer.allocateDirect(length * 2);
+            int split = size[1] / 2;
+            CameraUtil.convertShortToByteRows(data, bands, size[0], split, size[1]);
+            CameraUtil.convertShortToByteRows(data, bands, size[0], 0, split);
+            assertArrayEquals(expected, toArray(bands, length * 2));
+        }
+    }
+
+    @Test
+    public void processDepthFrame_matchesReference() {
+        CameraUtil.CameraParam depthParam = CameraUtil.depthCameraParam;
+        CameraUtil.CameraParam colorParam = CameraUtil.colorCameraParam;
+        int length = depthParam.frameWidth * depthParam.frameHeight;
+        DepthRegistration registration = DepthRegistration.forCameras(depthParam, colorParam);
+
+        for(int outputFormat : new int[] {CameraKernels.DEPTH_FORMAT_16UC1, CameraKernels.DEPTH_FORMAT_8UC1}){
+            int bytesPerPixel = outputFormat == CameraKernels.DEPTH_FORMAT_16UC1 ? 2 : 1;
+            short[] raw = randomShorts(length, outputFormat);
+            for(int i = 0; i < length; i++){
+                // plausible range, keep the random confidence bits
+                raw[i] = (short) ((raw[i] & 0xE000) | (300 + (raw[i] & 0x0FFF)));
+            }
+
+            short[] expectedDepth = new short[length];
+            byte[] expectedData = new byte[length * bytesPerPixel];
+            CameraKernels.processDepthFrame(raw, depthParam.getUndistortionMap(), registration,
+                    CONFIDENCE_THRESHOLD, MAX_DEPTH, outputFormat, expectedDepth, expectedData);
+
+            short[] depthOut = new short[length];
+            Arrays.fill(depthOut, (short) 1234);
+            ByteBuffer outData = ByteBuffer.allocateDirect(length * bytesPerPixel);
+            CameraUtil.processDepthFrame(nativeBuffer(raw), depthParam, colorParam,
+                    CONFIDENCE_THRESHOLD, MAX_DEPTH, outputFormat, depthOut, outData);
+
+            assertArrayEquals(expectedDepth, depthOut);
+            assertArrayEquals(expectedData, toArray(outData, length * bytesPerPixel));
+        }
+    }
+
+    /**
+     * YUV_420_888 planes as delivered by the camera, padded rows, chroma planar or interleaved
+     */
+    private static class YUVFrame {
+        final int width, height, yRowStride, uvRowStride, uvPixelStride;
+        final ByteBuffer y, u, v;
+
+        YUVFrame(int width, int height, int uvPixelStride, long seed){
+            Random random = new Random(seed);
+            this.width = width;
+            this.height = height;
+            this.uvPixelStride = uvPixelStride;
+            yRowStride = width + 16;
+            uvRowStride = width / 2 * uvPixelStride + 16;
+
+            y = randomDirect(yRowStride * height, random);
+            if(uvPixelStride == 2){
+                ByteBuffer chroma = randomDirect(uvRowStride * height / 2 + 1, random);
+                u = chroma.duplicate();
+                chroma.position(1);
+                v = chroma.slice();
+            }else{
+                u = randomDirect(uvRowStride * height / 2, random);
+                v = randomDirect(uvRowStride * height / 2, random);
+            }
+        }
+
+        private static ByteBuffer randomDirect(int length, Random random){
+            byte[] data = new byte[length];
+            random.nextBytes(data);
+            ByteBuffer buffer = ByteBuffer.allocateDirect(length);
+            buffer.put(data);
+            buffer.clear();
+            return buffer;
+        }
+    }
+
+    @Test
+    public void convertYUV_matchesReference() {
+        for(int[] size : SIZES){
+            for(int uvPixelStride = 1; uvPixelStride <= 2; uvPixelStride++){
+                YUVFrame frame = new YUVFrame(size[0] & ~1, size[1] & ~1, uvPixelStride, size[0] + uvPixelStride);
+                int length = frame.width * frame.height;
+
+                ByteBuffer expected = ByteBuffer.allocate(length * 4);
+                CameraKernels.convertYUVToBGRA(frame.y, frame.u, frame.v, frame.yRowStride, frame.uvRowStride,
+                        frame.uvPixelStride, frame.width, frame.height, expected);
+                ByteBuffer out = ByteBuffer.allocateDirect(length * 4);
+                CameraUtil.convertYUVToBGRAInto(frame.y, frame.u, frame.v, frame.yRowStride, frame.uvRowStride,
+                        frame.uvPixelStride, frame.width, frame.height, out);
+                assertArrayEquals(expected.array(), toArray(out, length * 4));
+
+                int[] expectedARGB = new int[length];
+                CameraKernels.convertYUVToARGBUint32(frame.y, frame.u, frame.v, frame.yRowStride, frame.uvRowStride,
+                        frame.uvPixelStride, frame.width, frame.height, expectedARGB);
+                int[] argb = new int[length];
+                CameraUtil.convertYUVToARGBUint32Into(frame.y, frame.u, frame.v, frame.yRowStride, frame.uvRowStride,
+                        frame.uvPixelStride, frame.width, frame.height, argb);
+                assertArrayEquals(expectedARGB, argb);
+            }
+        }
+    }
+
+    /**
+     * Vectorized row kernels, widths not a multiple of the vector width, uneven bands
+     */
+    @Test
+    public void convertYUVRows_matchesReference() {
+        int[][] sizes = { {320, 240}, {70, 6}, {18, 4} };
+        for(int[] size : sizes){
+            for(int uvPixelStride = 1; uvPixelStride <= 2; uvPixelStride++){
+                YUVFrame frame = new YUVFrame(size[0], size[1], uvPixelStride, size[0] * 2 + uvPixelStride);
+                int length = frame.width * frame.height;
+                int split = frame.height / 3;
+
+                ByteBuffer expected = ByteBuffer.allocate(length * 4);
+                CameraKernels.convertYUVToBGRA(frame.y, frame.u, frame.v, frame.yRowStride, frame.uvRowStride,
+                        frame.uvPixelStride, frame.width, frame.height, expected);
+
+                ByteBuffer bgra = ByteBuffer.allocateDirect(length * 4);
+                CameraUtil.convertYUVToBGRARows(frame.y, frame.u, frame.v, frame.yRowStride, frame.uvRowStride,
+                        frame.uvPixelStride, frame.width, split, frame.height, bgra);
+                CameraUtil.convertYUVToBGRARows(frame.y, frame.u, frame.v, frame.yRowStride, frame.uvRowStride,
+                        frame.uvPixelStride, frame.width, 0, split, bgra);
+                assertArrayEquals(expected.array(), toArray(bgra, length * 4));
+
+                ByteBuffer bgr = ByteBuffer.allocateDirect(length * 3);
+                CameraUtil.convertYUVToBGRRows(frame.y, frame.u, frame.v, frame.yRowStride, frame.uvRowStride,
+                        frame.uvPixelStride, frame.width, 0, frame.height, bgr);
+                for(int i = 0; i < length; i++){
+                    for(int c = 0; c < 3; c++){
+                        assertEquals(expected.get(4*i + c), bgr.get(3*i + c));
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * NV12 packing from planar, NV12-ordered and NV21-ordered semi-planar planes
+     */
+    @Test
+    public void packYUVToNV12_matchesPlanes() {
+        int width = 70, height = 6;
+        for(int layout = 0; layout < 3; layout++){
+            YUVFrame frame = new YUVFrame(width, height, layout == 0 ? 1 : 2, layout);
+            ByteBuffer u = frame.u, v = frame.v;
+            if(layout == 2){
+                // V first: swap the views
+                u = frame.v;
+                v = frame.u;
+            }
+
+            ByteBuffer out = ByteBuffer.allocateDirect(width * height * 3 / 2);
+            CameraUtil.packYUVToNV12(frame.y, u, v, frame.yRowStride, frame.uvRowStride, frame.uvPixelStride,
+                    width, height, out);
+
+            for(int row = 0; row < height; row++){
+                for(int col = 0; col < width; col++){
+                    assertEquals(frame.y.get(row * frame.yRowStride + col), out.get(row * width + col));
+                }
+            }
+            int offset = width * height;
+            for(int row = 0; row < height / 2; row++){
+                for(int col = 0; col < width / 2; col++){
+                    int index = row * frame.uvRowStride + col * frame.uvPixelStride;
+                    assertEquals(u.get(index), out.get(offset++));
+                    assertEquals(v.get(index), out.get(offset++));
+                }
+            }
+        }
+    }
+
+    /**
+     * opencv conversion differs in rounding, only bounds and alpha are checked,
+     * the bytes behind the frame must stay untouched
+     */
+    @Test
+    public void convertYUVOpencv_staysInBounds() {
+        for(int uvPixelStride = 1; uvPixelStride <= 2; uvPixelStride++){
+            YUVFrame frame = new YUVFrame(320, 240, uvPixelStride, uvPixelStride);
+            int length = frame.width * frame.height * 4;
+
+            ByteBuffer out = ByteBuffer.allocateDirect(length + 64);
+            for(int i = 0; i < out.capacity(); i++){
+                out.put(i, (byte) 0x5A);
+            }
+            CameraUtil.convertYUVToRGBAOpencvInto(frame.y, frame.u, frame.v, frame.yRowStride, frame.uvRowStride,
+                    frame.uvPixelStride, frame.width, frame.height, out);
+
+            for(int i = 3; i < length; i += 4){
+                assertEquals(0xFF, out.get(i) & 0xFF);
+            }
+            for(int i = length; i < out.capacity(); i++){
+                assertEquals(0x5A, out.get(i));
+            }
+        }
+    }
+
+}
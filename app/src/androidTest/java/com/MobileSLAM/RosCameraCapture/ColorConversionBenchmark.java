@@ -0,0 +1,126 @@
+package com.MobileSLAM.RosCameraCapture;
+
+import android.util.Log;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * YUV_420_888 to BGRA: per-pixel kernel (convertYUVToBGRAInto) against ColorConverter,
+ * single-threaded and with the default worker count, at the low resolution stream sizes
+ * Results are logged under the test TAG, converted frames must be identical
+ */
+@RunWith(AndroidJUnit4.class)
+public class ColorConversionBenchmark {
+
+    private final static String TAG = ColorConversionBenchmark.class.getSimpleName();
+
+    private static final int WARMUP_FRAMES = 20;
+    private static final int FRAMES = 200;
+
+    @BeforeClass
+    public static void loadLibrary() {
+        System.loadLibrary("camera-util");
+    }
+
+    private static ByteBuffer randomDirect(int length, Random random){
+        byte[] data = new byte[length];
+        random.nextBytes(data);
+        ByteBuffer buffer = ByteBuffer.allocateDirect(length);
+        buffer.put(data);
+        buffer.clear();
+        return buffer;
+    }
+
+    private static double millisPerFrame(Runnable conversion){
+        for(int i = 0; i < WARMUP_FRAMES; i++){
+            conversion.run();
+        }
+        long start = System.nanoTime();
+        for(int i = 0; i < FRAMES; i++){
+            conversion.run();
+        }
+        return (System.nanoTime() - start) / 1e6 / FRAMES;
+    }
+
+    private static void assertSameContent(ByteBuffer expected, ByteBuffer actual){
+        for(int i = 0; i < expected.capacity(); i++){
+            assertEquals("byte " + i, expected.get(i), actual.get(i));
+        }
+    }
+
+    private static void benchmark(int width, int height, int uvPixelStride){
+        Random random = new Random(width);
+        int yRowStride = width;
+        int uvRowStride = width / 2 * uvPixelStride;
+
+        ByteBuffer y = randomDirect(yRowStride * height, random);
+        ByteBuffer u, v;
+        if(uvPixelStride == 2){
+            ByteBuffer chroma = randomDirect(uvRowStride * height / 2, random);
+            u = chroma.duplicate();
+            chroma.position(1);
+            v = chroma.slice();
+        }else{
+            u = randomDirect(uvRowStride * height / 2, random);
+            v = randomDirect(uvRowStride * height / 2, random);
+        }
+
+        CameraUtil.CameraParam cameraParam = new CameraUtil.CameraParam();
+        cameraParam.setFrameSize(width, height, 1.0);
+        ColorConverter singleThread = new ColorConverter(cameraParam, 0);
+        ColorConverter parallel = new ColorConverter(cameraParam, RowParallelExecutor.defaultWorkerCount());
+
+        ByteBuffer reference = ByteBuffer.allocateDirect(width * height * 4);
+        ByteBuffer vectorized = ByteBuffer.allocateDirect(width * height * 4);
+        ByteBuffer banded = ByteBuffer.allocateDirect(width * height * 4);
+        ByteBuffer bgr = ByteBuffer.allocateDirect(width * height * 3);
+
+        double scalarMs = millisPerFrame(() -> CameraUtil.convertYUVToBGRAInto(y, u, v,
+                yRowStride, uvRowStride, uvPixelStride, width, height, reference));
+        double vectorMs = millisPerFrame(() -> singleThread.convert(y, u, v,
+                yRowStride, uvRowStride, uvPixelStride, ColorConverter.Encoding.BGRA8, vectorized));
+        double parallelMs = millisPerFrame(() -> parallel.convert(y, u, v,
+                yRowStride, uvRowStride, uvPixelStride, ColorConverter.Encoding.BGRA8, banded));
+        double bgrMs = millisPerFrame(() -> parallel.convert(y, u, v,
+                yRowStride, uvRowStride, uvPixelStride, ColorConverter.Encoding.BGR8, bgr));
+
+        singleThread.shutdown();
+        parallel.shutdown();
+
+        Log.i(TAG, String.format("%dx%d pixelStride %d: per-pixel %.2f ms, vectorized %.2f ms, " +
+                        "vectorized %d workers %.2f ms (bgr8 %.2f ms)",
+                width, height, uvPixelStride, scalarMs, vectorMs,
+                RowParallelExecutor.defaultWorkerCount(), parallelMs, bgrMs));
+
+        assertSameContent(reference, vectorized);
+        assertSameContent(reference, banded);
+    }
+
+    @Test
+    public void convert_320x240() {
+        benchmark(320, 240, 2);
+        benchmark(320, 240, 1);
+    }
+
+    @Test
+    public void convert_640x480() {
+        benchmark(640, 480, 2);
+        benchmark(640, 480, 1);
+    }
+
+    @Test
+    public void convert_960x720() {
+        benchmark(960, 720, 2);
+        benchmark(960, 720, 1);
+    }
+
+}
@@ -1,33 +1,114 @@
 #include <jni.h>
 #include <android/log.h>
 
+#include <algorithm>
+#include <cstring>
+#include <vector>
+
+#if defined(__ARM_NEON)
+#include <arm_neon.h>
+#endif
+
 #include <opencv2/core.hpp>
 #include <opencv2/imgproc.hpp>
+#include <opencv2/imgcodecs.hpp>
 
-extern "C"
-JNIEXPORT jbyteArray JNICALL
-Java_com_MobileSLAM_RosCameraCapture_CameraUtil_convertYUVToBGRA(JNIEnv *env, jclass clazz,
-                                                                jbyteArray y_data,
-                                                                jbyteArray u_data,
-                                                                jbyteArray v_data,
-                                                                jint y_row_stride,
-                                                                jint uv_row_stride,
-                                                                jint uv_pixel_stride, jint width,
-                                                                jint height) {
-
-    jboolean inputCopy = JNI_FALSE;
-    jbyte* const y_buff = env->GetByteArrayElements(y_data, &inputCopy);
-    uint8_t* const yData = reinterpret_cast<uint8_t*>(y_buff);
-    jbyte* const u_buff = env->GetByteArrayElements(u_data, &inputCopy);
-    uint8_t* const uData = reinterpret_cast<uint8_t*>(u_buff);
-    jbyte* const v_buff = env->GetByteArrayElements(v_data, &inputCopy);
-    uint8_t* const vData = reinterpret_cast<uint8_t*>(v_buff);
-
-    jbyteArray returnedArray = env->NewByteArray(width*height*4);
-    jbyte *outData = env->GetByteArrayElements(returnedArray, NULL);
 
+// Output formats of the fused depth kernel, match CameraKernels.DEPTH_FORMAT_*
+#define DEPTH_FORMAT_16UC1 0
+#define DEPTH_FORMAT_8UC1 1
+#define DEPTH_FORMAT_NONE 2      // registered depth only, nobody subscribed to the serialized frame
+
+
+/**
+ * Depth kernels shared by the whole frame, row band and fused natives
+ */
+static void parse_depth16(const uint16_t* depth_data, uint16_t* outData, int length, float confidence_threshold){
+    for(int index=0; index<length; index++){
+        uint16_t rawDepth = depth_data[index];
+        uint16_t depthRange = (uint16_t) rawDepth & 0x1FFF;
+        uint16_t depthConfidence = (uint16_t) ((rawDepth >> 13) & 0x7);
+        float confidencePercentage = depthConfidence == 0 ? 1.f : (depthConfidence - 1) / 7.f;
+
+        if(confidencePercentage > confidence_threshold){
+            outData[index] = depthRange;
+        }else{
+            outData[index] = 0;
+        }
+    }
+}
+
+static void short_to_argb(const uint16_t* depthData, jint* outData, int length, jshort max_depth_threshold){
+    for(int index=0; index < length; index++){
+        uint16_t depthValue = depthData[index];
+        if(depthValue > max_depth_threshold) depthValue = 0;
+        uint16_t normalizedDepth = depthValue * 255 / max_depth_threshold;
+
+        uint32_t R = 255 - normalizedDepth;
+        uint32_t G = R;
+        uint32_t B = R;
+
+        if(depthValue == 0){
+            outData[index] = 0xFF000000;
+        }else{
+            outData[index] = 0xFF000000 | R << 16 | R << 8 | B;
+        }
+    }
+}
+
+static void short_to_gray(const uint16_t* shortData, uint8_t* outData, int length, jshort max_depth_threshold){
+    for(int i=0; i<length; i++){
+        uint16_t shortValue = shortData[i];
+        uint8_t normalized = 255 * shortValue / max_depth_threshold;
+        if(normalized == 0){
+            outData[i] = 0;
+        }else{
+            outData[i] = 255 - normalized;
+        }
+    }
+}
+
+static void short_to_uint16_le(const uint16_t* shortData, uint8_t* outData, int length){
+    for(int i=0; i<length; i++){
+        uint16_t shortValue = shortData[i];
+        uint8_t right = ( shortValue >> 8 ) & 0xFF;
+        uint8_t left = shortValue & 0xFF;
+        outData[2*i] = left;
+        outData[2*i + 1] = right;
+    }
+}
+
+/**
+ * YUV_420_888 kernels, one pixel from Y U V into 8 bit R G B
+ * Planes are addressed through row and pixel stride, planar and semi-planar layouts both work
+ */
+static inline void yuv_to_rgb(int nY, int nU, int nV, int* r, int* g, int* b){
     static const int kMaxChannelValue = 262143;
 
+    nY -= 16;
+    nU -= 128;
+    nV -= 128;
+    if(nY < 0){
+        nY = 0;
+    }
+
+    int nR = (int)(1192 * nY + 1634 * nV);
+    int nG = (int)(1192 * nY - 833 * nV - 400 * nU);
+    int nB = (int)(1192 * nY + 2066 * nU);
+
+    nR = MIN(kMaxChannelValue, MAX(0, nR));
+    nG = MIN(kMaxChannelValue, MAX(0, nG));
+    nB = MIN(kMaxChannelValue, MAX(0, nB));
+
+    *r = (nR >> 10) & 0xff;
+    *g = (nG >> 10) & 0xff;
+    *b = (nB >> 10) & 0xff;
+}
+
+static void yuv_to_bgra(const uint8_t* yData, const uint8_t* uData, const uint8_t* vData,
+                        int y_row_stride, int uv_row_stride, int uv_pixel_stride,
+                        int width, int height, uint8_t* outData){
+
     int index = 0;
 
     for(int y=0; y<height; y++){
@@ -38,31 +119,10 @@ Java_com_MobileSLAM_RosCameraCapture_CameraUtil_convertYUVToBGRA(JNIEnv *env, jc
         const uint8_t* pV = vData + uv_row_start;
 
         for(int x=0; x<width; x++){
-
             const int uv_offset = (x >> 1) * uv_pixel_stride;
 
-            int nY = pY[x];
-            int nU = pU[uv_offset];
-            int nV = pV[uv_offset];
-
-            nY -= 16;
-            nU -= 128;
-            nV -= 128;
-            if(nY < 0){
-                nY = 0;
-            }
-
-            int nR = (int)(1192 * nY + 1634 * nV);
-            int nG = (int)(1192 * nY - 833 * nV - 400 * nU);
-            int nB = (int)(1192 * nY + 2066 * nU);
-
-            nR = MIN(kMaxChannelValue, MAX(0, nR));
-            nG = MIN(kMaxChannelValue, MAX(0, nG));
-            nB = MIN(kMaxChannelValue, MAX(0, nB));
-
-            nR = (nR >> 10) & 0xff;
-            nG = (nG >> 10) & 0xff;
-            nB = (nB >> 10) & 0xff;
+            int nR, nG, nB;
+            yuv_to_rgb(pY[x], pU[uv_offset], pV[uv_offset], &nR, &nG, &nB);
 
             outData[index++] = nB;
             outData[index++] = nG;
@@ -70,293 +130,588 @@ Java_com_MobileSLAM_RosCameraCapture_CameraUtil_convertYUVToBGRA(JNIEnv *env, jc
             outData[index++] = 0xff;
         }
     }
-
-    env->ReleaseByteArrayElements(u_data, u_buff, JNI_ABORT);
-    env->ReleaseByteArrayElements(v_data, v_buff, JNI_ABORT);
-    env->ReleaseByteArrayElements(y_data, y_buff, JNI_ABORT);
-    env->ReleaseByteArrayElements(returnedArray, outData, JNI_ABORT);
-
-    return returnedArray;
 }
 
+static void yuv_to_argb_uint32(const uint8_t* yData, const uint8_t* uData, const uint8_t* vData,
+                               int y_row_stride, int uv_row_stride, int uv_pixel_stride,
+                               int width, int height, jint* outData){
 
-extern "C"
-JNIEXPORT jbyteArray JNICALL
-Java_com_MobileSLAM_RosCameraCapture_CameraUtil_convertYUVToARGB_1opencv(JNIEnv *env, jclass clazz,
-                                                                         jbyteArray y_data,
-                                                                         jbyteArray u_data,
-                                                                         jbyteArray v_data,
-                                                                         jint y_row_stride,
-                                                                         jint uv_row_stride,
-                                                                         jint uv_pixel_stride,
-                                                                         jint width, jint height) {
-
-    jboolean inputCopy = JNI_FALSE;
-    jbyte* const y_buff = env->GetByteArrayElements(y_data, &inputCopy);
-    uint8_t* const yData = reinterpret_cast<uint8_t*>(y_buff);
-    jbyte* const u_buff = env->GetByteArrayElements(u_data, &inputCopy);
-    uint8_t* const uData = reinterpret_cast<uint8_t*>(u_buff);
-    jbyte* const v_buff = env->GetByteArrayElements(v_data, &inputCopy);
-    uint8_t* const vData = reinterpret_cast<uint8_t*>(v_buff);
-
-    jbyteArray returnedArray = env->NewByteArray(width*height);
-    jbyte *outData = env->GetByteArrayElements(returnedArray, NULL);
-
-    cv::Size actual_size(width, height);
-    cv::Size half_size(width/2, height/2);
+    int index = 0;
 
-    cv::Mat y(actual_size, CV_8UC1, yData);
-    cv::Mat u(half_size, CV_8UC1, uData);
-    cv::Mat v(half_size, CV_8UC1, vData);
+    for(int y=0; y<height; y++){
+        const uint8_t* pY = yData + y_row_stride * y;
 
-    cv::Mat u_resized, v_resized;
-    cv::resize(u, u_resized, actual_size, 0, 0, cv::INTER_NEAREST);
-    cv::resize(v, v_resized, actual_size, 0, 0, cv::INTER_NEAREST);
+        const int uv_row_start = uv_row_stride * (y >> 1);
+        const uint8_t* pU = uData + uv_row_start;
+        const uint8_t* pV = vData + uv_row_start;
 
-    cv::Mat yuv;
-    std::vector<cv::Mat> yuv_channels = { y, u_resized, v_resized };
-    cv::merge(yuv_channels, yuv);
+        for(int x=0; x<width; x++){
+            const int uv_offset = (x >> 1) * uv_pixel_stride;
 
-    cv::Mat bgr;
-    cv::cvtColor(yuv, bgr, cv::COLOR_YUV2BGR);
+            int nR, nG, nB;
+            yuv_to_rgb(pY[x], pU[uv_offset], pV[uv_offset], &nR, &nG, &nB);
 
-    uint8_t* bgr_data = bgr.data;
-    int index = 0;
-    for(int y=0; y<bgr.rows; y++){
-        for(int x=0; x<bgr.cols; x++){
-//            int index = y * width + x;
-            cv::Vec3b pixel = bgr.at<cv::Vec3b>(y,x);
-            uint32_t B = pixel[0];
-            uint32_t G = pixel[1];
-            uint32_t R = pixel[2];
-            if(bgr_data[index] == 0){
-//                outData[index] = 0xFF000000;
-                outData[index++] = 0x00;
-                outData[index++] = 0x00;
-                outData[index++] = 0x00;
-                outData[index++] = 0xff;
-            }else{
-//                outData[index] = 0xFF000000 | (R << 16) | (G << 8) | B;
-                outData[index++] = R & 0x000000ff;
-                outData[index++] = G;
-                outData[index++] = B;
-                outData[index++] = 0xff;
-            }
+            outData[index++] = 0xff000000 | nR << 16 | nG << 8 | nB;
         }
     }
+}
 
-    env->ReleaseByteArrayElements(u_data, u_buff, JNI_ABORT);
-    env->ReleaseByteArrayElements(v_data, v_buff, JNI_ABORT);
-    env->ReleaseByteArrayElements(y_data, y_buff, JNI_ABORT);
-    env->ReleaseByteArrayElements(returnedArray, outData, JNI_ABORT);
-
-    return returnedArray;
 
+/**
+ * Vectorized YUV_420_888 to BGRA / BGR over rows [row_start, row_end)
+ * 16 pixels per step with NEON, same fixed point math as yuv_to_rgb so results are bit-identical,
+ * remaining pixels and other pixel strides go through the scalar path
+ * Output rows are packed, width * channels bytes, outData points at the start of the frame
+ */
+#if defined(__ARM_NEON)
+
+static inline void yuv_to_rgb_x8(uint8x8_t y, uint8x8_t u, uint8x8_t v,
+                                 uint8x8_t* r, uint8x8_t* g, uint8x8_t* b){
+    // max(y - 16, 0) by unsigned saturation
+    const int16x8_t ys = vreinterpretq_s16_u16(vmovl_u8(vqsub_u8(y, vdup_n_u8(16))));
+    const int16x8_t us = vsubq_s16(vreinterpretq_s16_u16(vmovl_u8(u)), vdupq_n_s16(128));
+    const int16x8_t vs = vsubq_s16(vreinterpretq_s16_u16(vmovl_u8(v)), vdupq_n_s16(128));
+
+    const int32x4_t y_lo = vmull_n_s16(vget_low_s16(ys), 1192);
+    const int32x4_t y_hi = vmull_n_s16(vget_high_s16(ys), 1192);
+
+    const int32x4_t r_lo = vmlal_n_s16(y_lo, vget_low_s16(vs), 1634);
+    const int32x4_t r_hi = vmlal_n_s16(y_hi, vget_high_s16(vs), 1634);
+    const int32x4_t g_lo = vmlsl_n_s16(vmlsl_n_s16(y_lo, vget_low_s16(vs), 833), vget_low_s16(us), 400);
+    const int32x4_t g_hi = vmlsl_n_s16(vmlsl_n_s16(y_hi, vget_high_s16(vs), 833), vget_high_s16(us), 400);
+    const int32x4_t b_lo = vmlal_n_s16(y_lo, vget_low_s16(us), 2066);
+    const int32x4_t b_hi = vmlal_n_s16(y_hi, vget_high_s16(us), 2066);
+
+    // >> 10 narrowing to 0 for negative values, then saturation at 255,
+    // same as clamping to [0, 262143] before the shift
+    *r = vqmovn_u16(vcombine_u16(vqshrun_n_s32(r_lo, 10), vqshrun_n_s32(r_hi, 10)));
+    *g = vqmovn_u16(vcombine_u16(vqshrun_n_s32(g_lo, 10), vqshrun_n_s32(g_hi, 10)));
+    *b = vqmovn_u16(vcombine_u16(vqshrun_n_s32(b_lo, 10), vqshrun_n_s32(b_hi, 10)));
 }
 
-extern "C"
-JNIEXPORT jintArray JNICALL
-Java_com_MobileSLAM_RosCameraCapture_CameraUtil_convertYUVToARGBUint32(JNIEnv *env, jclass clazz,
-                                                                       jbyteArray y_data,
-                                                                       jbyteArray u_data,
-                                                                       jbyteArray v_data,
-                                                                       jint y_row_stride,
-                                                                       jint uv_row_stride,
-                                                                       jint uv_pixel_stride,
-                                                                       jint width, jint height) {
-
-    jboolean inputCopy = JNI_FALSE;
-    jbyte* const y_buff = env->GetByteArrayElements(y_data, &inputCopy);
-    uint8_t* const yData = reinterpret_cast<uint8_t*>(y_buff);
-    jbyte* const u_buff = env->GetByteArrayElements(u_data, &inputCopy);
-    uint8_t* const uData = reinterpret_cast<uint8_t*>(u_buff);
-    jbyte* const v_buff = env->GetByteArrayElements(v_data, &inputCopy);
-    uint8_t* const vData = reinterpret_cast<uint8_t*>(v_buff);
-
-    jintArray returnedArray = env->NewIntArray(width * height);
-    jint *outData = env->GetIntArrayElements(returnedArray, NULL);
-
-    static const int kMaxChannelValue = 262143;
+#endif
 
-    int index = 0;
+template <int CHANNELS>
+static void yuv_to_bgr_rows(const uint8_t* yData, const uint8_t* uData, const uint8_t* vData,
+                            int y_row_stride, int uv_row_stride, int uv_pixel_stride,
+                            int width, int row_start, int row_end, uint8_t* outData){
 
-    for(int y=0; y<height; y++){
+    for(int y=row_start; y<row_end; y++){
         const uint8_t* pY = yData + y_row_stride * y;
 
         const int uv_row_start = uv_row_stride * (y >> 1);
         const uint8_t* pU = uData + uv_row_start;
         const uint8_t* pV = vData + uv_row_start;
 
-        for(int x=0; x<width; x++){
+        uint8_t* out = outData + (size_t) y * width * CHANNELS;
+        int x = 0;
+
+#if defined(__ARM_NEON)
+        if(uv_pixel_stride == 1 || uv_pixel_stride == 2){
+            // Interleaved chroma loads 16 bytes per 8 samples, the last step stays scalar
+            // so the load never passes the end of the plane
+            const int vector_end = uv_pixel_stride == 1 ? width - 16 : width - 17;
+
+            for(; x<=vector_end; x+=16){
+                const uint8x16_t y16 = vld1q_u8(pY + x);
+
+                uint8x8_t u8, v8;
+                if(uv_pixel_stride == 1){
+                    u8 = vld1_u8(pU + (x >> 1));
+                    v8 = vld1_u8(pV + (x >> 1));
+                }else{
+                    u8 = vld2_u8(pU + x).val[0];
+                    v8 = vld2_u8(pV + x).val[0];
+                }
+                // one chroma sample for two neighbouring pixels
+                const uint8x8x2_t u16 = vzip_u8(u8, u8);
+                const uint8x8x2_t v16 = vzip_u8(v8, v8);
+
+                uint8x8_t r_lo, g_lo, b_lo, r_hi, g_hi, b_hi;
+                yuv_to_rgb_x8(vget_low_u8(y16), u16.val[0], v16.val[0], &r_lo, &g_lo, &b_lo);
+                yuv_to_rgb_x8(vget_high_u8(y16), u16.val[1], v16.val[1], &r_hi, &g_hi, &b_hi);
+
+                if(CHANNELS == 4){
+                    uint8x16x4_t bgra;
+                    bgra.val[0] = vcombine_u8(b_lo, b_hi);
+                    bgra.val[1] = vcombine_u8(g_lo, g_hi);
+                    bgra.val[2] = vcombine_u8(r_lo, r_hi);
+                    bgra.val[3] = vdupq_n_u8(0xff);
+                    vst4q_u8(out + x * 4, bgra);
+                }else{
+                    uint8x16x3_t bgr;
+                    bgr.val[0] = vcombine_u8(b_lo, b_hi);
+                    bgr.val[1] = vcombine_u8(g_lo, g_hi);
+                    bgr.val[2] = vcombine_u8(r_lo, r_hi);
+                    vst3q_u8(out + x * 3, bgr);
+                }
+            }
+        }
+#endif
 
+        for(; x<width; x++){
             const int uv_offset = (x >> 1) * uv_pixel_stride;
 
-            int nY = pY[x];
-            int nU = pU[uv_offset];
-            int nV = pV[uv_offset];
+            int nR, nG, nB;
+            yuv_to_rgb(pY[x], pU[uv_offset], pV[uv_offset], &nR, &nG, &nB);
 
-            nY -= 16;
-            nU -= 128;
-            nV -= 128;
-            if(nY < 0){
-                nY = 0;
+            out[x * CHANNELS] = nB;
+            out[x * CHANNELS + 1] = nG;
+            out[x * CHANNELS + 2] = nR;
+            if(CHANNELS == 4){
+                out[x * CHANNELS + 3] = 0xff;
             }
+        }
+    }
+}
 
-            int nR = (int)(1192 * nY + 1634 * nV);
-            int nG = (int)(1192 * nY - 833 * nV - 400 * nU);
-            int nB = (int)(1192 * nY + 2066 * nU);
 
-            nR = MIN(kMaxChannelValue, MAX(0, nR));
-            nG = MIN(kMaxChannelValue, MAX(0, nG));
-            nB = MIN(kMaxChannelValue, MAX(0, nB));
+/**
+ * Calling convention of all natives:
+ * - outputs are supplied by the caller, nothing is allocated on the Java heap
+ * - Java arrays are accessed through Get/ReleasePrimitiveArrayCritical, no copy on ART,
+ *   inputs released with JNI_ABORT, outputs with 0 so results are never discarded
+ * - image planes and message data are direct buffers, accessed in place
+ * - no other JNI call between Get and Release of a critical section
+ */
+extern "C"
+JNIEXPORT void JNICALL
+Java_com_MobileSLAM_RosCameraCapture_CameraUtil_convertYUVToBGRAInto(JNIEnv *env, jclass clazz,
+                                                                    jobject y_data,
+                                                                    jobject u_data,
+                                                                    jobject v_data,
+                                                                    jint y_row_stride,
+                                                                    jint uv_row_stride,
+                                                                    jint uv_pixel_stride, jint width,
+                                                                    jint height,
+                                                                    jobject out_data) {
+
+    const auto* yData = static_cast<const uint8_t*>(env->GetDirectBufferAddress(y_data));
+    const auto* uData = static_cast<const uint8_t*>(env->GetDirectBufferAddress(u_data));
+    const auto* vData = static_cast<const uint8_t*>(env->GetDirectBufferAddress(v_data));
+    auto* outData = static_cast<uint8_t*>(env->GetDirectBufferAddress(out_data));
+
+    yuv_to_bgra(yData, uData, vData, y_row_stride, uv_row_stride, uv_pixel_stride,
+                width, height, outData);
+}
 
-            nR = (nR >> 10) & 0xff;
-            nG = (nG >> 10) & 0xff;
-            nB = (nB >> 10) & 0xff;
 
-            outData[index++] = 0xff000000 | nR << 16 | nG << 8 | nB;
-        }
-    }
+extern "C"
+JNIEXPORT void JNICALL
+Java_com_MobileSLAM_RosCameraCapture_CameraUtil_convertYUVToBGRARows(JNIEnv *env, jclass clazz,
+                                                                    jobject y_data,
+                                                                    jobject u_data,
+                                                                    jobject v_data,
+                                                                    jint y_row_stride,
+                                                                    jint uv_row_stride,
+                                                                    jint uv_pixel_stride, jint width,
+                                                                    jint row_start, jint row_end,
+                                                                    jobject out_data) {
+
+    const auto* yData = static_cast<const uint8_t*>(env->GetDirectBufferAddress(y_data));
+    const auto* uData = static_cast<const uint8_t*>(env->GetDirectBufferAddress(u_data));
+    const auto* vData = static_cast<const uint8_t*>(env->GetDirectBufferAddress(v_data));
+    auto* outData = static_cast<uint8_t*>(env->GetDirectBufferAddress(out_data));
+
+    yuv_to_bgr_rows<4>(yData, uData, vData, y_row_stride, uv_row_stride, uv_pixel_stride,
+                       width, row_start, row_end, outData);
+}
 
-    env->ReleaseByteArrayElements(u_data, u_buff, JNI_ABORT);
-    env->ReleaseByteArrayElements(v_data, v_buff, JNI_ABORT);
-    env->ReleaseByteArrayElements(y_data, y_buff, JNI_ABORT);
-    env->ReleaseIntArrayElements(returnedArray, outData, JNI_ABORT);
 
-    return returnedArray;
+extern "C"
+JNIEXPORT void JNICALL
+Java_com_MobileSLAM_RosCameraCapture_CameraUtil_convertYUVToBGRRows(JNIEnv *env, jclass clazz,
+                                                                   jobject y_data,
+                                                                   jobject u_data,
+                                                                   jobject v_data,
+                                                                   jint y_row_stride,
+                                                                   jint uv_row_stride,
+                                                                   jint uv_pixel_stride, jint width,
+                                                                   jint row_start, jint row_end,
+                                                                   jobject out_data) {
+
+    const auto* yData = static_cast<const uint8_t*>(env->GetDirectBufferAddress(y_data));
+    const auto* uData = static_cast<const uint8_t*>(env->GetDirectBufferAddress(u_data));
+    const auto* vData = static_cast<const uint8_t*>(env->GetDirectBufferAddress(v_data));
+    auto* outData = static_cast<uint8_t*>(env->GetDirectBufferAddress(out_data));
+
+    yuv_to_bgr_rows<3>(yData, uData, vData, y_row_stride, uv_row_stride, uv_pixel_stride,
+                       width, row_start, row_end, outData);
 }
 
 
 extern "C"
-JNIEXPORT jshortArray JNICALL
-Java_com_MobileSLAM_RosCameraCapture_CameraUtil_parseDepth16(JNIEnv *env, jclass clazz,
-                                                             jshortArray short_data, jint width,
+JNIEXPORT void JNICALL
+Java_com_MobileSLAM_RosCameraCapture_CameraUtil_packYUVToNV12(JNIEnv *env, jclass clazz,
+                                                             jobject y_data,
+                                                             jobject u_data,
+                                                             jobject v_data,
+                                                             jint y_row_stride,
+                                                             jint uv_row_stride,
+                                                             jint uv_pixel_stride, jint width,
                                                              jint height,
-                                                             jfloat confidence_threshold) {
+                                                             jobject out_data) {
 
-    jboolean inputCopy = JNI_FALSE;
-    jshort * const depth_buff = env->GetShortArrayElements(short_data, &inputCopy);
-    uint16_t* const depth_data = reinterpret_cast<uint16_t*>(depth_buff);
-
-    jshortArray returnedArray = env->NewShortArray(width * height);
-    jshort *outData = env->GetShortArrayElements(returnedArray, NULL);
+    const auto* yData = static_cast<const uint8_t*>(env->GetDirectBufferAddress(y_data));
+    const auto* uData = static_cast<const uint8_t*>(env->GetDirectBufferAddress(u_data));
+    const auto* vData = static_cast<const uint8_t*>(env->GetDirectBufferAddress(v_data));
+    auto* outData = static_cast<uint8_t*>(env->GetDirectBufferAddress(out_data));
 
     for(int y=0; y<height; y++){
-        for(int x=0; x<width; x++){
-            int index = width * y + x;
-            uint16_t rawDepth = depth_data[index];
-            uint16_t depthRange = (uint16_t) rawDepth & 0x1FFF;
-            uint16_t depthConfidence = (uint16_t) ((rawDepth >> 13) & 0x7);
-            float confidencePercentage = depthConfidence == 0 ? 1.f : (depthConfidence - 1) / 7.f;
-
-            if(confidencePercentage > confidence_threshold){
-                outData[index] = depthRange;
-            }else{
-                outData[index] = 0;
-            }
+        memcpy(outData + (size_t) y * width, yData + (size_t) y * y_row_stride, width);
+    }
+
+    uint8_t* uvOut = outData + (size_t) width * height;
+
+    // Camera delivered NV12 already, V plane is the U plane shifted by one byte: copy whole rows
+    if(uv_pixel_stride == 2 && vData == uData + 1){
+        for(int y=0; y<height/2; y++){
+            memcpy(uvOut + (size_t) y * width, uData + (size_t) y * uv_row_stride, width);
         }
+        return;
     }
 
-    env->ReleaseShortArrayElements(short_data, depth_buff, JNI_ABORT);
-    env->ReleaseShortArrayElements(returnedArray, outData, JNI_ABORT);
+    for(int y=0; y<height/2; y++){
+        const uint8_t* pU = uData + (size_t) y * uv_row_stride;
+        const uint8_t* pV = vData + (size_t) y * uv_row_stride;
+        uint8_t* out = uvOut + (size_t) y * width;
+        for(int x=0; x<width/2; x++){
+            out[2*x] = pU[x * uv_pixel_stride];
+            out[2*x + 1] = pV[x * uv_pixel_stride];
+        }
+    }
+}
 
-    return returnedArray;
 
+extern "C"
+JNIEXPORT void JNICALL
+Java_com_MobileSLAM_RosCameraCapture_CameraUtil_convertYUVToARGBUint32Into(JNIEnv *env, jclass clazz,
+                                                                          jobject y_data,
+                                                                          jobject u_data,
+                                                                          jobject v_data,
+                                                                          jint y_row_stride,
+                                                                          jint uv_row_stride,
+                                                                          jint uv_pixel_stride,
+                                                                          jint width, jint height,
+                                                                          jintArray out_data) {
+
+    const auto* yData = static_cast<const uint8_t*>(env->GetDirectBufferAddress(y_data));
+    const auto* uData = static_cast<const uint8_t*>(env->GetDirectBufferAddress(u_data));
+    const auto* vData = static_cast<const uint8_t*>(env->GetDirectBufferAddress(v_data));
+
+    auto* outData = static_cast<jint*>(env->GetPrimitiveArrayCritical(out_data, NULL));
+
+    yuv_to_argb_uint32(yData, uData, vData, y_row_stride, uv_row_stride, uv_pixel_stride,
+                       width, height, outData);
+
+    env->ReleasePrimitiveArrayCritical(out_data, outData, 0);
 }
 
 
 extern "C"
-JNIEXPORT jintArray JNICALL
-Java_com_MobileSLAM_RosCameraCapture_CameraUtil_convertShortToARGB(JNIEnv *env, jclass clazz,
-                                                                   jshortArray short_depth_values,
-                                                                   jint width, jint height,
-                                                                   jshort max_depth_threshold) {
+JNIEXPORT void JNICALL
+Java_com_MobileSLAM_RosCameraCapture_CameraUtil_convertYUVToRGBAOpencvInto(JNIEnv *env, jclass clazz,
+                                                                          jobject y_data,
+                                                                          jobject u_data,
+                                                                          jobject v_data,
+                                                                          jint y_row_stride,
+                                                                          jint uv_row_stride,
+                                                                          jint uv_pixel_stride,
+                                                                          jint width, jint height,
+                                                                          jobject out_data) {
+
+    auto* yData = static_cast<uint8_t*>(env->GetDirectBufferAddress(y_data));
+    const auto* uData = static_cast<const uint8_t*>(env->GetDirectBufferAddress(u_data));
+    const auto* vData = static_cast<const uint8_t*>(env->GetDirectBufferAddress(v_data));
+    auto* outData = static_cast<uint8_t*>(env->GetDirectBufferAddress(out_data));
 
-    jshort* const depthBuff = env->GetShortArrayElements(short_depth_values, JNI_FALSE);
-    uint16_t* const depthData = reinterpret_cast<uint16_t*>(depthBuff);
+    cv::Size actual_size(width, height);
+    cv::Size half_size(width/2, height/2);
 
-    jintArray returnedArray = env->NewIntArray(width * height);
-    jint* outData = env->GetIntArrayElements(returnedArray, NULL);
+    // Gather chroma into contiguous planes, any pixel stride
+    thread_local cv::Mat u, v;
+    u.create(half_size, CV_8UC1);
+    v.create(half_size, CV_8UC1);
+    for(int y=0; y<half_size.height; y++){
+        uint8_t* pU = u.ptr<uint8_t>(y);
+        uint8_t* pV = v.ptr<uint8_t>(y);
+        for(int x=0; x<half_size.width; x++){
+            const int uv_offset = y * uv_row_stride + x * uv_pixel_stride;
+            pU[x] = uData[uv_offset];
+            pV[x] = vData[uv_offset];
+        }
+    }
 
-    for(int index=0; index < width * height; index++){
-        uint16_t depthValue = depthData[index];
-        if(depthValue > max_depth_threshold) depthValue = 0;
-        uint16_t normalizedDepth = depthValue * 255 / max_depth_threshold;
+    cv::Mat y(actual_size, CV_8UC1, yData, y_row_stride);
 
-        uint32_t R = 255 - normalizedDepth;
-        uint32_t G = R;
-        uint32_t B = R;
+    thread_local cv::Mat u_resized, v_resized, yuv, bgr;
+    cv::resize(u, u_resized, actual_size, 0, 0, cv::INTER_NEAREST);
+    cv::resize(v, v_resized, actual_size, 0, 0, cv::INTER_NEAREST);
 
-        if(depthValue == 0){
-            outData[index] = 0xFF000000;
-        }else{
-            outData[index] = 0xFF000000 | R << 16 | R << 8 | B;
-        }
+    std::vector<cv::Mat> yuv_channels = { y, u_resized, v_resized };
+    cv::merge(yuv_channels, yuv);
+    cv::cvtColor(yuv, bgr, cv::COLOR_YUV2BGR);
+
+    // Written straight into the caller's buffer, R G B A
+    cv::Mat rgba(actual_size, CV_8UC4, outData);
+    cv::cvtColor(bgr, rgba, cv::COLOR_BGR2RGBA);
+}
+
+
+extern "C"
+JNIEXPORT jint JNICALL
+Java_com_MobileSLAM_RosCameraCapture_CameraUtil_encodeDepthPNG(JNIEnv *env, jclass clazz,
+                                                              jshortArray depth_data,
+                                                              jint width, jint height,
+                                                              jint compression_level,
+                                                              jobject out_data, jint offset) {
+
+    // Copied out, no critical section held while encoding
+    thread_local cv::Mat depth;
+    depth.create(height, width, CV_16UC1);
+    env->GetShortArrayRegion(depth_data, 0, width * height, reinterpret_cast<jshort*>(depth.data));
+
+    thread_local std::vector<uchar> png;
+    png.clear();
+    const std::vector<int> params = { cv::IMWRITE_PNG_COMPRESSION, compression_level };
+    if(!cv::imencode(".png", depth, png, params)){
+        return -1;
+    }
+
+    auto* outData = static_cast<uint8_t*>(env->GetDirectBufferAddress(out_data));
+    const jlong capacity = env->GetDirectBufferCapacity(out_data);
+    if(offset + (jlong) png.size() > capacity){
+        return -1;
     }
 
-    env->ReleaseShortArrayElements(short_depth_values, depthBuff, JNI_ABORT);
-    env->ReleaseIntArrayElements(returnedArray, outData, JNI_ABORT);
+    memcpy(outData + offset, png.data(), png.size());
+    return (jint) png.size();
+}
+
+
+extern "C"
+JNIEXPORT void JNICALL
+Java_com_MobileSLAM_RosCameraCapture_CameraUtil_parseDepth16Into(JNIEnv *env, jclass clazz,
+                                                                 jshortArray short_data,
+                                                                 jshortArray out_data,
+                                                                 jint width, jint height,
+                                                                 jfloat confidence_threshold) {
+
+    auto* depthData = static_cast<uint16_t*>(env->GetPrimitiveArrayCritical(short_data, NULL));
+    auto* outData = static_cast<uint16_t*>(env->GetPrimitiveArrayCritical(out_data, NULL));
+
+    parse_depth16(depthData, outData, width * height, confidence_threshold);
+
+    env->ReleasePrimitiveArrayCritical(out_data, outData, 0);
+    env->ReleasePrimitiveArrayCritical(short_data, depthData, JNI_ABORT);
+}
+
+
+extern "C"
+JNIEXPORT void JNICALL
+Java_com_MobileSLAM_RosCameraCapture_CameraUtil_convertShortToARGBInto(JNIEnv *env, jclass clazz,
+                                                                       jshortArray short_depth_values,
+                                                                       jintArray out_data,
+                                                                       jint width, jint height,
+                                                                       jshort max_depth_threshold) {
+
+    auto* depthData = static_cast<uint16_t*>(env->GetPrimitiveArrayCritical(short_depth_values, NULL));
+    auto* outData = static_cast<jint*>(env->GetPrimitiveArrayCritical(out_data, NULL));
 
-    return returnedArray;
+    short_to_argb(depthData, outData, width * height, max_depth_threshold);
 
+    env->ReleasePrimitiveArrayCritical(out_data, outData, 0);
+    env->ReleasePrimitiveArrayCritical(short_depth_values, depthData, JNI_ABORT);
 }
 
 
+extern "C"
+JNIEXPORT void JNICALL
+Java_com_MobileSLAM_RosCameraCapture_CameraUtil_convertShortToGrayInto(JNIEnv *env, jclass clazz,
+                                                                       jshortArray short_data,
+                                                                       jbyteArray out_data,
+                                                                       jint length,
+                                                                       jshort max_depth_threshold) {
+
+    auto* shortData = static_cast<uint16_t*>(env->GetPrimitiveArrayCritical(short_data, NULL));
+    auto* outData = static_cast<uint8_t*>(env->GetPrimitiveArrayCritical(out_data, NULL));
+
+    short_to_gray(shortData, outData, length, max_depth_threshold);
+
+    env->ReleasePrimitiveArrayCritical(out_data, outData, 0);
+    env->ReleasePrimitiveArrayCritical(short_data, shortData, JNI_ABORT);
+}
+
 
 extern "C"
-JNIEXPORT jbyteArray JNICALL
-Java_com_MobileSLAM_RosCameraCapture_CameraUtil_convertShortToGray(JNIEnv *env, jclass clazz,
-                                                                   jshortArray short_data,
-                                                                   jint length,
-                                                                   jshort max_depth_threshold) {
+JNIEXPORT void JNICALL
+Java_com_MobileSLAM_RosCameraCapture_CameraUtil_convertShortToByteInto(JNIEnv *env, jclass clazz,
+                                                                       jshortArray short_data,
+                                                                       jbyteArray out_data,
+                                                                       jint length) {
 
-    jshort* const shortBuff = env->GetShortArrayElements(short_data, JNI_FALSE);
-    uint16_t* const shortData = reinterpret_cast<uint16_t*>(shortBuff);
+    auto* shortData = static_cast<uint16_t*>(env->GetPrimitiveArrayCritical(short_data, NULL));
+    auto* outData = static_cast<uint8_t*>(env->GetPrimitiveArrayCritical(out_data, NULL));
 
-    jbyteArray returnedArray = env->NewByteArray(length);
-    jbyte* outData = env->GetByteArrayElements(returnedArray, NULL);
+    short_to_uint16_le(shortData, outData, length);
 
-    for(int i=0; i<length; i++){
-        uint16_t shortValue = shortData[i];
-        uint8_t normalized = 255 * shortValue / max_depth_threshold;
-        if(normalized == 0){
-            outData[i] = 0;
-        }else{
-            outData[i] = 255 - normalized;
-        }
-    }
+    env->ReleasePrimitiveArrayCritical(out_data, outData, 0);
+    env->ReleasePrimitiveArrayCritical(short_data, shortData, JNI_ABORT);
+}
 
-    env->ReleaseShortArrayElements(short_data, shortBuff, JNI_ABORT);
-    env->ReleaseByteArrayElements(returnedArray, outData, JNI_ABORT);
 
-    return returnedArray;
+/**
+ * Row band variants, only rows [row_start, row_end) of the output are touched
+ * Inputs are read in critical sections (released with JNI_ABORT, never written back),
+ * Java array outputs go through Set<Type>ArrayRegion and direct buffers are written in place,
+ * so concurrent calls on other bands of the same frame never overwrite each other
+ */
+extern "C"
+JNIEXPORT void JNICALL
+Java_com_MobileSLAM_RosCameraCapture_CameraUtil_parseDepth16Rows(JNIEnv *env, jclass clazz,
+                                                                 jobject raw_data,
+                                                                 jshortArray out_data,
+                                                                 jint width, jint row_start,
+                                                                 jint row_end,
+                                                                 jfloat confidence_threshold) {
+
+    const int offset = width * row_start;
+    const int length = width * (row_end - row_start);
+    thread_local std::vector<uint16_t> band;
+    band.resize(length);
+
+    const auto* raw = static_cast<const uint16_t*>(env->GetDirectBufferAddress(raw_data));
+    parse_depth16(raw + offset, band.data(), length, confidence_threshold);
+    env->SetShortArrayRegion(out_data, offset, length, reinterpret_cast<jshort*>(band.data()));
 }
 
 
 extern "C"
-JNIEXPORT jbyteArray JNICALL
-Java_com_MobileSLAM_RosCameraCapture_CameraUtil_convertShortToByte(JNIEnv *env, jclass clazz,
-                                                                     jshortArray short_data,
-                                                                     jint length) {
+JNIEXPORT void JNICALL
+Java_com_MobileSLAM_RosCameraCapture_CameraUtil_convertShortToGrayRows(JNIEnv *env, jclass clazz,
+                                                                       jshortArray short_data,
+                                                                       jobject out_data,
+                                                                       jint width, jint row_start,
+                                                                       jint row_end,
+                                                                       jshort max_depth_threshold) {
+
+    const int offset = width * row_start;
+    const int length = width * (row_end - row_start);
 
-    jshort* const shortBuff = env->GetShortArrayElements(short_data, JNI_FALSE);
-    uint16_t* const shortData = reinterpret_cast<uint16_t*>(shortBuff);
+    auto* outData = static_cast<uint8_t*>(env->GetDirectBufferAddress(out_data));
+    auto* shortData = static_cast<uint16_t*>(env->GetPrimitiveArrayCritical(short_data, NULL));
 
-    jbyteArray returnedArray = env->NewByteArray(length * 2);
-    jbyte* outData = env->GetByteArrayElements(returnedArray, NULL);
+    short_to_gray(shortData + offset, outData + offset, length, max_depth_threshold);
+
+    env->ReleasePrimitiveArrayCritical(short_data, shortData, JNI_ABORT);
+}
 
 
+extern "C"
+JNIEXPORT void JNICALL
+Java_com_MobileSLAM_RosCameraCapture_CameraUtil_convertShortToByteRows(JNIEnv *env, jclass clazz,
+                                                                       jshortArray short_data,
+                                                                       jobject out_data,
+                                                                       jint width, jint row_start,
+                                                                       jint row_end) {
+
+    const int offset = width * row_start;
+    const int length = width * (row_end - row_start);
+
+    auto* outData = static_cast<uint8_t*>(env->GetDirectBufferAddress(out_data));
+    auto* shortData = static_cast<uint16_t*>(env->GetPrimitiveArrayCritical(short_data, NULL));
+
+    short_to_uint16_le(shortData + offset, outData + offset * 2, length);
+
+    env->ReleasePrimitiveArrayCritical(short_data, shortData, JNI_ABORT);
+}
+
+
+/**
+ * Fused depth kernel: parse DEPTH16, undistort, register and serialize in one pass
+ * Per output pixel: look up source pixel in undistortion map, parse raw value,
+ * project through registration tables, z-buffer into depth_out (nearest wins),
+ * then write depth_out as 16UC1 little-endian or 8UC1 gray into out_data (untouched for DEPTH_FORMAT_NONE)
+ * Must stay bit-identical to CameraKernels.processDepthFrame (no fp contraction, see CMakeLists.txt)
+ */
+static void process_depth_frame(const uint16_t* raw, const jint* undistortion_map,
+                                const float* ray_u, const float* ray_v, const float* ray_w,
+                                float trans_u, float trans_v, float trans_w,
+                                int width, int height, float confidence_threshold,
+                                jshort max_depth_threshold, int output_format,
+                                uint16_t* depth_out, uint8_t* out_data){
+
+    const int length = width * height;
+    std::fill(depth_out, depth_out + length, 0);
+
     for(int i=0; i<length; i++){
-        uint16_t shortValue = shortData[i];
-        uint8_t right = ( shortValue >> 8 ) & 0xFF;
-        uint8_t left = shortValue & 0xFF;
-        outData[2*i] = left;
-        outData[2*i + 1] = right;
+        const int src = undistortion_map[i];
+        if(src < 0) continue;
+
+        uint16_t depth;
+        parse_depth16(raw + src, &depth, 1, confidence_threshold);
+        if(depth == 0) continue;
+
+        const float d = (float) depth;
+        const float w = ray_w[i] * d + trans_w;
+        if(w <= 0) continue;
+
+        const float u = (ray_u[i] * d + trans_u) / w;
+        const float v = (ray_v[i] * d + trans_v) / w;
+        if(u < 0 || v < 0 || u >= width || v >= height) continue;
+
+        const int target = (int) v * width + (int) u;
+        const uint16_t existing = depth_out[target];
+        if(existing == 0 || depth < existing){
+            depth_out[target] = depth;
+        }
+    }
+
+    if(output_format == DEPTH_FORMAT_8UC1){
+        short_to_gray(depth_out, out_data, length, max_depth_threshold);
+    }else if(output_format == DEPTH_FORMAT_16UC1){
+        short_to_uint16_le(depth_out, out_data, length);
     }
+}
 
-    env->ReleaseShortArrayElements(short_data, shortBuff, JNI_ABORT);
-    env->ReleaseByteArrayElements(returnedArray, outData, JNI_ABORT);
 
-    return returnedArray;
+extern "C"
+JNIEXPORT void JNICALL
+Java_com_MobileSLAM_RosCameraCapture_CameraUtil_processDepthFrameNative(JNIEnv *env, jclass clazz,
+                                                                        jobject raw_data,
+                                                                        jintArray undistortion_map,
+                                                                        jfloatArray ray_u,
+                                                                        jfloatArray ray_v,
+                                                                        jfloatArray ray_w,
+                                                                        jfloat trans_u,
+                                                                        jfloat trans_v,
+                                                                        jfloat trans_w,
+                                                                        jint width, jint height,
+                                                                        jfloat confidence_threshold,
+                                                                        jshort max_depth_threshold,
+                                                                        jint output_format,
+                                                                        jshortArray depth_out,
+                                                                        jobject out_data) {
+
+    // Frame and message data are direct buffers, accessed in place, no message data for DEPTH_FORMAT_NONE
+    const auto* raw = static_cast<const uint16_t*>(env->GetDirectBufferAddress(raw_data));
+    auto* outData = out_data == NULL ? NULL : static_cast<uint8_t*>(env->GetDirectBufferAddress(out_data));
+
+    // Critical sections for the tables: no copy on ART, released right after the single pass
+    auto* map = static_cast<jint*>(env->GetPrimitiveArrayCritical(undistortion_map, NULL));
+    auto* rayU = static_cast<float*>(env->GetPrimitiveArrayCritical(ray_u, NULL));
+    auto* rayV = static_cast<float*>(env->GetPrimitiveArrayCritical(ray_v, NULL));
+    auto* rayW = static_cast<float*>(env->GetPrimitiveArrayCritical(ray_w, NULL));
+    auto* depthOut = static_cast<uint16_t*>(env->GetPrimitiveArrayCritical(depth_out, NULL));
+
+    process_depth_frame(raw, map, rayU, rayV, rayW, trans_u, trans_v, trans_w,
+                        width, height, confidence_threshold, max_depth_threshold, output_format,
+                        depthOut, outData);
+
+    env->ReleasePrimitiveArrayCritical(depth_out, depthOut, 0);
+    env->ReleasePrimitiveArrayCritical(ray_w, rayW, JNI_ABORT);
+    env->ReleasePrimitiveArrayCritical(ray_v, rayV, JNI_ABORT);
+    env->ReleasePrimitiveArrayCritical(ray_u, rayU, JNI_ABORT);
+    env->ReleasePrimitiveArrayCritical(undistortion_map, map, JNI_ABORT);
+}
 
-}
\ No newline at end of file
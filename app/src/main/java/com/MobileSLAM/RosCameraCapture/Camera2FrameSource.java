@@ -0,0 +1,254 @@
+package com.MobileSLAM.RosCameraCapture;
+
+import android.annotation.SuppressLint;
+import android.hardware.camera2.CameraAccessException;
+import android.hardware.camera2.CameraCaptureSession;
+import android.hardware.camera2.CameraDevice;
+import android.hardware.camera2.CameraManager;
+import android.hardware.camera2.CameraMetadata;
+import android.hardware.camera2.CaptureRequest;
+import android.media.Image;
+import android.media.ImageReader;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.support.annotation.NonNull;
+import android.support.annotation.RequiresApi;
+import android.util.Log;
+
+import java.util.Arrays;
+
+/**
+ * Frames of one camera stream through an ImageReader as only capture target
+ * Camera, session and reader live on an own background thread, the acquire stage of the pipeline,
+ * the listener is called on it with the planes of the image, read in place
+ */
+@RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
+public class Camera2FrameSource implements FrameSource {
+
+    final static private String TAG = Camera2FrameSource.class.getSimpleName();
+
+    private final CameraManager mCameraManager;
+    private final String mCameraId;
+    private final int width;
+    private final int height;
+    private final int format;
+    private final String threadName;
+    private final SensorClock sensorClock;
+
+    private HandlerThread backgroundThread;
+    private Handler backgroundHandler;
+
+    private ImageReader mImageReader;
+    private CameraDevice mCameraDevice;
+    private CaptureRequest.Builder mCaptureRequestBuilder;
+
+    private final Frame frame = new Frame();        // background thread only
+    private volatile Listener listener;
+    private volatile PipelineMetrics.Stage acquireStage;
+
+    /**
+     * @param cameraManager camera service
+     * @param cameraId camera to open
+     * @param width frame width
+     * @param height frame height
+     * @param format FORMAT_DEPTH16 or FORMAT_YUV_420_888
+     * @param threadName name of the background thread
+     */
+    public Camera2FrameSource(CameraManager cameraManager, String cameraId, int width, int height, int format, String threadName) {
+        mCameraManager = cameraManager;
+        mCameraId = cameraId;
+        this.width = width;
+        this.height = height;
+        this.format = format;
+        this.threadName = threadName;
+        sensorClock = SensorClock.forCamera(cameraManager, cameraId);
+    }
+
+    /**
+     * Frame view of a camera image, planes are not copied
+     * @param image image of an ImageReader, frame is valid until it is closed
+     * @param clock clock of the camera, timestamp is normalized with it
+     * @param frame destination
+     */
+    public static void fill(Image image, SensorClock clock, Frame frame){
+        Image.Plane[] planes = image.getPlanes();
+        frame.format = image.getFormat();
+        frame.width = image.getWidth();
+        frame.height = image.getHeight();
+        frame.timestamp = clock.toRealtimeNanos(image.getTimestamp());
+        frame.planeCount = Math.min(MAX_PLANES, planes.length);
+        for(int i = 0; i < frame.planeCount; i++){
+            frame.planes[i] = planes[i].getBuffer();
+            frame.rowStrides[i] = planes[i].getRowStride();
+            frame.pixelStrides[i] = planes[i].getPixelStride();
+        }
+    }
+
+    /**
+     * Newest image of reader like ImageReader.acquireLatestImage(), counting the images it skips
+     * Call only while no other image of reader is held
+     * @param dropStage receives the number of skipped images, null to not count
+     * @return newest image, null if none is queued
+     */
+    public static Image acquireLatestImage(ImageReader reader, PipelineMetrics.Stage dropStage){
+        Image image = reader.acquireNextImage();
+        if(image == null) return null;
+
+        Image next;
+        while((next = reader.acquireNextImage()) != null){
+            image.close();
+            image = next;
+            if(dropStage != null){
+                dropStage.drop(1);
+            }
+        }
+        return image;
+    }
+
+    /**
+     * Time listener calls into stage and count images the listener was too slow for, before start()
+     */
+    public void setMetrics(PipelineMetrics.Stage stage){
+        acquireStage = stage;
+    }
+
+    @Override
+    public int getFormat() {
+        return format;
+    }
+
+    @Override
+    public int getWidth() {
+        return width;
+    }
+
+    @Override
+    public int getHeight() {
+        return height;
+    }
+
+    @SuppressLint("MissingPermission")
+    @Override
+    public void start(Listener listener) {
+        this.listener = listener;
+
+        backgroundThread = new HandlerThread(threadName, StageThread.PRIORITY_ACQUIRE);
+        backgroundThread.start();
+        backgroundHandler = new Handler(backgroundThread.getLooper());
+
+        try {
+            mCameraManager.openCamera(mCameraId, cameraStateCallback, backgroundHandler);
+        }catch (CameraAccessException e){
+            e.printStackTrace();
+        }
+    }
+
+    @Override
+    public void stop() {
+        if(backgroundThread == null) return;
+
+        // Camera objects are touched on the background thread only
+        backgroundHandler.post(() -> {
+            if(mCameraDevice != null){
+                mCameraDevice.close();
+                mCameraDevice = null;
+            }
+            if(mImageReader != null){
+                mImageReader.close();
+                mImageReader = null;
+            }
+        });
+        backgroundThread.quitSafely();
+        try {
+            backgroundThread.join();
+            backgroundThread = null;
+            backgroundHandler = null;
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+        listener = null;
+    }
+
+    /**
+     * Callback for camera device state change
+     * Create capture session with the image reader as target
+     */
+    private final CameraDevice.StateCallback cameraStateCallback = new CameraDevice.StateCallback() {
+        @Override
+        public void onOpened(@NonNull CameraDevice cameraDevice) {
+            Log.i(TAG, "Camera " + cameraDevice.getId() + " Opened");
+            mCameraDevice = cameraDevice;
+
+            mImageReader = ImageReader.newInstance(width, height, format, 2);
+            mImageReader.setOnImageAvailableListener(imageAvailableListener, backgroundHandler);
+
+            try{
+                mCaptureRequestBuilder = cameraDevice.createCaptureRequest(CameraDevice.TEMPLATE_PREVIEW);
+                mCaptureRequestBuilder.set(CaptureRequest.CONTROL_MODE, CameraMetadata.CONTROL_MODE_AUTO);
+                mCaptureRequestBuilder.addTarget(mImageReader.getSurface());
+                cameraDevice.createCaptureSession(Arrays.asList(mImageReader.getSurface()), captureSessionStateCallback, backgroundHandler);
+            } catch (CameraAccessException e){
+                e.printStackTrace();
+            }
+        }
+
+        @Override
+        public void onDisconnected(@NonNull CameraDevice cameraDevice) {
+            cameraDevice.close();
+            mCameraDevice = null;
+            Log.i(TAG, "Camera " + cameraDevice.getId() + " disconnected");
+        }
+
+        @Override
+        public void onError(@NonNull CameraDevice cameraDevice, int error) {
+            cameraDevice.close();
+            mCameraDevice = null;
+            Log.e(TAG, "Camera " + cameraDevice.getId() + " error: " + error);
+        }
+    };
+
+    /**
+     * Callback for image reader, hand latest image to the listener and return it to the reader
+     */
+    private final ImageReader.OnImageAvailableListener imageAvailableListener = new ImageReader.OnImageAvailableListener() {
+        @Override
+        public void onImageAvailable(ImageReader imageReader) {
+            PipelineMetrics.Stage stage = acquireStage;
+            Image img = acquireLatestImage(imageReader, stage);
+            if(img == null) return;
+
+            Listener current = listener;
+            if(current != null){
+                long begin = stage != null ? stage.begin() : 0;
+                fill(img, sensorClock, frame);
+                current.onFrame(frame);
+                if(stage != null){
+                    stage.end(begin);
+                }
+            }
+            img.close();
+        }
+    };
+
+    /**
+     * Callback for capture session state change
+     * Create repeat capture request
+     */
+    private final CameraCaptureSession.StateCallback captureSessionStateCallback = new CameraCaptureSession.StateCallback() {
+        @Override
+        public void onConfigured(@NonNull CameraCaptureSession cameraCaptureSession) {
+            try{
+                cameraCaptureSession.setRepeatingRequest(mCaptureRequestBuilder.build(), null, backgroundHandler);
+            } catch (CameraAccessException | IllegalStateException e){
+                e.printStackTrace();
+            }
+        }
+
+        @Override
+        public void onConfigureFailed(@NonNull CameraCaptureSession cameraCaptureSession) {
+            Log.e(TAG, "Capture Session Configure Failed");
+        }
+    };
+
+}
@@ -0,0 +1,275 @@
+package com.MobileSLAM.RosCameraCapture;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Pure-Java reference implementations of the native kernels in camera_util.cpp
+ * Results are bit-identical to the native versions, used to verify them on the JVM
+ * and as fallback where the native library is not available
+ */
+public class CameraKernels {
+
+    // Output formats of the fused depth kernel, match DEPTH_FORMAT_* in camera_util.cpp
+    public static final int DEPTH_FORMAT_16UC1 = 0;
+    public static final int DEPTH_FORMAT_8UC1 = 1;
+    // Registered depth only, outData is not written and may be null
+    public static final int DEPTH_FORMAT_NONE = 2;
+
+    /**
+     * Parse one DEPTH16 sample into depth in millimeter, 0 if confidence not above threshold
+     * @param rawDepth DEPTH16 sample, 13 bits range, 3 bits confidence
+     * @param confidenceThreshold threshold for valid depth measurement
+     */
+    public static short parseDepth16(short rawDepth, float confidenceThreshold){
+        int depthRange = rawDepth & 0x1FFF;
+        int depthConfidence = (rawDepth >> 13) & 0x7;
+        float confidencePercentage = depthConfidence == 0 ? 1.f : (depthConfidence - 1) / 7.f;
+        return confidencePercentage > confidenceThreshold ? (short) depthRange : 0;
+    }
+
+    /**
+     * Reference of CameraUtil.parseDepth16Into
+     */
+    public static void parseDepth16(short[] shortData, short[] outData, int length, float confidenceThreshold){
+        for(int i = 0; i < length; i++){
+            outData[i] = parseDepth16(shortData[i], confidenceThreshold);
+        }
+    }
+
+    /**
+     * Reference of CameraUtil.convertShortToGrayInto
+     */
+    public static void convertShortToGray(short[] shortData, byte[] outData, int length, short maxDepthThreshold){
+        for(int i = 0; i < length; i++){
+            int normalized = (255 * (shortData[i] & 0xFFFF) / maxDepthThreshold) & 0xFF;
+            outData[i] = normalized == 0 ? 0 : (byte) (255 - normalized);
+        }
+    }
+
+    /**
+     * Reference of CameraUtil.convertShortToARGBInto, depth above threshold is black
+     */
+    public static void convertShortToARGB(short[] shortData, int[] outData, int length, short maxDepthThreshold){
+        for(int i = 0; i < length; i++){
+            int depthValue = shortData[i] & 0xFFFF;
+            if(depthValue > maxDepthThreshold) depthValue = 0;
+            int gray = 255 - depthValue * 255 / maxDepthThreshold;
+            outData[i] = depthValue == 0 ? 0xFF000000 : 0xFF000000 | gray << 16 | gray << 8 | gray;
+        }
+    }
+
+    /**
+     * Reference of CameraUtil.convertShortToByteInto, uint16 little-endian
+     */
+    public static void convertShortToByte(short[] shortData, byte[] outData, int length){
+        for(int i = 0; i < length; i++){
+            outData[2*i] = (byte) shortData[i];
+            outData[2*i + 1] = (byte) (shortData[i] >> 8);
+        }
+    }
+
+    /**
+     * Reference of CameraUtil.parseDepth16Rows
+     * @param rawData raw DEPTH16 frame, read in the byte order of the buffer (native order like the kernel)
+     */
+    public static void parseDepth16Rows(ByteBuffer rawData, short[] outData, int width, int rowStart, int rowEnd, float confidenceThreshold){
+        int end = rowEnd * width;
+        for(int i = rowStart * width; i < end; i++){
+            outData[i] = parseDepth16(rawData.getShort(i * 2), confidenceThreshold);
+        }
+    }
+
+    /**
+     * Remap rows [rowStart, rowEnd), output pixel i takes input pixel map[i], 0 where map[i] < 0
+     * Undistortion with CameraParam.getUndistortionMap(), see CameraUtil.undistortionRows
+     */
+    public static void remapRows(short[] input, short[] output, int[] map, int width, int rowStart, int rowEnd){
+        int end = rowEnd * width;
+        for(int i = rowStart * width; i < end; i++){
+            int src = map[i];
+            output[i] = src < 0 ? 0 : input[src];
+        }
+    }
+
+    /**
+     * Remap rows of a per-pixel byte map, see remapRows(short[], short[], int[], int, int, int)
+     */
+    public static void remapRows(byte[] input, byte[] output, int[] map, int width, int rowStart, int rowEnd){
+        int end = rowEnd * width;
+        for(int i = rowStart * width; i < end; i++){
+            int src = map[i];
+            output[i] = src < 0 ? 0 : input[src];
+        }
+    }
+
+    /**
+     * Reference of CameraUtil.convertShortToGrayRows, buffer position is not changed
+     */
+    public static void convertShortToGrayRows(short[] shortData, ByteBuffer outData, int width, int rowStart, int rowEnd, short maxDepthThreshold){
+        int end = rowEnd * width;
+        for(int i = rowStart * width; i < end; i++){
+            int normalized = (255 * (shortData[i] & 0xFFFF) / maxDepthThreshold) & 0xFF;
+            outData.put(i, normalized == 0 ? 0 : (byte) (255 - normalized));
+        }
+    }
+
+    /**
+     * Reference of CameraUtil.convertShortToByteRows, uint16 little-endian, buffer position is not changed
+     */
+    public static void convertShortToByteRows(short[] shortData, ByteBuffer outData, int width, int rowStart, int rowEnd){
+        int end = rowEnd * width;
+        for(int i = rowStart * width; i < end; i++){
+            outData.put(2*i, (byte) shortData[i]);
+            outData.put(2*i + 1, (byte) (shortData[i] >> 8));
+        }
+    }
+
+    /**
+     * One YUV pixel into R G B, fixed point BT.601 video range as yuv_to_rgb in camera_util.cpp
+     * @return 0x00RRGGBB
+     */
+    public static int yuvToRGB(int y, int u, int v){
+        y = Math.max(y - 16, 0);
+        u -= 128;
+        v -= 128;
+
+        int r = Math.min(262143, Math.max(0, 1192 * y + 1634 * v));
+        int g = Math.min(262143, Math.max(0, 1192 * y - 833 * v - 400 * u));
+        int b = Math.min(262143, Math.max(0, 1192 * y + 2066 * u));
+
+        return ((r >> 10) & 0xff) << 16 | ((g >> 10) & 0xff) << 8 | ((b >> 10) & 0xff);
+    }
+
+    /**
+     * Reference of CameraUtil.convertYUVToBGRAInto, buffer positions are not changed
+     */
+    public static void convertYUVToBGRA(ByteBuffer yData, ByteBuffer uData, ByteBuffer vData,
+                                        int yRowStride, int uvRowStride, int uvPixelStride,
+                                        int width, int height, ByteBuffer outData){
+        int index = 0;
+        for(int row = 0; row < height; row++){
+            for(int col = 0; col < width; col++){
+                int uvIndex = (row >> 1) * uvRowStride + (col >> 1) * uvPixelStride;
+                int rgb = yuvToRGB(yData.get(row * yRowStride + col) & 0xFF,
+                        uData.get(uvIndex) & 0xFF, vData.get(uvIndex) & 0xFF);
+                outData.put(index++, (byte) rgb);
+                outData.put(index++, (byte) (rgb >> 8));
+                outData.put(index++, (byte) (rgb >> 16));
+                outData.put(index++, (byte) 0xFF);
+            }
+        }
+    }
+
+    /**
+     * Reference of CameraUtil.convertYUVToARGBUint32Into, buffer positions are not changed
+     */
+    public static void convertYUVToARGBUint32(ByteBuffer yData, ByteBuffer uData, ByteBuffer vData,
+                                              int yRowStride, int uvRowStride, int uvPixelStride,
+                                              int width, int height, int[] outData){
+        int index = 0;
+        for(int row = 0; row < height; row++){
+            for(int col = 0; col < width; col++){
+                int uvIndex = (row >> 1) * uvRowStride + (col >> 1) * uvPixelStride;
+                outData[index++] = 0xFF000000 | yuvToRGB(yData.get(row * yRowStride + col) & 0xFF,
+                        uData.get(uvIndex) & 0xFF, vData.get(uvIndex) & 0xFF);
+            }
+        }
+    }
+
+    /**
+     * Reference of CameraUtil.convertYUVToBGRRows over all rows, buffer positions are not changed
+     */
+    public static void convertYUVToBGR(ByteBuffer yData, ByteBuffer uData, ByteBuffer vData,
+                                       int yRowStride, int uvRowStride, int uvPixelStride,
+                                       int width, int height, ByteBuffer outData){
+        int index = 0;
+        for(int row = 0; row < height; row++){
+            for(int col = 0; col < width; col++){
+                int uvIndex = (row >> 1) * uvRowStride + (col >> 1) * uvPixelStride;
+                int rgb = yuvToRGB(yData.get(row * yRowStride + col) & 0xFF,
+                        uData.get(uvIndex) & 0xFF, vData.get(uvIndex) & 0xFF);
+                outData.put(index++, (byte) rgb);
+                outData.put(index++, (byte) (rgb >> 8));
+                outData.put(index++, (byte) (rgb >> 16));
+            }
+        }
+    }
+
+    /**
+     * Reference of CameraUtil.packYUVToNV12, Y rows followed by interleaved U V rows,
+     * buffer positions are not changed
+     */
+    public static void packYUVToNV12(ByteBuffer yData, ByteBuffer uData, ByteBuffer vData,
+                                     int yRowStride, int uvRowStride, int uvPixelStride,
+                                     int width, int height, ByteBuffer outData){
+        int index = 0;
+        for(int row = 0; row < height; row++){
+            for(int col = 0; col < width; col++){
+                outData.put(index++, yData.get(row * yRowStride + col));
+            }
+        }
+        for(int row = 0; row < height / 2; row++){
+            for(int col = 0; col < width / 2; col++){
+                int uvIndex = row * uvRowStride + col * uvPixelStride;
+                outData.put(index++, uData.get(uvIndex));
+                outData.put(index++, vData.get(uvIndex));
+            }
+        }
+    }
+
+    /**
+     * Reference of the fused native depth kernel CameraUtil.processDepthFrame
+     * parse + undistort + register + serialize in one pass
+     * @param rawData raw DEPTH16 frame
+     * @param undistortionMap CameraParam.getUndistortionMap()
+     * @param registration lookup tables of the depth / color camera pair
+     * @param confidenceThreshold threshold for valid depth measurement
+     * @param maxDepthThreshold max depth for 8UC1 output, in millimeter
+     * @param outputFormat DEPTH_FORMAT_16UC1, DEPTH_FORMAT_8UC1 or DEPTH_FORMAT_NONE
+     * @param depthOut registered depth in millimeter, also the z-buffer
+     * @param outData serialized frame, 2 bytes per pixel for 16UC1, 1 byte for 8UC1
+     */
+    public static void processDepthFrame(short[] rawData, int[] undistortionMap, DepthRegistration registration,
+                                         float confidenceThreshold, short maxDepthThreshold, int outputFormat,
+                                         short[] depthOut, byte[] outData){
+
+        int width = registration.width;
+        int height = registration.height;
+        int length = width * height;
+        float[] rayU = registration.rayU;
+        float[] rayV = registration.rayV;
+        float[] rayW = registration.rayW;
+
+        Arrays.fill(depthOut, 0, length, (short) 0);
+
+        for(int i = 0; i < length; i++){
+            int src = undistortionMap[i];
+            if(src < 0) continue;
+
+            short depth = parseDepth16(rawData[src], confidenceThreshold);
+            if(depth == 0) continue;
+
+            float d = depth;
+            float w = rayW[i] * d + registration.transW;
+            if(w <= 0) continue;
+
+            float u = (rayU[i] * d + registration.transU) / w;
+            float v = (rayV[i] * d + registration.transV) / w;
+            if(u < 0 || v < 0 || u >= width || v >= height) continue;
+
+            int target = (int) v * width + (int) u;
+            short existing = depthOut[target];
+            if(existing == 0 || depth < existing){
+                depthOut[target] = depth;
+            }
+        }
+
+        if(outputFormat == DEPTH_FORMAT_8UC1){
+            convertShortToGray(depthOut, outData, length, maxDepthThreshold);
+        }else if(outputFormat == DEPTH_FORMAT_16UC1){
+            convertShortToByte(depthOut, outData, length);
+        }
+    }
+
+}
@@ -2,11 +2,14 @@ package com.MobileSLAM.RosCameraCapture;
 
 import android.graphics.Bitmap;
 import android.graphics.Canvas;
+import android.graphics.Matrix;
 import android.util.Log;
 import android.util.Size;
 import android.view.TextureView;
 
+import java.nio.ByteBuffer;
 import java.nio.ShortBuffer;
+import java.util.Arrays;
 
 public class CameraUtil {
 
@@ -89,54 +92,151 @@ public class CameraUtil {
      * @param confidenceThreshold threshold for valid depth measurement
      * @return depth value in short
      */
-    static public native short[] parseDepth16(short[] shortData, int width, int height, float confidenceThreshold);
+    static public short[] parseDepth16(short[] shortData, int width, int height, float confidenceThreshold){
+        short[] res = new short[width * height];
+        parseDepth16Into(shortData, res, width, height, confidenceThreshold);
+        return res;
+    }
+
+    /**
+     * Parse Android depth output into caller supplied array, see parseDepth16
+     * @param shortData raw DEPTH16 frame
+     * @param outData destination, at least width * height
+     * @param width
+     * @param height
+     * @param confidenceThreshold threshold for valid depth measurement
+     */
+    static public native void parseDepth16Into(short[] shortData, short[] outData, int width, int height, float confidenceThreshold);
+
+    /**
+     * Parse rows [rowStart, rowEnd) of Android depth output, see parseDepth16
+     * Only the given rows of outData are written, bands can run in parallel
+     * @param rawData raw DEPTH16 frame, direct buffer in native byte order
+     * @param outData destination frame
+     * @param width
+     * @param rowStart
+     * @param rowEnd
+     * @param confidenceThreshold threshold for valid depth measurement
+     */
+    static public native void parseDepth16Rows(ByteBuffer rawData, short[] outData, int width, int rowStart, int rowEnd, float confidenceThreshold);
+
+    /**
+     * Convert YUV frame into BGRA, each pixel takes 4 bytes, B G R A respectively
+     * Reads the image planes in place and writes into a caller supplied buffer, all direct buffers
+     * Java reference: CameraKernels.convertYUVToBGRA
+     * @param yData Y plane buffer
+     * @param uData U plane buffer
+     * @param vData V plane buffer
+     * @param yRowStride
+     * @param uvRowStride
+     * @param uvPixelStride
+     * @param width
+     * @param height
+     * @param outData destination, at least width * height * 4 bytes
+     */
+    public static native void convertYUVToBGRAInto(ByteBuffer yData, ByteBuffer uData, ByteBuffer vData, int yRowStride, int uvRowStride, int uvPixelStride, int width, int height, ByteBuffer outData);
+
+    /**
+     * Convert rows [rowStart, rowEnd) of YUV frame into BGRA, see convertYUVToBGRAInto
+     * Vectorized with NEON, bit-identical to the per-pixel kernel, bands can run in parallel
+     * @param yData Y plane buffer
+     * @param uData U plane buffer
+     * @param vData V plane buffer
+     * @param yRowStride
+     * @param uvRowStride
+     * @param uvPixelStride
+     * @param width
+     * @param rowStart
+     * @param rowEnd
+     * @param outData destination frame, width * 4 bytes per row
+     */
+    public static native void convertYUVToBGRARows(ByteBuffer yData, ByteBuffer uData, ByteBuffer vData, int yRowStride, int uvRowStride, int uvPixelStride, int width, int rowStart, int rowEnd, ByteBuffer outData);
+
+    /**
+     * Convert rows [rowStart, rowEnd) of YUV frame into BGR, 3 bytes per pixel, see convertYUVToBGRARows
+     * @param outData destination frame, width * 3 bytes per row
+     */
+    public static native void convertYUVToBGRRows(ByteBuffer yData, ByteBuffer uData, ByteBuffer vData, int yRowStride, int uvRowStride, int uvPixelStride, int width, int rowStart, int rowEnd, ByteBuffer outData);
+
+    /**
+     * Pack YUV_420_888 planes into NV12 (Y plane, then interleaved U V), rows without padding
+     * Chroma rows are copied as a whole when the planes are NV12 already
+     * @param yData Y plane buffer
+     * @param uData U plane buffer
+     * @param vData V plane buffer
+     * @param yRowStride
+     * @param uvRowStride
+     * @param uvPixelStride
+     * @param width
+     * @param height
+     * @param outData destination direct buffer, at least width * height * 3 / 2
+     */
+    public static native void packYUVToNV12(ByteBuffer yData, ByteBuffer uData, ByteBuffer vData, int yRowStride, int uvRowStride, int uvPixelStride, int width, int height, ByteBuffer outData);
 
     /**
-     * Convert YUV frame into RGBA
-     * @param yData
-     * @param uData
-     * @param vData
+     * Pack YUV_420_888 planes into NV21 (Y plane, then interleaved V U), e.g. for YuvImage
+     * Works for planar and semi-planar layouts, position of yData is changed
+     * @param yData Y plane buffer
+     * @param uData U plane buffer
+     * @param vData V plane buffer
      * @param yRowStride
      * @param uvRowStride
      * @param uvPixelStride
      * @param width
      * @param height
-     * @return byte array for each channel, each pixel takes 4 bytes, R G B A respectively.
+     * @param outData destination, at least width * height * 3 / 2
      */
-    public static native byte[] convertYUVToBGRA(byte[] yData, byte[] uData, byte[] vData, int yRowStride, int uvRowStride, int uvPixelStride, int width, int height);
+    public static void packYUVToNV21(ByteBuffer yData, ByteBuffer uData, ByteBuffer vData,
+                                     int yRowStride, int uvRowStride, int uvPixelStride,
+                                     int width, int height, byte[] outData){
+        for(int row = 0; row < height; row++){
+            yData.position(row * yRowStride);
+            yData.get(outData, row * width, width);
+        }
+
+        int offset = width * height;
+        for(int row = 0; row < height / 2; row++){
+            int rowStart = row * uvRowStride;
+            for(int col = 0; col < width / 2; col++){
+                int index = rowStart + col * uvPixelStride;
+                outData[offset++] = vData.get(index);
+                outData[offset++] = uData.get(index);
+            }
+        }
+    }
 
 
     /**
-     * Convert YUV frame into RGBA
-     * Returned in ARGB(8888),
+     * Convert YUV frame into ARGB(8888) pixels, written to caller supplied array
      * For Android Bitmap rendering
-     * @param yData
-     * @param uData
-     * @param vData
+     * Java reference: CameraKernels.convertYUVToARGBUint32
+     * @param yData Y plane buffer
+     * @param uData U plane buffer
+     * @param vData V plane buffer
      * @param yRowStride
      * @param uvRowStride
      * @param uvPixelStride
      * @param width
      * @param height
-     * @return int array for ARGB(8888)
+     * @param outData destination, at least width * height
      */
-    public static native int[] convertYUVToARGBUint32(byte[] yData, byte[] uData, byte[] vData, int yRowStride, int uvRowStride, int uvPixelStride, int width, int height);
+    public static native void convertYUVToARGBUint32Into(ByteBuffer yData, ByteBuffer uData, ByteBuffer vData, int yRowStride, int uvRowStride, int uvPixelStride, int width, int height, int[] outData);
 
     /**
-     * Convert YUV frame into RGB using opencv library
-     * Returned bytes: R(8) G(8) B(8) A(8)
-     * For ROS sensor_msgs/Image message
-     * @param yData
-     * @param uData
-     * @param vData
+     * Convert YUV frame into RGB using opencv library, written to caller supplied buffer
+     * Output bytes: R(8) G(8) B(8) A(8)
+     * Chroma is upsampled by opencv, results differ slightly from convertYUVToBGRAInto
+     * @param yData Y plane buffer
+     * @param uData U plane buffer
+     * @param vData V plane buffer
      * @param yRowStride
      * @param uvRowStride
      * @param uvPixelStride
      * @param width
      * @param height
-     * @return byte array for each channel, each pixel takes 4 bytes,
+     * @param outData destination direct buffer, at least width * height * 4 bytes
      */
-    public static native byte[] convertYUVToARGB_opencv(byte[] yData, byte[] uData, byte[] vData, int yRowStride, int uvRowStride, int uvPixelStride, int width, int height);
+    public static native void convertYUVToRGBAOpencvInto(ByteBuffer yData, ByteBuffer uData, ByteBuffer vData, int yRowStride, int uvRowStride, int uvPixelStride, int width, int height, ByteBuffer outData);
 
     /**
      * Convert depth value in millimeter into grayscale image
@@ -148,7 +248,21 @@ public class CameraUtil {
      * @param maxDepthThreshold
      * @return int array,
      */
-    public static native int[] convertShortToARGB(short[] shortDepthValues, int width, int height, short maxDepthThreshold);
+    public static int[] convertShortToARGB(short[] shortDepthValues, int width, int height, short maxDepthThreshold){
+        int[] res = new int[width * height];
+        convertShortToARGBInto(shortDepthValues, res, width, height, maxDepthThreshold);
+        return res;
+    }
+
+    /**
+     * Convert depth value into grayscale ARGB(8888), written to caller supplied array
+     * @param shortDepthValues
+     * @param outData destination, at least width * height
+     * @param width
+     * @param height
+     * @param maxDepthThreshold
+     */
+    public static native void convertShortToARGBInto(short[] shortDepthValues, int[] outData, int width, int height, short maxDepthThreshold);
 
     /**
      * Normalize short(16bit) array to byte(8bit) according to max depth threshold
@@ -157,7 +271,31 @@ public class CameraUtil {
      * @param maxDepthThreshold maximum of measured depth, in millimeter
      * @return
      */
-    public static native byte[] convertShortToGray(short[] shortData, int length, short maxDepthThreshold);
+    public static byte[] convertShortToGray(short[] shortData, int length, short maxDepthThreshold){
+        byte[] res = new byte[length];
+        convertShortToGrayInto(shortData, res, length, maxDepthThreshold);
+        return res;
+    }
+
+    /**
+     * Normalize short array to byte, written to caller supplied array
+     * @param shortData short array
+     * @param outData destination, at least length
+     * @param length array size
+     * @param maxDepthThreshold maximum of measured depth, in millimeter
+     */
+    public static native void convertShortToGrayInto(short[] shortData, byte[] outData, int length, short maxDepthThreshold);
+
+    /**
+     * Normalize rows [rowStart, rowEnd) of depth frame to byte, only those rows of outData are written
+     * @param shortData depth frame
+     * @param outData destination direct buffer, one byte per pixel
+     * @param width
+     * @param rowStart
+     * @param rowEnd
+     * @param maxDepthThreshold maximum of measured depth, in millimeter
+     */
+    public static native void convertShortToGrayRows(short[] shortData, ByteBuffer outData, int width, int rowStart, int rowEnd, short maxDepthThreshold);
 
     /**
      * Convert Java short data into uint16 byte array
@@ -165,150 +303,151 @@ public class CameraUtil {
      * @param length
      * @return
      */
-    public static native byte[] convertShortToByte(short[] shortData, int length);
+    public static byte[] convertShortToByte(short[] shortData, int length){
+        byte[] res = new byte[length * 2];
+        convertShortToByteInto(shortData, res, length);
+        return res;
+    }
 
-    public static short[] undistortion(short[] input, CameraParam camParam) {
+    /**
+     * Convert Java short data into uint16 little-endian bytes, written to caller supplied array
+     * @param shortData
+     * @param outData destination, at least length * 2
+     * @param length
+     */
+    public static native void convertShortToByteInto(short[] shortData, byte[] outData, int length);
 
-        double fx = camParam._fx;
-        double fy = camParam._fy;
-        double cx = camParam._cx;
-        double cy = camParam._cy;
-        double k1 = camParam._k1;
-        double k2 = camParam._k2;
-        double k3 = camParam._k3;
-        double p1 = camParam._p1;
-        double p2 = camParam._p2;
-
-        int width = camParam.frameWidth;
-        int height = camParam.frameHeight;
-
-        short[] output = new short[input.length];
-
-        for(int v = 0; v < height; v++){
-            for(int u = 0; u < width; u++){
-
-                // map image pixel(u,v) to point(x,y)
-                double x = (u - cx) / fx;
-                double y = (v - cy) / fy;
-                // distorted point(x,y) to new point
-                double r = Math.sqrt( x*x + y*y);
-                double x_distorted = x * (1 + k1*r*r + k2*r*r*r*r + k3*r*r*r*r*r*r) + 2*p1*x*y + p2*(r*r + 2*x*x);
-                double y_distorted = y * (1 + k1*r*r + k2*r*r*r*r + k3*r*r*r*r*r*r) + p1*(r*r + 2*y*y) + 2*p2*x*y;
-                // map distorted point back to new pixel on image
-                double u_distorted = fx * x_distorted + cx;
-                double v_distorted = fy * y_distorted + cy;
-
-                if(u_distorted >= 0 && v_distorted >= 0 && u_distorted <= width && v_distorted <= height){
-                    output[v*width + u] = input[(int)v_distorted * width + (int)u_distorted];
-                }else{
-                    output[v*width + u] = 0;
-                }
-            }
-        }
+    /**
+     * Convert rows [rowStart, rowEnd) of depth frame into uint16 little-endian bytes,
+     * only those rows of outData are written
+     * @param shortData depth frame
+     * @param outData destination direct buffer, two bytes per pixel
+     * @param width
+     * @param rowStart
+     * @param rowEnd
+     */
+    public static native void convertShortToByteRows(short[] shortData, ByteBuffer outData, int width, int rowStart, int rowEnd);
 
-        return output;
+    /**
+     * Encode depth frame as 16 bit grayscale PNG with opencv
+     * @param depthData depth in millimeter, width * height
+     * @param width
+     * @param height
+     * @param compressionLevel zlib level, 0 - 9
+     * @param outData destination direct buffer
+     * @param offset index in outData to write the PNG at
+     * @return PNG size in bytes, -1 if encoding failed or the PNG does not fit in outData
+     */
+    public static native int encodeDepthPNG(short[] depthData, int width, int height, int compressionLevel, ByteBuffer outData, int offset);
 
-    }
+    /**
+     * Fused depth kernel, see processDepthFrame
+     * Java reference: CameraKernels.processDepthFrame
+     */
+    private static native void processDepthFrameNative(ByteBuffer rawData, int[] undistortionMap,
+                                                       float[] rayU, float[] rayV, float[] rayW,
+                                                       float transU, float transV, float transW,
+                                                       int width, int height, float confidenceThreshold,
+                                                       short maxDepthThreshold, int outputFormat,
+                                                       short[] depthOut, ByteBuffer outData);
 
+    /**
+     * Parse, undistort, register and serialize a raw DEPTH16 frame in a single native pass
+     * @param rawData raw DEPTH16 frame, direct buffer in native byte order
+     * @param depthParam depth camera
+     * @param colorParam color camera registered to
+     * @param confidenceThreshold threshold for valid depth measurement
+     * @param maxDepthThreshold max depth for 8UC1 output, in millimeter
+     * @param outputFormat CameraKernels.DEPTH_FORMAT_16UC1, DEPTH_FORMAT_8UC1 or DEPTH_FORMAT_NONE
+     * @param depthOut registered depth in millimeter
+     * @param outData serialized frame, little-endian 16UC1 or 8UC1, direct buffer, null for DEPTH_FORMAT_NONE
+     */
+    public static void processDepthFrame(ByteBuffer rawData, CameraParam depthParam, CameraParam colorParam,
+                                         float confidenceThreshold, short maxDepthThreshold, int outputFormat,
+                                         short[] depthOut, ByteBuffer outData){
+        DepthRegistration registration = DepthRegistration.forCameras(depthParam, colorParam);
+        processDepthFrameNative(rawData, depthParam.getUndistortionMap(),
+                registration.rayU, registration.rayV, registration.rayW,
+                registration.transU, registration.transV, registration.transW,
+                registration.width, registration.height, confidenceThreshold,
+                maxDepthThreshold, outputFormat, depthOut, outData);
+    }
 
-    public static int[] undistortion(int[] input, CameraParam camParam) {
 
-        double fx = camParam._fx;
-        double fy = camParam._fy;
-        double cx = camParam._cx;
-        double cy = camParam._cy;
-        double k1 = camParam._k1;
-        double k2 = camParam._k2;
-        double k3 = camParam._k3;
-        double p1 = camParam._p1;
-        double p2 = camParam._p2;
-
-        int width = camParam.frameWidth;
-        int height = camParam.frameHeight;
-        int[] output = new int[width*height];
-
-        for(int v = 0; v < height; v++){
-            for(int u = 0; u < width; u++){
-
-                // map image pixel(u,v) to point(x,y)
-                double x = (u - cx) / fx;
-                double y = (v - cy) / fy;
-                // distorted point(x,y) to new point
-                double r = Math.sqrt( x*x + y*y);
-                double x_distorted = x * (1 + k1*r*r + k2*r*r*r*r + k3*r*r*r*r*r*r) + 2*p1*x*y + p2*(r*r + 2*x*x);
-                double y_distorted = y * (1 + k1*r*r + k2*r*r*r*r + k3*r*r*r*r*r*r) + p1*(r*r + 2*y*y) + 2*p2*x*y;
-                // map distorted point back to new pixel on image
-                double u_distorted = fx * x_distorted + cx;
-                double v_distorted = fy * y_distorted + cy;
-
-                if(u_distorted >= 0 && v_distorted >= 0 && u_distorted <= width && v_distorted <= height){
-                    output[v*width + u] = input[(int)v_distorted * width + (int)u_distorted];
-                }else{
-                    output[v*width + u] = 0;
-                }
-            }
-        }
+    /**
+     * Undistort depth frame with the cached remap table of camParam
+     * @param input distorted frame
+     * @param camParam camera param of the frame
+     * @return undistorted frame
+     */
+    public static short[] undistortion(short[] input, CameraParam camParam) {
+        short[] output = new short[camParam.frameWidth * camParam.frameHeight];
+        undistortion(input, output, camParam);
         return output;
     }
 
+    /**
+     * Undistort depth frame into caller supplied array
+     * @param input distorted frame
+     * @param output destination, must not be input
+     * @param camParam camera param of the frame
+     */
+    public static void undistortion(short[] input, short[] output, CameraParam camParam) {
+        undistortionRows(input, output, camParam, 0, camParam.frameHeight);
+    }
 
-    public static short[] depthRegister(short[] depth, CameraParam depthParam, CameraParam colorParam){
-
-        int width = depthParam.frameWidth;
-        int height = depthParam.frameHeight;
-
-        double qx = depthParam._qx;
-        double qy = depthParam._qy;
-        double qz = depthParam._qz;
-        double qw = depthParam._qw;
-
-        double tx = depthParam._tx;
-        double ty = depthParam._ty;
-        double tz = depthParam._tz;
-
-        double qx_2 = colorParam._qx;
-        double qy_2 = colorParam._qy;
-        double qz_2 = colorParam._qz;
-        double qw_2 = colorParam._qw;
+    /**
+     * Undistort rows [rowStart, rowEnd) of depth frame, bands can run in parallel
+     * @param input distorted frame, read from any row
+     * @param output destination, only the given rows are written
+     * @param camParam camera param of the frame
+     * @param rowStart
+     * @param rowEnd
+     */
+    public static void undistortionRows(short[] input, short[] output, CameraParam camParam, int rowStart, int rowEnd) {
+        CameraKernels.remapRows(input, output, camParam.getUndistortionMap(), camParam.frameWidth, rowStart, rowEnd);
+    }
 
-        short[] res = new short[width * height];
-        for (int i = 0; i < width * height; i++) res[i] = 0;
 
-        for(int v = 0; v < height; v++){
-            for(int u = 0; u < width; u++){
+    /**
+     * Undistort rows of a per-pixel byte map, e.g. confidence, same remap as the depth frame
+     */
+    public static void undistortionRows(byte[] input, byte[] output, CameraParam camParam, int rowStart, int rowEnd) {
+        CameraKernels.remapRows(input, output, camParam.getUndistortionMap(), camParam.frameWidth, rowStart, rowEnd);
+    }
 
-                // 3d point of depth pixel at phone coordinate, in meter
-                double depth_z = depth[ v * width + u ] / 1000.0f;
-                if(depth_z == 0) continue;
 
-                // depth image to depth camera
-                double depth_x = (u - depthParam._cx) / depthParam._fx * depth_z;
-                double depth_y = (v - depthParam._cy) / depthParam._fy * depth_z;
+    public static int[] undistortion(int[] input, CameraParam camParam) {
 
-                // transform 3d point to sensor coordinate
-                double color_x = depth_x*(1-2*qy*qy-2*qz*qz) + depth_y*(2*qx*qy+2*qz*qw) + depth_z*(2*qx*qz-2*qy*qw) + tx;
-                double color_y = depth_x*(2*qx*qy-2*qz*qw) + depth_y*(1-2*qx*qx-2*qz*qz) + depth_z*(2*qy*qz+2*qx*qw) + ty;
-                double color_z = depth_x*(2*qx*qz+2*qy*qw) + depth_y*(2*qy*qz-2*qx*qw) + depth_z*(1-2*qx*qx-2*qy*qy) + tz;
+        int[] remap = camParam.getUndistortionMap();
+        int[] output = new int[remap.length];
 
-                // transform from sensor coordinate to color camera coordinate
-                double color_x_2 = color_x*(1-2*qy_2*qy_2-2*qz_2*qz_2) + color_y*(2*qx_2*qy_2+2*qz_2*qw_2) + color_z*(2*qx_2*qz_2-2*qy_2*qw_2);
-                double color_y_2 = color_x*(2*qx_2*qy_2-2*qz_2*qw_2) + color_y*(1-2*qx_2*qx_2-2*qz_2*qz_2) + color_z*(2*qy_2*qz_2+2*qx_2*qw_2);
-                double color_z_2 = color_x*(2*qx_2*qz_2+2*qy_2*qw_2) + color_y*(2*qy_2*qz_2-2*qx_2*qw_2) + color_z*(1-2*qx_2*qx_2-2*qy_2*qy_2);
+        for(int i = 0; i < remap.length; i++){
+            int src = remap[i];
+            output[i] = src < 0 ? 0 : input[src];
+        }
+        return output;
+    }
 
-                // color camera to color image
-                // using intrinsics of color camera under 320x240 resolution
-                double color_u = 242.3898f * color_x_2 / color_z_2 + 157.9433f;
-                double color_v = 242.2127f * color_y_2 / color_z_2 + 120.0223f;
 
-                // assign depth value to new pixel
-                if(color_u >= 0 && color_v >=0 && color_u <= width && color_v <= height){
-                    res[(int)color_v * width + (int)color_u] = depth[v * width + u];
-                }
-            }
-        }
+    public static short[] depthRegister(short[] depth, CameraParam depthParam, CameraParam colorParam){
+        short[] res = new short[depthParam.frameWidth * depthParam.frameHeight];
+        depthRegister(depth, res, depthParam, colorParam);
         return res;
     }
 
+    /**
+     * Register depth frame to color camera, written to caller supplied array
+     * Lookup tables are computed once per depth / color parameter pair, see DepthRegistration
+     * @param depth undistorted depth frame
+     * @param res destination, must not be depth
+     * @param depthParam
+     * @param colorParam
+     */
+    public static void depthRegister(short[] depth, short[] res, CameraParam depthParam, CameraParam colorParam){
+        DepthRegistration.forCameras(depthParam, colorParam).register(depth, res);
+    }
+
 
     public static double[] convertQuatToMat(double[] quaternion){
 
@@ -332,14 +471,17 @@ public class CameraUtil {
 
 
     /**
-     * Render Bitmap to surface
-     * @param bitmap
+     * Render Bitmap to surface, scaled to the view size through the canvas matrix
+     * Callable from any thread, skipped while the surface is not available
+     * @param bitmap frame-sized bitmap, no scaled copy is made
      * @param view
+     * @param matrix scratch matrix reused by the caller, overwritten
      */
-    public static void renderBitmapToTextureview(Bitmap bitmap, TextureView view){
+    public static void renderBitmapToTextureview(Bitmap bitmap, TextureView view, Matrix matrix){
         Canvas canvas = view.lockCanvas();
-        assert canvas != null;
-        canvas.drawBitmap(bitmap, 0, 0, null);
+        if(canvas == null) return;
+        matrix.setScale((float) view.getWidth() / bitmap.getWidth(), (float) view.getHeight() / bitmap.getHeight());
+        canvas.drawBitmap(bitmap, matrix, null);
         view.unlockCanvasAndPost(canvas);
     }
 
@@ -383,6 +525,13 @@ public class CameraUtil {
 
         private double DEFAULT_ASPECT_RATIO = 4.0/3.0;
 
+        // Bumped by every setter, lets cached lookup tables detect parameter changes
+        private int version = 0;
+
+        // Undistortion remap table, output pixel index -> source pixel index (-1 if out of frame)
+        // Built lazily, dropped whenever frame size, intrinsics or distortion change
+        private int[] undistortionMap;
+
         public CameraParam() {}
 
         public CameraParam(int width, int height, double scaleFactor,
@@ -402,6 +551,7 @@ public class CameraUtil {
                 frameWidth = width;
                 frameHeight = height;
                 _scaleFactor = scaleFactor;
+                onParamChanged();
             }else{
                 throw new IllegalArgumentException("Size not match default aspect ratio: " + String.valueOf(DEFAULT_ASPECT_RATIO));
             }
@@ -415,6 +565,7 @@ public class CameraUtil {
             _cx = cx * _scaleFactor;
             _cy = cy * _scaleFactor;
             _s = s;
+            onParamChanged();
         }
 
         public void setInrinsics(double[] intrinsics){
@@ -429,6 +580,7 @@ public class CameraUtil {
             _cx = intrinsics[2] * _scaleFactor;
             _cy = intrinsics[3] * _scaleFactor;
             _s = intrinsics[4];
+            onParamChanged();
         }
 
         public double[] getIntrinsics(){
@@ -447,6 +599,7 @@ public class CameraUtil {
             _qy = qy;
             _qz = qz;
             _qw = qw;
+            onParamChanged();
         }
 
         public void setExtrinsic(double[] translation, double[] rotation){
@@ -469,6 +622,7 @@ public class CameraUtil {
             _qy = rotation[1];
             _qz = rotation[2];
             _qw = rotation[3];
+            onParamChanged();
         }
 
         public double[] getTranslation(){
@@ -493,6 +647,7 @@ public class CameraUtil {
             _k3 = k3;
             _p1 = p1;
             _p2 = p2;
+            onParamChanged();
         }
 
         public void setDistortionParam(double[] distortion){
@@ -507,12 +662,66 @@ public class CameraUtil {
             _k3 = distortion[2];
             _p1 = distortion[3];
             _p2 = distortion[4];
+            onParamChanged();
         }
 
         public double[] getDistortionParam(){
             return new double[] {_k1, _k2, _p1, _p2, _k3};
         }
 
+        /**
+         * Remap table for undistortion, computed once per parameter set
+         * Entry i holds the source pixel index for output pixel i, or -1 if it maps outside the frame
+         * @return int array of frameWidth * frameHeight, shared, do not modify
+         */
+        public synchronized int[] getUndistortionMap(){
+            if(undistortionMap == null){
+                undistortionMap = buildUndistortionMap();
+            }
+            return undistortionMap;
+        }
+
+        /**
+         * Parameter version, changes whenever any setter runs
+         */
+        public synchronized int getVersion(){
+            return version;
+        }
+
+        private synchronized void onParamChanged(){
+            version++;
+            undistortionMap = null;
+        }
+
+        private int[] buildUndistortionMap(){
+            int width = frameWidth;
+            int height = frameHeight;
+            int[] map = new int[width * height];
+
+            for(int v = 0; v < height; v++){
+                for(int u = 0; u < width; u++){
+
+                    // map image pixel(u,v) to point(x,y)
+                    double x = (u - _cx) / _fx;
+                    double y = (v - _cy) / _fy;
+                    // distorted point(x,y) to new point
+                    double r = Math.sqrt( x*x + y*y);
+                    double x_distorted = x * (1 + _k1*r*r + _k2*r*r*r*r + _k3*r*r*r*r*r*r) + 2*_p1*x*y + _p2*(r*r + 2*x*x);
+                    double y_distorted = y * (1 + _k1*r*r + _k2*r*r*r*r + _k3*r*r*r*r*r*r) + _p1*(r*r + 2*y*y) + 2*_p2*x*y;
+                    // map distorted point back to new pixel on image
+                    double u_distorted = _fx * x_distorted + _cx;
+                    double v_distorted = _fy * y_distorted + _cy;
+
+                    int src = -1;
+                    if(u_distorted >= 0 && v_distorted >= 0 && u_distorted < width && v_distorted < height){
+                        src = (int)v_distorted * width + (int)u_distorted;
+                    }
+                    map[v*width + u] = src;
+                }
+            }
+            return map;
+        }
+
         /**
          * Projection matrix of the rectified image (Intrinsics after rectify)
          * P = K * [R|t]
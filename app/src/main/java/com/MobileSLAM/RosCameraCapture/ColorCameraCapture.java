@@ -6,8 +6,10 @@ import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.graphics.ImageFormat;
 import android.graphics.Matrix;
+import android.graphics.Rect;
 import android.graphics.RectF;
 import android.graphics.SurfaceTexture;
+import android.graphics.YuvImage;
 import android.hardware.camera2.CameraAccessException;
 import android.hardware.camera2.CameraCaptureSession;
 import android.hardware.camera2.CameraCharacteristics;
@@ -21,6 +23,7 @@ import android.media.ImageReader;
 import android.os.Build;
 import android.os.Handler;
 import android.os.HandlerThread;
+import android.os.SystemClock;
 import android.support.annotation.NonNull;
 import android.support.annotation.RequiresApi;
 import android.util.Log;
@@ -28,10 +31,7 @@ import android.util.Size;
 import android.view.Surface;
 import android.view.TextureView;
 
-import org.jboss.netty.buffer.ChannelBufferOutputStream;
 import org.ros.android.RosActivity;
-import org.ros.concurrent.CancellableLoop;
-import org.ros.internal.message.MessageBuffers;
 import org.ros.message.Time;
 import org.ros.namespace.GraphName;
 import org.ros.node.ConnectedNode;
@@ -41,11 +41,13 @@ import org.ros.node.NodeMain;
 import org.ros.node.NodeMainExecutor;
 import org.ros.node.topic.Publisher;
 
-import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.lang.String;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 
 @RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
 public class ColorCameraCapture{
@@ -59,35 +61,133 @@ public class ColorCameraCapture{
 
     private CameraManager mCameraManager;
     private CaptureRequest.Builder mCaptureRequestBuilder;
+    private CameraCaptureSession mCaptureSession;
+    private Surface previewSurface;
+    private volatile CameraDevice mCameraDevice;
 
-//    private int imageEncoding = ImageFormat.JPEG;
-
-    private final Object frameLockJPEG = new Object();
-    private final Object frameLockYUV = new Object();
-    public boolean hasNextJPEG = false;
-    public boolean hasNextYUV = false;
+    // Camera device, session and repeating request callbacks, off the acquire threads
+    private HandlerThread controlThread;
+    private Handler controlHandler;
 
+    // Pipeline stages: acquire (image readers), process (YUV conversions), serialize (JPEG),
+    // publish (rosjava loops), each at its StageThread priority
     private HandlerThread backgroundThreadJPEG;
     private Handler backgroundHandlerJPEG;
 
     private HandlerThread backgroundThreadYUV;
     private Handler backgroundHandlerYUV;
 
+    private StageThread processThread;
+    private StageThread jpegThread;
+
+    // Low resolution YUV frames from a recording instead of the camera, see setFrameSource()
+    private FrameSource frameSource;
+    private File recordingFile;
+    private FrameRecorder recorder;
+    private FrameSource.Listener yuvListener;
+    private final FrameSource.Frame yuvFrame = new FrameSource.Frame();     // backgroundThreadYUV only
+
+    /**
+     * frame stored Low Resolution YUV planes, copied by the acquire thread for the process stage
+     */
+    private final FrameExchanger<FrameSource.Frame> yuvFrames = new FrameExchanger<>(FrameSource.Frame::new);
+    private long lastYuvSequence = 0;                    // process thread only
+
+    /**
+     * Low Resolution image converted to message data, with the encoding it was converted to
+     */
+    private static class ImageFrame {
+        MessageBuffer message;
+        ColorConverter.Encoding encoding;
+        long timestampNanos;            // sensor timestamp, see SensorClock
+    }
+
+    /**
+     * frame stored Low Resolution image in the ~image encoding
+     * Slot message is taken over by the publisher, the listener then fills a new buffer
+     */
+    private final FrameExchanger<ImageFrame> imageFrames = new FrameExchanger<>(ImageFrame::new);
+    private MessageBufferPool imageMessagePool;
+
+    // YUV conversion at frame size, rows split across cores
+    private ColorConverter colorConverter;
+
+    // Encoding of the ~image stream, from the node's ~encoding parameter once it started
+    private volatile ColorConverter.Encoding imageEncoding = ColorConverter.Encoding.BGRA8;
+
     /**
-     * frame stored Low Resolution image in YUV format
+     * Source of the ~compressed stream
      */
-    private byte[] latestFrame_y;
-    private byte[] latestFrame_u;
-    private byte[] latestFrame_v;
-    private int yRowStride = -1;
-    private int uvRowStride = -1;
-    private int uvPixelStride = -1;
+    public enum CompressedMode {
+        RECODE,         // full size camera JPEG decoded, scaled and re-encoded
+        HARDWARE,       // camera JPEG encoder at frame size, published as is
+        FROM_YUV        // low resolution YUV stream encoded to JPEG, no JPEG camera stream
+    }
+
+    private CompressedMode compressedMode = CompressedMode.HARDWARE;
+    private volatile CompressedMode activeCompressedMode = CompressedMode.HARDWARE;
+    private int jpegQuality = 80;
 
     /**
-     * frame stored High Resolution image in jpeg format
+     * frame stored High Resolution image in jpeg format, RECODE mode
      */
     private Bitmap colorBitmapJPEG;
-    private byte[] latestFrameJPEG;
+    private final FrameExchanger<byte[]> jpegFrames = new FrameExchanger<>(() -> new byte[0]);
+
+    /**
+     * frame stored camera encoded JPEG as message data, HARDWARE mode
+     */
+    private final FrameExchanger<MessageBuffer> compressedFrames = new FrameExchanger<>(() -> null);
+
+    /**
+     * frame stored Low Resolution image in NV21 for JPEG encoding, FROM_YUV mode
+     * Each slot keeps the YuvImage wrapping its NV21 array, packed in place and encoded without a new image per frame
+     */
+    private FrameExchanger<YuvImage> nv21Frames;
+    private Rect jpegRect;
+
+    private MessageBufferPool jpegMessagePool;
+    private long jpegTimestampNanos;                    // sensor timestamp of the last getLatestFrameJPEG() frame, jpeg thread only
+
+    /**
+     * JPEG message data handed from the jpeg stage to the ~compressed publisher
+     */
+    private static class JpegFrame {
+        MessageBuffer data;
+        long timestampNanos;            // sensor timestamp, see SensorClock
+    }
+
+    // Encoded frames queued for the publisher, the next frame is encoded meanwhile
+    final static private int JPEG_QUEUE_SIZE = 2;
+    private final FrameQueue<JpegFrame> jpegQueue = new FrameQueue<>(JPEG_QUEUE_SIZE, JpegFrame::new);
+
+    private SensorClock sensorClock;
+    // Pairs low resolution frames with registered depth, none if not set
+    private RgbdSynchronizer synchronizer;
+    // Frame intervals of IMU preintegration, none if not set
+    private IMUCapture imuCapture;
+
+    /**
+     * frame stored Low Resolution image as packed ARGB, for point cloud color, while requested
+     */
+    private FrameExchanger<int[]> rgbFrames;
+    private FrameExchanger.Slot<int[]> latestRgbFrame;          // consumer only
+    private volatile boolean rgbFramesEnabled = false;
+
+    // Subscriber gates, idle streams are neither converted nor captured
+    private final StreamGate imageGate = new StreamGate("~image");
+    private final StreamGate lowResolutionGate = new StreamGate("~image, ~camera_info");
+    private final StreamGate compressedGate = new StreamGate("~compressed");
+
+    // Stage timing and drops, reported on /diagnostics
+    private final PipelineMetrics metrics = new PipelineMetrics("color");
+    private final PipelineMetrics.Stage acquireStage = metrics.stage("acquire");
+    private final PipelineMetrics.Stage acquireJpegStage = metrics.stage("acquire_jpeg");
+    private final PipelineMetrics.Stage convertStage = metrics.stage("convert");
+    private final PipelineMetrics.Stage jpegStage = metrics.stage("jpeg");
+    private final PipelineMetrics.Stage publishStage = metrics.stage("publish");
+    private final PipelineMetrics.Stage latencyStage = metrics.stage("capture_to_publish");
+    private final PipelineMetrics.Stage compressedLatencyStage = metrics.stage("capture_to_publish_compressed");
 
     public static final String mCameraId = "0";             // Fixed camera id used for samsung s20+
     public static final CameraUtil.CameraParam mCameraParam = CameraUtil.colorCameraParam;
@@ -103,37 +203,212 @@ public class ColorCameraCapture{
         mMainActivity = (RosActivity) context;
         mCameraManager = (CameraManager) mMainActivity.getSystemService(Context.CAMERA_SERVICE);
         mTextureView = textureView;
+        sensorClock = SensorClock.forCamera(mCameraManager, mCameraId);
+
+        // Message data sized once, the three slots of 'imageFrames' / 'compressedFrames' each may hold a buffer,
+        // JPEG data also the queued frames
+        // Image data sized for the largest encoding (bgra8), JPEG data is bounded by the uncompressed 3 bytes per pixel
+        imageMessagePool = MessageBufferPool.forFrame(mCameraParam, 4, 3);
+        jpegMessagePool = MessageBufferPool.forFrame(mCameraParam, 3, 3 + jpegQueue.capacity());
+
+        int frameSize = mCameraParam.frameWidth * mCameraParam.frameHeight;
+        nv21Frames = new FrameExchanger<>(() -> new YuvImage(new byte[frameSize * 3 / 2], ImageFormat.NV21,
+                mCameraParam.frameWidth, mCameraParam.frameHeight, null));
+        rgbFrames = new FrameExchanger<>(() -> new int[frameSize]);
+        jpegRect = new Rect(0, 0, mCameraParam.frameWidth, mCameraParam.frameHeight);
+
+        StreamGate.Listener targetUpdater = (gate, open) -> {
+            Log.i(TAG, gate.getName() + (open ? " subscribed" : " unsubscribed"));
+            Handler handler = controlHandler;
+            if(handler != null){
+                handler.post(updateRepeatingRequestTask);
+            }
+        };
+        lowResolutionGate.setListener(targetUpdater);
+        compressedGate.setListener(targetUpdater);
+    }
+
+    /**
+     * Select source of the ~compressed stream, takes effect on next startCamera()
+     * HARDWARE falls back to FROM_YUV if the camera can't encode JPEG at frame size
+     */
+    public void setCompressedMode(CompressedMode mode){
+        compressedMode = mode;
+    }
+
+    /**
+     * Encoding of the ~image stream, default for the node's ~encoding parameter
+     * bgra8, bgr8, mono8 (Y plane, no color conversion) or nv12 (camera planes repacked)
+     * nv12 is a non-standard encoding, see ColorConverter.Encoding
+     */
+    public void setImageEncoding(ColorConverter.Encoding encoding){
+        imageEncoding = encoding;
     }
 
     /**
-     * Start the background thread and handler
+     * Stamp IMU preintegration intervals with the low resolution frames, one camera per IMUCapture
+     * The low resolution stream runs only while one of its consumers is subscribed
+     */
+    public void setImuCapture(IMUCapture imuCapture){
+        this.imuCapture = imuCapture;
+    }
+
+    /**
+     * Hand low resolution frames in the ~image encoding to synchronizer while it has subscribers
+     */
+    public void setSynchronizer(RgbdSynchronizer synchronizer){
+        this.synchronizer = synchronizer;
+        synchronizer.addEnabledListener(() -> {
+            Handler handler = controlHandler;
+            if(handler != null){
+                handler.post(updateRepeatingRequestTask);
+            }
+        });
+    }
+
+    /**
+     * Take low resolution YUV frames from source instead of the camera, e.g. a ReplayFrameSource,
+     * before startCamera(); no camera is opened, ~compressed is encoded from these frames (FROM_YUV)
+     * @throws IllegalArgumentException source is not YUV_420_888 at frame size
+     */
+    public void setFrameSource(FrameSource source){
+        if(source.getFormat() != FrameSource.FORMAT_YUV_420_888
+                || source.getWidth() != mCameraParam.frameWidth || source.getHeight() != mCameraParam.frameHeight){
+            throw new IllegalArgumentException("Frame source is not YUV_420_888 " + mCameraParam.frameWidth + "x" + mCameraParam.frameHeight);
+        }
+        frameSource = source;
+    }
+
+    /**
+     * Record low resolution YUV frames to file for ReplayFrameSource, before startCamera(), null to not record
+     * Frames are recorded while the YUV stream is captured, see updateRepeatingRequest()
+     */
+    public void setRecordingFile(File file){
+        recordingFile = file;
+    }
+
+    /**
+     * Produce packed RGB frames for pollRgbFrame(), the YUV stream is captured while enabled
+     */
+    public void setRgbFramesEnabled(boolean enabled){
+        if(rgbFramesEnabled == enabled) return;
+        rgbFramesEnabled = enabled;
+
+        Handler handler = controlHandler;
+        if(handler != null){
+            handler.post(updateRepeatingRequestTask);
+        }
+    }
+
+    /**
+     * Latest Low Resolution frame as packed ARGB at frame size, from one consumer thread
+     * @return frame valid until the next call, null before the first frame arrived
+     */
+    public int[] pollRgbFrame(){
+        FrameExchanger.Slot<int[]> slot = rgbFrames.poll();
+        if(slot != null){
+            latestRgbFrame = slot;
+        }
+        return latestRgbFrame == null ? null : latestRgbFrame.data;
+    }
+
+    /**
+     * JPEG quality of the ~compressed stream, 1 - 100, takes effect on next startCamera()
+     */
+    public void setJpegQuality(int quality){
+        jpegQuality = Math.max(1, Math.min(100, quality));
+    }
+
+    /**
+     * Mode actually used for the ~compressed stream
+     * HARDWARE requires JPEG output size equal to the frame size
+     */
+    private CompressedMode resolveCompressedMode(){
+        if(frameSource != null) return CompressedMode.FROM_YUV;
+        if(compressedMode != CompressedMode.HARDWARE) return compressedMode;
+
+        try {
+            CameraCharacteristics chara = mCameraManager.getCameraCharacteristics(mCameraId);
+            StreamConfigurationMap configs = chara.get(CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP);
+            if(configs != null){
+                for(Size size : configs.getOutputSizes(ImageFormat.JPEG)){
+                    if(size.getWidth() == mCameraParam.frameWidth && size.getHeight() == mCameraParam.frameHeight){
+                        return CompressedMode.HARDWARE;
+                    }
+                }
+            }
+        } catch (CameraAccessException e) {
+            e.printStackTrace();
+        }
+
+        Log.w(TAG, "JPEG output " + mCameraParam.frameWidth + "x" + mCameraParam.frameHeight + " not supported, encode from YUV stream");
+        return CompressedMode.FROM_YUV;
+    }
+
+    /**
+     * Start the camera control thread and the pipeline stage threads
      */
     private void startBackgroundThread(){
-        backgroundThreadJPEG = new HandlerThread("ColorCameraBackground_HighResolution");
+        controlThread = new HandlerThread("ColorCameraControl");
+        controlThread.start();
+        controlHandler = new Handler(controlThread.getLooper());
+
+        backgroundThreadJPEG = new HandlerThread("ColorCameraBackground_HighResolution", StageThread.PRIORITY_ACQUIRE);
         backgroundThreadJPEG.start();
         backgroundHandlerJPEG = new Handler(backgroundThreadJPEG.getLooper());
 
-        backgroundThreadYUV = new HandlerThread("ColorCameraBackground_LowResolution");
+        backgroundThreadYUV = new HandlerThread("ColorCameraBackground_LowResolution", StageThread.PRIORITY_ACQUIRE);
         backgroundThreadYUV.start();
         backgroundHandlerYUV = new Handler(backgroundThreadYUV.getLooper());
+
+        colorConverter = new ColorConverter(mCameraParam, RowParallelExecutor.defaultWorkerCount());
+
+        processThread = new StageThread("ColorCameraProcess", StageThread.PRIORITY_PROCESS, colorProcessStep, convertStage);
+        processThread.start();
+
+        jpegThread = new StageThread("ColorCameraJpeg", StageThread.PRIORITY_SERIALIZE, jpegStep, jpegStage);
+        jpegThread.start();
     }
 
     /**
-     * Stop the background thread and handler
+     * Stop every stage thread, upstream first, and wait for them
      */
     private void stopBackgroundThread(){
+        if(frameSource != null){
+            frameSource.stop();
+        }
+        if(recorder != null){
+            recorder.close();
+            recorder = null;
+        }
+
+        controlThread.quitSafely();
         backgroundThreadJPEG.quitSafely();
         backgroundThreadYUV.quitSafely();
         try {
+            controlThread.join();
             backgroundThreadJPEG.join();
             backgroundThreadYUV.join();
 
+            controlThread = null;
+            controlHandler = null;
+
             backgroundThreadJPEG = null;
             backgroundHandlerJPEG = null;
 
             backgroundThreadYUV = null;
             backgroundHandlerYUV = null;
 
+            processThread.stop();
+            processThread = null;
+            lastYuvSequence = 0;
+
+            jpegThread.stop();
+            jpegThread = null;
+
+            colorConverter.shutdown();
+            colorConverter = null;
+
         } catch (InterruptedException e) {
             e.printStackTrace();
         }
@@ -141,16 +416,32 @@ public class ColorCameraCapture{
 
 
     /**
-     * Start camera once the preview surface is ready
+     * Start camera once the preview surface is ready, or the frame source replacing it
      */
     @SuppressLint("MissingPermission")
     public void startCamera(){
 
         startBackgroundThread();
+        activeCompressedMode = resolveCompressedMode();
+
+        yuvListener = yuvFrameListener;
+        if(recordingFile != null){
+            try {
+                recorder = new FrameRecorder(recordingFile, yuvFrameListener);
+                yuvListener = recorder;
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        if(frameSource != null){
+            frameSource.start(yuvListener);
+            return;
+        }
 
         if(mTextureView.isAvailable()){
             try {
-                mCameraManager.openCamera(mCameraId, colorCameraStateCallback, backgroundHandlerJPEG);
+                mCameraManager.openCamera(mCameraId, colorCameraStateCallback, controlHandler);
             }catch (CameraAccessException e){
                 e.printStackTrace();
             }
@@ -159,7 +450,7 @@ public class ColorCameraCapture{
                 @Override
                 public void onSurfaceTextureAvailable(SurfaceTexture surfaceTexture, int i, int i1) {
                     try {
-                        mCameraManager.openCamera(mCameraId, colorCameraStateCallback, backgroundHandlerJPEG);
+                        mCameraManager.openCamera(mCameraId, colorCameraStateCallback, controlHandler);
                     }catch (CameraAccessException e){
                         e.printStackTrace();
                     }
@@ -180,6 +471,20 @@ public class ColorCameraCapture{
 
     }
 
+    /**
+     * Close camera, or stop the frame source, and join every pipeline thread
+     * Frames already queued are still published
+     */
+    public void stopCamera(){
+        CameraDevice cameraDevice = mCameraDevice;
+        if(cameraDevice != null){
+            mCameraDevice = null;
+            mCaptureSession = null;
+            cameraDevice.close();
+        }
+        stopBackgroundThread();
+    }
+
     /**
      * Start ROS node with image publisher
      * Started node will running in new thread
@@ -200,52 +505,136 @@ public class ColorCameraCapture{
 
 
     /**
-     * Return YUV frame in BGRA8 bytes
+     * Stage latencies and drops of this camera, see DiagnosticsPublisher
      */
-    public byte[] getLatestFrameYUV() throws InterruptedException {
+    public PipelineMetrics getMetrics(){
+        return metrics;
+    }
 
-        byte[] copyData_y;
-        byte[] copyData_u;
-        byte[] copyData_v;
+    /**
+     * Capture to publish latency from the sensor timestamp, unknown (0) timestamps are skipped
+     */
+    private static void recordLatency(PipelineMetrics.Stage stage, long timestampNanos){
+        if(timestampNanos != 0){
+            stage.record(SystemClock.elapsedRealtimeNanos() - timestampNanos);
+        }
+    }
 
-        synchronized (frameLockYUV){
-            if(!hasNextYUV){
-                frameLockYUV.wait();
-            }
-            copyData_y = Arrays.copyOf(latestFrame_y, latestFrame_y.length);
-            copyData_u = Arrays.copyOf(latestFrame_u, latestFrame_u.length);
-            copyData_v = Arrays.copyOf(latestFrame_v, latestFrame_v.length);
+    /**
+     * Return latest Low Resolution frame in the ~image encoding
+     * Caller owns the frame message, it goes back to its pool once rosjava serialized it,
+     * the frame itself stays valid until the next call
+     */
+    private ImageFrame getLatestFrameImage() throws InterruptedException {
+        return imageFrames.take().data;
+    }
 
-            hasNextYUV = false;
+    /**
+     * Serialize stage: encode or recode the next frame to JPEG and queue it for the ~compressed publisher
+     * A full queue drops the frame, the publisher is behind anyway
+     */
+    private final StageThread.Step jpegStep = () -> {
+        compressedGate.awaitOpen();
+        MessageBuffer jpegData = getLatestFrameJPEG();
+        if(jpegData == null) return;
+
+        JpegFrame out = jpegQueue.beginWrite();
+        if(out == null){
+            jpegStage.drop(1);
+            jpegData.release();
+            return;
         }
+        out.data = jpegData;
+        out.timestampNanos = jpegTimestampNanos;
+        jpegQueue.publish();
+    };
 
-        return CameraUtil.convertYUVToBGRA(copyData_y, copyData_u, copyData_v,
-                yRowStride, uvRowStride, uvPixelStride,
-                320, 240);
+    /**
+     * Return color frame in JPEG encoding bytes, its sensor timestamp in 'jpegTimestampNanos', in jpeg thread
+     * Caller owns the returned buffer, it goes back to its pool once rosjava serialized it
+     * @return JPEG data, null if encoding failed
+     */
+    private MessageBuffer getLatestFrameJPEG() throws InterruptedException{
+        switch (activeCompressedMode){
+            case HARDWARE:
+                // Encoded by the camera at frame size, nothing left to do
+                FrameExchanger.Slot<MessageBuffer> compressedSlot = compressedFrames.take();
+                jpegTimestampNanos = compressedSlot.timestamp;
+                MessageBuffer compressedData = compressedSlot.data;
+                compressedSlot.data = null;
+                return compressedData;
+
+            case FROM_YUV:
+                return encodeLatestFrameYUV();
+
+            default:
+                return recodeLatestFrameJPEG();
+        }
     }
 
     /**
-     * Return color frame in JPEG encoding bytes
+     * Encode latest low resolution frame to JPEG
      */
-    public byte[] getLatestFrameJPEG() throws InterruptedException{
-        byte[] copyData;
+    private MessageBuffer encodeLatestFrameYUV() throws InterruptedException{
+        FrameExchanger.Slot<YuvImage> nv21Slot = nv21Frames.take();
+        jpegTimestampNanos = nv21Slot.timestamp;
+        MessageBuffer jpegData = jpegMessagePool.acquire();
+        if(jpegData == null){
+            jpegStage.drop(1);
+            return null;
+        }
 
-        synchronized (frameLockJPEG){
-            if(!hasNextJPEG){
-                frameLockJPEG.wait();
+        boolean encoded = false;
+        long begin = jpegStage.begin();
+        try{
+            encoded = nv21Slot.data.compressToJpeg(jpegRect, jpegQuality, jpegData.getOutputStream());
+        }finally {
+            if(!encoded){
+                jpegData.release();
             }
-            copyData = Arrays.copyOf(latestFrameJPEG, latestFrameJPEG.length);
-            hasNextJPEG = false;
+        }
+        jpegStage.end(begin);
+        if(!encoded){
+            Log.e(TAG, "JPEG encoding failed");
+            jpegStage.drop(1);
+            return null;
         }
 
-        colorBitmapJPEG = BitmapFactory.decodeByteArray(copyData, 0, copyData.length);
-        colorBitmapJPEG = Bitmap.createScaledBitmap(colorBitmapJPEG, mCameraParam.frameWidth, mCameraParam.frameHeight, false);
+        return jpegData;
+    }
 
-        // Compress Bitmap to JPEG for publishing
-        ByteArrayOutputStream jpegStream = new ByteArrayOutputStream();
-        colorBitmapJPEG.compress(Bitmap.CompressFormat.JPEG, 80, jpegStream);
+    /**
+     * Decode full size JPEG, scale to frame size and encode again
+     */
+    private MessageBuffer recodeLatestFrameJPEG() throws InterruptedException{
+        FrameExchanger.Slot<byte[]> jpegSlot = jpegFrames.take();
+        jpegTimestampNanos = jpegSlot.timestamp;
+        // Compressed straight into message data
+        MessageBuffer jpegData = jpegMessagePool.acquire();
+        if(jpegData == null){
+            jpegStage.drop(1);
+            return null;
+        }
 
-        return jpegStream.toByteArray();
+        boolean encoded = false;
+        long begin = jpegStage.begin();
+        try{
+            colorBitmapJPEG = BitmapFactory.decodeByteArray(jpegSlot.data, 0, jpegSlot.length);
+            colorBitmapJPEG = Bitmap.createScaledBitmap(colorBitmapJPEG, mCameraParam.frameWidth, mCameraParam.frameHeight, false);
+            encoded = colorBitmapJPEG.compress(Bitmap.CompressFormat.JPEG, jpegQuality, jpegData.getOutputStream());
+        }finally {
+            if(!encoded){
+                jpegData.release();
+            }
+        }
+        jpegStage.end(begin);
+        if(!encoded){
+            Log.e(TAG, "JPEG encoding failed");
+            jpegStage.drop(1);
+            return null;
+        }
+
+        return jpegData;
     }
 
 
@@ -260,18 +649,10 @@ public class ColorCameraCapture{
         public void onOpened(@NonNull CameraDevice cameraDevice) {
 
             Log.d(TAG, "Camera Thread: " + Thread.currentThread().getId());
+            mCameraDevice = cameraDevice;
 
             Log.i(TAG, "Camera " + cameraDevice.getId() + " Opened");
 
-            try {
-                CameraCharacteristics chara = mCameraManager.getCameraCharacteristics(mCameraId);
-                StreamConfigurationMap configs = chara.get(CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP);
-                assert configs != null;
-                configs.getOutputSizes(ImageFormat.JPEG);
-            } catch (CameraAccessException e) {
-                e.printStackTrace();
-            }
-
             // Set Texture Transform for Landscape Orientation
             Matrix matrix = new Matrix();
             RectF textureRectF = new RectF(0, 0, mTextureView.getWidth(), mTextureView.getHeight());
@@ -284,27 +665,37 @@ public class ColorCameraCapture{
             // Surface Texture for Preview
             SurfaceTexture colorSurfaceTexture = mTextureView.getSurfaceTexture();
             colorSurfaceTexture.setDefaultBufferSize(mTextureView.getWidth(), mTextureView.getHeight());
-            Surface previewSurface = new Surface(colorSurfaceTexture);
+            previewSurface = new Surface(colorSurfaceTexture);
 
             // Configure image reader for image messaging
-            // ImageReader reads frame with full size:
-            imageReaderJPEG = ImageReader.newInstance(4032, 3024, ImageFormat.JPEG, 2);
-            imageReaderJPEG.setOnImageAvailableListener(colorImageAvailableListenerJPEG, backgroundHandlerJPEG);
+            // ImageReader reads JPEG frame with full size for RECODE, with frame size for HARDWARE,
+            // FROM_YUV encodes the low resolution stream and needs no JPEG stream
+            imageReaderJPEG = null;
+            if(activeCompressedMode == CompressedMode.RECODE){
+                imageReaderJPEG = ImageReader.newInstance(4032, 3024, ImageFormat.JPEG, 2);
+                imageReaderJPEG.setOnImageAvailableListener(colorImageAvailableListenerJPEG, backgroundHandlerJPEG);
+            }else if(activeCompressedMode == CompressedMode.HARDWARE){
+                imageReaderJPEG = ImageReader.newInstance(mCameraParam.frameWidth, mCameraParam.frameHeight, ImageFormat.JPEG, 2);
+                imageReaderJPEG.setOnImageAvailableListener(colorImageAvailableListenerCompressed, backgroundHandlerJPEG);
+            }
             // ImageReader reads frame with low resolution:
             imageReaderYUV = ImageReader.newInstance(mCameraParam.frameWidth, mCameraParam.frameHeight, ImageFormat.YUV_420_888, 2);
             imageReaderYUV.setOnImageAvailableListener(colorImageAvailableListenerYUV, backgroundHandlerYUV);
 
-            // Configure capture request
+            List<Surface> outputSurfaces = new ArrayList<>(Arrays.asList(previewSurface, imageReaderYUV.getSurface()));
+            if(imageReaderJPEG != null){
+                outputSurfaces.add(imageReaderJPEG.getSurface());
+            }
+
+            // Configure capture request, targets follow the subscribers, see updateRepeatingRequest()
             try{
                 mCaptureRequestBuilder = cameraDevice.createCaptureRequest(CameraDevice.TEMPLATE_PREVIEW);
                 mCaptureRequestBuilder.set(CaptureRequest.CONTROL_MODE, CameraMetadata.CONTROL_MODE_AUTO);
                 mCaptureRequestBuilder.set(CaptureRequest.JPEG_THUMBNAIL_SIZE, new Size(0,0));
-                mCaptureRequestBuilder.addTarget(previewSurface);
-                mCaptureRequestBuilder.addTarget(imageReaderJPEG.getSurface());
-                mCaptureRequestBuilder.addTarget(imageReaderYUV.getSurface());
+                mCaptureRequestBuilder.set(CaptureRequest.JPEG_QUALITY, (byte) jpegQuality);
 
-                // create capture session
-                cameraDevice.createCaptureSession(Arrays.asList(previewSurface, imageReaderJPEG.getSurface(), imageReaderYUV.getSurface()), colorCameraCaptureSessionStateCallback, null);
+                // create capture session, callbacks on this control thread
+                cameraDevice.createCaptureSession(outputSurfaces, colorCameraCaptureSessionStateCallback, controlHandler);
 
             } catch (CameraAccessException e){
                 e.printStackTrace();
@@ -313,12 +704,16 @@ public class ColorCameraCapture{
 
         @Override
         public void onDisconnected(@NonNull CameraDevice cameraDevice) {
+            mCaptureSession = null;
+            mCameraDevice = null;
             cameraDevice.close();
             Log.i(TAG, "Camera " + cameraDevice.getId() + " disconnected");
         }
 
         @Override
         public void onError(@NonNull CameraDevice cameraDevice, int error) {
+            mCaptureSession = null;
+            mCameraDevice = null;
             cameraDevice.close();
             Log.e(TAG, "Camera " + cameraDevice.getId() + " error: " + error);
         }
@@ -327,66 +722,239 @@ public class ColorCameraCapture{
 
     /**
      * ImageReader callback for JPEG frame
-     * Store latest frame to 'latestFrameJPEG'
+     * Store latest frame to 'jpegFrames'
      * */
     final private ImageReader.OnImageAvailableListener colorImageAvailableListenerJPEG = new ImageReader.OnImageAvailableListener() {
         @Override
         public void onImageAvailable(ImageReader imageReader) {
 
-            Image img = imageReader.acquireLatestImage();
+            Image img = Camera2FrameSource.acquireLatestImage(imageReader, acquireJpegStage);
             if(img == null) return;
 
+            long begin = acquireJpegStage.begin();
             ByteBuffer buffer = img.getPlanes()[0].getBuffer();
-            byte[] jpegByte = new byte[buffer.capacity()];
-            buffer.get(jpegByte);
+            FrameExchanger.Slot<byte[]> jpegSlot = jpegFrames.beginWrite();
+            jpegSlot.timestamp = sensorClock.toRealtimeNanos(img.getTimestamp());
+            if(jpegSlot.data.length < buffer.remaining()){
+                jpegSlot.data = new byte[buffer.remaining()];
+            }
+            jpegSlot.length = buffer.remaining();
+            buffer.get(jpegSlot.data, 0, jpegSlot.length);
+            img.close();
 
-            synchronized (frameLockJPEG){
-                latestFrameJPEG = jpegByte;
-                hasNextJPEG = true;
-                frameLockJPEG.notifyAll();
+            jpegFrames.publish();
+            acquireJpegStage.end(begin);
+        }
+    };
+
+
+    /**
+     * ImageReader callback for JPEG frame encoded by the camera at frame size
+     * Store latest frame as message data to 'compressedFrames'
+     */
+    final private ImageReader.OnImageAvailableListener colorImageAvailableListenerCompressed = new ImageReader.OnImageAvailableListener() {
+        @Override
+        public void onImageAvailable(ImageReader imageReader) {
+
+            Image img = Camera2FrameSource.acquireLatestImage(imageReader, acquireJpegStage);
+            if(img == null) return;
+
+            long begin = acquireJpegStage.begin();
+            ByteBuffer buffer = img.getPlanes()[0].getBuffer();
+
+            // Buffer is kept if the publisher skipped the previous frame in this slot
+            FrameExchanger.Slot<MessageBuffer> compressedSlot = compressedFrames.beginWrite();
+            if(compressedSlot.data == null){
+                compressedSlot.data = jpegMessagePool.acquire();
+                if(compressedSlot.data == null){
+                    img.close();
+                    acquireJpegStage.drop(1);
+                    acquireJpegStage.end(begin);
+                    return;
+                }
             }
 
+            MessageBuffer jpegData = compressedSlot.data;
+            if(buffer.remaining() > jpegData.capacity()){
+                Log.w(TAG, "JPEG frame of " + buffer.remaining() + " bytes exceeds message buffer, dropped");
+                img.close();
+                acquireJpegStage.drop(1);
+                acquireJpegStage.end(begin);
+                return;
+            }
+
+            compressedSlot.timestamp = sensorClock.toRealtimeNanos(img.getTimestamp());
+            jpegData.setLength(buffer.remaining());
+            ByteBuffer storage = jpegData.getStorage();
+            storage.clear();
+            storage.put(buffer);
             img.close();
+
+            compressedFrames.publish();
+            acquireJpegStage.end(begin);
         }
     };
 
 
     /**
-     * ImageReader callback for YUV frame
-     * Store latest frame to latestFrame_y & latestFrame_u & latestFrame_v
-     * yRowStride, uvRowStride, uvPixelStride are also set
+     * ImageReader callback for YUV frame, planes go to 'yuvListener' in place
      */
     final private ImageReader.OnImageAvailableListener colorImageAvailableListenerYUV = new ImageReader.OnImageAvailableListener() {
         @Override
         public void onImageAvailable(ImageReader imageReader) {
-            Image img = imageReader.acquireLatestImage();
+            Image img = Camera2FrameSource.acquireLatestImage(imageReader, acquireStage);
             if(img == null) return;
 
-            Image.Plane[] planes = img.getPlanes();
-            byte[][] yuvBytes = new byte[planes.length][];
-            for(int i = 0; i < planes.length; i++){
-                yuvBytes[i] = new byte[planes[i].getBuffer().capacity()];
-                planes[i].getBuffer().get(yuvBytes[i]);
+            long begin = acquireStage.begin();
+            Camera2FrameSource.fill(img, sensorClock, yuvFrame);
+            yuvListener.onFrame(yuvFrame);
+            img.close();
+            acquireStage.end(begin);
+        }
+    };
+
+
+    /**
+     * Low resolution YUV frame, from the camera or a frame source
+     * Planes are copied for the process stage, the camera image goes back to its reader right away
+     */
+    private final FrameSource.Listener yuvFrameListener = new FrameSource.Listener() {
+        @Override
+        public void onFrame(FrameSource.Frame yuv) {
+            FrameExchanger.Slot<FrameSource.Frame> yuvSlot = yuvFrames.beginWrite();
+            yuvSlot.timestamp = yuv.timestamp;
+            yuvSlot.data.copyFrom(yuv);
+
+            // Frame not consumed in time is replaced by this one
+            yuvFrames.publish();
+
+            IMUCapture imu = imuCapture;
+            if(imu != null){
+                imu.offerFrameTimestamp(yuv.timestamp);
             }
+        }
+    };
 
-            if(yRowStride == -1){
-                yRowStride = planes[0].getRowStride();
-                uvRowStride = planes[1].getRowStride();
-                uvPixelStride = planes[1].getPixelStride();
+    /**
+     * Process stage: convert the latest YUV frame to the ~image encoding and store result to 'imageFrames',
+     * only while ~image has subscribers, and feed synchronizer, RGB frames and FROM_YUV JPEG
+     */
+    private final StageThread.Step colorProcessStep = () -> {
+        FrameExchanger.Slot<FrameSource.Frame> yuvSlot = yuvFrames.take();
+        // YUV frames replaced before processing got to them
+        if(lastYuvSequence > 0){
+            convertStage.drop(yuvSlot.getSequence() - lastYuvSequence - 1);
+        }
+        lastYuvSequence = yuvSlot.getSequence();
+        processFrame(yuvSlot.data);
+    };
+
+    /**
+     * Convert one YUV frame for every stream that currently wants it, in processThread
+     */
+    private void processFrame(FrameSource.Frame yuv){
+        long timestamp = yuv.timestamp;
+        ImageFrame frame = imageFrames.beginWrite().data;
+        frame.timestampNanos = timestamp;
+        if(imageGate.isOpen()){
+            // Buffer is kept if the publisher skipped the previous frame in this slot
+            if(frame.message == null){
+                frame.message = imageMessagePool.acquire();
             }
 
-            synchronized (frameLockYUV){
-                latestFrame_y = yuvBytes[0];
-                latestFrame_u = yuvBytes[1];
-                latestFrame_v = yuvBytes[2];
-                hasNextYUV = true;
-                frameLockYUV.notifyAll();
+            if(frame.message != null){
+                // Planes are read in place from the process stage copy
+                frame.encoding = imageEncoding;
+                long begin = convertStage.begin();
+                colorConverter.convert(yuv, frame.encoding, frame.message.getStorage());
+                convertStage.end(begin);
+                frame.message.setLength(colorConverter.frameBytes(frame.encoding));
+            }else{
+                // Every buffer held or in flight, the frame only paces ~camera_info
+                convertStage.drop(1);
             }
+        }else if(frame.message != null){
+            // No ~image subscriber, frame only paces ~camera_info
+            frame.message.release();
+            frame.message = null;
+        }
 
-            img.close();
+        RgbdSynchronizer sync = synchronizer;
+        if(sync != null && sync.isEnabled()){
+            // Own conversion, the ~image buffer goes to its publisher
+            ColorConverter.Encoding encoding = imageEncoding;
+            MessageBuffer syncData = sync.acquireColorBuffer();
+            if(syncData != null){
+                try{
+                    colorConverter.convert(yuv, encoding, syncData.getStorage());
+                }catch (RuntimeException e){
+                    syncData.release();
+                    throw e;
+                }
+                syncData.setLength(colorConverter.frameBytes(encoding));
+                sync.offerColor(timestamp, encoding, syncData);
+            }
+        }
+
+        if(rgbFramesEnabled){
+            FrameExchanger.Slot<int[]> rgbSlot = rgbFrames.beginWrite();
+            rgbSlot.timestamp = timestamp;
+            CameraUtil.convertYUVToARGBUint32Into(yuv.planes[0], yuv.planes[1], yuv.planes[2],
+                    yuv.rowStrides[0], yuv.rowStrides[1], yuv.pixelStrides[1],
+                    mCameraParam.frameWidth, mCameraParam.frameHeight, rgbSlot.data);
+            rgbFrames.publish();
+        }
+
+        if(activeCompressedMode == CompressedMode.FROM_YUV && compressedGate.isOpen()){
+            FrameExchanger.Slot<YuvImage> nv21Slot = nv21Frames.beginWrite();
+            nv21Slot.timestamp = timestamp;
+            CameraUtil.packYUVToNV21(yuv.planes[0], yuv.planes[1], yuv.planes[2],
+                    yuv.rowStrides[0], yuv.rowStrides[1], yuv.pixelStrides[1],
+                    mCameraParam.frameWidth, mCameraParam.frameHeight, nv21Slot.data.getYuvData());
+            nv21Frames.publish();
         }
-    };
 
+        imageFrames.publish();
+    }
+
+
+    private final Runnable updateRepeatingRequestTask = () -> updateRepeatingRequest();
+
+    /**
+     * Set repeating request targets from subscribed streams, in controlThread
+     * The session keeps all outputs configured, switching targets needs no reconfiguration
+     * Preview always, YUV for ~image / ~camera_info, RGB frames, synchronizer and FROM_YUV ~compressed,
+     * JPEG for ~compressed
+     */
+    private void updateRepeatingRequest(){
+        if(mCaptureSession == null) return;
+
+        boolean compressed = compressedGate.isOpen();
+        RgbdSynchronizer sync = synchronizer;
+        boolean yuv = lowResolutionGate.isOpen() || rgbFramesEnabled || (sync != null && sync.isEnabled())
+                || (compressed && activeCompressedMode == CompressedMode.FROM_YUV);
+        boolean jpeg = compressed && imageReaderJPEG != null;
+
+        mCaptureRequestBuilder.addTarget(previewSurface);
+        setTarget(imageReaderYUV.getSurface(), yuv);
+        if(imageReaderJPEG != null){
+            setTarget(imageReaderJPEG.getSurface(), jpeg);
+        }
+
+        try{
+            mCaptureSession.setRepeatingRequest(mCaptureRequestBuilder.build(), null, controlHandler);
+        } catch (CameraAccessException | IllegalStateException e){
+            e.printStackTrace();
+        }
+    }
+
+    private void setTarget(Surface surface, boolean enabled){
+        if(enabled){
+            mCaptureRequestBuilder.addTarget(surface);
+        }else{
+            mCaptureRequestBuilder.removeTarget(surface);
+        }
+    }
 
     /**
      * Callback for capture session state change
@@ -395,12 +963,8 @@ public class ColorCameraCapture{
     private final CameraCaptureSession.StateCallback colorCameraCaptureSessionStateCallback = new CameraCaptureSession.StateCallback() {
         @Override
         public void onConfigured(@NonNull CameraCaptureSession cameraCaptureSession) {
-            try{
-                CaptureRequest captureRequest = mCaptureRequestBuilder.build();
-                cameraCaptureSession.setRepeatingRequest(captureRequest, null, backgroundHandlerJPEG);
-            } catch (CameraAccessException e){
-                e.printStackTrace();
-            }
+            mCaptureSession = cameraCaptureSession;
+            updateRepeatingRequest();
         }
 
         @Override
@@ -412,9 +976,11 @@ public class ColorCameraCapture{
 
     /**
      * ROS node publishing image message
-     * Read high resolution frame (4032x3024)
-     * Resize to 2560x1920
+     * JPEG at frame size, from the camera encoder, the low resolution stream
+     * or re-encoded from the high resolution frame (4032x3024), see CompressedMode
      * Send frame in sensor_msgs/CompressedImage (jpeg)
+     * The JPEG stream is captured only while ~compressed has subscribers
+     * Encoded in the jpeg stage thread, the loop only publishes
      */
     private final NodeMain publishNodeCompressed = new NodeMain() {
         @Override
@@ -428,31 +994,36 @@ public class ColorCameraCapture{
             Log.d(TAG, "Image Publishing Thread: " + Thread.currentThread().getId());
 
             // Image publisher for compressed JPEG image
-            Publisher<sensor_msgs.CompressedImage> compressedImagePublisher = connectedNode.newPublisher("~compressed", sensor_msgs.CompressedImage._TYPE);
-            sensor_msgs.CompressedImage compressed = connectedNode.getTopicMessageFactory().newFromType(sensor_msgs.CompressedImage._TYPE);
-            compressed.setFormat("jpeg");
-            compressed.getHeader().setFrameId("camera_link");
+            // Ring of messages owning their data until serialized, see MessagePublisher
+            MessagePublisher<sensor_msgs.CompressedImage> compressedImagePublisher = new MessagePublisher<>(
+                    connectedNode.newPublisher("~compressed", sensor_msgs.CompressedImage._TYPE), compressed -> {
+                compressed.setFormat("jpeg");
+                compressed.getHeader().setFrameId("camera_link");
+            }, sensor_msgs.CompressedImage::setData, jpegStage);
 
-            ChannelBufferOutputStream dataStream = new ChannelBufferOutputStream(MessageBuffers.dynamicBuffer());
+            compressedGate.addPublisher(compressedImagePublisher.getPublisher());
 
-            connectedNode.executeCancellableLoop(new CancellableLoop() {
+            connectedNode.executeCancellableLoop(new PublishLoop() {
                 @Override
                 protected void loop() {
                     // Send compressed image message
-                    Time timestamp = connectedNode.getCurrentTime();
+                    Time timestamp;
 
                     try{
-                        byte[] jpegByte = getLatestFrameJPEG();
-                        dataStream.write(jpegByte);
-                    } catch (IOException | InterruptedException e){
+                        JpegFrame frame = jpegQueue.take();
+                        long timestampNanos = frame.timestampNanos;
+                        timestamp = SensorClock.toRosTime(timestampNanos, connectedNode.getCurrentTime());
+
+                        MessageBuffer data = frame.data;
+                        frame.data = null;
+                        jpegQueue.release();
+                        compressedImagePublisher.nextMessage().getHeader().setStamp(timestamp);
+                        compressedImagePublisher.publish(data);
+                        recordLatency(compressedLatencyStage, timestampNanos);
+                    } catch (InterruptedException e){
                         e.printStackTrace();
                     }
 
-                    compressed.getHeader().setStamp(timestamp);
-                    compressed.setData(dataStream.buffer().copy());
-                    compressedImagePublisher.publish(compressed);
-                    dataStream.buffer().clear();
-
                 }
 
             });
@@ -475,7 +1046,7 @@ public class ColorCameraCapture{
     };
 
     /**
-     * ROS node publishing Low Resolution image (320x240)
+     * ROS node publishing Low Resolution image, frame size of mCameraParam (320x240 by default)
      */
     private final NodeMain publishNodeImage = new NodeMain() {
         @Override
@@ -488,17 +1059,28 @@ public class ColorCameraCapture{
 
             Log.d(TAG, "LR Image Publishing Thread: " + Thread.currentThread().getId());
 
-            // Image publisher for compressed BGRA8 image
-            Publisher<sensor_msgs.Image> lrImagePublisher = connectedNode.newPublisher("~image", sensor_msgs.Image._TYPE);
-            sensor_msgs.Image img = connectedNode.getTopicMessageFactory().newFromType(sensor_msgs.Image._TYPE);
-            img.setEncoding("bgra8");
-            img.setWidth(mCameraParam.frameWidth);
-            img.setHeight(mCameraParam.frameHeight);
-            img.setStep(mCameraParam.frameWidth * 4);
-            img.setIsBigendian((byte)1);
-            img.getHeader().setFrameId("camera_link");
+            // Encoding from node configuration, e.g. _encoding:=mono8 for a grayscale front end
+            // _encoding:=nv12 is non-standard (data of height * 3 / 2 rows), for consumers that know the layout
+            String encodingParam = connectedNode.getParameterTree().getString("~encoding", imageEncoding.rosEncoding);
+            ColorConverter.Encoding encoding = ColorConverter.Encoding.fromRosEncoding(encodingParam);
+            if(encoding != null){
+                imageEncoding = encoding;
+                if(encoding == ColorConverter.Encoding.NV12){
+                    Log.w(TAG, "~encoding nv12 is not a standard ROS image encoding, cv_bridge cannot decode ~image");
+                }
+            }else{
+                Log.w(TAG, "Unsupported ~encoding " + encodingParam + ", publishing " + imageEncoding.rosEncoding);
+            }
 
-            ChannelBufferOutputStream dataStream = new ChannelBufferOutputStream(MessageBuffers.dynamicBuffer());
+            // Image publisher for Low Resolution image
+            // Ring of messages owning their data until serialized, see MessagePublisher
+            MessagePublisher<sensor_msgs.Image> lrImagePublisher = new MessagePublisher<>(
+                    connectedNode.newPublisher("~image", sensor_msgs.Image._TYPE), img -> {
+                img.setWidth(mCameraParam.frameWidth);
+                img.setHeight(mCameraParam.frameHeight);
+                img.setIsBigendian((byte)0);
+                img.getHeader().setFrameId("camera_link");
+            }, sensor_msgs.Image::setData, publishStage);
 
             // Camera info publisher
             Publisher<sensor_msgs.CameraInfo> infoPublisher = connectedNode.newPublisher("~camera_info", sensor_msgs.CameraInfo._TYPE);
@@ -514,23 +1096,42 @@ public class ColorCameraCapture{
             info.getRoi().setWidth(mCameraParam.frameWidth);
             info.setP(mCameraParam.getP());
 
-            connectedNode.executeCancellableLoop(new CancellableLoop() {
+            imageGate.addPublisher(lrImagePublisher.getPublisher());
+            lowResolutionGate.addPublisher(lrImagePublisher.getPublisher());
+            lowResolutionGate.addPublisher(infoPublisher);
+
+            connectedNode.executeCancellableLoop(new PublishLoop() {
                 @Override
                 protected void loop() {
                     // Send compressed image message
-                    Time timestamp = connectedNode.getCurrentTime();
+                    Time timestamp;
                     try{
-                        byte[] rgb8Byte = getLatestFrameYUV();
-                        dataStream.write(rgb8Byte);
-                    } catch (IOException | InterruptedException e){
+                        lowResolutionGate.awaitOpen();
+                        // Re-read image subscribers every frame, the gate closes once the last one left
+                        imageGate.refresh();
+
+                        // Encoding travels with the frame, frames converted before a change keep theirs
+                        // No message data if the frame arrived while ~image had no subscriber
+                        ImageFrame frame = getLatestFrameImage();
+                        timestamp = SensorClock.toRosTime(frame.timestampNanos, connectedNode.getCurrentTime());
+                        MessageBuffer imageData = frame.message;
+                        frame.message = null;
+
+                        if(imageData != null){
+                            sensor_msgs.Image img = lrImagePublisher.nextMessage();
+                            img.getHeader().setStamp(timestamp);
+                            img.setEncoding(frame.encoding.rosEncoding);
+                            img.setStep(mCameraParam.frameWidth * frame.encoding.stepBytes);
+                            long begin = publishStage.begin();
+                            lrImagePublisher.publish(imageData);
+                            publishStage.end(begin);
+                            recordLatency(latencyStage, frame.timestampNanos);
+                        }
+                    } catch (InterruptedException e){
                         e.printStackTrace();
+                        return;
                     }
 
-                    img.getHeader().setStamp(timestamp);
-                    img.setData(dataStream.buffer().copy());
-                    lrImagePublisher.publish(img);
-                    dataStream.buffer().clear();
-
                     info.getHeader().setStamp(timestamp);
                     infoPublisher.publish(info);
 
@@ -0,0 +1,135 @@
+package com.MobileSLAM.RosCameraCapture;
+
+import java.nio.ByteBuffer;
+
+/**
+ * YUV_420_888 to ROS image data of a color stream
+ * Frame size is taken from the CameraParam of the stream,
+ * color conversion splits rows into bands on a RowParallelExecutor, each band runs the vectorized native kernel,
+ * mono8 and nv12 only repack the camera planes
+ */
+public class ColorConverter {
+
+    /**
+     * Output layouts, named after the ROS image encoding
+     * nv12 is not a sensor_msgs/image_encodings name, only consumers that know the layout decode it
+     * (not cv_bridge / image_view): height is the image height, data holds height * 3 / 2 rows of step bytes
+     */
+    public enum Encoding {
+        BGRA8("bgra8", 4, 32),
+        BGR8("bgr8", 3, 24),
+        MONO8("mono8", 1, 8),      // Y plane, no color conversion
+        NV12("nv12", 1, 12);       // Y plane followed by interleaved U V at half resolution, non-standard
+
+        public final String rosEncoding;
+        // bytes per pixel in a row of the first plane, message step is width times this
+        public final int stepBytes;
+        public final int bitsPerPixel;
+
+        Encoding(String rosEncoding, int stepBytes, int bitsPerPixel) {
+            this.rosEncoding = rosEncoding;
+            this.stepBytes = stepBytes;
+            this.bitsPerPixel = bitsPerPixel;
+        }
+
+        /**
+         * Encoding of a ROS encoding name, null if not supported
+         */
+        public static Encoding fromRosEncoding(String rosEncoding){
+            for(Encoding encoding : values()){
+                if(encoding.rosEncoding.equals(rosEncoding)) return encoding;
+            }
+            return null;
+        }
+    }
+
+    private final CameraUtil.CameraParam mCameraParam;
+    private final RowParallelExecutor rowExecutor;
+
+    // Frame being converted, read by the band tasks
+    private ByteBuffer yData, uData, vData;
+    private int yRowStride, uvRowStride, uvPixelStride;
+    private int width;
+    private ByteBuffer outData;
+
+    /**
+     * @param cameraParam camera of the stream, frame size is read on every conversion
+     * @param workerCount worker threads besides the caller, see RowParallelExecutor.defaultWorkerCount()
+     */
+    public ColorConverter(CameraUtil.CameraParam cameraParam, int workerCount) {
+        mCameraParam = cameraParam;
+        rowExecutor = new RowParallelExecutor(workerCount, "ColorConverterRows");
+    }
+
+    /**
+     * Size of a converted frame in bytes
+     */
+    public int frameBytes(Encoding encoding){
+        return mCameraParam.frameWidth * mCameraParam.frameHeight * encoding.bitsPerPixel / 8;
+    }
+
+    /**
+     * Convert frame of a frame source, planes are read in place
+     * @param frame YUV_420_888 frame of frame size
+     * @param encoding output layout
+     * @param out destination direct buffer, at least frameBytes(encoding)
+     */
+    public void convert(FrameSource.Frame frame, Encoding encoding, ByteBuffer out){
+        convert(frame.planes[0], frame.planes[1], frame.planes[2],
+                frame.rowStrides[0], frame.rowStrides[1], frame.pixelStrides[1],
+                encoding, out);
+    }
+
+    /**
+     * Convert YUV_420_888 planes of frame size, all direct buffers
+     */
+    public synchronized void convert(ByteBuffer yData, ByteBuffer uData, ByteBuffer vData,
+                                     int yRowStride, int uvRowStride, int uvPixelStride,
+                                     Encoding encoding, ByteBuffer out){
+        switch (encoding){
+            case MONO8:
+                // Written from index 0 like the kernels, position and limit of out are restored
+                int position = out.position();
+                int limit = out.limit();
+                out.clear();
+                FrameSource.copyRows(yData, yRowStride, mCameraParam.frameWidth, mCameraParam.frameHeight, out);
+                out.limit(limit);
+                out.position(position);
+                return;
+
+            case NV12:
+                CameraUtil.packYUVToNV12(yData, uData, vData, yRowStride, uvRowStride, uvPixelStride,
+                        mCameraParam.frameWidth, mCameraParam.frameHeight, out);
+                return;
+        }
+
+        this.yData = yData;
+        this.uData = uData;
+        this.vData = vData;
+        this.yRowStride = yRowStride;
+        this.uvRowStride = uvRowStride;
+        this.uvPixelStride = uvPixelStride;
+        this.outData = out;
+        this.width = mCameraParam.frameWidth;
+
+        rowExecutor.forEachBand(mCameraParam.frameHeight, encoding == Encoding.BGR8 ? bgrRows : bgraRows);
+
+        this.yData = this.uData = this.vData = this.outData = null;
+    }
+
+    /**
+     * Stop worker threads, the converter must not be used afterwards
+     */
+    public void shutdown(){
+        rowExecutor.shutdown();
+    }
+
+    private final RowParallelExecutor.RowTask bgraRows = (rowStart, rowEnd) ->
+            CameraUtil.convertYUVToBGRARows(yData, uData, vData, yRowStride, uvRowStride, uvPixelStride,
+                    width, rowStart, rowEnd, outData);
+
+    private final RowParallelExecutor.RowTask bgrRows = (rowStart, rowEnd) ->
+            CameraUtil.convertYUVToBGRRows(yData, uData, vData, yRowStride, uvRowStride, uvPixelStride,
+                    width, rowStart, rowEnd, outData);
+
+}
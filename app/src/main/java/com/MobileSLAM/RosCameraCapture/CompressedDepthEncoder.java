@@ -0,0 +1,153 @@
+package com.MobileSLAM.RosCameraCapture;
+
+import java.nio.ByteBuffer;
+
+/**
+ * sensor_msgs/CompressedImage data for compressed_depth_image_transport, 16UC1 depth in millimeter
+ * Layout: ConfigHeader (int32 format, float32 depthParam[2]) followed by
+ * - rvl: uint32 width, uint32 height, RVL words
+ * - png: 16 bit grayscale PNG
+ * All fields little-endian, as the transport reads them on x86 / ARM hosts
+ */
+public class CompressedDepthEncoder {
+
+    /**
+     * Compression of the depth data, RVL needs compressed_depth_image_transport from noetic on,
+     * PNG is understood by every version
+     */
+    public enum Format {
+        RVL("rvl"),
+        PNG("png");
+
+        public final String name;
+
+        Format(String name) {
+            this.name = name;
+        }
+
+        /**
+         * Format of a transport format name, null if not supported
+         */
+        public static Format fromName(String name){
+            for(Format format : values()){
+                if(format.name.equals(name)) return format;
+            }
+            return null;
+        }
+    }
+
+    // sizeof(ConfigHeader) of compressed_depth_image_transport
+    public static final int CONFIG_HEADER_SIZE = 12;
+    // ConfigHeader followed by width and height for RVL
+    public static final int RVL_HEADER_SIZE = CONFIG_HEADER_SIZE + 8;
+
+    private final int width;
+    private final int height;
+    private final RvlCodec rvl = new RvlCodec();
+    private int pngCompressionLevel = 1;
+
+    /**
+     * @param width depth frame width
+     * @param height depth frame height
+     */
+    public CompressedDepthEncoder(int width, int height) {
+        this.width = width;
+        this.height = height;
+    }
+
+    /**
+     * zlib level of the PNG fallback, 0 - 9, low levels are much faster at similar size for depth
+     */
+    public void setPngCompressionLevel(int level){
+        pngCompressionLevel = Math.max(0, Math.min(9, level));
+    }
+
+    /**
+     * Message buffer size that always holds an RVL frame no larger than the raw frame,
+     * larger results fall back to PNG
+     */
+    public int bufferCapacity(){
+        return RVL_HEADER_SIZE + width * height * 2;
+    }
+
+    /**
+     * CompressedImage format field for data of the given format
+     */
+    public static String formatString(Format format){
+        return "16UC1; compressedDepth " + format.name;
+    }
+
+    /**
+     * Encode depth frame into message data
+     * RVL results that do not fit the message buffer fall back to PNG
+     * @param depth registered depth in millimeter, width * height
+     * @param format preferred format
+     * @param message destination, length set to the encoded size
+     * @return format actually written, null if the frame did not fit in either format
+     */
+    public Format encode(short[] depth, Format format, MessageBuffer message){
+        ByteBuffer out = message.getStorage();
+        out.clear();
+        writeConfigHeader(out);
+
+        if(format == Format.RVL){
+            putInt(out, CONFIG_HEADER_SIZE, width);
+            putInt(out, CONFIG_HEADER_SIZE + 4, height);
+            out.position(RVL_HEADER_SIZE);
+            int length = rvl.encode(depth, width * height, out);
+            out.clear();
+            if(length >= 0){
+                message.setLength(RVL_HEADER_SIZE + length);
+                return Format.RVL;
+            }
+        }
+
+        int length = CameraUtil.encodeDepthPNG(depth, width, height, pngCompressionLevel, out, CONFIG_HEADER_SIZE);
+        if(length < 0){
+            return null;
+        }
+        message.setLength(CONFIG_HEADER_SIZE + length);
+        return Format.PNG;
+    }
+
+    /**
+     * Java decoder of RVL message data, for round-trip tests and tools
+     * @param data message data, from position to limit
+     * @param out decoded depth, at least width * height of the frame
+     * @return frame size {width, height}
+     */
+    public static int[] decodeRVL(ByteBuffer data, short[] out){
+        int start = data.position();
+        int frameWidth = getInt(data, start + CONFIG_HEADER_SIZE);
+        int frameHeight = getInt(data, start + CONFIG_HEADER_SIZE + 4);
+
+        ByteBuffer words = data.duplicate();
+        words.position(start + RVL_HEADER_SIZE);
+        new RvlCodec().decode(words, out, frameWidth * frameHeight);
+        return new int[] {frameWidth, frameHeight};
+    }
+
+    /**
+     * format INV_DEPTH (0), depthParam unused for 16UC1
+     */
+    private static void writeConfigHeader(ByteBuffer out){
+        for(int i = 0; i < CONFIG_HEADER_SIZE; i++){
+            out.put(i, (byte) 0);
+        }
+    }
+
+    private static void putInt(ByteBuffer out, int index, int value){
+        out.put(index, (byte) value);
+        out.put(index + 1, (byte) (value >> 8));
+        out.put(index + 2, (byte) (value >> 16));
+        out.put(index + 3, (byte) (value >> 24));
+    }
+
+    private static int getInt(ByteBuffer in, int index){
+        return (in.get(index) & 0xFF)
+                | (in.get(index + 1) & 0xFF) << 8
+                | (in.get(index + 2) & 0xFF) << 16
+                | (in.get(index + 3) & 0xFF) << 24;
+    }
+
+}
@@ -1,30 +1,20 @@
 package com.MobileSLAM.RosCameraCapture;
 
-import android.annotation.SuppressLint;
 import android.content.Context;
 import android.graphics.Bitmap;
-import android.graphics.ImageFormat;
+import android.graphics.Matrix;
 import android.graphics.SurfaceTexture;
-import android.hardware.camera2.CameraAccessException;
-import android.hardware.camera2.CameraCaptureSession;
-import android.hardware.camera2.CameraDevice;
 import android.hardware.camera2.CameraManager;
-import android.hardware.camera2.CameraMetadata;
-import android.hardware.camera2.CaptureRequest;
-import android.media.Image;
-import android.media.ImageReader;
 import android.os.Build;
 import android.os.Handler;
 import android.os.HandlerThread;
+import android.os.SystemClock;
 import android.support.annotation.NonNull;
 import android.support.annotation.RequiresApi;
 import android.util.Log;
 import android.view.TextureView;
 
-import org.jboss.netty.buffer.ChannelBufferOutputStream;
 import org.ros.android.RosActivity;
-import org.ros.concurrent.CancellableLoop;
-import org.ros.internal.message.MessageBuffers;
 import org.ros.message.Time;
 import org.ros.namespace.GraphName;
 import org.ros.node.ConnectedNode;
@@ -32,11 +22,16 @@ import org.ros.node.Node;
 import org.ros.node.NodeConfiguration;
 import org.ros.node.NodeMain;
 import org.ros.node.NodeMainExecutor;
+import org.ros.node.parameter.ParameterTree;
 import org.ros.node.topic.Publisher;
 
+import java.io.File;
 import java.io.IOException;
-import java.nio.ShortBuffer;
-import java.util.Arrays;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import java.lang.String;
 
@@ -45,20 +40,108 @@ public class DepthCameraCapture {
 
     final static private String TAG = DepthCameraCapture.class.getSimpleName();
 
+    // Registered frames in the fan-out, five subscribers + 2 to never stall processing
+    final static private int REGISTERED_FRAME_COUNT = 7;
+    // Serialized messages queued between a serialize stage and its publisher
+    final static private int SERIALIZED_QUEUE_SIZE = 2;
+
     private RosActivity mMainActivity;
     private TextureView mTextureView;
-    private ImageReader mImageReader;
 
     private String mCameraId;
     private CameraManager mCameraManager;
-    private CaptureRequest.Builder mCaptureRequestBuilder;
 
-    private final Object frameLock = new Object();
-    private boolean hasNext = false;
+    // Raw frames from the camera, or a recording, see setFrameSource()
+    private FrameSource frameSource;
+    private File recordingFile;
+    private FrameRecorder recorder;
 
     private String imageEncoding = "mono16";
 
-    private short[] latestFrameRaw;                     // Raw DEPTH16 value from sensor, not parsed
+    private FrameExchanger<ByteBuffer> rawFrames;       // Raw DEPTH16 value from sensor, not parsed
+
+    /**
+     * Registered depth frame in millimeter, with its serialized message data
+     * The publisher takes the message buffer over, the process thread then fills a new one
+     * Confidence of the temporal filter is registered along, while filtering and subscribed
+     */
+    static class RegisteredFrame {
+        final short[] depth;
+        final byte[] confidence;
+        boolean hasConfidence;
+        long timestampNanos;            // sensor timestamp, see SensorClock
+        MessageBuffer message;
+
+        RegisteredFrame(int frameSize) {
+            depth = new short[frameSize];
+            confidence = new byte[frameSize];
+        }
+    }
+
+    /**
+     * Serialized message data handed from a serialize stage to its publisher
+     * compressedDepth: format of the data, PointCloud2: number of points and whether they carry rgb
+     */
+    static class SerializedFrame {
+        MessageBuffer data;
+        long timestampNanos;            // sensor timestamp, see SensorClock
+        CompressedDepthEncoder.Format format;
+        int points;
+        boolean rgb;
+    }
+
+    // Registered depth, processed once per raw frame and shared by preview and ROS publisher
+    private FrameFanOut<RegisteredFrame> registeredFrames;
+    private FrameFanOut<RegisteredFrame>.Subscriber publishSubscriber;
+    private FrameFanOut<RegisteredFrame>.Subscriber previewSubscriber;
+    private FrameFanOut<RegisteredFrame>.Subscriber compressedSubscriber;
+    private FrameFanOut<RegisteredFrame>.Subscriber pointsSubscriber;
+    private FrameFanOut<RegisteredFrame>.Subscriber confidenceSubscriber;
+
+    // compressedDepth and PointCloud2, serialized in their own stage while the next frame is processed
+    private FrameQueue<SerializedFrame> compressedQueue;
+    private FrameQueue<SerializedFrame> pointsQueue;
+
+    // Recycled frame buffers, steady-state capture allocates nothing
+    private DepthFrameProcessor frameProcessor;         // process thread only
+    private MessageBufferPool messagePool;              // serialized 16UC1 / 8UC1 frames
+    private MessageBufferPool compressedMessagePool;    // compressedDepth frames
+    private CompressedDepthEncoder depthEncoder;        // compress thread only
+    private volatile CompressedDepthEncoder.Format compressedDepthFormat = CompressedDepthEncoder.Format.RVL;
+    private MessageBufferPool pointsMessagePool;        // PointCloud2 data
+    private PointCloudBuilder pointCloudBuilder;        // points thread only
+    private MessageBufferPool confidenceMessagePool;    // mono8 confidence frames
+    private int[] previewPixels;                        // ARGB buffer, preview thread only
+
+    // Stage timing and drops, reported on /diagnostics
+    private final PipelineMetrics metrics = new PipelineMetrics("depth");
+    private final PipelineMetrics.Stage acquireStage = metrics.stage("acquire");
+    private final PipelineMetrics.Stage processStage = metrics.stage("process");
+    private final PipelineMetrics.Stage previewStage = metrics.stage("preview");
+    private final PipelineMetrics.Stage publishStage = metrics.stage("publish");
+    private final PipelineMetrics.Stage compressStage = metrics.stage("compress");
+    private final PipelineMetrics.Stage pointsStage = metrics.stage("points");
+    private final PipelineMetrics.Stage latencyStage = metrics.stage("capture_to_publish");
+    private final PipelineMetrics.Stage compressedLatencyStage = metrics.stage("capture_to_publish_compressed");
+    private Bitmap previewBitmap;                       // frame-sized, preview thread only
+    private final Matrix previewMatrix = new Matrix();  // preview thread only
+    // At most one preview render queued, frames arriving meanwhile are coalesced into it
+    private final AtomicBoolean previewPending = new AtomicBoolean(false);
+
+    // Subscriber gates, registration always runs for the preview, serialization only for subscribed topics
+    private final StreamGate imageGate = new StreamGate("~image_registered");
+    private final StreamGate compressedGate = new StreamGate("~image_registered/compressedDepth");
+    private final StreamGate publishGate = new StreamGate("~image_registered, ~camera_info");
+    private final StreamGate pointsGate = new StreamGate("~points");
+    private final StreamGate confidenceGate = new StreamGate("~confidence_registered");
+
+    // Color of the point cloud from the low resolution stream, none if not set
+    private ColorCameraCapture colorSource;
+    // Pairs registered depth with color frames, none if not set
+    private RgbdSynchronizer synchronizer;
+    // Frame intervals of IMU preintegration, none if not set
+    private IMUCapture imuCapture;
+    private volatile boolean pointsRgb = true;
 
     private float depthConfidenceThreshold = 0.1f;
     private short maxDepthThreshold = 5000;               // Max Depth, in millimeter
@@ -67,12 +150,22 @@ public class DepthCameraCapture {
 
     public CameraUtil.CameraParam mCameraParam;
 
-    private HandlerThread backgroundThread;
-    private Handler backgroundHandler;
-
+    // Pipeline stages: acquire (frame source thread), process, compress / points (serialize),
+    // publish (rosjava loops) and preview, each at its StageThread priority
     private HandlerThread previewThread;
     private Handler previewHandler;
 
+    private StageThread processThread;
+    private StageThread compressThread;
+    private StageThread pointsThread;
+    private long lastRawSequence = 0;                   // process thread only
+
+    // Processing mode: fused single-pass native kernel by default,
+    // or each stage split into row bands on a fixed worker pool (for 640x480 depth)
+    // Output is identical in both modes, see DepthFrameProcessor
+    private volatile boolean parallelProcessing = false;
+    private RowParallelExecutor rowExecutor;            // process thread only, until stopped
+
     /**
      * Create depth camera capture object
      * Responsible for camera management, frame capture and ROS message publishing
@@ -85,31 +178,210 @@ public class DepthCameraCapture {
         mCameraId = "4";            // Fixed camera id used for samsung s20+
         mTextureView = textureView;
         mCameraParam = CameraUtil.depthCameraParam;
+        Camera2FrameSource cameraSource = new Camera2FrameSource(mCameraManager, mCameraId, mCameraParam.frameWidth, mCameraParam.frameHeight,
+                FrameSource.FORMAT_DEPTH16, "DepthCameraBackground");
+        cameraSource.setMetrics(acquireStage);
+        frameSource = cameraSource;
+
+        int frameSize = mCameraParam.frameWidth * mCameraParam.frameHeight;
+        rawFrames = new FrameExchanger<>(() -> ByteBuffer.allocateDirect(frameSize * 2).order(ByteOrder.nativeOrder()));
+        registeredFrames = new FrameFanOut<>(REGISTERED_FRAME_COUNT, () -> new RegisteredFrame(frameSize));
+        publishSubscriber = registeredFrames.subscribe();
+        previewSubscriber = registeredFrames.subscribe();
+        compressedSubscriber = registeredFrames.subscribe();
+        pointsSubscriber = registeredFrames.subscribe();
+        confidenceSubscriber = registeredFrames.subscribe();
+        compressedQueue = new FrameQueue<>(SERIALIZED_QUEUE_SIZE, SerializedFrame::new);
+        pointsQueue = new FrameQueue<>(SERIALIZED_QUEUE_SIZE, SerializedFrame::new);
+        frameProcessor = new DepthFrameProcessor(mCameraParam, CameraUtil.colorCameraParam, true);
+        frameProcessor.setConfidenceThreshold(depthConfidenceThreshold);
+        frameProcessor.setMaxDepthThreshold(maxDepthThreshold);
+        frameProcessor.setMetrics(metrics);
+        // Message data sized once, every registered frame may hold a buffer
+        messagePool = MessageBufferPool.forFrame(mCameraParam, 2, REGISTERED_FRAME_COUNT);
+        // compressedDepth data no larger than the raw frame, the encoder falls back to PNG beyond that
+        // One buffer being encoded, the queued ones and those rosjava has yet to serialize
+        depthEncoder = new CompressedDepthEncoder(mCameraParam.frameWidth, mCameraParam.frameHeight);
+        compressedMessagePool = new MessageBufferPool(1 + compressedQueue.capacity() + MessageBufferPool.IN_FLIGHT_MESSAGES,
+                depthEncoder.bufferCapacity());
+        // Point cloud data no larger than the full resolution XYZRGB cloud
+        pointCloudBuilder = new PointCloudBuilder(mCameraParam, CameraUtil.colorCameraParam);
+        pointsMessagePool = new MessageBufferPool(1 + pointsQueue.capacity() + MessageBufferPool.IN_FLIGHT_MESSAGES,
+                pointCloudBuilder.bufferCapacity());
+        confidenceMessagePool = MessageBufferPool.forFrame(mCameraParam, 1, 1);
+        previewPixels = new int[frameSize];
+        previewBitmap = Bitmap.createBitmap(mCameraParam.frameWidth, mCameraParam.frameHeight, Bitmap.Config.ARGB_8888);
+
+        // Color frames are converted only while someone subscribed to the colored point cloud
+        pointsGate.setListener((gate, open) -> {
+            ColorCameraCapture source = colorSource;
+            if(source != null){
+                source.setRgbFramesEnabled(open && pointsRgb);
+            }
+        });
+    }
+
+    /**
+     * Enable temporal filtering of raw depth between parsing and registration,
+     * takes effect on the next frame, the filter starts without history
+     * @param smoothing weight of the history, see TemporalDepthFilter.setSmoothing
+     * @param holePersistence frames a hole keeps its last depth
+     */
+    public void enableTemporalFilter(float smoothing, int holePersistence){
+        TemporalDepthFilter filter = new TemporalDepthFilter(mCameraParam.frameWidth, mCameraParam.frameHeight);
+        filter.setSmoothing(smoothing);
+        filter.setHolePersistence(holePersistence);
+        filter.setConfidenceThreshold(depthConfidenceThreshold);
+        frameProcessor.setTemporalFilter(filter);
     }
 
+    public void disableTemporalFilter(){
+        frameProcessor.setTemporalFilter(null);
+    }
 
     /**
-     * Start the background thread and handler
+     * Split each processing stage into row bands on a worker pool instead of the fused single pass,
+     * takes effect on the next frame
      */
-    private void startBackgroundThread(){
-        backgroundThread = new HandlerThread("DepthCameraBackground");
-        backgroundThread.start();
-        backgroundHandler = new Handler(backgroundThread.getLooper());
+    public void setParallelProcessing(boolean enabled){
+        parallelProcessing = enabled;
+    }
+
+    public boolean isParallelProcessing(){
+        return parallelProcessing;
+    }
+
+    /**
+     * Start or stop the row workers to follow parallelProcessing, in processThread
+     */
+    private void updateRowExecutor(){
+        boolean parallel = parallelProcessing;
+        if(parallel == (rowExecutor != null)) return;
+
+        if(parallel){
+            rowExecutor = new RowParallelExecutor(RowParallelExecutor.defaultWorkerCount(), "DepthCameraRows",
+                    () -> StageThread.setCurrentPriority(StageThread.PRIORITY_PROCESS));
+            frameProcessor.setRowExecutor(rowExecutor);
+        }else{
+            frameProcessor.setRowExecutor(null);
+            rowExecutor.shutdown();
+            rowExecutor = null;
+        }
+    }
+
+    /**
+     * Stage latencies and drops of this camera, see DiagnosticsPublisher
+     */
+    public PipelineMetrics getMetrics(){
+        return metrics;
+    }
+
+    /**
+     * Capture to publish latency from the sensor timestamp, unknown (0) timestamps are skipped
+     */
+    private static void recordLatency(PipelineMetrics.Stage stage, long timestampNanos){
+        if(timestampNanos != 0){
+            stage.record(SystemClock.elapsedRealtimeNanos() - timestampNanos);
+        }
+    }
+
+    /**
+     * Take raw frames from source instead of the depth camera, e.g. a ReplayFrameSource,
+     * before startCamera()
+     * @throws IllegalArgumentException source is not DEPTH16 at frame size
+     */
+    public void setFrameSource(FrameSource source){
+        if(source.getFormat() != FrameSource.FORMAT_DEPTH16
+                || source.getWidth() != mCameraParam.frameWidth || source.getHeight() != mCameraParam.frameHeight){
+            throw new IllegalArgumentException("Frame source is not DEPTH16 " + mCameraParam.frameWidth + "x" + mCameraParam.frameHeight);
+        }
+        frameSource = source;
+    }
+
+    /**
+     * Record raw frames to file for ReplayFrameSource, before startCamera(), null to not record
+     */
+    public void setRecordingFile(File file){
+        recordingFile = file;
+    }
 
-        previewThread = new HandlerThread("DepthCameraPreview");
+    /**
+     * Hand registered depth to synchronizer while it has subscribers
+     */
+    public void setSynchronizer(RgbdSynchronizer synchronizer){
+        this.synchronizer = synchronizer;
+    }
+
+    /**
+     * Stamp IMU preintegration intervals with the depth frames, one camera per IMUCapture
+     */
+    public void setImuCapture(IMUCapture imuCapture){
+        this.imuCapture = imuCapture;
+    }
+
+    /**
+     * Render the preview at most this often, independent of publishing
+     * @param hz maximum preview rate, 0 for every processed frame
+     */
+    public void setPreviewMaxRate(double hz){
+        previewSubscriber.setMinInterval(hz > 0 ? (long) (1e9 / hz) : 0);
+    }
+
+    /**
+     * Color the ~points cloud from the low resolution stream of the color camera
+     */
+    public void setColorSource(ColorCameraCapture colorSource){
+        this.colorSource = colorSource;
+    }
+
+
+    /**
+     * Start the pipeline stage threads, the frame source starts its own acquire thread
+     */
+    private void startBackgroundThread(){
+        previewThread = new HandlerThread("DepthCameraPreview", StageThread.PRIORITY_PREVIEW);
         previewThread.start();
         previewHandler = new Handler(previewThread.getLooper());
+        previewPending.set(false);
+
+        lastRawSequence = 0;
+        processThread = new StageThread("DepthCameraProcess", StageThread.PRIORITY_PROCESS, depthProcessStep, processStage);
+        processThread.start();
+        compressThread = new StageThread("DepthCameraCompress", StageThread.PRIORITY_SERIALIZE, depthCompressStep, compressStage);
+        compressThread.start();
+        pointsThread = new StageThread("DepthCameraPoints", StageThread.PRIORITY_SERIALIZE, depthPointsStep, pointsStage);
+        pointsThread.start();
     }
 
     /**
-     * Stop the background thread and handler
+     * Stop every stage thread, upstream first, and wait for them
+     * Messages already queued are still published by the publish stage
      */
     private void stopBackgroundThread(){
-        backgroundThread.quitSafely();
+        frameSource.stop();
+        if(recorder != null){
+            recorder.close();
+            recorder = null;
+        }
+
+        processThread.stop();
+        processThread = null;
+        compressThread.stop();
+        compressThread = null;
+        pointsThread.stop();
+        pointsThread = null;
+
+        previewThread.quitSafely();
         try {
-            backgroundThread.join();
-            backgroundThread = null;
-            backgroundHandler = null;
+            previewThread.join();
+            previewThread = null;
+            previewHandler = null;
+
+            if(rowExecutor != null){
+                frameProcessor.setRowExecutor(null);
+                rowExecutor.shutdown();
+                rowExecutor = null;
+            }
         } catch (InterruptedException e) {
             e.printStackTrace();
         }
@@ -117,28 +389,19 @@ public class DepthCameraCapture {
 
 
     /**
-     * Start camera once the preview surface is ready
+     * Start camera, or the frame source replacing it, once the preview surface is ready
      */
-    @SuppressLint("MissingPermission")
     public void startCamera() {
 
         startBackgroundThread();
 
         if(mTextureView.isAvailable()){
-            try {
-                mCameraManager.openCamera(mCameraId, depthCameraStateCallback, backgroundHandler);
-            }catch (CameraAccessException e){
-                e.printStackTrace();
-            }
+            startFrameSource();
         }else{
             mTextureView.setSurfaceTextureListener(new TextureView.SurfaceTextureListener() {
                 @Override
                 public void onSurfaceTextureAvailable(SurfaceTexture surfaceTexture, int i, int i1) {
-                    try {
-                        mCameraManager.openCamera(mCameraId, depthCameraStateCallback, backgroundHandler);
-                    }catch (CameraAccessException e){
-                        e.printStackTrace();
-                    }
+                    startFrameSource();
                 }
 
                 @Override
@@ -156,6 +419,30 @@ public class DepthCameraCapture {
 
     }
 
+    /**
+     * Stop camera, or the frame source replacing it, and join every pipeline thread
+     * Frames already queued are still published
+     */
+    public void stopCamera(){
+        stopBackgroundThread();
+    }
+
+    /**
+     * Start frame source, recording its frames if a recording file is set
+     */
+    private void startFrameSource(){
+        FrameSource.Listener listener = rawFrameListener;
+        if(recordingFile != null){
+            try {
+                recorder = new FrameRecorder(recordingFile, rawFrameListener);
+                listener = recorder;
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        frameSource.start(listener);
+    }
+
 
     /**
      * Start ROS node with image publisher
@@ -175,161 +462,277 @@ public class DepthCameraCapture {
      * Process raw DEPTH16 frame into registered depth map
      * Depth value in short (millimeter)
      * Pixels are undistorted and registered to the rgb image
-     * @return depth map in short
-     * @throws InterruptedException synchronization excption
+     * @param rawData raw DEPTH16 frame
+     * @param frame destination of registered depth map and its message data
      */
-    public short[] getLatestFrameValue() throws InterruptedException {
-        short[] copyData;
-        synchronized (frameLock){
-            if(!hasNext){
-                frameLock.wait();
+    private void processFrame(ByteBuffer rawData, RegisteredFrame frame) {
+        boolean serialize = imageGate.isOpen();
+        if(!serialize && frame.message != null){
+            // No image subscriber, the slot holds no message data and the buffer goes back to the pool
+            frame.message.release();
+            frame.message = null;
+        }
+        // Message buffer is kept if the publisher skipped the previous frame in this slot
+        if(serialize && frame.message == null){
+            frame.message = messagePool.acquire();
+            if(frame.message == null){
+                // Every buffer held or in flight, the frame is processed but not published
+                publishStage.drop(1);
+                serialize = false;
             }
-            copyData = Arrays.copyOf(latestFrameRaw, latestFrameRaw.length);
-            hasNext = false;
         }
 
-        short[] depthShort = CameraUtil.parseDepth16(copyData, mCameraParam.frameWidth, mCameraParam.frameHeight, depthConfidenceThreshold);
-        depthShort = CameraUtil.undistortion(depthShort, mCameraParam);
-        depthShort = CameraUtil.depthRegister(depthShort, mCameraParam, CameraUtil.colorCameraParam);
-        return depthShort;
+        boolean gray = imageEncoding.equals("mono8");
+        int frameSize = mCameraParam.frameWidth * mCameraParam.frameHeight;
+        int format = !serialize ? CameraKernels.DEPTH_FORMAT_NONE
+                : gray ? CameraKernels.DEPTH_FORMAT_8UC1 : CameraKernels.DEPTH_FORMAT_16UC1;
+
+        // Filter confidence is registered only while subscribed
+        frame.hasConfidence = frameProcessor.process(rawData, format, frame.depth,
+                confidenceGate.isOpen() ? frame.confidence : null,
+                serialize ? frame.message.getStorage() : null);
+        if(serialize){
+            frame.message.setLength(gray ? frameSize : frameSize * 2);
+        }
     }
 
+    private final Runnable depthPreviewTask = () -> depthPreview();
 
     /**
-     * Convert depth into 8 bits gray, not real depth value
+     * Process stage: process every raw frame once and hand the registered depth to all subscribers
      */
-    public byte[] getLatestFrameGray() throws InterruptedException {
-        short[] depthValue = getLatestFrameValue();
-
-        return CameraUtil.convertShortToGray(depthValue, depthValue.length, maxDepthThreshold);
-    }
-
+    private final StageThread.Step depthProcessStep = () -> {
+        FrameExchanger.Slot<ByteBuffer> rawSlot = rawFrames.take();
+        // raw frames replaced before processing got to them
+        if(lastRawSequence > 0){
+            processStage.drop(rawSlot.getSequence() - lastRawSequence - 1);
+        }
+        lastRawSequence = rawSlot.getSequence();
 
-    /**
-     * Convert uint16 depth into bytes
-     */
-    public byte[] getLatestFrameShort() throws InterruptedException {
-        short[] depthValue = getLatestFrameValue();
+        FrameFanOut.Frame<RegisteredFrame> frame = registeredFrames.beginWrite();
+        if(frame == null){
+            // every frame still held by subscribers, drop this one
+            processStage.drop(1);
+            return;
+        }
 
-        return CameraUtil.convertShortToByte(depthValue, depthValue.length);
-    }
+        updateRowExecutor();
+        long begin = processStage.begin();
+        processFrame(rawSlot.data, frame.data);
+        processStage.end(begin);
+        frame.data.timestampNanos = rawSlot.timestamp;
+        offerSynchronizer(frame.data);
+        registeredFrames.publish(frame);
+
+        // Render depth map in previewThread, unless a render is still queued
+        if(previewPending.compareAndSet(false, true)){
+            previewHandler.post(depthPreviewTask);
+        }
+    };
 
     /**
-     * Convert depth map into Bitmap and render on TextureView
+     * Serialize stage: encode registered depth as compressedDepth for its publisher
+     * A full queue drops the frame before encoding, the publisher is behind anyway
      */
-    private void depthPreview() {
-
+    private final StageThread.Step depthCompressStep = () -> {
+        compressedGate.awaitOpen();
+        FrameFanOut.Frame<RegisteredFrame> frame = compressedSubscriber.take();
         try{
-            short[] depthShort = getLatestFrameValue();
-            int[] depthARGB = CameraUtil.convertShortToARGB(depthShort, mCameraParam.frameWidth, mCameraParam.frameHeight, maxDepthThreshold);
+            SerializedFrame out = compressedQueue.beginWrite();
+            if(out == null){
+                compressStage.drop(1);
+                return;
+            }
 
-            Bitmap depthBitmap = Bitmap.createBitmap(mCameraParam.frameWidth, mCameraParam.frameHeight, Bitmap.Config.ARGB_8888);
-            depthBitmap.setPixels(depthARGB, 0, mCameraParam.frameWidth, 0, 0, mCameraParam.frameWidth, mCameraParam.frameHeight);
-            depthBitmap = Bitmap.createScaledBitmap(depthBitmap, mTextureView.getWidth(), mTextureView.getHeight(), false);
+            // Encoded straight into message data, returned to its pool once rosjava serialized it
+            MessageBuffer data = compressedMessagePool.acquire();
+            if(data == null){
+                compressStage.drop(1);
+                return;
+            }
+            CompressedDepthEncoder.Format written = null;
+            long begin = compressStage.begin();
+            try{
+                written = depthEncoder.encode(frame.data.depth, compressedDepthFormat, data);
+            }finally {
+                if(written == null){
+                    data.release();
+                }
+            }
+            compressStage.end(begin);
 
-            Bitmap finalDepthBitmap = depthBitmap;
-            // Update UI in main thread
-            mTextureView.post(() -> CameraUtil.renderBitmapToTextureview(finalDepthBitmap, mTextureView));
+            if(written == null){
+                Log.w(TAG, "Depth frame exceeds compressed message buffer, dropped");
+                compressStage.drop(1);
+                return;
+            }
 
-        } catch (InterruptedException e){
-            e.printStackTrace();
+            out.timestampNanos = frame.data.timestampNanos;
+            out.data = data;
+            out.format = written;
+            compressedQueue.publish();
+        }finally {
+            // held until here even if the step fails, the producer reuses it once released
+            compressedSubscriber.release(frame);
         }
-
-    }
+    };
 
     /**
-     * Callback for camera device state change
-     * Create capture session and build capture target
+     * Serialize stage: build the ~points cloud from registered depth for its publisher
      */
-    private final CameraDevice.StateCallback depthCameraStateCallback = new CameraDevice.StateCallback() {
-        @Override
-        public void onOpened(@NonNull CameraDevice cameraDevice) {
-            // start capture session as camera opened
-            Log.i(TAG, "Camera " + cameraDevice.getId() + " Opened");
-
-            // Configure image reader for image messaging
-            mImageReader = ImageReader.newInstance(mCameraParam.frameWidth, mCameraParam.frameHeight, ImageFormat.DEPTH16, 2);
-            mImageReader.setOnImageAvailableListener(depthImageAvailableListener, backgroundHandler);
+    private final StageThread.Step depthPointsStep = () -> {
+        pointsGate.awaitOpen();
+        FrameFanOut.Frame<RegisteredFrame> frame = pointsSubscriber.take();
+        try{
+            SerializedFrame out = pointsQueue.beginWrite();
+            if(out == null){
+                pointsStage.drop(1);
+                return;
+            }
 
+            // XYZ only until the first color frame arrived
+            int[] color = pointsRgb && colorSource != null ? colorSource.pollRgbFrame() : null;
+            // Written straight into message data, returned to its pool once rosjava serialized it
+            MessageBuffer data = pointsMessagePool.acquire();
+            if(data == null){
+                pointsStage.drop(1);
+                return;
+            }
+            int points = -1;
+            long begin = pointsStage.begin();
             try{
-                mCaptureRequestBuilder = cameraDevice.createCaptureRequest(CameraDevice.TEMPLATE_PREVIEW);
-                mCaptureRequestBuilder.set(CaptureRequest.CONTROL_MODE, CameraMetadata.CONTROL_MODE_AUTO);
-                mCaptureRequestBuilder.addTarget(mImageReader.getSurface());
-                cameraDevice.createCaptureSession(Arrays.asList(mImageReader.getSurface()), depthCameraCaptureSessionStateCallback, null);
-            } catch (CameraAccessException e){
-                e.printStackTrace();
+                points = pointCloudBuilder.build(frame.data.depth, color, data);
+            }finally {
+                if(points < 0){
+                    data.release();
+                }
             }
-
-        }
-
-        @Override
-        public void onDisconnected(@NonNull CameraDevice cameraDevice) {
-            cameraDevice.close();
-            Log.i(TAG, "Camera " + cameraDevice.getId() + " disconnected");
-        }
-
-        @Override
-        public void onError(@NonNull CameraDevice cameraDevice, int error) {
-            cameraDevice.close();
-            Log.e(TAG, "Camera " + cameraDevice.getId() + " error: " + error);
+            pointsStage.end(begin);
+
+            out.points = points;
+            out.timestampNanos = frame.data.timestampNanos;
+            out.data = data;
+            out.rgb = color != null;
+            pointsQueue.publish();
+        }finally {
+            // held until here even if the step fails, the producer reuses it once released
+            pointsSubscriber.release(frame);
         }
     };
 
 
     /**
-     * Callback for image reader, handle incoming depth frame
-     * Parse DEPTH16 into real depth value and confidence
-     * */
-    private final ImageReader.OnImageAvailableListener depthImageAvailableListener = new ImageReader.OnImageAvailableListener() {
-        @Override
-        public void onImageAvailable(ImageReader imageReader) {
-            Image img = imageReader.acquireLatestImage();
-            if(img == null) return;
+     * Copy registered depth as 16UC1 message data to the synchronizer, if it has subscribers
+     */
+    private void offerSynchronizer(RegisteredFrame frame){
+        RgbdSynchronizer sync = synchronizer;
+        if(sync == null || !sync.isEnabled()) return;
+
+        MessageBuffer data = sync.acquireDepthBuffer();
+        if(data == null) return;
+        CameraUtil.convertShortToByteRows(frame.depth, data.getStorage(), mCameraParam.frameWidth, 0, mCameraParam.frameHeight);
+        data.setLength(frame.depth.length * 2);
+        sync.offerDepth(frame.timestampNanos, data);
+    }
 
-            ShortBuffer depthShortBuffer = img.getPlanes()[0].getBuffer().asShortBuffer();
-            short[] depthRaw = new short[mCameraParam.frameWidth * mCameraParam.frameHeight];
-            depthShortBuffer.get(depthRaw);
 
-            // Render depth map in previewThread
-            previewHandler.post(() -> depthPreview());
+    /**
+     * Convert depth map into the preview Bitmap and render on TextureView
+     * Takes the newest frame, frames arriving faster than rendering or the preview rate are skipped
+     * Renders on the preview thread, the Bitmap is reused and never handed to another thread
+     */
+    private void depthPreview() {
+        // frames published from now on queue another render
+        previewPending.set(false);
 
-            synchronized (frameLock){
-                latestFrameRaw = depthRaw;
-                hasNext = true;
-                frameLock.notifyAll();
-            }
+        FrameFanOut.Frame<RegisteredFrame> frame = previewSubscriber.poll();
+        if(frame == null) return;
 
-            img.close();
-        }
-    };
+        long begin = previewStage.begin();
+        CameraUtil.convertShortToARGBInto(frame.data.depth, previewPixels, mCameraParam.frameWidth, mCameraParam.frameHeight, maxDepthThreshold);
+        previewSubscriber.release(frame);
 
+        previewBitmap.setPixels(previewPixels, 0, mCameraParam.frameWidth, 0, 0, mCameraParam.frameWidth, mCameraParam.frameHeight);
+        CameraUtil.renderBitmapToTextureview(previewBitmap, mTextureView, previewMatrix);
+        previewStage.end(begin);
+    }
 
     /**
-     * Callback for capture session state change
-     * Create repeat capture request
+     * Frame source callback, handle incoming raw DEPTH16 frame
+     * Direct to direct copy, row by row if the plane is padded, the camera image goes back to its reader right away
      */
-    private final CameraCaptureSession.StateCallback depthCameraCaptureSessionStateCallback = new CameraCaptureSession.StateCallback() {
+    private final FrameSource.Listener rawFrameListener = new FrameSource.Listener() {
         @Override
-        public void onConfigured(@NonNull CameraCaptureSession cameraCaptureSession) {
-            try{
-                CaptureRequest captureRequest = mCaptureRequestBuilder.build();
-                cameraCaptureSession.setRepeatingRequest(captureRequest, null, backgroundHandler);
-            } catch (CameraAccessException e){
-                e.printStackTrace();
+        public void onFrame(FrameSource.Frame frame) {
+            FrameExchanger.Slot<ByteBuffer> rawSlot = rawFrames.beginWrite();
+            rawSlot.timestamp = frame.timestamp;
+            ByteBuffer rawData = rawSlot.data;
+            rawData.clear();
+            // Rows may be padded, camera and recording alike
+            FrameSource.copyRows(frame.planes[0], frame.rowStrides[0], mCameraParam.frameWidth * 2, mCameraParam.frameHeight, rawData);
+
+            // Frame not consumed in time is replaced by this one
+            rawFrames.publish();
+
+            IMUCapture imu = imuCapture;
+            if(imu != null){
+                imu.offerFrameTimestamp(frame.timestamp);
             }
         }
-
-        @Override
-        public void onConfigureFailed(@NonNull CameraCaptureSession cameraCaptureSession) {
-            Log.e(TAG, "Capture Session Configure Failed");
-        }
     };
 
 
+    /**
+     * Preferred compression of ~image_registered/compressedDepth, default for the node's
+     * ~compressed_depth_format parameter (rvl / png)
+     */
+    public void setCompressedDepthFormat(CompressedDepthEncoder.Format format){
+        compressedDepthFormat = format;
+    }
+
+    /**
+     * Publish a cloud of the points stage, in points publisher thread
+     * @param fields field list matching frame.rgb
+     */
+    private void publishPoints(SerializedFrame frame, List<sensor_msgs.PointField> fields,
+                               MessagePublisher<sensor_msgs.PointCloud2> publisher, Time timestamp){
+        int pointStep = PointCloudBuilder.pointStep(frame.rgb);
+        sensor_msgs.PointCloud2 cloud = publisher.nextMessage();
+        cloud.getHeader().setStamp(timestamp);
+        cloud.setWidth(frame.points);
+        cloud.setFields(fields);
+        cloud.setPointStep(pointStep);
+        cloud.setRowStep(frame.points * pointStep);
+        publisher.publish(frame.data);
+        frame.data = null;
+    }
+
+    /**
+     * PointField list of the packed cloud layout, x y z float32 and optional rgb
+     */
+    private static List<sensor_msgs.PointField> pointFields(ConnectedNode connectedNode, boolean rgb){
+        String[] names = rgb ? new String[] {"x", "y", "z", "rgb"} : new String[] {"x", "y", "z"};
+        List<sensor_msgs.PointField> fields = new ArrayList<>();
+        for(int i = 0; i < names.length; i++){
+            sensor_msgs.PointField field = connectedNode.getTopicMessageFactory().newFromType(sensor_msgs.PointField._TYPE);
+            field.setName(names[i]);
+            field.setOffset(i * 4);
+            field.setDatatype(sensor_msgs.PointField.FLOAT32);
+            field.setCount(1);
+            fields.add(field);
+        }
+        return fields;
+    }
+
     /**
      * ROS node publishing depth message
      * Read current frame as gray / uint16
      * Send frame in sensor_msgs/Image (mono8 / mono16)
+     * and lossless in sensor_msgs/CompressedImage for compressed_depth_image_transport
+     * and as sensor_msgs/PointCloud2 (x y z, rgb from the color camera), optionally downsampled
+     * Temporal filter confidence in sensor_msgs/Image (mono8) while the filter is enabled
+     * Each loop waits while its topics have no subscribers
+     * Loops are the publish stage, compressedDepth and PointCloud2 arrive serialized by their stage threads
      */
     private final NodeMain publishNodeDepth = new NodeMain() {
         @Override
@@ -340,13 +743,14 @@ public class DepthCameraCapture {
         @Override
         public void onStart(ConnectedNode connectedNode) {
 
-            Publisher<sensor_msgs.Image> imagePublisher = connectedNode.newPublisher("~image_registered", sensor_msgs.Image._TYPE);
-            sensor_msgs.Image img = connectedNode.getTopicMessageFactory().newFromType(sensor_msgs.Image._TYPE);
-            ChannelBufferOutputStream dataStream = new ChannelBufferOutputStream(MessageBuffers.dynamicBuffer());
-            img.setHeight(mCameraParam.frameHeight);
-            img.setWidth(mCameraParam.frameWidth);
-            img.getHeader().setFrameId(topicName);
-            img.setIsBigendian((byte) 0);
+            // Ring of messages owning their data until serialized, see MessagePublisher
+            MessagePublisher<sensor_msgs.Image> imagePublisher = new MessagePublisher<>(
+                    connectedNode.newPublisher("~image_registered", sensor_msgs.Image._TYPE), img -> {
+                img.setHeight(mCameraParam.frameHeight);
+                img.setWidth(mCameraParam.frameWidth);
+                img.getHeader().setFrameId(topicName);
+                img.setIsBigendian((byte) 0);
+            }, sensor_msgs.Image::setData, publishStage);
 
             // Camera info publisher
             Publisher<sensor_msgs.CameraInfo> infoPublisher = connectedNode.newPublisher("~camera_info", sensor_msgs.CameraInfo._TYPE);
@@ -362,36 +766,183 @@ public class DepthCameraCapture {
             info.getRoi().setWidth(mCameraParam.frameWidth);
             info.setP(mCameraParam.getP());
 
-            connectedNode.executeCancellableLoop(new CancellableLoop() {
+            // Lossless compressed depth in millimeter (16UC1), RVL with PNG fallback
+            MessagePublisher<sensor_msgs.CompressedImage> compressedPublisher = new MessagePublisher<>(
+                    connectedNode.newPublisher("~image_registered/compressedDepth", sensor_msgs.CompressedImage._TYPE),
+                    compressed -> compressed.getHeader().setFrameId(topicName), sensor_msgs.CompressedImage::setData, compressStage);
+
+            String formatParam = connectedNode.getParameterTree().getString("~compressed_depth_format", compressedDepthFormat.name);
+            CompressedDepthEncoder.Format format = CompressedDepthEncoder.Format.fromName(formatParam);
+            if(format != null){
+                compressedDepthFormat = format;
+            }else{
+                Log.w(TAG, "Unsupported ~compressed_depth_format " + formatParam + ", publishing " + compressedDepthFormat.name);
+            }
+
+            // Point cloud, e.g. _points_stride:=2 _points_voxel_size:=0.02 _points_rgb:=false
+            MessagePublisher<sensor_msgs.PointCloud2> pointsPublisher = new MessagePublisher<>(
+                    connectedNode.newPublisher("~points", sensor_msgs.PointCloud2._TYPE), cloud -> {
+                cloud.getHeader().setFrameId(topicName);
+                cloud.setHeight(1);
+                cloud.setIsBigendian(false);
+                cloud.setIsDense(true);
+            }, sensor_msgs.PointCloud2::setData, pointsStage);
+            List<sensor_msgs.PointField> xyzFields = pointFields(connectedNode, false);
+            List<sensor_msgs.PointField> xyzrgbFields = pointFields(connectedNode, true);
+
+            ParameterTree params = connectedNode.getParameterTree();
+            pointCloudBuilder.setStride(params.getInteger("~points_stride", 1));
+            pointCloudBuilder.setVoxelSize((float) params.getDouble("~points_voxel_size", 0));
+            pointsRgb = params.getBoolean("~points_rgb", true);
+
+            // Row band processing on all cores, e.g. _parallel_processing:=true for 640x480 depth
+            setParallelProcessing(params.getBoolean("~parallel_processing", parallelProcessing));
+
+            // Temporal filter, e.g. _temporal_filter:=true _temporal_smoothing:=0.6 _temporal_hole_persistence:=2
+            if(params.getBoolean("~temporal_filter", frameProcessor.getTemporalFilter() != null)){
+                enableTemporalFilter((float) params.getDouble("~temporal_smoothing", 0.6),
+                        params.getInteger("~temporal_hole_persistence", 2));
+            }else{
+                disableTemporalFilter();
+            }
+
+            // Confidence of the filtered depth, pixel aligned with ~image_registered, temporal filter only
+            MessagePublisher<sensor_msgs.Image> confidencePublisher = new MessagePublisher<>(
+                    connectedNode.newPublisher("~confidence_registered", sensor_msgs.Image._TYPE), confidenceImg -> {
+                confidenceImg.setHeight(mCameraParam.frameHeight);
+                confidenceImg.setWidth(mCameraParam.frameWidth);
+                confidenceImg.getHeader().setFrameId(topicName);
+                confidenceImg.setIsBigendian((byte) 0);
+                confidenceImg.setEncoding("mono8");
+                confidenceImg.setStep(mCameraParam.frameWidth);
+            }, sensor_msgs.Image::setData, publishStage);
+
+            imageGate.addPublisher(imagePublisher.getPublisher());
+            compressedGate.addPublisher(compressedPublisher.getPublisher());
+            publishGate.addPublisher(imagePublisher.getPublisher());
+            publishGate.addPublisher(infoPublisher);
+            pointsGate.addPublisher(pointsPublisher.getPublisher());
+            confidenceGate.addPublisher(confidencePublisher.getPublisher());
+
+            connectedNode.executeCancellableLoop(new PublishLoop() {
                 @Override
                 protected void loop(){
 
-                    Time timestamp = connectedNode.getCurrentTime();
-
                     try{
+                        confidenceGate.awaitOpen();
+                        FrameFanOut.Frame<RegisteredFrame> frame = confidenceSubscriber.take();
+                        Time timestamp = SensorClock.toRosTime(frame.data.timestampNanos, connectedNode.getCurrentTime());
+                        if(!frame.data.hasConfidence){
+                            confidenceSubscriber.release(frame);
+                            return;
+                        }
 
-                        if(imageEncoding.equals("mono8")){
-                            // Send depth in 8bit gray
-                            img.setEncoding("8UC1");
-                            img.setStep(mCameraParam.frameWidth);
-                            dataStream.write(getLatestFrameGray());
-
-                        }else if(imageEncoding.equals("mono16")){
-                            // Send depth in uint16
-                            img.setEncoding("16UC1");
-                            img.setStep(mCameraParam.frameWidth * 2);
-                            dataStream.write(getLatestFrameShort());
+                        // Copied into message data, returned to its pool once rosjava serialized it
+                        MessageBuffer data = confidenceMessagePool.acquire();
+                        if(data == null){
+                            confidenceSubscriber.release(frame);
+                            publishStage.drop(1);
+                            return;
                         }
+                        ByteBuffer storage = data.getStorage();
+                        storage.clear();
+                        storage.put(frame.data.confidence);
+                        data.setLength(frame.data.confidence.length);
+                        confidenceSubscriber.release(frame);
+
+                        confidencePublisher.nextMessage().getHeader().setStamp(timestamp);
+                        confidencePublisher.publish(data);
 
-                    }catch (IOException | InterruptedException e){
+                    }catch (InterruptedException e){
                         e.printStackTrace();
                     }
+                }
+            });
+
+            connectedNode.executeCancellableLoop(new PublishLoop() {
+                @Override
+                protected void loop(){
 
-                    img.getHeader().setStamp(timestamp);
-                    img.setData(dataStream.buffer().copy());
+                    try{
+                        SerializedFrame frame = pointsQueue.take();
+                        Time timestamp = SensorClock.toRosTime(frame.timestampNanos, connectedNode.getCurrentTime());
+                        publishPoints(frame, frame.rgb ? xyzrgbFields : xyzFields, pointsPublisher, timestamp);
+                        pointsQueue.release();
 
-                    dataStream.buffer().clear();
-                    imagePublisher.publish(img);
+                    }catch (InterruptedException e){
+                        e.printStackTrace();
+                    }
+                }
+            });
+
+            connectedNode.executeCancellableLoop(new PublishLoop() {
+                @Override
+                protected void loop(){
+
+                    try{
+                        SerializedFrame frame = compressedQueue.take();
+                        long timestampNanos = frame.timestampNanos;
+                        Time timestamp = SensorClock.toRosTime(timestampNanos, connectedNode.getCurrentTime());
+
+                        MessageBuffer data = frame.data;
+                        frame.data = null;
+                        sensor_msgs.CompressedImage compressed = compressedPublisher.nextMessage();
+                        compressed.setFormat(CompressedDepthEncoder.formatString(frame.format));
+                        compressedQueue.release();
+                        compressed.getHeader().setStamp(timestamp);
+                        compressedPublisher.publish(data);
+                        recordLatency(compressedLatencyStage, timestampNanos);
+
+                    }catch (InterruptedException e){
+                        e.printStackTrace();
+                    }
+                }
+            });
+
+            connectedNode.executeCancellableLoop(new PublishLoop() {
+                @Override
+                protected void loop(){
+
+                    Time timestamp;
+
+                    try{
+                        publishGate.awaitOpen();
+                        // Re-read image subscribers every frame, the gate closes once the last one left
+                        imageGate.refresh();
+                        FrameFanOut.Frame<RegisteredFrame> frame = publishSubscriber.take();
+                        timestamp = SensorClock.toRosTime(frame.data.timestampNanos, connectedNode.getCurrentTime());
+
+                        // Take message data over, returned to its pool once rosjava serialized it
+                        // No message data if the frame was processed while ~image_registered had no subscriber
+                        MessageBuffer data = frame.data.message;
+                        frame.data.message = null;
+                        long timestampNanos = frame.data.timestampNanos;
+                        publishSubscriber.release(frame);
+
+                        if(data != null){
+                            sensor_msgs.Image img = imagePublisher.nextMessage();
+                            if(imageEncoding.equals("mono8")){
+                                // Send depth in 8bit gray
+                                img.setEncoding("8UC1");
+                                img.setStep(mCameraParam.frameWidth);
+
+                            }else if(imageEncoding.equals("mono16")){
+                                // Send depth in uint16
+                                img.setEncoding("16UC1");
+                                img.setStep(mCameraParam.frameWidth * 2);
+                            }
+
+                            img.getHeader().setStamp(timestamp);
+                            long begin = publishStage.begin();
+                            imagePublisher.publish(data);
+                            publishStage.end(begin);
+                            recordLatency(latencyStage, timestampNanos);
+                        }
+
+                    }catch (InterruptedException e){
+                        e.printStackTrace();
+                        return;
+                    }
 
                     info.getHeader().setStamp(timestamp);
                     infoPublisher.publish(info);
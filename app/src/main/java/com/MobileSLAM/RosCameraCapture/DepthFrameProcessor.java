@@ -0,0 +1,227 @@
+package com.MobileSLAM.RosCameraCapture;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Raw DEPTH16 frame to registered depth map and serialized message data
+ * parse (or temporal filter) -> undistort -> register -> serialize
+ * Native kernels run fused in a single pass, or each stage split into row bands
+ * while a row executor or temporal filter is set; Java kernels (CameraKernels) always run staged
+ * Output is identical in all modes
+ * Each stage is timed into PipelineMetrics, the fused pass as one stage
+ * No Android classes, with Java kernels it runs on a plain JVM without the native library,
+ * e.g. fed by ReplayFrameSource
+ * An instance must be used from one thread at a time
+ */
+public class DepthFrameProcessor {
+
+    // Not final, read by the row tasks below
+    private CameraUtil.CameraParam depthParam;
+    private CameraUtil.CameraParam colorParam;
+    private boolean nativeKernels;
+
+    private volatile float confidenceThreshold = 0.1f;
+    private volatile short maxDepthThreshold = 5000;        // for 8UC1, in millimeter
+    private volatile TemporalDepthFilter temporalFilter;
+
+    // Stage timing, an own unreported set until setMetrics()
+    private PipelineMetrics.Stage fusedStage;
+    private PipelineMetrics.Stage parseStage;
+    private PipelineMetrics.Stage filterStage;
+    private PipelineMetrics.Stage undistortStage;
+    private PipelineMetrics.Stage registerStage;
+    private PipelineMetrics.Stage serializeStage;
+
+    private RowParallelExecutor rowExecutor;
+    private final RowParallelExecutor serialExecutor = new RowParallelExecutor(0, "DepthFrameRows");
+
+    // Stage buffers, recycled for every frame
+    private short[] parseBuffer;
+    private short[] undistortBuffer;
+    private int[] registrationTargets;
+    private byte[] confidenceBuffer;
+    private byte[] undistortConfidenceBuffer;
+
+    /**
+     * @param depthParam depth camera, defines frame size
+     * @param colorParam color camera registered to
+     * @param nativeKernels CameraUtil natives, false for the Java references without native library
+     */
+    public DepthFrameProcessor(CameraUtil.CameraParam depthParam, CameraUtil.CameraParam colorParam, boolean nativeKernels) {
+        this.depthParam = depthParam;
+        this.colorParam = colorParam;
+        this.nativeKernels = nativeKernels;
+
+        int frameSize = depthParam.frameWidth * depthParam.frameHeight;
+        parseBuffer = new short[frameSize];
+        undistortBuffer = new short[frameSize];
+        registrationTargets = new int[frameSize];
+        confidenceBuffer = new byte[frameSize];
+        undistortConfidenceBuffer = new byte[frameSize];
+        setMetrics(new PipelineMetrics("depth"));
+    }
+
+    /**
+     * Time stages into metrics, before the first frame
+     */
+    public void setMetrics(PipelineMetrics metrics){
+        fusedStage = metrics.stage("process_fused");
+        parseStage = metrics.stage("parse");
+        filterStage = metrics.stage("temporal_filter");
+        undistortStage = metrics.stage("undistort");
+        registerStage = metrics.stage("register");
+        serializeStage = metrics.stage("serialize");
+    }
+
+    /**
+     * Measurement with confidence not above threshold is dropped
+     */
+    public void setConfidenceThreshold(float threshold){
+        confidenceThreshold = threshold;
+    }
+
+    /**
+     * Max depth of 8UC1 serialization, in millimeter
+     */
+    public void setMaxDepthThreshold(short maxDepth){
+        maxDepthThreshold = maxDepth;
+    }
+
+    /**
+     * Filter raw depth in place of parsing, null to parse only, takes effect on the next frame
+     */
+    public void setTemporalFilter(TemporalDepthFilter filter){
+        temporalFilter = filter;
+    }
+
+    public TemporalDepthFilter getTemporalFilter(){
+        return temporalFilter;
+    }
+
+    /**
+     * Split stages into row bands on executor, null to process on the calling thread
+     * The executor stays owned by the caller
+     */
+    public void setRowExecutor(RowParallelExecutor executor){
+        rowExecutor = executor;
+    }
+
+    /**
+     * Process one frame
+     * @param rawData raw DEPTH16 frame, direct buffer in native byte order
+     * @param format serialization of outData, CameraKernels.DEPTH_FORMAT_*, DEPTH_FORMAT_NONE skips it
+     * @param depthOut registered depth in millimeter
+     * @param confidenceOut registered temporal filter confidence, null to skip
+     * @param outData serialized frame, little-endian 16UC1 or 8UC1 from index 0, null for DEPTH_FORMAT_NONE
+     * @return true if confidenceOut was written, only while a temporal filter is set
+     */
+    public boolean process(ByteBuffer rawData, int format, short[] depthOut, byte[] confidenceOut, ByteBuffer outData){
+        TemporalDepthFilter filter = temporalFilter;
+        if(nativeKernels && rowExecutor == null && filter == null){
+            long begin = fusedStage.begin();
+            CameraUtil.processDepthFrame(rawData, depthParam, colorParam,
+                    confidenceThreshold, maxDepthThreshold, format, depthOut, outData);
+            fusedStage.end(begin);
+            return false;
+        }
+        return processStaged(rawData, format, filter, depthOut, confidenceOut, outData);
+    }
+
+    // Frame handed to the row tasks, set before each forEachBand call
+    private ByteBuffer bandRawData;
+    private TemporalDepthFilter bandFilter;
+    private int[] bandUndistortionMap;
+    private DepthRegistration bandRegistration;
+    private float bandConfidenceThreshold;
+    private short bandMaxDepthThreshold;
+    private short[] serializeInput;
+    private ByteBuffer serializeOutput;
+
+    private final RowParallelExecutor.RowTask parseRows = (rowStart, rowEnd) -> {
+        if(nativeKernels){
+            CameraUtil.parseDepth16Rows(bandRawData, parseBuffer, depthParam.frameWidth, rowStart, rowEnd, bandConfidenceThreshold);
+        }else{
+            CameraKernels.parseDepth16Rows(bandRawData, parseBuffer, depthParam.frameWidth, rowStart, rowEnd, bandConfidenceThreshold);
+        }
+    };
+
+    private final RowParallelExecutor.RowTask filterRows = (rowStart, rowEnd) ->
+            bandFilter.filterRows(bandRawData, parseBuffer, confidenceBuffer, rowStart, rowEnd);
+
+    private final RowParallelExecutor.RowTask undistortRows = (rowStart, rowEnd) ->
+            CameraKernels.remapRows(parseBuffer, undistortBuffer, bandUndistortionMap, depthParam.frameWidth, rowStart, rowEnd);
+
+    private final RowParallelExecutor.RowTask undistortConfidenceRows = (rowStart, rowEnd) ->
+            CameraKernels.remapRows(confidenceBuffer, undistortConfidenceBuffer, bandUndistortionMap, depthParam.frameWidth, rowStart, rowEnd);
+
+    private final RowParallelExecutor.RowTask projectRows = (rowStart, rowEnd) ->
+            bandRegistration.projectRows(undistortBuffer, registrationTargets, rowStart, rowEnd);
+
+    private final RowParallelExecutor.RowTask shortToByteRows = (rowStart, rowEnd) -> {
+        if(nativeKernels){
+            CameraUtil.convertShortToByteRows(serializeInput, serializeOutput, depthParam.frameWidth, rowStart, rowEnd);
+        }else{
+            CameraKernels.convertShortToByteRows(serializeInput, serializeOutput, depthParam.frameWidth, rowStart, rowEnd);
+        }
+    };
+
+    private final RowParallelExecutor.RowTask shortToGrayRows = (rowStart, rowEnd) -> {
+        if(nativeKernels){
+            CameraUtil.convertShortToGrayRows(serializeInput, serializeOutput, depthParam.frameWidth, rowStart, rowEnd, bandMaxDepthThreshold);
+        }else{
+            CameraKernels.convertShortToGrayRows(serializeInput, serializeOutput, depthParam.frameWidth, rowStart, rowEnd, bandMaxDepthThreshold);
+        }
+    };
+
+    /**
+     * Each stage split into row bands, on the caller alone without row executor
+     * Registration projects in bands, the z-buffered scatter stays serial
+     */
+    private boolean processStaged(ByteBuffer rawData, int format, TemporalDepthFilter filter,
+                                  short[] depthOut, byte[] confidenceOut, ByteBuffer outData){
+        RowParallelExecutor executor = rowExecutor != null ? rowExecutor : serialExecutor;
+        int height = depthParam.frameHeight;
+
+        bandRawData = rawData;
+        bandFilter = filter;
+        bandConfidenceThreshold = confidenceThreshold;
+        bandUndistortionMap = depthParam.getUndistortionMap();
+        PipelineMetrics.Stage parse = filter != null ? filterStage : parseStage;
+        long begin = parse.begin();
+        executor.forEachBand(height, filter != null ? filterRows : parseRows);
+        parse.end(begin);
+
+        begin = undistortStage.begin();
+        executor.forEachBand(height, undistortRows);
+        undistortStage.end(begin);
+
+        begin = registerStage.begin();
+        bandRegistration = DepthRegistration.forCameras(depthParam, colorParam);
+        executor.forEachBand(height, projectRows);
+
+        // Filter confidence follows the depth pixel that wins registration
+        boolean hasConfidence = filter != null && confidenceOut != null;
+        if(hasConfidence){
+            executor.forEachBand(height, undistortConfidenceRows);
+            bandRegistration.scatter(undistortBuffer, registrationTargets, depthOut, undistortConfidenceBuffer, confidenceOut);
+        }else{
+            bandRegistration.scatter(undistortBuffer, registrationTargets, depthOut);
+        }
+        registerStage.end(begin);
+        bandRawData = null;
+        bandFilter = null;
+
+        if(format == CameraKernels.DEPTH_FORMAT_NONE) return hasConfidence;
+
+        serializeInput = depthOut;
+        serializeOutput = outData;
+        bandMaxDepthThreshold = maxDepthThreshold;
+        begin = serializeStage.begin();
+        executor.forEachBand(height, format == CameraKernels.DEPTH_FORMAT_8UC1 ? shortToGrayRows : shortToByteRows);
+        serializeStage.end(begin);
+        serializeInput = null;
+        serializeOutput = null;
+        return hasConfidence;
+    }
+
+}
@@ -0,0 +1,226 @@
+package com.MobileSLAM.RosCameraCapture;
+
+import java.util.Arrays;
+
+/**
+ * Depth to color registration with precomputed lookup tables
+ * For every depth pixel the ray (u-cx)/fx, (v-cy)/fy, 1 is pushed through the combined
+ * projection P = Kc * [R | t] once, per frame only scale by depth, add translation and divide remain
+ * Output is sampled in color camera model at depth frame resolution,
+ * when several depth pixels land on the same target the nearest one wins
+ */
+public class DepthRegistration {
+
+    private static volatile DepthRegistration cached;
+
+    private final CameraUtil.CameraParam depthParam;
+    private final CameraUtil.CameraParam colorParam;
+    private final int depthVersion;
+    private final int colorVersion;
+
+    final int width;
+    final int height;
+
+    // Projection of each depth pixel ray, per millimeter of depth
+    final float[] rayU;
+    final float[] rayV;
+    final float[] rayW;
+
+    // Projection of the translation, in meter
+    final float transU;
+    final float transV;
+    final float transW;
+
+    /**
+     * Lookup tables for given camera pair, reused while both parameter sets stay unchanged
+     * @param depthParam depth camera, defines frame size
+     * @param colorParam color camera registered to
+     */
+    public static DepthRegistration forCameras(CameraUtil.CameraParam depthParam, CameraUtil.CameraParam colorParam){
+        DepthRegistration registration = cached;
+        if(registration == null || !registration.matches(depthParam, colorParam)){
+            registration = new DepthRegistration(depthParam, colorParam);
+            cached = registration;
+        }
+        return registration;
+    }
+
+    private DepthRegistration(CameraUtil.CameraParam depthParam, CameraUtil.CameraParam colorParam) {
+        this.depthParam = depthParam;
+        this.colorParam = colorParam;
+        this.depthVersion = depthParam.getVersion();
+        this.colorVersion = colorParam.getVersion();
+
+        width = depthParam.frameWidth;
+        height = depthParam.frameHeight;
+
+        // depth camera -> sensor coordinate -> color camera
+        double[] toSensor = rotationTransposed(depthParam._qx, depthParam._qy, depthParam._qz, depthParam._qw);
+        double[] toColor = rotationTransposed(colorParam._qx, colorParam._qy, colorParam._qz, colorParam._qw);
+        double[] R = multiply(toColor, toSensor);
+        double[] t = {
+                toColor[0]*depthParam._tx + toColor[1]*depthParam._ty + toColor[2]*depthParam._tz,
+                toColor[3]*depthParam._tx + toColor[4]*depthParam._ty + toColor[5]*depthParam._tz,
+                toColor[6]*depthParam._tx + toColor[7]*depthParam._ty + toColor[8]*depthParam._tz
+        };
+
+        // color intrinsics rescaled to depth frame size
+        double scaleX = (double) width / colorParam.frameWidth;
+        double scaleY = (double) height / colorParam.frameHeight;
+        double fx = colorParam._fx * scaleX;
+        double fy = colorParam._fy * scaleY;
+        double cx = colorParam._cx * scaleX;
+        double cy = colorParam._cy * scaleY;
+
+        // P = K * [R | t]
+        double[] P = {
+                fx*R[0] + cx*R[6],  fx*R[1] + cx*R[7],  fx*R[2] + cx*R[8],  fx*t[0] + cx*t[2],
+                fy*R[3] + cy*R[6],  fy*R[4] + cy*R[7],  fy*R[5] + cy*R[8],  fy*t[1] + cy*t[2],
+                R[6],               R[7],               R[8],               t[2]
+        };
+
+        transU = (float) P[3];
+        transV = (float) P[7];
+        transW = (float) P[11];
+
+        rayU = new float[width * height];
+        rayV = new float[width * height];
+        rayW = new float[width * height];
+
+        for(int v = 0; v < height; v++){
+            double y = (v - depthParam._cy) / depthParam._fy;
+            for(int u = 0; u < width; u++){
+                double x = (u - depthParam._cx) / depthParam._fx;
+                int index = v * width + u;
+                // depth in millimeter, scale to meter here
+                rayU[index] = (float) ((P[0]*x + P[1]*y + P[2]) / 1000.0);
+                rayV[index] = (float) ((P[4]*x + P[5]*y + P[6]) / 1000.0);
+                rayW[index] = (float) ((P[8]*x + P[9]*y + P[10]) / 1000.0);
+            }
+        }
+    }
+
+    private boolean matches(CameraUtil.CameraParam depthParam, CameraUtil.CameraParam colorParam){
+        return this.depthParam == depthParam && this.colorParam == colorParam
+                && depthVersion == depthParam.getVersion() && colorVersion == colorParam.getVersion();
+    }
+
+    /**
+     * Register depth frame to color camera
+     * @param depth undistorted depth in millimeter
+     * @param res destination, must not be depth
+     */
+    public void register(short[] depth, short[] res){
+        int length = width * height;
+        Arrays.fill(res, 0, length, (short) 0);
+
+        for(int i = 0; i < length; i++){
+            int target = project(depth[i], i);
+            if(target < 0) continue;
+
+            // z-buffer, nearest depth wins
+            short existing = res[target];
+            if(existing == 0 || depth[i] < existing){
+                res[target] = depth[i];
+            }
+        }
+    }
+
+    /**
+     * First pass of banded registration: target pixel of every depth pixel in rows [rowStart, rowEnd)
+     * Safe to run on several bands in parallel
+     * @param depth undistorted depth in millimeter
+     * @param targets target pixel index per depth pixel, -1 for none
+     */
+    public void projectRows(short[] depth, int[] targets, int rowStart, int rowEnd){
+        for(int i = rowStart * width; i < rowEnd * width; i++){
+            targets[i] = project(depth[i], i);
+        }
+    }
+
+    /**
+     * Second pass of banded registration: write depth to targets from projectRows()
+     * Nearest depth wins, so the result equals register() whatever the band split
+     * @param depth undistorted depth in millimeter
+     * @param targets target pixel index per depth pixel
+     * @param res destination, must not be depth
+     */
+    public void scatter(short[] depth, int[] targets, short[] res){
+        int length = width * height;
+        Arrays.fill(res, 0, length, (short) 0);
+
+        for(int i = 0; i < length; i++){
+            int target = targets[i];
+            if(target < 0) continue;
+
+            short existing = res[target];
+            if(existing == 0 || depth[i] < existing){
+                res[target] = depth[i];
+            }
+        }
+    }
+
+    /**
+     * scatter() carrying a per-pixel attribute along with depth, e.g. confidence
+     * The attribute of the depth pixel that wins the z-buffer is written, 0 where no depth lands
+     * @param attribute per depth pixel, in the same (undistorted) frame as depth
+     * @param attributeRes destination of the attribute, must not be attribute
+     */
+    public void scatter(short[] depth, int[] targets, short[] res, byte[] attribute, byte[] attributeRes){
+        int length = width * height;
+        Arrays.fill(res, 0, length, (short) 0);
+        Arrays.fill(attributeRes, 0, length, (byte) 0);
+
+        for(int i = 0; i < length; i++){
+            int target = targets[i];
+            if(target < 0) continue;
+
+            short existing = res[target];
+            if(existing == 0 || depth[i] < existing){
+                res[target] = depth[i];
+                attributeRes[target] = attribute[i];
+            }
+        }
+    }
+
+    /**
+     * Target pixel of one depth pixel
+     * @param depthValue depth in millimeter
+     * @param index depth pixel index
+     * @return target pixel index, -1 for no depth or out of frame
+     */
+    int project(short depthValue, int index){
+        if(depthValue == 0) return -1;
+
+        float w = rayW[index] * depthValue + transW;
+        if(w <= 0) return -1;
+
+        float u = (rayU[index] * depthValue + transU) / w;
+        float v = (rayV[index] * depthValue + transV) / w;
+        if(u < 0 || v < 0 || u >= width || v >= height) return -1;
+
+        return (int) v * width + (int) u;
+    }
+
+    /**
+     * Transposed rotation matrix of quaternion, row major
+     */
+    private static double[] rotationTransposed(double x, double y, double z, double w){
+        return new double[] {
+                1 - 2*y*y - 2*z*z,  2*x*y + 2*z*w,      2*x*z - 2*y*w,
+                2*x*y - 2*z*w,      1 - 2*x*x - 2*z*z,  2*y*z + 2*x*w,
+                2*x*z + 2*y*w,      2*y*z - 2*x*w,      1 - 2*x*x - 2*y*y
+        };
+    }
+
+    private static double[] multiply(double[] a, double[] b){
+        double[] res = new double[9];
+        for(int r = 0; r < 3; r++){
+            for(int c = 0; c < 3; c++){
+                res[r*3 + c] = a[r*3]*b[c] + a[r*3 + 1]*b[3 + c] + a[r*3 + 2]*b[6 + c];
+            }
+        }
+        return res;
+    }
+
+}
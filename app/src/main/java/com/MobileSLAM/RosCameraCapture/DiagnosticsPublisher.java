@@ -0,0 +1,207 @@
+package com.MobileSLAM.RosCameraCapture;
+
+import android.content.Context;
+import android.os.Build;
+import android.support.annotation.NonNull;
+
+import org.ros.android.RosActivity;
+import org.ros.concurrent.CancellableLoop;
+import org.ros.namespace.GraphName;
+import org.ros.node.ConnectedNode;
+import org.ros.node.Node;
+import org.ros.node.NodeConfiguration;
+import org.ros.node.NodeMain;
+import org.ros.node.NodeMainExecutor;
+import org.ros.node.topic.Publisher;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Publish stage latencies and drops of the capture pipelines on /diagnostics (diagnostic_msgs/DiagnosticArray)
+ * One DiagnosticStatus per pipeline, per stage its rate, mean, p50 / p95 / p99 / max latency in ms
+ * and frames dropped over the last period
+ * Level WARN while frames were dropped in the period, STALE while the pipeline recorded nothing
+ * Only the reporting allocates, once per period, see PipelineMetrics for the recording side
+ */
+public class DiagnosticsPublisher {
+
+    private final RosActivity mMainActivity;
+    private final PipelineMetrics[] pipelines;
+
+    /**
+     * @param context context from main activity
+     * @param pipelines metrics to report, e.g. DepthCameraCapture.getMetrics()
+     */
+    public DiagnosticsPublisher(@NonNull Context context, PipelineMetrics... pipelines) {
+        mMainActivity = (RosActivity) context;
+        this.pipelines = pipelines;
+    }
+
+    /**
+     * Start ROS node publishing diagnostics
+     * Started node will running in new thread
+     * @param nodeMainExecutor ROS activity node executor
+     */
+    public void startRosNode(NodeMainExecutor nodeMainExecutor){
+
+        NodeConfiguration nodeConfiguration = NodeConfiguration.newPublic(mMainActivity.getRosHostname());
+        nodeConfiguration.setMasterUri(mMainActivity.getMasterUri());
+        nodeConfiguration.setNodeName("mobile_camera/diagnostics");
+
+        nodeMainExecutor.execute(publishNodeDiagnostics, nodeConfiguration);
+    }
+
+    /**
+     * Status of one pipeline, values refilled every period
+     */
+    private static class PipelineReport {
+        final PipelineMetrics metrics;
+        final diagnostic_msgs.DiagnosticStatus status;
+        final List<PipelineMetrics.Stage> stages = new ArrayList<>();
+        final List<LatencyHistogram.Interval> intervals = new ArrayList<>();
+        final List<Long> dropped = new ArrayList<>();
+
+        PipelineReport(PipelineMetrics metrics, diagnostic_msgs.DiagnosticStatus status) {
+            this.metrics = metrics;
+            this.status = status;
+        }
+    }
+
+    private static String millis(long nanos){
+        return String.format(Locale.US, "%.3f", nanos / 1e6);
+    }
+
+    private static diagnostic_msgs.KeyValue keyValue(ConnectedNode connectedNode, String key, String value){
+        diagnostic_msgs.KeyValue keyValue = connectedNode.getTopicMessageFactory().newFromType(diagnostic_msgs.KeyValue._TYPE);
+        keyValue.setKey(key);
+        keyValue.setValue(value);
+        return keyValue;
+    }
+
+    /**
+     * Take the last period of every stage into the status values
+     * @param periodSeconds length of the period, for rates
+     */
+    private static void update(ConnectedNode connectedNode, PipelineReport report, double periodSeconds){
+        // stages added since the last period start reporting from now on
+        List<PipelineMetrics.Stage> stages = report.metrics.getStages();
+        while(report.stages.size() < stages.size()){
+            PipelineMetrics.Stage stage = stages.get(report.stages.size());
+            report.stages.add(stage);
+            LatencyHistogram.Interval interval = new LatencyHistogram.Interval();
+            interval.update(stage.getHistogram());
+            report.intervals.add(interval);
+            report.dropped.add(stage.getDropped());
+        }
+
+        List<diagnostic_msgs.KeyValue> values = new ArrayList<>();
+        long recorded = 0;
+        long droppedTotal = 0;
+        for(int i = 0; i < report.stages.size(); i++){
+            PipelineMetrics.Stage stage = report.stages.get(i);
+            LatencyHistogram.Interval interval = report.intervals.get(i);
+            interval.update(stage.getHistogram());
+            long dropped = stage.getDropped();
+            long droppedInPeriod = dropped - report.dropped.get(i);
+            report.dropped.set(i, dropped);
+
+            recorded += interval.getCount();
+            droppedTotal += droppedInPeriod;
+
+            String name = stage.getName();
+            values.add(keyValue(connectedNode, name + " rate (Hz)",
+                    String.format(Locale.US, "%.1f", interval.getCount() / periodSeconds)));
+            values.add(keyValue(connectedNode, name + " mean (ms)", millis(interval.getMeanNanos())));
+            values.add(keyValue(connectedNode, name + " p50 (ms)", millis(interval.getPercentileNanos(0.5))));
+            values.add(keyValue(connectedNode, name + " p95 (ms)", millis(interval.getPercentileNanos(0.95))));
+            values.add(keyValue(connectedNode, name + " p99 (ms)", millis(interval.getPercentileNanos(0.99))));
+            values.add(keyValue(connectedNode, name + " max (ms)", millis(interval.getMaxNanos())));
+            values.add(keyValue(connectedNode, name + " dropped", String.valueOf(droppedInPeriod)));
+        }
+        report.status.setValues(values);
+
+        if(recorded == 0){
+            report.status.setLevel(diagnostic_msgs.DiagnosticStatus.STALE);
+            report.status.setMessage("No frames");
+        }else if(droppedTotal > 0){
+            report.status.setLevel(diagnostic_msgs.DiagnosticStatus.WARN);
+            report.status.setMessage(droppedTotal + " frames dropped");
+        }else{
+            report.status.setLevel(diagnostic_msgs.DiagnosticStatus.OK);
+            report.status.setMessage("OK");
+        }
+    }
+
+    /**
+     * ROS node publishing diagnostic_msgs/DiagnosticArray on /diagnostics
+     */
+    private final NodeMain publishNodeDiagnostics = new NodeMain() {
+        @Override
+        public GraphName getDefaultNodeName() {
+            return GraphName.of("diagnostics");
+        }
+
+        @Override
+        public void onStart(ConnectedNode connectedNode) {
+
+            Publisher<diagnostic_msgs.DiagnosticArray> diagnosticsPublisher =
+                    connectedNode.newPublisher("/diagnostics", diagnostic_msgs.DiagnosticArray._TYPE);
+            diagnostic_msgs.DiagnosticArray array = diagnosticsPublisher.newMessage();
+
+            // Reporting period in seconds, e.g. _period:=5
+            double period = connectedNode.getParameterTree().getDouble("~period", 1.0);
+            long periodMillis = Math.max(1, (long) (period * 1000));
+
+            List<PipelineReport> reports = new ArrayList<>();
+            List<diagnostic_msgs.DiagnosticStatus> statuses = new ArrayList<>();
+            for(PipelineMetrics metrics : pipelines){
+                diagnostic_msgs.DiagnosticStatus status = connectedNode.getTopicMessageFactory().newFromType(diagnostic_msgs.DiagnosticStatus._TYPE);
+                status.setName("mobile_camera: " + metrics.getName() + " pipeline");
+                status.setHardwareId(Build.MODEL);
+                PipelineReport report = new PipelineReport(metrics, status);
+                // latencies from before the first period are not reported
+                update(connectedNode, report, period);
+                reports.add(report);
+                statuses.add(status);
+            }
+            array.setStatus(statuses);
+
+            connectedNode.executeCancellableLoop(new CancellableLoop() {
+                private long lastNanos = System.nanoTime();
+
+                @Override
+                protected void loop() throws InterruptedException {
+                    Thread.sleep(periodMillis);
+
+                    long now = System.nanoTime();
+                    double seconds = (now - lastNanos) / 1e9;
+                    lastNanos = now;
+
+                    for(PipelineReport report : reports){
+                        update(connectedNode, report, seconds);
+                    }
+                    array.getHeader().setStamp(connectedNode.getCurrentTime());
+                    diagnosticsPublisher.publish(array);
+                }
+            });
+        }
+
+        @Override
+        public void onShutdown(Node node) {
+
+        }
+
+        @Override
+        public void onShutdownComplete(Node node) {
+
+        }
+
+        @Override
+        public void onError(Node node, Throwable throwable) {
+
+        }
+    };
+
+}
@@ -0,0 +1,53 @@
+package com.MobileSLAM.RosCameraCapture;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.function.Supplier;
+
+/**
+ * Fixed size pool of frame buffers
+ * Buffers are allocated up front and recycled, so steady-state capture allocates nothing
+ * The pool never grows, if it runs dry acquire() returns null and the caller drops the frame
+ * @param <T> buffer type, e.g. short[] or byte[]
+ */
+public class FrameBufferPool<T> {
+
+    private final ArrayBlockingQueue<T> freeBuffers;
+
+    /**
+     * Create pool and preallocate all buffers
+     * @param capacity number of buffers kept in pool
+     * @param allocator create a new buffer of frame size
+     */
+    public FrameBufferPool(int capacity, Supplier<T> allocator) {
+        this.freeBuffers = new ArrayBlockingQueue<>(capacity);
+        for(int i = 0; i < capacity; i++){
+            freeBuffers.offer(allocator.get());
+        }
+    }
+
+    /**
+     * Take a buffer from pool, content is undefined
+     * @return null if every buffer is taken
+     */
+    public T acquire(){
+        return freeBuffers.poll();
+    }
+
+    /**
+     * Give buffer back to pool
+     * @param buffer buffer obtained from acquire(), ignored if null
+     */
+    public void release(T buffer){
+        if(buffer != null){
+            freeBuffers.offer(buffer);
+        }
+    }
+
+    /**
+     * Number of buffers in pool, not taken
+     */
+    public int available(){
+        return freeBuffers.size();
+    }
+
+}
@@ -0,0 +1,121 @@
+package com.MobileSLAM.RosCameraCapture;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Supplier;
+
+/**
+ * Lock-free latest-frame exchange between one producer and one consumer thread (triple buffer)
+ * Producer fills the back slot and publishes it, never blocks, an unread frame is simply replaced
+ * Consumer takes the newest published slot and reads it in place, no copy under lock
+ * A taken slot stays valid until the consumer's next poll() / take()
+ * @param <T> frame storage type, e.g. short[] or byte[][]
+ */
+public class FrameExchanger<T> {
+
+    /**
+     * Frame storage with its sequence number
+     * Producer may replace data, e.g. to grow a variable sized buffer
+     */
+    public static class Slot<T> {
+        public T data;
+        public int length;          // valid elements in data, for variable sized frames
+        public long timestamp;      // sensor timestamp in nanoseconds, set by the producer
+        private long sequence;
+
+        Slot(T data) {
+            this.data = data;
+        }
+
+        /**
+         * Sequence number of the frame, starts from 1, increases with every publish
+         */
+        public long getSequence() {
+            return sequence;
+        }
+    }
+
+    private static final int INDEX_MASK = 0x3;
+    private static final int FRESH = 0x4;           // middle slot holds a frame not yet taken
+
+    private final Slot<T>[] slots;
+    private final AtomicInteger middle = new AtomicInteger(2);
+    private final AtomicReference<Thread> waitingConsumer = new AtomicReference<>();
+
+    private int backIndex = 0;                      // producer only
+    private long publishedSequence = 0;             // producer only
+    private int frontIndex = 1;                     // consumer only
+
+    /**
+     * @param allocator create storage for one frame, called three times
+     */
+    public FrameExchanger(Supplier<T> allocator) {
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        Slot<T>[] triple = new Slot[3];
+        for(int i = 0; i < triple.length; i++){
+            triple[i] = new Slot<>(allocator.get());
+        }
+        slots = triple;
+    }
+
+    /**
+     * Producer: slot to fill with the next frame
+     */
+    public Slot<T> beginWrite(){
+        return slots[backIndex];
+    }
+
+    /**
+     * Producer: publish the slot returned by beginWrite()
+     */
+    public void publish(){
+        slots[backIndex].sequence = ++publishedSequence;
+        backIndex = middle.getAndSet(backIndex | FRESH) & INDEX_MASK;
+
+        Thread consumer = waitingConsumer.get();
+        if(consumer != null){
+            LockSupport.unpark(consumer);
+        }
+    }
+
+    /**
+     * Consumer: whether a frame newer than the last taken one is available
+     */
+    public boolean hasNext(){
+        return (middle.get() & FRESH) != 0;
+    }
+
+    /**
+     * Consumer: take newest frame without waiting
+     * @return newest frame, null if nothing new was published since last take
+     */
+    public Slot<T> poll(){
+        if(!hasNext()) return null;
+        frontIndex = middle.getAndSet(frontIndex) & INDEX_MASK;
+        return slots[frontIndex];
+    }
+
+    /**
+     * Consumer: take newest frame, wait until one is published
+     * @throws InterruptedException consumer thread interrupted while waiting
+     */
+    public Slot<T> take() throws InterruptedException {
+        Slot<T> slot = poll();
+        if(slot != null) return slot;
+
+        waitingConsumer.set(Thread.currentThread());
+        try{
+            while((slot = poll()) == null){
+                LockSupport.park(this);
+                if(Thread.interrupted()){
+                    throw new InterruptedException();
+                }
+            }
+        }finally {
+            waitingConsumer.set(null);
+        }
+        return slot;
+    }
+
+}
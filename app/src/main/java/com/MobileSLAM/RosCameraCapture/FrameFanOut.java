@@ -0,0 +1,220 @@
+package com.MobileSLAM.RosCameraCapture;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Supplier;
+
+/**
+ * Hand one processed frame to any number of subscribers
+ * Producer fills a free frame and publishes it as the latest one
+ * Each subscriber keeps its own cursor and always gets the newest frame it has not seen,
+ * frames published in between are dropped for that subscriber only
+ * Frames are reference counted, a frame is reused only after every subscriber released it
+ * @param <T> frame storage type, e.g. short[]
+ */
+public class FrameFanOut<T> {
+
+    /**
+     * Pooled frame, hold between take()/poll() and release()
+     */
+    public static class Frame<T> {
+        public final T data;
+        private long sequence;
+        private final AtomicInteger refCount = new AtomicInteger();
+
+        Frame(T data) {
+            this.data = data;
+        }
+
+        /**
+         * Sequence number of the frame, starts from 1
+         */
+        public long getSequence() {
+            return sequence;
+        }
+
+        private boolean tryRetain(){
+            while(true){
+                int count = refCount.get();
+                if(count == 0) return false;    // recycled by producer
+                if(refCount.compareAndSet(count, count + 1)) return true;
+            }
+        }
+    }
+
+    /**
+     * Frame consumer with its own cursor
+     * Drop policy: newest frame wins, optionally no more than one frame per minimum interval
+     * A subscriber must be used from one thread at a time
+     */
+    public class Subscriber {
+        private volatile long minIntervalNanos;
+        private long cursor = 0;
+        private long lastDeliveryNanos = 0;
+        private long droppedFrames = 0;
+        private volatile Thread waitingThread;
+
+        private Subscriber(long minIntervalNanos) {
+            this.minIntervalNanos = minIntervalNanos;
+        }
+
+        /**
+         * Newest unseen frame without waiting
+         * @return frame to be released with release(), null if nothing new or rate limited
+         */
+        public Frame<T> poll(){
+            if(isRateLimited()){
+                return null;
+            }
+
+            while(true){
+                Frame<T> frame = latest.get();
+                if(frame == null) return null;
+                if(!frame.tryRetain()) continue;     // replaced and recycled meanwhile, read again
+
+                long sequence = frame.sequence;
+                if(sequence <= cursor){
+                    release(frame);
+                    return null;
+                }
+
+                if(cursor > 0){
+                    droppedFrames += sequence - cursor - 1;
+                }
+                cursor = sequence;
+                lastDeliveryNanos = System.nanoTime();
+                return frame;
+            }
+        }
+
+        /**
+         * Newest unseen frame, wait until one is published and the minimum interval has passed
+         * @return frame to be released with release()
+         * @throws InterruptedException subscriber thread interrupted while waiting
+         */
+        public Frame<T> take() throws InterruptedException {
+            Frame<T> frame = poll();
+            if(frame != null) return frame;
+
+            waitingThread = Thread.currentThread();
+            try{
+                while((frame = poll()) == null){
+                    if(isRateLimited()){
+                        LockSupport.parkNanos(this, minIntervalNanos - (System.nanoTime() - lastDeliveryNanos));
+                    }else{
+                        LockSupport.park(this);
+                    }
+                    if(Thread.interrupted()){
+                        throw new InterruptedException();
+                    }
+                }
+            }finally {
+                waitingThread = null;
+            }
+            return frame;
+        }
+
+        /**
+         * Change the minimum time between two delivered frames, 0 for no limit
+         */
+        public void setMinInterval(long nanos){
+            minIntervalNanos = nanos;
+        }
+
+        private boolean isRateLimited(){
+            return minIntervalNanos > 0 && cursor > 0 && System.nanoTime() - lastDeliveryNanos < minIntervalNanos;
+        }
+
+        /**
+         * Give frame back, must be called once for every frame returned by poll() / take()
+         */
+        public void release(Frame<T> frame){
+            FrameFanOut.this.release(frame);
+        }
+
+        /**
+         * Number of published frames this subscriber skipped
+         */
+        public long getDroppedFrames() {
+            return droppedFrames;
+        }
+    }
+
+    private final Frame<T>[] frames;
+    private final AtomicReference<Frame<T>> latest = new AtomicReference<>();
+    private volatile List<Subscriber> subscribers = new ArrayList<>();   // copy on write
+    private long publishedSequence = 0;             // producer only
+
+    /**
+     * @param capacity number of frames in pool, at least subscribers + 2 to never stall the producer
+     * @param allocator create storage for one frame
+     */
+    public FrameFanOut(int capacity, Supplier<T> allocator) {
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        Frame<T>[] pool = new Frame[capacity];
+        for(int i = 0; i < capacity; i++){
+            pool[i] = new Frame<>(allocator.get());
+        }
+        frames = pool;
+    }
+
+    /**
+     * Add subscriber receiving every newest frame
+     */
+    public Subscriber subscribe(){
+        return subscribe(0);
+    }
+
+    /**
+     * Add subscriber receiving at most one frame per interval
+     * @param minIntervalNanos minimum time between two delivered frames, 0 for no limit
+     */
+    public synchronized Subscriber subscribe(long minIntervalNanos){
+        Subscriber subscriber = new Subscriber(minIntervalNanos);
+        List<Subscriber> updated = new ArrayList<>(subscribers);
+        updated.add(subscriber);
+        subscribers = updated;
+        return subscriber;
+    }
+
+    /**
+     * Producer: frame not held by anyone, to be filled and published
+     * @return free frame, null if every frame is still held by subscribers
+     */
+    public Frame<T> beginWrite(){
+        for(Frame<T> frame : frames){
+            if(frame.refCount.get() == 0){
+                return frame;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Producer: publish frame returned by beginWrite() as the latest one
+     */
+    public void publish(Frame<T> frame){
+        frame.sequence = ++publishedSequence;
+        frame.refCount.set(1);                      // reference held as latest frame
+        Frame<T> previous = latest.getAndSet(frame);
+        if(previous != null){
+            release(previous);
+        }
+
+        List<Subscriber> current = subscribers;
+        for(int i = 0; i < current.size(); i++){         // indexed, no iterator per frame
+            Thread waiting = current.get(i).waitingThread;
+            if(waiting != null){
+                LockSupport.unpark(waiting);
+            }
+        }
+    }
+
+    private void release(Frame<T> frame){
+        frame.refCount.decrementAndGet();
+    }
+
+}
@@ -0,0 +1,117 @@
+package com.MobileSLAM.RosCameraCapture;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Supplier;
+
+/**
+ * Bounded lock-free queue between two pipeline stages, one producer and one consumer thread
+ * Slots are preallocated and filled in place, unlike FrameExchanger every published frame
+ * is delivered in order; a full queue rejects the new frame so the producer never blocks
+ * A taken slot stays valid until the consumer releases it
+ * @param <T> slot type, e.g. an encoded message with its timestamp
+ */
+public class FrameQueue<T> {
+
+    private final T[] slots;
+    private final int mask;
+
+    private final AtomicLong head = new AtomicLong();      // next slot to take, advanced by the consumer
+    private final AtomicLong tail = new AtomicLong();      // next slot to write, advanced by the producer
+    private final AtomicReference<Thread> waitingConsumer = new AtomicReference<>();
+
+    private long taken = 0;                                // consumer only, slots taken and not released
+
+    /**
+     * @param capacity maximum queued frames, rounded up to a power of two
+     * @param allocator create one slot, called capacity times
+     */
+    @SuppressWarnings("unchecked")
+    public FrameQueue(int capacity, Supplier<T> allocator) {
+        int size = 1;
+        while(size < capacity) size <<= 1;
+        slots = (T[]) new Object[size];
+        for(int i = 0; i < size; i++){
+            slots[i] = allocator.get();
+        }
+        mask = size - 1;
+    }
+
+    public int capacity(){
+        return slots.length;
+    }
+
+    /**
+     * Frames published and not yet released, from any thread
+     */
+    public int size(){
+        return (int) (tail.get() - head.get());
+    }
+
+    /**
+     * Producer: slot to fill with the next frame
+     * @return null while the queue is full, the frame is dropped
+     */
+    public T beginWrite(){
+        long t = tail.get();
+        if(t - head.get() >= slots.length) return null;
+        return slots[(int) t & mask];
+    }
+
+    /**
+     * Producer: publish the slot returned by beginWrite()
+     */
+    public void publish(){
+        // full fence, a consumer that registered before this store is seen below, one after it sees the frame
+        tail.incrementAndGet();
+
+        Thread consumer = waitingConsumer.get();
+        if(consumer != null){
+            LockSupport.unpark(consumer);
+        }
+    }
+
+    /**
+     * Consumer: oldest frame not yet taken, without waiting
+     * @return null if the queue is empty
+     */
+    public T poll(){
+        long next = head.get() + taken;
+        if(next >= tail.get()) return null;
+        taken++;
+        return slots[(int) next & mask];
+    }
+
+    /**
+     * Consumer: oldest frame not yet taken, wait until one is published
+     * @throws InterruptedException consumer thread interrupted while waiting
+     */
+    public T take() throws InterruptedException {
+        T slot = poll();
+        if(slot != null) return slot;
+
+        waitingConsumer.set(Thread.currentThread());
+        try{
+            while((slot = poll()) == null){
+                LockSupport.park(this);
+                if(Thread.interrupted()){
+                    throw new InterruptedException();
+                }
+            }
+        }finally {
+            waitingConsumer.set(null);
+        }
+        return slot;
+    }
+
+    /**
+     * Consumer: return the oldest taken slot to the producer
+     */
+    public void release(){
+        if(taken == 0) return;
+        taken--;
+        head.lazySet(head.get() + 1);
+    }
+
+}
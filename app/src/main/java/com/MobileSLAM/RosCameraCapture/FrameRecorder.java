@@ -0,0 +1,122 @@
+package com.MobileSLAM.RosCameraCapture;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * Record frames of a FrameSource for ReplayFrameSource, listener in front of the one processing them
+ * File layout, little-endian:
+ *   header  int magic "RCFR", int version, int format, int width, int height, int planeCount
+ *   frame   long timestamp, per plane int rowStride, int pixelStride, int length, then the plane bytes
+ * Plane bytes are stored as delivered, row padding and byte order of the device included
+ * Each frame goes to the file unbuffered, a recording cut short ends at its last complete frame
+ */
+public class FrameRecorder implements FrameSource.Listener, Closeable {
+
+    static final int MAGIC = 0x52464352;            // "RCFR"
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 24;
+    static final int FRAME_HEADER_SIZE = 8;
+    static final int PLANE_HEADER_SIZE = 12;
+
+    private final FileChannel channel;
+    private final FrameSource.Listener downstream;
+    private final ByteBuffer header = ByteBuffer.allocate(FRAME_HEADER_SIZE + FrameSource.MAX_PLANES * PLANE_HEADER_SIZE)
+            .order(ByteOrder.LITTLE_ENDIAN);
+
+    private boolean started = false;
+    private boolean closed = false;
+    private int format;
+    private int planeCount;
+    private int frameCount = 0;
+
+    /**
+     * @param file destination, replaced if it exists
+     * @param downstream listener the frames are passed on to, null to record only
+     * @throws IOException file can't be created
+     */
+    public FrameRecorder(File file, FrameSource.Listener downstream) throws IOException {
+        channel = new FileOutputStream(file).getChannel();
+        this.downstream = downstream;
+    }
+
+    /**
+     * Frames written so far
+     */
+    public synchronized int getFrameCount(){
+        return frameCount;
+    }
+
+    @Override
+    public void onFrame(FrameSource.Frame frame) {
+        write(frame);
+        if(downstream != null){
+            downstream.onFrame(frame);
+        }
+    }
+
+    /**
+     * Write frame, planes are read without changing their positions
+     * Recording stops on a write error or a frame not matching the first one
+     */
+    private synchronized void write(FrameSource.Frame frame){
+        if(closed) return;
+
+        try{
+            if(!started){
+                format = frame.format;
+                planeCount = frame.planeCount;
+                header.clear();
+                header.putInt(MAGIC).putInt(VERSION).putInt(format)
+                        .putInt(frame.width).putInt(frame.height).putInt(planeCount);
+                header.flip();
+                writeFully(header);
+                started = true;
+            }else if(frame.format != format || frame.planeCount != planeCount){
+                throw new IOException("Frame format changed during recording");
+            }
+
+            header.clear();
+            header.putLong(frame.timestamp);
+            for(int i = 0; i < planeCount; i++){
+                header.putInt(frame.rowStrides[i]).putInt(frame.pixelStrides[i]).putInt(frame.planes[i].remaining());
+            }
+            header.flip();
+            writeFully(header);
+            for(int i = 0; i < planeCount; i++){
+                writeFully(frame.planes[i].duplicate());
+            }
+            frameCount++;
+
+        }catch (IOException e){
+            e.printStackTrace();
+            close();
+        }
+    }
+
+    private void writeFully(ByteBuffer buffer) throws IOException {
+        while(buffer.hasRemaining()){
+            channel.write(buffer);
+        }
+    }
+
+    /**
+     * Stop recording and close the file, frames are still passed on
+     */
+    @Override
+    public synchronized void close() {
+        if(closed) return;
+        closed = true;
+        try {
+            channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+}
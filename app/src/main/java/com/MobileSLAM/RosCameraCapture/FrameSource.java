@@ -0,0 +1,106 @@
+package com.MobileSLAM.RosCameraCapture;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Source of raw camera frames, decouples processing from Camera2
+ * Camera2FrameSource captures from a camera, ReplayFrameSource plays a recording from FrameRecorder,
+ * so the processing path also runs off device, e.g. on a plain JVM
+ */
+public interface FrameSource {
+
+    // Frame formats, same values as android.graphics.ImageFormat
+    int FORMAT_DEPTH16 = 0x44363159;
+    int FORMAT_YUV_420_888 = 0x23;
+
+    int MAX_PLANES = 3;
+
+    /**
+     * One frame as image planes, reused by the source for every frame
+     * Valid only during Listener.onFrame(), listeners may change plane positions
+     */
+    class Frame {
+        public int format;
+        public int width;
+        public int height;
+        public long timestamp;          // sensor timestamp on the SystemClock.elapsedRealtimeNanos() base, see SensorClock
+        public int planeCount;
+        public final ByteBuffer[] planes = new ByteBuffer[MAX_PLANES];
+        public final int[] rowStrides = new int[MAX_PLANES];
+        public final int[] pixelStrides = new int[MAX_PLANES];
+
+        /**
+         * Copy source into planes owned by this frame, strides kept, for handing a frame to another thread
+         * Planes are direct, allocated on first use and grown if a source plane is larger
+         * Source planes are read from their position, position and limit are restored
+         */
+        public void copyFrom(Frame source){
+            format = source.format;
+            width = source.width;
+            height = source.height;
+            timestamp = source.timestamp;
+            planeCount = source.planeCount;
+            for(int i = 0; i < planeCount; i++){
+                ByteBuffer plane = source.planes[i];
+                int start = plane.position();
+                if(planes[i] == null || planes[i].capacity() < plane.remaining()){
+                    planes[i] = ByteBuffer.allocateDirect(plane.remaining()).order(plane.order());
+                }
+                planes[i].clear();
+                planes[i].put(plane);
+                planes[i].flip();
+                plane.position(start);
+                rowStrides[i] = source.rowStrides[i];
+                pixelStrides[i] = source.pixelStrides[i];
+            }
+        }
+    }
+
+    /**
+     * Called for every frame, from a thread of the source
+     */
+    interface Listener {
+        void onFrame(Frame frame);
+    }
+
+    int getFormat();
+
+    int getWidth();
+
+    int getHeight();
+
+    /**
+     * Start delivering frames to listener
+     */
+    void start(Listener listener);
+
+    /**
+     * Stop delivering frames, returns once no listener call is running
+     */
+    void stop();
+
+    /**
+     * Copy rows of a plane tightly packed into out at its position, dropping row padding
+     * The plane is read from its position, position and limit are restored
+     * @param rowStride bytes from one row to the next in plane, 0 for tightly packed
+     * @param rowBytes bytes of pixel data per row, e.g. width * 2 for DEPTH16
+     */
+    static void copyRows(ByteBuffer plane, int rowStride, int rowBytes, int rows, ByteBuffer out){
+        int start = plane.position();
+        int limit = plane.limit();
+        if(rowStride == 0 || rowStride == rowBytes){
+            plane.limit(start + rowBytes * rows);
+            out.put(plane);
+        }else{
+            for(int row = 0; row < rows; row++){
+                int rowStart = start + row * rowStride;
+                plane.limit(rowStart + rowBytes);
+                plane.position(rowStart);
+                out.put(plane);
+            }
+        }
+        plane.limit(limit);
+        plane.position(start);
+    }
+
+}
@@ -1,4 +1,385 @@
 package com.MobileSLAM.RosCameraCapture;
 
+import android.content.Context;
+import android.hardware.Sensor;
+import android.hardware.SensorEvent;
+import android.hardware.SensorEventListener;
+import android.hardware.SensorManager;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import org.ros.android.RosActivity;
+import org.ros.concurrent.CancellableLoop;
+import org.ros.message.MessageFactory;
+import org.ros.namespace.GraphName;
+import org.ros.node.ConnectedNode;
+import org.ros.node.Node;
+import org.ros.node.NodeConfiguration;
+import org.ros.node.NodeMain;
+import org.ros.node.NodeMainExecutor;
+import org.ros.node.parameter.ParameterTree;
+import org.ros.node.topic.Publisher;
+
+import java.util.Arrays;
+
+/**
+ * Accelerometer and gyroscope capture, published as sensor_msgs/Imu on ~data
+ * and preintegrated between camera frames on ~preintegrated (see ImuFrameIntegrator)
+ * Sensors run at their fastest rate with hardware FIFO batching, registered only while a topic has subscribers
+ * Events go into preallocated rings on an own sensor thread, the publish loop interpolates accelerometer
+ * onto the gyroscope timeline (see ImuInterpolator) and publishes from a fixed set of messages,
+ * nothing is allocated per sample on either thread
+ * Stamps are the sensor timestamps on the elapsedRealtimeNanos() base, see SensorClock
+ */
 public class IMUCapture {
+
+    final static private String TAG = IMUCapture.class.getSimpleName();
+
+    // About 2 s of samples per sensor at 500 Hz
+    final static private int RING_CAPACITY = 1024;
+
+    // Message ring of each topic, see MessagePublisher, rosjava serializes on its own thread
+    // and a message is refilled only after this many later publishes
+    final static private int MESSAGE_COUNT = 64;
+
+    // Publish loop wakes up at least this often to notice unsubscribing
+    final static private long WAIT_NANOS = 100_000_000L;
+
+    final static private long STATS_INTERVAL_NANOS = 10_000_000_000L;
+
+    // Frame timestamps waiting for the IMU, about 0.5 s at 30 Hz
+    final static private int FRAME_CAPACITY = 16;
+
+    /**
+     * ~preintegrated std_msgs/Float64MultiArray layout, one message per frame interval
+     * start and end stamps as ROS time secs / nsecs, interval length in seconds,
+     * delta rotation quaternion x y z w, delta velocity, delta position,
+     * row-major 9x9 covariance of [dphi, dv, dp]
+     */
+    final static public int PREINTEGRATED_START = 0;
+    final static public int PREINTEGRATED_END = 2;
+    final static public int PREINTEGRATED_DT = 4;
+    final static public int PREINTEGRATED_ROTATION = 5;
+    final static public int PREINTEGRATED_VELOCITY = 9;
+    final static public int PREINTEGRATED_POSITION = 12;
+    final static public int PREINTEGRATED_COVARIANCE = 15;
+    final static public int PREINTEGRATED_SIZE = 96;
+
+    private final RosActivity mMainActivity;
+    private final SensorManager mSensorManager;
+    private final Sensor accelerometer;
+    private final Sensor gyroscope;
+
+    private HandlerThread sensorThread;
+    private Handler sensorHandler;
+    private boolean sensorsRegistered = false;          // guarded by this
+
+    private final ImuInterpolator interpolator = new ImuInterpolator(RING_CAPACITY);
+    private final ImuFrameIntegrator frameIntegrator = new ImuFrameIntegrator(RING_CAPACITY, FRAME_CAPACITY);
+
+    // Sensors run while any topic is subscribed
+    private final StreamGate gate = new StreamGate("~data, ~preintegrated");
+    private final StreamGate dataGate = new StreamGate("~data");
+    private final StreamGate preintegratedGate = new StreamGate("~preintegrated");
+
+    private int maxReportLatencyUs = 20_000;
+
+    public String frameId = "imu_link";
+
+    /**
+     * Create IMU capture object
+     * @param context context from main activity
+     */
+    public IMUCapture(@NonNull Context context) {
+        mMainActivity = (RosActivity) context;
+        mSensorManager = (SensorManager) mMainActivity.getSystemService(Context.SENSOR_SERVICE);
+        accelerometer = mSensorManager.getDefaultSensor(Sensor.TYPE_ACCELEROMETER);
+        gyroscope = mSensorManager.getDefaultSensor(Sensor.TYPE_GYROSCOPE);
+
+        gate.setListener((streamGate, open) -> {
+            if(open) registerSensors(); else unregisterSensors();
+        });
+    }
+
+    /**
+     * Longest time events wait in the sensor FIFO before delivery, before start()
+     * 0 delivers every event right away, larger values wake the CPU less often
+     */
+    public void setMaxReportLatency(int microseconds){
+        maxReportLatencyUs = microseconds;
+    }
+
+    /**
+     * Samples lost so far, see ImuInterpolator.getDropped()
+     */
+    public long[] getDropped(){
+        return interpolator.getDropped();
+    }
+
+    /**
+     * Camera thread: timestamp of a frame on the elapsedRealtimeNanos() base, ends a ~preintegrated interval
+     * Frames of one camera only, timestamps increasing, nothing is allocated
+     * Sensor event timestamps share the elapsedRealtimeNanos() base on current devices
+     */
+    public void offerFrameTimestamp(long realtimeNanos){
+        if(preintegratedGate.isOpen()){
+            frameIntegrator.offerFrame(realtimeNanos);
+        }
+    }
+
+    /**
+     * Start the sensor thread, sensors are registered once a topic has subscribers
+     */
+    public void start(){
+        if(accelerometer == null || gyroscope == null){
+            Log.e(TAG, "Accelerometer or gyroscope not available");
+            return;
+        }
+        sensorThread = new HandlerThread("IMUBackground");
+        sensorThread.start();
+        sensorHandler = new Handler(sensorThread.getLooper());
+
+        if(gate.isOpen()){
+            registerSensors();
+        }
+    }
+
+    /**
+     * Unregister sensors and stop the sensor thread
+     */
+    public void stop(){
+        if(sensorThread == null) return;
+
+        unregisterSensors();
+        sensorThread.quitSafely();
+        try {
+            sensorThread.join();
+            sensorThread = null;
+            sensorHandler = null;
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private synchronized void registerSensors(){
+        if(sensorsRegistered || sensorHandler == null) return;
+
+        mSensorManager.registerListener(sensorListener, gyroscope, SensorManager.SENSOR_DELAY_FASTEST,
+                maxReportLatencyUs, sensorHandler);
+        mSensorManager.registerListener(sensorListener, accelerometer, SensorManager.SENSOR_DELAY_FASTEST,
+                maxReportLatencyUs, sensorHandler);
+        sensorsRegistered = true;
+        Log.i(TAG, "Sensors registered, gyroscope FIFO " + gyroscope.getFifoMaxEventCount()
+                + ", accelerometer FIFO " + accelerometer.getFifoMaxEventCount() + " events");
+    }
+
+    private synchronized void unregisterSensors(){
+        if(!sensorsRegistered) return;
+
+        mSensorManager.unregisterListener(sensorListener);
+        sensorsRegistered = false;
+        Log.i(TAG, "Sensors unregistered");
+    }
+
+    /**
+     * Sensor thread, copy event values into the rings
+     * SensorManager reuses the event objects, nothing is allocated here
+     */
+    private final SensorEventListener sensorListener = new SensorEventListener() {
+        @Override
+        public void onSensorChanged(SensorEvent event) {
+            float[] values = event.values;
+            if(event.sensor.getType() == Sensor.TYPE_GYROSCOPE){
+                interpolator.pushGyro(event.timestamp, values[0], values[1], values[2]);
+            }else{
+                interpolator.pushAccel(event.timestamp, values[0], values[1], values[2]);
+            }
+        }
+
+        @Override
+        public void onAccuracyChanged(Sensor sensor, int accuracy) {
+
+        }
+    };
+
+
+    /**
+     * Start ROS node publishing IMU samples and preintegrated frame intervals
+     * Started node will running in new thread
+     * @param nodeMainExecutor ROS activity node executor
+     */
+    public void startRosNode(NodeMainExecutor nodeMainExecutor){
+
+        NodeConfiguration nodeConfiguration = NodeConfiguration.newPublic(mMainActivity.getRosHostname());
+        nodeConfiguration.setMasterUri(mMainActivity.getMasterUri());
+        nodeConfiguration.setNodeName("mobile_camera/imu");
+
+        nodeMainExecutor.execute(publishNodeImu, nodeConfiguration);
+    }
+
+    /**
+     * Diagonal covariance, unknown (all zero) for a standard deviation of 0
+     */
+    private static double[] covariance(double stddev){
+        double variance = stddev * stddev;
+        return new double[] {variance, 0, 0, 0, variance, 0, 0, 0, variance};
+    }
+
+    /**
+     * Layout of an empty ~preintegrated message, PREINTEGRATED_SIZE values
+     */
+    private static void initPreintegrated(std_msgs.Float64MultiArray array, MessageFactory factory){
+        std_msgs.MultiArrayDimension dim = factory.newFromType(std_msgs.MultiArrayDimension._TYPE);
+        dim.setLabel("preintegration");
+        dim.setSize(PREINTEGRATED_SIZE);
+        dim.setStride(PREINTEGRATED_SIZE);
+        array.getLayout().getDim().add(dim);
+        array.setData(new double[PREINTEGRATED_SIZE]);
+    }
+
+    /**
+     * Write a completed interval in the ~preintegrated layout
+     * @param offset elapsedRealtimeNanos() base to ROS time, see SensorClock.rosTimeOffsetNanos()
+     */
+    private static void fillPreintegrated(double[] data, ImuPreintegrator preintegrator, long offset){
+        long start = preintegrator.getStartNanos() + offset;
+        long end = preintegrator.getEndNanos() + offset;
+        data[PREINTEGRATED_START] = start / 1_000_000_000L;
+        data[PREINTEGRATED_START + 1] = start % 1_000_000_000L;
+        data[PREINTEGRATED_END] = end / 1_000_000_000L;
+        data[PREINTEGRATED_END + 1] = end % 1_000_000_000L;
+        data[PREINTEGRATED_DT] = (end - start) * 1e-9;
+        preintegrator.getDeltaQuaternion(data, PREINTEGRATED_ROTATION);
+        preintegrator.getDeltaVelocity(data, PREINTEGRATED_VELOCITY);
+        preintegrator.getDeltaPosition(data, PREINTEGRATED_POSITION);
+        preintegrator.getCovariance(data, PREINTEGRATED_COVARIANCE);
+    }
+
+    /**
+     * ROS node publishing sensor_msgs/Imu in the Android sensor frame (x right, y up, z out of the screen)
+     * Orientation is not estimated, marked by orientation_covariance[0] = -1
+     */
+    private final NodeMain publishNodeImu = new NodeMain() {
+        @Override
+        public GraphName getDefaultNodeName() {
+            return GraphName.of("imu");
+        }
+
+        @Override
+        public void onStart(ConnectedNode connectedNode) {
+
+            Publisher<sensor_msgs.Imu> imuRosPublisher = connectedNode.newPublisher("~data", sensor_msgs.Imu._TYPE);
+            Publisher<std_msgs.Float64MultiArray> preintegratedRosPublisher =
+                    connectedNode.newPublisher("~preintegrated", std_msgs.Float64MultiArray._TYPE);
+
+            // Noise densities in SI units, e.g. _angular_velocity_stddev:=0.002 _linear_acceleration_stddev:=0.02
+            ParameterTree params = connectedNode.getParameterTree();
+            double[] angularVelocityCovariance = covariance(params.getDouble("~angular_velocity_stddev", 0));
+            double[] linearAccelerationCovariance = covariance(params.getDouble("~linear_acceleration_stddev", 0));
+            interpolator.setMaxGap((long) (params.getDouble("~max_gap", 0.05) * 1e9));
+            // Continuous time white noise densities for the preintegrated covariance,
+            // e.g. _gyro_noise_density:=0.002 (rad/s/sqrt(Hz)) _accel_noise_density:=0.02 (m/s^2/sqrt(Hz))
+            frameIntegrator.getPreintegrator().setNoise(params.getDouble("~gyro_noise_density", 0.002),
+                    params.getDouble("~accel_noise_density", 0.02));
+
+            double[] orientationCovariance = new double[9];
+            orientationCovariance[0] = -1;
+
+            MessagePublisher<sensor_msgs.Imu> imuPublisher = new MessagePublisher<>(imuRosPublisher, MESSAGE_COUNT, imu -> {
+                imu.getHeader().setFrameId(frameId);
+                imu.getOrientation().setW(1);
+                imu.setOrientationCovariance(Arrays.copyOf(orientationCovariance, 9));
+                imu.setAngularVelocityCovariance(Arrays.copyOf(angularVelocityCovariance, 9));
+                imu.setLinearAccelerationCovariance(Arrays.copyOf(linearAccelerationCovariance, 9));
+            });
+            MessagePublisher<std_msgs.Float64MultiArray> preintegratedPublisher = new MessagePublisher<>(
+                    preintegratedRosPublisher, MESSAGE_COUNT,
+                    array -> initPreintegrated(array, connectedNode.getTopicMessageFactory()));
+
+            gate.addPublisher(imuRosPublisher);
+            gate.addPublisher(preintegratedRosPublisher);
+            dataGate.addPublisher(imuRosPublisher);
+            preintegratedGate.addPublisher(preintegratedRosPublisher);
+
+            ImuInterpolator.Sample sample = new ImuInterpolator.Sample();
+            ImuPreintegrator preintegrator = frameIntegrator.getPreintegrator();
+
+            connectedNode.executeCancellableLoop(new CancellableLoop() {
+                private boolean preintegrating = false;
+                private long lastStatsNanos = System.nanoTime();
+
+                @Override
+                protected void loop() throws InterruptedException {
+
+                    if(!gate.refresh()){
+                        gate.awaitOpen();
+                        // samples from before the pause
+                        interpolator.clear();
+                        frameIntegrator.clear();
+                    }
+                    boolean publishData = dataGate.refresh();
+                    if(preintegratedGate.refresh() != preintegrating){
+                        // intervals start over at the next frame
+                        preintegrating = !preintegrating;
+                        frameIntegrator.clear();
+                    }
+
+                    interpolator.await(WAIT_NANOS);
+
+                    // one clock read per batch
+                    long offset = SensorClock.rosTimeOffsetNanos(connectedNode.getCurrentTime());
+                    while(interpolator.next(sample)){
+                        if(preintegrating){
+                            frameIntegrator.addSample(sample);
+                            while(frameIntegrator.next()){
+                                fillPreintegrated(preintegratedPublisher.nextMessage().getData(), preintegrator, offset);
+                                preintegratedPublisher.publish();
+                            }
+                        }
+                        if(!publishData) continue;
+
+                        sensor_msgs.Imu imu = imuPublisher.nextMessage();
+
+                        SensorClock.setRosTime(imu.getHeader().getStamp(), sample.timestamp + offset);
+                        imu.getAngularVelocity().setX(sample.gx);
+                        imu.getAngularVelocity().setY(sample.gy);
+                        imu.getAngularVelocity().setZ(sample.gz);
+                        imu.getLinearAcceleration().setX(sample.ax);
+                        imu.getLinearAcceleration().setY(sample.ay);
+                        imu.getLinearAcceleration().setZ(sample.az);
+                        imuPublisher.publish();
+                    }
+
+                    long now = System.nanoTime();
+                    if(now - lastStatsNanos > STATS_INTERVAL_NANOS){
+                        long[] dropped = interpolator.getDropped();
+                        long[] droppedPreintegration = frameIntegrator.getDropped();
+                        Log.i(TAG, "dropped accelerometer " + dropped[0] + ", gyroscope " + dropped[1]
+                                + ", unpaired " + dropped[2] + ", frames " + droppedPreintegration[0]
+                                + ", preintegrated samples " + droppedPreintegration[1]);
+                        lastStatsNanos = now;
+                    }
+                }
+            });
+
+        }
+
+        @Override
+        public void onShutdown(Node node) {
+
+        }
+
+        @Override
+        public void onShutdownComplete(Node node) {
+
+        }
+
+        @Override
+        public void onError(Node node, Throwable throwable) {
+
+        }
+    };
+
 }
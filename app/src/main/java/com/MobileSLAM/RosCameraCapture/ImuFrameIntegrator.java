@@ -0,0 +1,154 @@
+package com.MobileSLAM.RosCameraCapture;
+
+/**
+ * IMU preintegration over the intervals between consecutive camera frames
+ * The camera thread offers frame timestamps, the IMU consumer thread adds samples of the common
+ * timeline (see ImuInterpolator) and takes completed intervals from next()
+ * An interval [previous frame, frame] completes once a sample at or after its end arrived,
+ * it is integrated exactly up to the frame timestamp and the sample before is held over the boundary,
+ * so consecutive intervals share their end and start stamps
+ * Samples wait in a preallocated ring until their frame is offered, frames may arrive later than the IMU samples
+ * Nothing is allocated per sample or frame
+ */
+public class ImuFrameIntegrator {
+
+    private final ImuPreintegrator preintegrator = new ImuPreintegrator();
+
+    // Samples waiting for their frame, consumer thread only, same timestamps in both rings
+    private final ImuRingBuffer pendingAccel;
+    private final ImuRingBuffer pendingGyro;
+
+    // Frame timestamps, camera thread to consumer thread
+    private final long[] frames;
+    private final int frameMask;
+    private volatile long frameHead = 0;            // written by the consumer only
+    private volatile long frameTail = 0;            // written by the producer only
+    private long lastOffered = Long.MIN_VALUE;      // producer only
+    private volatile long droppedFrames = 0;        // producer only
+
+    // Consumer state
+    private boolean started = false;
+    private boolean completed = false;
+    private long lastSampleNanos = Long.MIN_VALUE;
+    private long droppedSamples = 0;
+
+    /**
+     * @param sampleCapacity samples held until their frame is offered, rounded up to a power of two
+     * @param frameCapacity frame timestamps held until taken, rounded up to a power of two
+     */
+    public ImuFrameIntegrator(int sampleCapacity, int frameCapacity) {
+        pendingAccel = new ImuRingBuffer(sampleCapacity);
+        pendingGyro = new ImuRingBuffer(sampleCapacity);
+        int size = frameCapacity <= 2 ? 2 : Integer.highestOneBit(frameCapacity - 1) << 1;
+        frames = new long[size];
+        frameMask = size - 1;
+    }
+
+    /**
+     * Integrator holding the interval after next() returned true, also for noise and bias settings
+     */
+    public ImuPreintegrator getPreintegrator(){
+        return preintegrator;
+    }
+
+    /**
+     * Producer: frame timestamp on the IMU clock, e.g. the elapsedRealtimeNanos() base of the frames
+     * Timestamps not after the last offered one are ignored, dropped if the consumer fell behind
+     */
+    public void offerFrame(long timestampNanos){
+        if(timestampNanos <= lastOffered) return;
+        lastOffered = timestampNanos;
+
+        long t = frameTail;
+        if(t - frameHead > frameMask){
+            droppedFrames++;
+            return;
+        }
+        frames[(int) t & frameMask] = timestampNanos;
+        frameTail = t + 1;
+    }
+
+    /**
+     * Consumer: add a sample, timestamps increasing
+     * If the ring is full the oldest sample is dropped, within an interval the interval is abandoned
+     */
+    public void addSample(ImuInterpolator.Sample sample){
+        if(pendingGyro.size() == pendingGyro.capacity()){
+            pendingAccel.pop();
+            pendingGyro.pop();
+            // the interval would miss a sample, start over at the next frame
+            if(started){
+                droppedSamples++;
+                started = false;
+                preintegrator.clearMeasurement();
+            }
+        }
+        pendingAccel.push(sample.timestamp, sample.ax, sample.ay, sample.az);
+        pendingGyro.push(sample.timestamp, sample.gx, sample.gy, sample.gz);
+    }
+
+    /**
+     * Consumer: integrate pending samples up to the next frame
+     * @return true if an interval completed, read it from getPreintegrator() until the next call
+     */
+    public boolean next(){
+        if(completed){
+            preintegrator.reset(preintegrator.getEndNanos());
+            completed = false;
+        }
+
+        while(frameHead != frameTail){
+            long frame = frames[(int) frameHead & frameMask];
+
+            if(!started){
+                // first frame starts the interval, earlier samples are only held
+                preintegrator.reset(frame);
+                frameHead = frameHead + 1;
+                started = true;
+                continue;
+            }
+
+            while(pendingGyro.size() > 0 && pendingGyro.timestamp(0) <= frame){
+                integratePending();
+            }
+            if(pendingGyro.size() == 0 && lastSampleNanos < frame) return false;
+
+            preintegrator.integrateTo(frame);
+            frameHead = frameHead + 1;
+            completed = true;
+            return true;
+        }
+        return false;
+    }
+
+    private void integratePending(){
+        lastSampleNanos = pendingGyro.timestamp(0);
+        preintegrator.addSample(lastSampleNanos,
+                pendingAccel.x(0), pendingAccel.y(0), pendingAccel.z(0),
+                pendingGyro.x(0), pendingGyro.y(0), pendingGyro.z(0));
+        pendingAccel.pop();
+        pendingGyro.pop();
+    }
+
+    /**
+     * Consumer: drop pending samples and frames and start over at the next frame, e.g. after a pause
+     */
+    public void clear(){
+        pendingAccel.clear();
+        pendingGyro.clear();
+        frameHead = frameTail;
+        started = false;
+        completed = false;
+        lastSampleNanos = Long.MIN_VALUE;
+        preintegrator.clearMeasurement();
+    }
+
+    /**
+     * Lost so far, {frames offered while the ring was full, samples dropped within an interval}
+     * The sample count is kept by the consumer, read it from the consumer thread
+     */
+    public long[] getDropped(){
+        return new long[] {droppedFrames, droppedSamples};
+    }
+
+}
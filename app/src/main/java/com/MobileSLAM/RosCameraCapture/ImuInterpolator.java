@@ -0,0 +1,155 @@
+package com.MobileSLAM.RosCameraCapture;
+
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Accelerometer and gyroscope samples on one timeline
+ * Each gyroscope sample is kept as is and paired with the accelerometer linearly interpolated to its timestamp
+ * A gyroscope sample is emitted once the accelerometer sample at or after it arrived,
+ * gyroscope samples before the first accelerometer sample or across an accelerometer gap longer than maxGap are dropped
+ * The sensor thread pushes into preallocated rings, the consumer thread takes samples, nothing is allocated per sample
+ */
+public class ImuInterpolator {
+
+    /**
+     * Sample on the common timeline, filled in place by next()
+     */
+    public static class Sample {
+        public long timestamp;                  // gyroscope timestamp in nanoseconds
+        public float ax, ay, az;                // acceleration in m/s^2
+        public float gx, gy, gz;                // angular velocity in rad/s
+    }
+
+    private final ImuRingBuffer accel;
+    private final ImuRingBuffer gyro;
+    private final AtomicReference<Thread> waitingConsumer = new AtomicReference<>();
+
+    private volatile long maxGapNanos = 50_000_000L;
+    private long unpaired = 0;                  // consumer only
+
+    /**
+     * @param capacity samples held per sensor until taken
+     */
+    public ImuInterpolator(int capacity) {
+        accel = new ImuRingBuffer(capacity);
+        gyro = new ImuRingBuffer(capacity);
+    }
+
+    /**
+     * Longest accelerometer interval interpolated over
+     */
+    public void setMaxGap(long nanos){
+        maxGapNanos = nanos;
+    }
+
+    /**
+     * Producer: accelerometer sample, timestamps in the same clock as the gyroscope
+     */
+    public void pushAccel(long timestamp, float x, float y, float z){
+        accel.push(timestamp, x, y, z);
+        wakeConsumer();
+    }
+
+    /**
+     * Producer: gyroscope sample
+     */
+    public void pushGyro(long timestamp, float x, float y, float z){
+        gyro.push(timestamp, x, y, z);
+        wakeConsumer();
+    }
+
+    private void wakeConsumer(){
+        Thread consumer = waitingConsumer.get();
+        if(consumer != null){
+            LockSupport.unpark(consumer);
+        }
+    }
+
+    /**
+     * Consumer: next sample on the common timeline without waiting
+     * @param out receives the sample
+     * @return false if no sample is ready yet
+     */
+    public boolean next(Sample out){
+        while(gyro.size() > 0){
+            long t = gyro.timestamp(0);
+
+            // the accelerometer sample right before t stays at the front
+            while(accel.size() >= 2 && accel.timestamp(1) <= t){
+                accel.pop();
+            }
+            if(accel.size() == 0) return false;
+
+            long t0 = accel.timestamp(0);
+            if(t0 > t){
+                // before the accelerometer stream
+                gyro.pop();
+                unpaired++;
+                continue;
+            }
+
+            if(t0 == t){
+                out.ax = accel.x(0);
+                out.ay = accel.y(0);
+                out.az = accel.z(0);
+            }else{
+                if(accel.size() < 2) return false;
+                long t1 = accel.timestamp(1);
+                if(t1 - t0 > maxGapNanos){
+                    gyro.pop();
+                    unpaired++;
+                    continue;
+                }
+                float w = (float) (t - t0) / (t1 - t0);
+                out.ax = accel.x(0) + (accel.x(1) - accel.x(0)) * w;
+                out.ay = accel.y(0) + (accel.y(1) - accel.y(0)) * w;
+                out.az = accel.z(0) + (accel.z(1) - accel.z(0)) * w;
+            }
+
+            out.timestamp = t;
+            out.gx = gyro.x(0);
+            out.gy = gyro.y(0);
+            out.gz = gyro.z(0);
+            gyro.pop();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Consumer: wait until a sample is pushed, or timeout passed
+     * Returns right away if samples are pending, a pushed sample does not have to complete a pair
+     * @throws InterruptedException consumer thread interrupted while waiting
+     */
+    public void await(long timeoutNanos) throws InterruptedException {
+        waitingConsumer.set(Thread.currentThread());
+        try{
+            if(gyro.size() == 0 || accel.size() < 2){
+                LockSupport.parkNanos(this, timeoutNanos);
+            }
+            if(Thread.interrupted()){
+                throw new InterruptedException();
+            }
+        }finally {
+            waitingConsumer.set(null);
+        }
+    }
+
+    /**
+     * Consumer: drop all pending samples, e.g. after the sensors were paused
+     */
+    public void clear(){
+        accel.clear();
+        gyro.clear();
+    }
+
+    /**
+     * Samples lost, {accelerometer ring full, gyroscope ring full, gyroscope without accelerometer pair}
+     * The last count is kept by the consumer, read it from the consumer thread
+     */
+    public long[] getDropped(){
+        return new long[] {accel.getDropped(), gyro.getDropped(), unpaired};
+    }
+
+}
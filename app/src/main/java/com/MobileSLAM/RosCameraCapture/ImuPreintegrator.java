@@ -0,0 +1,352 @@
+package com.MobileSLAM.RosCameraCapture;
+
+/**
+ * IMU preintegration on the rotation manifold, C. Forster et al., "On-Manifold Preintegration
+ * for Real-Time Visual-Inertial Odometry", IEEE T-RO 2017
+ * Accumulates delta rotation, velocity and position in the body frame of the interval start,
+ * independent of gravity and initial velocity:
+ *   dR = Ri^T Rj,  dv = Ri^T (vj - vi - g dt),  dp = Ri^T (pj - pi - vi dt - g dt^2 / 2)
+ * Measurements are held between samples (zero-order hold), biases are constant over the interval
+ * Covariance of the residual [dphi, dv, dp] is propagated with the white noise densities of the sensors
+ * All state and scratch arrays are allocated once, integration allocates nothing
+ * An instance must be used from one thread at a time
+ */
+public class ImuPreintegrator {
+
+    // Row-major, 3x3 rotation and 9x9 covariance in order [dphi, dv, dp]
+    private final double[] deltaR = new double[9];
+    private final double[] deltaV = new double[3];
+    private final double[] deltaP = new double[3];
+    private final double[] covariance = new double[81];
+
+    private long startNanos;
+    private long timeNanos;
+
+    // Held measurement, bias corrected
+    private boolean hasMeasurement = false;
+    private double ax, ay, az;
+    private double gx, gy, gz;
+
+    private double gyroNoiseDensity = 0;            // rad/s/sqrt(Hz)
+    private double accelNoiseDensity = 0;           // m/s^2/sqrt(Hz)
+    private final double[] gyroBias = new double[3];
+    private final double[] accelBias = new double[3];
+
+    // Scratch
+    private final double[] stepR = new double[9];
+    private final double[] rightJacobian = new double[9];
+    private final double[] rotatedSkew = new double[9];
+    private final double[] product = new double[9];
+    private final double[] transition = new double[81];
+    private final double[] covarianceProduct = new double[81];
+
+    public ImuPreintegrator() {
+        reset(0);
+    }
+
+    /**
+     * White noise densities, gyroscope in rad/s/sqrt(Hz), accelerometer in m/s^2/sqrt(Hz)
+     */
+    public void setNoise(double gyroNoiseDensity, double accelNoiseDensity){
+        this.gyroNoiseDensity = gyroNoiseDensity;
+        this.accelNoiseDensity = accelNoiseDensity;
+    }
+
+    /**
+     * Biases subtracted from the measurements, from the next sample on
+     */
+    public void setBias(double gyroX, double gyroY, double gyroZ, double accelX, double accelY, double accelZ){
+        gyroBias[0] = gyroX;
+        gyroBias[1] = gyroY;
+        gyroBias[2] = gyroZ;
+        accelBias[0] = accelX;
+        accelBias[1] = accelY;
+        accelBias[2] = accelZ;
+    }
+
+    /**
+     * Start a new interval at timestamp, the held measurement is kept and continues into it
+     */
+    public void reset(long timestampNanos){
+        for(int i = 0; i < 9; i++){
+            deltaR[i] = i % 4 == 0 ? 1 : 0;
+        }
+        for(int i = 0; i < 3; i++){
+            deltaV[i] = 0;
+            deltaP[i] = 0;
+        }
+        for(int i = 0; i < 81; i++){
+            covariance[i] = 0;
+        }
+        startNanos = timestampNanos;
+        timeNanos = timestampNanos;
+    }
+
+    /**
+     * Forget the held measurement, e.g. after a gap in the samples
+     */
+    public void clearMeasurement(){
+        hasMeasurement = false;
+    }
+
+    /**
+     * Integrate up to the sample with the held measurement, then hold the sample
+     * Without a held measurement the sample is held back to the current time,
+     * a sample not after the current time is only held
+     * @param timestampNanos sample time, same clock as reset()
+     * @param accelX acceleration in m/s^2
+     * @param gyroX angular velocity in rad/s
+     */
+    public void addSample(long timestampNanos, double accelX, double accelY, double accelZ,
+                          double gyroX, double gyroY, double gyroZ){
+        boolean held = hasMeasurement;
+        if(!held){
+            hold(accelX, accelY, accelZ, gyroX, gyroY, gyroZ);
+        }
+        integrateTo(timestampNanos);
+        if(held){
+            hold(accelX, accelY, accelZ, gyroX, gyroY, gyroZ);
+        }
+    }
+
+    private void hold(double accelX, double accelY, double accelZ, double gyroX, double gyroY, double gyroZ){
+        ax = accelX - accelBias[0];
+        ay = accelY - accelBias[1];
+        az = accelZ - accelBias[2];
+        gx = gyroX - gyroBias[0];
+        gy = gyroY - gyroBias[1];
+        gz = gyroZ - gyroBias[2];
+        hasMeasurement = true;
+    }
+
+    /**
+     * Integrate the held measurement up to timestamp, e.g. a frame time between two samples
+     * Nothing happens without a held measurement or for a timestamp not after the current time
+     */
+    public void integrateTo(long timestampNanos){
+        if(!hasMeasurement || timestampNanos <= timeNanos){
+            timeNanos = Math.max(timeNanos, timestampNanos);
+            return;
+        }
+        step((timestampNanos - timeNanos) * 1e-9);
+        timeNanos = timestampNanos;
+    }
+
+    /**
+     * One zero-order hold step of dt seconds
+     */
+    private void step(double dt){
+        exp(gx * dt, gy * dt, gz * dt, stepR, rightJacobian);
+
+        // transition of [dphi, dv, dp], noise free part
+        for(int i = 0; i < 81; i++){
+            transition[i] = 0;
+        }
+        // dphi: step rotation transposed
+        for(int r = 0; r < 3; r++){
+            for(int c = 0; c < 3; c++){
+                transition[r * 9 + c] = stepR[c * 3 + r];
+            }
+        }
+        // dv, dp: - dR [a]x dt, - dR [a]x dt^2 / 2
+        skewProduct(deltaR, ax, ay, az, rotatedSkew);
+        double halfDt2 = 0.5 * dt * dt;
+        for(int r = 0; r < 3; r++){
+            for(int c = 0; c < 3; c++){
+                transition[(3 + r) * 9 + c] = -rotatedSkew[r * 3 + c] * dt;
+                transition[(6 + r) * 9 + c] = -rotatedSkew[r * 3 + c] * halfDt2;
+            }
+            transition[(3 + r) * 9 + 3 + r] = 1;
+            transition[(6 + r) * 9 + 3 + r] = dt;
+            transition[(6 + r) * 9 + 6 + r] = 1;
+        }
+
+        // covariance = A covariance A^T
+        multiply9(transition, covariance, covarianceProduct, false);
+        multiply9(covarianceProduct, transition, covariance, true);
+
+        // gyroscope noise through Jr dt, discrete variance density^2 / dt
+        double gyroVariance = gyroNoiseDensity * gyroNoiseDensity * dt;
+        for(int r = 0; r < 3; r++){
+            for(int c = 0; c < 3; c++){
+                double jj = 0;
+                for(int k = 0; k < 3; k++){
+                    jj += rightJacobian[r * 3 + k] * rightJacobian[c * 3 + k];
+                }
+                covariance[r * 9 + c] += jj * gyroVariance;
+            }
+        }
+        // accelerometer noise through [0, dR dt, dR dt^2 / 2], dR dR^T = I
+        double accelVariance = accelNoiseDensity * accelNoiseDensity;
+        for(int i = 0; i < 3; i++){
+            covariance[(3 + i) * 9 + 3 + i] += accelVariance * dt;
+            covariance[(3 + i) * 9 + 6 + i] += accelVariance * dt * dt / 2;
+            covariance[(6 + i) * 9 + 3 + i] += accelVariance * dt * dt / 2;
+            covariance[(6 + i) * 9 + 6 + i] += accelVariance * dt * dt * dt / 4;
+        }
+
+        // state, position and velocity with the rotation at the step start
+        double rax = deltaR[0] * ax + deltaR[1] * ay + deltaR[2] * az;
+        double ray = deltaR[3] * ax + deltaR[4] * ay + deltaR[5] * az;
+        double raz = deltaR[6] * ax + deltaR[7] * ay + deltaR[8] * az;
+        deltaP[0] += deltaV[0] * dt + rax * halfDt2;
+        deltaP[1] += deltaV[1] * dt + ray * halfDt2;
+        deltaP[2] += deltaV[2] * dt + raz * halfDt2;
+        deltaV[0] += rax * dt;
+        deltaV[1] += ray * dt;
+        deltaV[2] += raz * dt;
+
+        for(int r = 0; r < 3; r++){
+            for(int c = 0; c < 3; c++){
+                product[r * 3 + c] = deltaR[r * 3] * stepR[c] + deltaR[r * 3 + 1] * stepR[3 + c] + deltaR[r * 3 + 2] * stepR[6 + c];
+            }
+        }
+        System.arraycopy(product, 0, deltaR, 0, 9);
+    }
+
+    /**
+     * Rotation matrix of rotation vector (x, y, z) and its right Jacobian
+     */
+    private static void exp(double x, double y, double z, double[] rotation, double[] jacobian){
+        double theta2 = x * x + y * y + z * z;
+        double theta = Math.sqrt(theta2);
+        double a, b, c;         // sin / theta, (1 - cos) / theta^2, (theta - sin) / theta^3
+        if(theta < 1e-5){
+            a = 1 - theta2 / 6;
+            b = 0.5 - theta2 / 24;
+            c = 1.0 / 6 - theta2 / 120;
+        }else{
+            double sin = Math.sin(theta);
+            a = sin / theta;
+            b = (1 - Math.cos(theta)) / theta2;
+            c = (theta - sin) / (theta2 * theta);
+        }
+
+        // [w]x^2 = w w^T - theta^2 I
+        double xx = x * x - theta2, yy = y * y - theta2, zz = z * z - theta2;
+        double xy = x * y, xz = x * z, yz = y * z;
+
+        // R = I + a [w]x + b [w]x^2
+        rotation[0] = 1 + b * xx;
+        rotation[1] = -a * z + b * xy;
+        rotation[2] = a * y + b * xz;
+        rotation[3] = a * z + b * xy;
+        rotation[4] = 1 + b * yy;
+        rotation[5] = -a * x + b * yz;
+        rotation[6] = -a * y + b * xz;
+        rotation[7] = a * x + b * yz;
+        rotation[8] = 1 + b * zz;
+
+        // Jr = I - b [w]x + c [w]x^2
+        jacobian[0] = 1 + c * xx;
+        jacobian[1] = b * z + c * xy;
+        jacobian[2] = -b * y + c * xz;
+        jacobian[3] = -b * z + c * xy;
+        jacobian[4] = 1 + c * yy;
+        jacobian[5] = b * x + c * yz;
+        jacobian[6] = b * y + c * xz;
+        jacobian[7] = -b * x + c * yz;
+        jacobian[8] = 1 + c * zz;
+    }
+
+    /**
+     * out = R [v]x
+     */
+    private static void skewProduct(double[] r, double x, double y, double z, double[] out){
+        for(int row = 0; row < 3; row++){
+            double r0 = r[row * 3], r1 = r[row * 3 + 1], r2 = r[row * 3 + 2];
+            out[row * 3] = r1 * z - r2 * y;
+            out[row * 3 + 1] = -r0 * z + r2 * x;
+            out[row * 3 + 2] = r0 * y - r1 * x;
+        }
+    }
+
+    /**
+     * out = a b, or a b^T if transposeB, 9x9
+     */
+    private static void multiply9(double[] a, double[] b, double[] out, boolean transposeB){
+        for(int r = 0; r < 9; r++){
+            for(int c = 0; c < 9; c++){
+                double sum = 0;
+                for(int k = 0; k < 9; k++){
+                    sum += a[r * 9 + k] * (transposeB ? b[c * 9 + k] : b[k * 9 + c]);
+                }
+                out[r * 9 + c] = sum;
+            }
+        }
+    }
+
+    public long getStartNanos(){
+        return startNanos;
+    }
+
+    /**
+     * End of the integrated interval, last sample or integrateTo() time
+     */
+    public long getEndNanos(){
+        return timeNanos;
+    }
+
+    /**
+     * Delta rotation, row-major 3x3 into out from offset
+     */
+    public void getDeltaRotation(double[] out, int offset){
+        System.arraycopy(deltaR, 0, out, offset, 9);
+    }
+
+    /**
+     * Delta rotation as unit quaternion x, y, z, w into out from offset, w not negative
+     */
+    public void getDeltaQuaternion(double[] out, int offset){
+        double m00 = deltaR[0], m11 = deltaR[4], m22 = deltaR[8];
+        double trace = m00 + m11 + m22;
+        double x, y, z, w;
+        if(trace > 0){
+            double s = 2 * Math.sqrt(1 + trace);
+            w = 0.25 * s;
+            x = (deltaR[7] - deltaR[5]) / s;
+            y = (deltaR[2] - deltaR[6]) / s;
+            z = (deltaR[3] - deltaR[1]) / s;
+        }else if(m00 > m11 && m00 > m22){
+            double s = 2 * Math.sqrt(1 + m00 - m11 - m22);
+            w = (deltaR[7] - deltaR[5]) / s;
+            x = 0.25 * s;
+            y = (deltaR[1] + deltaR[3]) / s;
+            z = (deltaR[2] + deltaR[6]) / s;
+        }else if(m11 > m22){
+            double s = 2 * Math.sqrt(1 + m11 - m00 - m22);
+            w = (deltaR[2] - deltaR[6]) / s;
+            x = (deltaR[1] + deltaR[3]) / s;
+            y = 0.25 * s;
+            z = (deltaR[5] + deltaR[7]) / s;
+        }else{
+            double s = 2 * Math.sqrt(1 + m22 - m00 - m11);
+            w = (deltaR[3] - deltaR[1]) / s;
+            x = (deltaR[2] + deltaR[6]) / s;
+            y = (deltaR[5] + deltaR[7]) / s;
+            z = 0.25 * s;
+        }
+        double sign = w < 0 ? -1 : 1;
+        double norm = sign / Math.sqrt(x * x + y * y + z * z + w * w);
+        out[offset] = x * norm;
+        out[offset + 1] = y * norm;
+        out[offset + 2] = z * norm;
+        out[offset + 3] = w * norm;
+    }
+
+    public void getDeltaVelocity(double[] out, int offset){
+        System.arraycopy(deltaV, 0, out, offset, 3);
+    }
+
+    public void getDeltaPosition(double[] out, int offset){
+        System.arraycopy(deltaP, 0, out, offset, 3);
+    }
+
+    /**
+     * Covariance of [dphi, dv, dp], row-major 9x9 into out from offset
+     */
+    public void getCovariance(double[] out, int offset){
+        System.arraycopy(covariance, 0, out, offset, 81);
+    }
+
+}
@@ -0,0 +1,103 @@
+package com.MobileSLAM.RosCameraCapture;
+
+/**
+ * Preallocated ring of three axis sensor samples, one producer and one consumer thread
+ * Samples are stored in primitive arrays, nothing is allocated per sample and no lock is taken
+ * The producer never blocks, a sample pushed into a full ring is dropped and counted
+ * Consumer reads samples in place by age, 0 is the oldest, and pops them when done
+ */
+public class ImuRingBuffer {
+
+    private final long[] timestamps;
+    private final float[] x;
+    private final float[] y;
+    private final float[] z;
+    private final int mask;
+
+    // Monotonic counters, index into the arrays with & mask
+    private volatile long head = 0;         // next to read, written by the consumer only
+    private volatile long tail = 0;         // next to write, written by the producer only
+    private volatile long dropped = 0;      // written by the producer only
+
+    /**
+     * @param capacity number of samples held, rounded up to a power of two
+     */
+    public ImuRingBuffer(int capacity) {
+        int size = capacity <= 2 ? 2 : Integer.highestOneBit(capacity - 1) << 1;
+        timestamps = new long[size];
+        x = new float[size];
+        y = new float[size];
+        z = new float[size];
+        mask = size - 1;
+    }
+
+    public int capacity(){
+        return mask + 1;
+    }
+
+    /**
+     * Producer: append sample
+     * @param timestamp sensor timestamp in nanoseconds, not decreasing
+     * @return false if the ring is full and the sample was dropped
+     */
+    public boolean push(long timestamp, float x, float y, float z){
+        long t = tail;
+        if(t - head > mask){
+            dropped++;
+            return false;
+        }
+        int index = (int) t & mask;
+        timestamps[index] = timestamp;
+        this.x[index] = x;
+        this.y[index] = y;
+        this.z[index] = z;
+        // volatile write publishes the sample
+        tail = t + 1;
+        return true;
+    }
+
+    /**
+     * Consumer: number of samples ready to read
+     */
+    public int size(){
+        return (int) (tail - head);
+    }
+
+    public long timestamp(int age){
+        return timestamps[(int) (head + age) & mask];
+    }
+
+    public float x(int age){
+        return x[(int) (head + age) & mask];
+    }
+
+    public float y(int age){
+        return y[(int) (head + age) & mask];
+    }
+
+    public float z(int age){
+        return z[(int) (head + age) & mask];
+    }
+
+    /**
+     * Consumer: drop the oldest sample
+     */
+    public void pop(){
+        head = head + 1;
+    }
+
+    /**
+     * Consumer: drop all samples
+     */
+    public void clear(){
+        head = tail;
+    }
+
+    /**
+     * Samples dropped on a full ring so far
+     */
+    public long getDropped(){
+        return dropped;
+    }
+
+}
@@ -0,0 +1,143 @@
+package com.MobileSLAM.RosCameraCapture;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free latency histogram with fixed log-linear buckets
+ * Microsecond resolution, four buckets per power of two up to about a minute, so a bucket
+ * is at most 25 % wide and percentiles from its midpoint are within 12.5 %
+ * Any thread records, counts are cumulative; a reporter reads interval statistics through Interval
+ * Recording allocates nothing and takes no lock
+ */
+public class LatencyHistogram {
+
+    public static final int BUCKET_COUNT = 104;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong sumNanos = new AtomicLong();
+    private final AtomicLong maxNanos = new AtomicLong();
+
+    /**
+     * Record one latency, negative values count as 0
+     */
+    public void record(long nanos){
+        if(nanos < 0) nanos = 0;
+        counts.incrementAndGet(bucketIndex(nanos));
+        sumNanos.addAndGet(nanos);
+
+        long max = maxNanos.get();
+        while(nanos > max && !maxNanos.compareAndSet(max, nanos)){
+            max = maxNanos.get();
+        }
+    }
+
+    /**
+     * Bucket of a latency, 0 - 3 us one bucket each, then four per power of two
+     */
+    public static int bucketIndex(long nanos){
+        long micros = nanos / 1000;
+        if(micros < 4) return (int) Math.max(micros, 0);
+        int octave = 63 - Long.numberOfLeadingZeros(micros);
+        int sub = (int) (micros >> (octave - 2)) & 3;
+        return Math.min(4 * (octave - 1) + sub, BUCKET_COUNT - 1);
+    }
+
+    /**
+     * Smallest latency of bucket, in nanoseconds
+     */
+    public static long bucketLowerNanos(int index){
+        if(index < 4) return index * 1000L;
+        int octave = index / 4 + 1;
+        return ((4L + index % 4) << (octave - 2)) * 1000;
+    }
+
+    /**
+     * Latency just above bucket, in nanoseconds, the last bucket is open
+     */
+    public static long bucketUpperNanos(int index){
+        if(index < 4) return (index + 1) * 1000L;
+        int octave = index / 4 + 1;
+        return ((5L + index % 4) << (octave - 2)) * 1000;
+    }
+
+    public long getCount(){
+        long count = 0;
+        for(int i = 0; i < BUCKET_COUNT; i++){
+            count += counts.get(i);
+        }
+        return count;
+    }
+
+    public long getSumNanos(){
+        return sumNanos.get();
+    }
+
+    /**
+     * Statistics of the latencies recorded since the previous update(), kept by one reporter thread
+     * Preallocated, update() allocates nothing
+     */
+    public static class Interval {
+        private final long[] previous = new long[BUCKET_COUNT];
+        private final long[] delta = new long[BUCKET_COUNT];
+        private long previousSumNanos = 0;
+
+        private long count;
+        private long sumNanos;
+        private long maxNanos;
+
+        /**
+         * Take the latencies recorded since the last call
+         * The maximum of the histogram is reset, one Interval per histogram
+         */
+        public void update(LatencyHistogram histogram){
+            // maximum first, latencies recorded meanwhile count in this or the next interval
+            maxNanos = histogram.maxNanos.getAndSet(0);
+            long sum = histogram.sumNanos.get();
+            sumNanos = sum - previousSumNanos;
+            previousSumNanos = sum;
+
+            count = 0;
+            for(int i = 0; i < BUCKET_COUNT; i++){
+                long total = histogram.counts.get(i);
+                delta[i] = total - previous[i];
+                previous[i] = total;
+                count += delta[i];
+            }
+        }
+
+        public long getCount(){
+            return count;
+        }
+
+        public long getMeanNanos(){
+            return count > 0 ? sumNanos / count : 0;
+        }
+
+        public long getMaxNanos(){
+            return maxNanos;
+        }
+
+        /**
+         * Latency below which the fraction q of the interval falls, midpoint of its bucket
+         * @param q fraction in [0, 1], e.g. 0.95
+         * @return 0 for an empty interval
+         */
+        public long getPercentileNanos(double q){
+            if(count == 0) return 0;
+            long rank = Math.max(1, (long) Math.ceil(q * count));
+            long seen = 0;
+            for(int i = 0; i < BUCKET_COUNT; i++){
+                seen += delta[i];
+                if(seen >= rank){
+                    if(i == BUCKET_COUNT - 1) return Math.max(bucketLowerNanos(i), maxNanos);
+                    long midpoint = (bucketLowerNanos(i) + bucketUpperNanos(i)) / 2;
+                    // the bucket cannot reach beyond the largest latency recorded
+                    return maxNanos > 0 ? Math.min(midpoint, maxNanos) : midpoint;
+                }
+            }
+            return maxNanos;
+        }
+    }
+
+}
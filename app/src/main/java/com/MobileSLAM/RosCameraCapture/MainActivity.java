@@ -20,6 +20,9 @@ public class MainActivity extends RosActivity {
 
     private ColorCameraCapture mColorCameraCapture;
     private DepthCameraCapture mDepthCameraCapture;
+    private RgbdSynchronizer mRgbdSynchronizer;
+    private IMUCapture mIMUCapture;
+    private DiagnosticsPublisher mDiagnosticsPublisher;
     private TextureView colorView;
     private TextureView depthView;
 
@@ -52,9 +55,36 @@ public class MainActivity extends RosActivity {
 
         mColorCameraCapture = new ColorCameraCapture(this, colorView);
         mDepthCameraCapture = new DepthCameraCapture(this, depthView);
+        mDepthCameraCapture.setColorSource(mColorCameraCapture);
+
+        // Color / depth pairs with one stamp, fed by both cameras while subscribed
+        mRgbdSynchronizer = new RgbdSynchronizer(this, ColorCameraCapture.mCameraParam, mDepthCameraCapture.mCameraParam);
+        mColorCameraCapture.setSynchronizer(mRgbdSynchronizer);
+        mDepthCameraCapture.setSynchronizer(mRgbdSynchronizer);
+
+        // IMU preintegrated between depth frames, the depth stream always runs
+        mIMUCapture = new IMUCapture(this);
+        mDepthCameraCapture.setImuCapture(mIMUCapture);
+
+        // Stage latencies on /diagnostics, stages also show up in systrace
+        PipelineMetrics.setTracing(true);
+        mDiagnosticsPublisher = new DiagnosticsPublisher(this, mDepthCameraCapture.getMetrics(), mColorCameraCapture.getMetrics(),
+                mRgbdSynchronizer.getMetrics());
 
         mColorCameraCapture.startCamera();
         mDepthCameraCapture.startCamera();
+        mIMUCapture.start();
+    }
+
+    @Override
+    protected void onDestroy() {
+        // Join every pipeline thread, the cameras are closed
+        if(mColorCameraCapture != null){
+            mIMUCapture.stop();
+            mDepthCameraCapture.stopCamera();
+            mColorCameraCapture.stopCamera();
+        }
+        super.onDestroy();
     }
 
     @Override
@@ -64,6 +94,9 @@ public class MainActivity extends RosActivity {
 
         mColorCameraCapture.startRosNode(nodeMainExecutor);
         mDepthCameraCapture.startRosNode(nodeMainExecutor);
+        mRgbdSynchronizer.startRosNode(nodeMainExecutor);
+        mIMUCapture.startRosNode(nodeMainExecutor);
+        mDiagnosticsPublisher.startRosNode(nodeMainExecutor);
     }
 
 
@@ -0,0 +1,132 @@
+package com.MobileSLAM.RosCameraCapture;
+
+import org.jboss.netty.buffer.ByteBufferBackedChannelBuffer;
+import org.jboss.netty.buffer.ChannelBufferOutputStream;
+
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Direct little-endian buffer for ROS message data
+ * Native kernels write into getStorage(), a MessagePublisher publishes it through a MessageBufferView, no copy
+ * Every acquire hands out a new ownership token (generation and state), a published message carries
+ * the token of its data, so reads of a message whose data was released meanwhile leave the buffer alone
+ * rosjava serializes the message on its own thread, the buffer goes back to its pool once
+ * serialization has read it to the end, data of a message never serialized is released by its MessagePublisher
+ */
+public class MessageBuffer extends ByteBufferBackedChannelBuffer {
+
+    private final ByteBuffer storage;
+    private final MessageBufferPool pool;
+
+    // Ownership, generation of the acquire in the upper bits, state in the lowest two
+    // Generations are unique across buffers, a token never matches another buffer
+    private static final AtomicLong generations = new AtomicLong();
+    private static final long STATE_MASK = 0x3;
+    private static final long FREE = 0;
+    private static final long HELD = 1;             // acquired, not read yet
+    private static final long READING = 2;          // serialization started reading, it releases
+    private final AtomicLong ownership = new AtomicLong(FREE);
+    private ChannelBufferOutputStream outputStream;
+
+    MessageBuffer(MessageBufferPool pool, int capacity) {
+        this(pool, ByteBuffer.allocateDirect(capacity).order(ByteOrder.LITTLE_ENDIAN));
+    }
+
+    private MessageBuffer(MessageBufferPool pool, ByteBuffer storage) {
+        super(storage);
+        this.storage = storage;
+        this.pool = pool;
+    }
+
+    /**
+     * Direct storage for native kernels, message data starts at index 0
+     */
+    public ByteBuffer getStorage() {
+        return storage;
+    }
+
+    /**
+     * Stream appending to message data, for encoders writing to an OutputStream
+     * Writing beyond capacity throws IndexOutOfBoundsException
+     */
+    public OutputStream getOutputStream(){
+        if(outputStream == null){
+            outputStream = new ChannelBufferOutputStream(this);
+        }
+        return outputStream;
+    }
+
+    /**
+     * Set size of message data written into storage
+     */
+    public void setLength(int length){
+        setIndex(0, length);
+    }
+
+    void onAcquire(){
+        ownership.set(generations.incrementAndGet() << 2 | HELD);
+    }
+
+    /**
+     * Token of the current acquire, published with the data, see MessageBufferView
+     */
+    long getOwnership(){
+        return ownership.get();
+    }
+
+    /**
+     * Give buffer back to pool without publishing it
+     * Calls once serialization started reading it or after a release are ignored
+     */
+    public void release(){
+        long current = ownership.get();
+        while((current & STATE_MASK) == HELD){
+            if(ownership.compareAndSet(current, current & ~STATE_MASK | FREE)){
+                pool.release(this);
+                return;
+            }
+            current = ownership.get();
+        }
+    }
+
+    /**
+     * Give buffer back to pool if it is still held by the acquire of token and was never read
+     * @param token getOwnership() of the acquire
+     * @return true if released
+     */
+    boolean releaseUnread(long token){
+        if((token & STATE_MASK) == HELD && ownership.compareAndSet(token, token & ~STATE_MASK | FREE)){
+            pool.release(this);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Serialization of the acquire of token reads, from then on only endRead() releases the buffer
+     * @return false if token no longer owns the buffer, its data is gone
+     */
+    boolean beginRead(long token){
+        if((token & STATE_MASK) != HELD) return false;
+        long reading = token & ~STATE_MASK | READING;
+        long current = ownership.get();
+        while(current == token){
+            if(ownership.compareAndSet(token, reading)) return true;
+            current = ownership.get();
+        }
+        return current == reading;
+    }
+
+    /**
+     * Serialization of the acquire of token read to the end, buffer goes back to pool
+     */
+    void endRead(long token){
+        if(ownership.compareAndSet(token & ~STATE_MASK | READING, token & ~STATE_MASK | FREE)){
+            pool.release(this);
+        }
+    }
+
+}
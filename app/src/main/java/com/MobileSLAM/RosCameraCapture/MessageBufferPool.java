@@ -0,0 +1,65 @@
+package com.MobileSLAM.RosCameraCapture;
+
+/**
+ * Pool of direct message data buffers of one size, see MessageBuffer
+ * Bounded, buffers are allocated once: the capture side holds at most heldFrames,
+ * a MessagePublisher at most IN_FLIGHT_MESSAGES, if the pool still runs dry acquire() returns null
+ * and the caller drops the frame
+ */
+public class MessageBufferPool {
+
+    // Messages of a MessagePublisher holding data, published but not yet serialized by rosjava
+    public static final int IN_FLIGHT_MESSAGES = 4;
+
+    private final FrameBufferPool<MessageBuffer> buffers;
+    private final int bufferCapacity;
+
+    /**
+     * Pool for a frame stream, buffers sized once from the camera frame size
+     * @param cameraParam camera of the stream
+     * @param bytesPerPixel bytes per pixel of the message encoding, upper bound for compressed data
+     * @param heldFrames buffers held on the capture side at the same time,
+     *                   IN_FLIGHT_MESSAGES are added for messages waiting to be serialized
+     */
+    public static MessageBufferPool forFrame(CameraUtil.CameraParam cameraParam, int bytesPerPixel, int heldFrames){
+        return new MessageBufferPool(heldFrames + IN_FLIGHT_MESSAGES,
+                cameraParam.frameWidth * cameraParam.frameHeight * bytesPerPixel);
+    }
+
+    /**
+     * @param count number of buffers kept in pool
+     * @param bufferCapacity size of each buffer in bytes
+     */
+    public MessageBufferPool(int count, int bufferCapacity) {
+        this.bufferCapacity = bufferCapacity;
+        this.buffers = new FrameBufferPool<>(count, () -> new MessageBuffer(this, bufferCapacity));
+    }
+
+    /**
+     * Take an empty buffer, content is undefined
+     * @return null if every buffer is taken, nothing is allocated
+     */
+    public MessageBuffer acquire(){
+        MessageBuffer buffer = buffers.acquire();
+        if(buffer == null) return null;
+        buffer.onAcquire();
+        buffer.clear();
+        return buffer;
+    }
+
+    void release(MessageBuffer buffer){
+        buffers.release(buffer);
+    }
+
+    public int getBufferCapacity() {
+        return bufferCapacity;
+    }
+
+    /**
+     * Number of buffers in pool, not taken
+     */
+    public int getAvailableBuffers() {
+        return buffers.available();
+    }
+
+}
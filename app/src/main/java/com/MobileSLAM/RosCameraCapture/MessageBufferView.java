@@ -0,0 +1,268 @@
+package com.MobileSLAM.RosCameraCapture;
+
+import org.jboss.netty.buffer.AbstractChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBufferFactory;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.buffer.DuplicatedChannelBuffer;
+import org.jboss.netty.buffer.HeapChannelBufferFactory;
+import org.jboss.netty.buffer.SlicedChannelBuffer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ReadOnlyBufferException;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.ScatteringByteChannel;
+import java.util.Arrays;
+
+/**
+ * Read-only message data of one MessagePublisher message, the MessageBuffer of a publish and its acquire token
+ * Bulk reads (rosjava serialization) go through the token: the first one takes the buffer over,
+ * reading to the end releases it, a read after the data was released or acquired again reads zeros
+ * and leaves the buffer to its new owner
+ * Rebound for every publish of its message, a reader racing a rebind sees a token not matching
+ * the buffer (generations are unique across buffers) and reads zeros
+ */
+final class MessageBufferView extends AbstractChannelBuffer {
+
+    // Written by the publishing thread, token last, read by rosjava's writer thread, token first
+    private volatile MessageBuffer buffer;
+    private volatile long token;
+
+    /**
+     * Data of the next publish, readable from index 0 to its length
+     */
+    void bind(MessageBuffer data){
+        token = 0;
+        buffer = data;
+        token = data.getOwnership();
+        setIndex(0, data.writerIndex());
+    }
+
+    /**
+     * Release the bound data if it was never read, its message was dropped or is still queued
+     * @return true if released
+     */
+    boolean releaseUnread(){
+        MessageBuffer data = buffer;
+        return data != null && data.releaseUnread(token);
+    }
+
+    /**
+     * Bound buffer if token still owns it, null if its data is gone
+     */
+    private MessageBuffer beginRead(long token){
+        MessageBuffer data = buffer;
+        return data != null && data.beginRead(token) ? data : null;
+    }
+
+    private void endRead(MessageBuffer data, long token, int index, int length){
+        if(index + length >= writerIndex()){
+            data.endRead(token);
+        }
+    }
+
+    @Override
+    public void getBytes(int index, byte[] dst, int dstIndex, int length) {
+        long token = this.token;
+        MessageBuffer data = beginRead(token);
+        if(data == null){
+            Arrays.fill(dst, dstIndex, dstIndex + length, (byte) 0);
+            return;
+        }
+        data.getBytes(index, dst, dstIndex, length);
+        endRead(data, token, index, length);
+    }
+
+    @Override
+    public void getBytes(int index, ByteBuffer dst) {
+        long token = this.token;
+        int length = Math.min(capacity() - index, dst.remaining());
+        MessageBuffer data = beginRead(token);
+        if(data == null){
+            for(int i = 0; i < length; i++){
+                dst.put((byte) 0);
+            }
+            return;
+        }
+        data.getBytes(index, dst);
+        endRead(data, token, index, length);
+    }
+
+    @Override
+    public void getBytes(int index, ChannelBuffer dst, int dstIndex, int length) {
+        long token = this.token;
+        MessageBuffer data = beginRead(token);
+        if(data == null){
+            dst.setZero(dstIndex, length);
+            return;
+        }
+        data.getBytes(index, dst, dstIndex, length);
+        endRead(data, token, index, length);
+    }
+
+    @Override
+    public void getBytes(int index, OutputStream out, int length) throws IOException {
+        long token = this.token;
+        MessageBuffer data = beginRead(token);
+        if(data == null){
+            out.write(new byte[length]);
+            return;
+        }
+        data.getBytes(index, out, length);
+        endRead(data, token, index, length);
+    }
+
+    @Override
+    public int getBytes(int index, GatheringByteChannel out, int length) throws IOException {
+        long token = this.token;
+        MessageBuffer data = beginRead(token);
+        if(data == null){
+            return out.write(ByteBuffer.allocate(length));
+        }
+        int written = data.getBytes(index, out, length);
+        endRead(data, token, index, written);
+        return written;
+    }
+
+    // Single values read the bound buffer as is, serialization reads in bulk
+
+    @Override
+    public byte getByte(int index) {
+        return buffer.getByte(index);
+    }
+
+    @Override
+    public short getShort(int index) {
+        return buffer.getShort(index);
+    }
+
+    @Override
+    public int getUnsignedMedium(int index) {
+        return buffer.getUnsignedMedium(index);
+    }
+
+    @Override
+    public int getInt(int index) {
+        return buffer.getInt(index);
+    }
+
+    @Override
+    public long getLong(int index) {
+        return buffer.getLong(index);
+    }
+
+    @Override
+    public ChannelBufferFactory factory() {
+        return HeapChannelBufferFactory.getInstance(order());
+    }
+
+    @Override
+    public ByteOrder order() {
+        return ByteOrder.LITTLE_ENDIAN;
+    }
+
+    @Override
+    public boolean isDirect() {
+        return true;
+    }
+
+    @Override
+    public int capacity() {
+        MessageBuffer data = buffer;
+        return data != null ? data.capacity() : 0;
+    }
+
+    @Override
+    public boolean hasArray() {
+        return false;
+    }
+
+    @Override
+    public byte[] array() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public int arrayOffset() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public ChannelBuffer copy(int index, int length) {
+        ChannelBuffer copy = ChannelBuffers.buffer(order(), length);
+        copy.writeBytes(this, index, length);
+        return copy;
+    }
+
+    @Override
+    public ChannelBuffer slice(int index, int length) {
+        return new SlicedChannelBuffer(this, index, length);
+    }
+
+    @Override
+    public ChannelBuffer duplicate() {
+        return new DuplicatedChannelBuffer(this);
+    }
+
+    @Override
+    public ByteBuffer toByteBuffer(int index, int length) {
+        return buffer.toByteBuffer(index, length).asReadOnlyBuffer().order(order());
+    }
+
+    // Read-only
+
+    @Override
+    public void setByte(int index, int value) {
+        throw new ReadOnlyBufferException();
+    }
+
+    @Override
+    public void setShort(int index, int value) {
+        throw new ReadOnlyBufferException();
+    }
+
+    @Override
+    public void setMedium(int index, int value) {
+        throw new ReadOnlyBufferException();
+    }
+
+    @Override
+    public void setInt(int index, int value) {
+        throw new ReadOnlyBufferException();
+    }
+
+    @Override
+    public void setLong(int index, long value) {
+        throw new ReadOnlyBufferException();
+    }
+
+    @Override
+    public void setBytes(int index, ChannelBuffer src, int srcIndex, int length) {
+        throw new ReadOnlyBufferException();
+    }
+
+    @Override
+    public void setBytes(int index, byte[] src, int srcIndex, int length) {
+        throw new ReadOnlyBufferException();
+    }
+
+    @Override
+    public void setBytes(int index, ByteBuffer src) {
+        throw new ReadOnlyBufferException();
+    }
+
+    @Override
+    public int setBytes(int index, InputStream in, int length) {
+        throw new ReadOnlyBufferException();
+    }
+
+    @Override
+    public int setBytes(int index, ScatteringByteChannel in, int length) {
+        throw new ReadOnlyBufferException();
+    }
+
+}
@@ -0,0 +1,105 @@
+package com.MobileSLAM.RosCameraCapture;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.ros.node.topic.Publisher;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+/**
+ * Publisher cycling through a fixed ring of messages, nothing is allocated per publish
+ * rosjava queues published messages and serializes them on its own thread,
+ * a message is refilled only after messageCount later publishes
+ * Messages carrying MessageBuffer data own it until rosjava read it: every message publishes its data
+ * through a MessageBufferView bound to the acquire token, serialization releases the data once read to the end
+ * Data still unread when its message comes around again was dropped by rosjava or is that far behind,
+ * it is released then and counted as dropped, a late read of it finds the token gone and reads zeros
+ * One publishing thread per instance
+ * @param <T> message type, e.g. sensor_msgs.Image
+ */
+public class MessagePublisher<T> {
+
+    private final Publisher<T> publisher;
+    private final PipelineMetrics.Stage dropStage;
+
+    private final List<T> messages;
+    private final MessageBufferView[] views;
+    private int next = 0;
+
+    /**
+     * Publisher of messages without MessageBuffer data
+     * @param publisher rosjava publisher of the topic
+     * @param messageCount ring size, messages are refilled after this many later publishes
+     * @param initializer set the fields every message shares, e.g. frame id, may be null
+     */
+    public MessagePublisher(Publisher<T> publisher, int messageCount, Consumer<T> initializer) {
+        this(publisher, messageCount, initializer, null, null);
+    }
+
+    /**
+     * Publisher of messages carrying MessageBuffer data, MessageBufferPool.IN_FLIGHT_MESSAGES messages
+     * @param publisher rosjava publisher of the topic
+     * @param initializer set the fields every message shares, e.g. frame id and size, may be null
+     * @param dataSetter set the data field, e.g. sensor_msgs.Image::setData
+     * @param dropStage counts data released unread
+     */
+    public MessagePublisher(Publisher<T> publisher, Consumer<T> initializer,
+                            BiConsumer<T, ChannelBuffer> dataSetter, PipelineMetrics.Stage dropStage) {
+        this(publisher, MessageBufferPool.IN_FLIGHT_MESSAGES, initializer, dataSetter, dropStage);
+    }
+
+    private MessagePublisher(Publisher<T> publisher, int messageCount, Consumer<T> initializer,
+                             BiConsumer<T, ChannelBuffer> dataSetter, PipelineMetrics.Stage dropStage) {
+        this.publisher = publisher;
+        this.dropStage = dropStage;
+        this.messages = new ArrayList<>(messageCount);
+        this.views = dataSetter != null ? new MessageBufferView[messageCount] : null;
+        for(int i = 0; i < messageCount; i++){
+            T message = publisher.newMessage();
+            if(initializer != null){
+                initializer.accept(message);
+            }
+            messages.add(message);
+            if(views != null){
+                views[i] = new MessageBufferView();
+                dataSetter.accept(message, views[i]);
+            }
+        }
+    }
+
+    public Publisher<T> getPublisher(){
+        return publisher;
+    }
+
+    /**
+     * Message of the next publish, shared fields set, fill the rest and call publish()
+     */
+    public T nextMessage(){
+        return messages.get(next);
+    }
+
+    /**
+     * Publish nextMessage()
+     */
+    public void publish(){
+        T message = nextMessage();
+        next = (next + 1) % messages.size();
+        publisher.publish(message);
+    }
+
+    /**
+     * Publish nextMessage() with data
+     * @param data message data, owned by the publisher from now on
+     */
+    public void publish(MessageBuffer data){
+        MessageBufferView view = views[next];
+        if(view.releaseUnread()){
+            dropStage.drop(1);
+        }
+        view.bind(data);
+        publish();
+    }
+
+}
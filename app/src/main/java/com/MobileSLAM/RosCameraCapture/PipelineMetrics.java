@@ -0,0 +1,122 @@
+package com.MobileSLAM.RosCameraCapture;
+
+import android.os.Trace;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Per-stage latency and drop counts of one capture pipeline, e.g. "depth"
+ * Stages are created once at setup, timing a stage costs two System.nanoTime() calls
+ * and a few atomic adds, nothing is allocated or locked
+ * With tracing enabled each timed stage is also an android.os.Trace section for systrace,
+ * off by default so the Android-free users (DepthFrameProcessor on a JVM) never touch Trace
+ * Read periodically by DiagnosticsPublisher
+ */
+public class PipelineMetrics {
+
+    private static volatile boolean tracing = false;
+
+    /**
+     * Wrap timed stages in android.os.Trace sections, on device only
+     */
+    public static void setTracing(boolean enabled){
+        tracing = enabled;
+    }
+
+    /**
+     * One stage boundary, timed with begin() / end() on one thread, or fed with record()
+     */
+    public static class Stage {
+        private final String name;
+        private final String traceName;
+        private final LatencyHistogram histogram = new LatencyHistogram();
+        private final AtomicLong dropped = new AtomicLong();
+
+        private Stage(String pipeline, String name) {
+            this.name = name;
+            this.traceName = pipeline + "." + name;
+        }
+
+        public String getName(){
+            return name;
+        }
+
+        /**
+         * Start timing, pass the result to end() on the same thread
+         */
+        public long begin(){
+            if(tracing){
+                Trace.beginSection(traceName);
+            }
+            return System.nanoTime();
+        }
+
+        /**
+         * Record time since begin() and close its trace section
+         */
+        public void end(long beginNanos){
+            histogram.record(System.nanoTime() - beginNanos);
+            if(tracing){
+                Trace.endSection();
+            }
+        }
+
+        /**
+         * Record a latency measured elsewhere, e.g. capture to publish from the sensor timestamp
+         */
+        public void record(long nanos){
+            histogram.record(nanos);
+        }
+
+        /**
+         * Count frames lost at this stage
+         */
+        public void drop(long frames){
+            dropped.addAndGet(frames);
+        }
+
+        public LatencyHistogram getHistogram(){
+            return histogram;
+        }
+
+        public long getDropped(){
+            return dropped.get();
+        }
+    }
+
+    private final String name;
+    private final CopyOnWriteArrayList<Stage> stages = new CopyOnWriteArrayList<>();
+
+    /**
+     * @param name pipeline name, prefix of the trace sections
+     */
+    public PipelineMetrics(String name) {
+        this.name = name;
+    }
+
+    public String getName(){
+        return name;
+    }
+
+    /**
+     * Stage of this pipeline, created on first use
+     */
+    public synchronized Stage stage(String stageName){
+        for(Stage stage : stages){
+            if(stage.name.equals(stageName)) return stage;
+        }
+        Stage stage = new Stage(name, stageName);
+        stages.add(stage);
+        return stage;
+    }
+
+    /**
+     * Stages in creation order
+     */
+    public List<Stage> getStages(){
+        return stages;
+    }
+
+}
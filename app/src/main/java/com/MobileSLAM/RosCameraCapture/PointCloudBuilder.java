@@ -0,0 +1,245 @@
+package com.MobileSLAM.RosCameraCapture;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * sensor_msgs/PointCloud2 data from registered depth, written straight into message data
+ * Points in meter in the color camera frame, packed little-endian float32 x, y, z
+ * followed by rgb (uint32 0x00RRGGBB in a float32 field, PCL convention) if color is given
+ * Registered depth is sampled in the color camera model at depth frame size, so the ray of
+ * each pixel depends on the color intrinsics only and is looked up from a precomputed table
+ * Optional downsampling: every stride-th pixel in both directions, then a voxel grid
+ * that keeps the centroid (and mean color) of the points in each voxel
+ * Cloud is unorganized (height 1), pixels without depth are skipped, so it is always dense
+ * An instance must be used from one thread at a time
+ */
+public class PointCloudBuilder {
+
+    public static final int XYZ_POINT_STEP = 12;
+    public static final int XYZRGB_POINT_STEP = 16;
+
+    // Voxel grid coordinates packed into 21 bit per axis
+    private static final int VOXEL_BITS = 21;
+    private static final int VOXEL_OFFSET = 1 << (VOXEL_BITS - 1);
+    private static final long VOXEL_MASK = (1L << VOXEL_BITS) - 1;
+
+    private final CameraUtil.CameraParam colorParam;
+    private final int width;
+    private final int height;
+
+    // Ray of each registered pixel, per millimeter of depth
+    private float[] rayX;
+    private float[] rayY;
+    // Pixel of the low resolution color frame behind each registered pixel
+    private int[] colorIndex;
+    private int colorVersion = -1;
+
+    private int stride = 1;
+    private float voxelSize = 0;
+
+    // Voxel grid, open addressing from packed voxel coordinate to voxel, cleared after each frame
+    private final long[] voxelKeys;
+    private final int slotShift;
+    private final int[] voxelOfSlot;
+    private final int[] slotOfVoxel;
+    private final float[] sumX;
+    private final float[] sumY;
+    private final float[] sumZ;
+    private final int[] sumR;
+    private final int[] sumG;
+    private final int[] sumB;
+    private final int[] pointCount;
+    private int voxelCount = 0;
+
+    /**
+     * @param depthParam depth camera, defines frame size
+     * @param colorParam color camera the depth is registered to
+     */
+    public PointCloudBuilder(CameraUtil.CameraParam depthParam, CameraUtil.CameraParam colorParam) {
+        this.colorParam = colorParam;
+        width = depthParam.frameWidth;
+        height = depthParam.frameHeight;
+
+        int points = width * height;
+        int slots = Integer.highestOneBit(points * 2 - 1) << 1;
+        voxelKeys = new long[slots];
+        slotShift = 64 - Integer.numberOfTrailingZeros(slots);
+        voxelOfSlot = new int[slots];
+        Arrays.fill(voxelOfSlot, -1);
+        slotOfVoxel = new int[points];
+        sumX = new float[points];
+        sumY = new float[points];
+        sumZ = new float[points];
+        sumR = new int[points];
+        sumG = new int[points];
+        sumB = new int[points];
+        pointCount = new int[points];
+    }
+
+    /**
+     * Keep every stride-th pixel in both directions, 1 keeps all
+     */
+    public void setStride(int stride){
+        this.stride = Math.max(1, stride);
+    }
+
+    /**
+     * Voxel grid edge length in meter, 0 disables the voxel grid
+     */
+    public void setVoxelSize(float voxelSize){
+        this.voxelSize = Math.max(0, voxelSize);
+    }
+
+    public static int pointStep(boolean rgb){
+        return rgb ? XYZRGB_POINT_STEP : XYZ_POINT_STEP;
+    }
+
+    /**
+     * Message buffer size that holds a full resolution XYZRGB cloud
+     */
+    public int bufferCapacity(){
+        return width * height * XYZRGB_POINT_STEP;
+    }
+
+    /**
+     * Write point cloud into message data
+     * @param depth registered depth in millimeter, width * height
+     * @param color low resolution color frame as packed RGB (alpha ignored) at color camera frame size,
+     *              null for XYZ only
+     * @param message destination, length set to the cloud size
+     * @return number of points written
+     */
+    public int build(short[] depth, int[] color, MessageBuffer message){
+        updateTables();
+
+        int step = pointStep(color != null);
+        ByteBuffer out = message.getStorage();
+        int points = voxelSize > 0 ? buildVoxelGrid(depth, color, out, step) : buildPoints(depth, color, out, step);
+        message.setLength(points * step);
+        return points;
+    }
+
+    private int buildPoints(short[] depth, int[] color, ByteBuffer out, int step){
+        int points = 0;
+        for(int v = 0; v < height; v += stride){
+            for(int u = 0, index = v * width; u < width; u += stride, index += stride){
+                int z = depth[index] & 0xFFFF;
+                if(z == 0) continue;
+
+                int offset = points * step;
+                out.putFloat(offset, rayX[index] * z);
+                out.putFloat(offset + 4, rayY[index] * z);
+                out.putFloat(offset + 8, z / 1000.0f);
+                if(color != null){
+                    out.putInt(offset + 12, color[colorIndex[index]] & 0xFFFFFF);
+                }
+                points++;
+            }
+        }
+        return points;
+    }
+
+    private int buildVoxelGrid(short[] depth, int[] color, ByteBuffer out, int step){
+        float scale = 1 / voxelSize;
+        int slotMask = voxelKeys.length - 1;
+
+        for(int v = 0; v < height; v += stride){
+            for(int u = 0, index = v * width; u < width; u += stride, index += stride){
+                int z = depth[index] & 0xFFFF;
+                if(z == 0) continue;
+
+                float x = rayX[index] * z;
+                float y = rayY[index] * z;
+                float zm = z / 1000.0f;
+                long key = voxelCoordinate(x, scale)
+                        | voxelCoordinate(y, scale) << VOXEL_BITS
+                        | voxelCoordinate(zm, scale) << (2 * VOXEL_BITS);
+
+                // linear probing, the table holds at least twice the points of a frame
+                int slot = (int) (key * 0x9E3779B97F4A7C15L >>> slotShift);
+                int voxel;
+                while((voxel = voxelOfSlot[slot]) >= 0 && voxelKeys[slot] != key){
+                    slot = (slot + 1) & slotMask;
+                }
+                if(voxel < 0){
+                    voxel = voxelCount++;
+                    voxelKeys[slot] = key;
+                    voxelOfSlot[slot] = voxel;
+                    slotOfVoxel[voxel] = slot;
+                }
+
+                sumX[voxel] += x;
+                sumY[voxel] += y;
+                sumZ[voxel] += zm;
+                pointCount[voxel]++;
+                if(color != null){
+                    int rgb = color[colorIndex[index]];
+                    sumR[voxel] += (rgb >> 16) & 0xFF;
+                    sumG[voxel] += (rgb >> 8) & 0xFF;
+                    sumB[voxel] += rgb & 0xFF;
+                }
+            }
+        }
+
+        // centroids in voxel creation order, then reset the touched voxels for the next frame
+        for(int voxel = 0; voxel < voxelCount; voxel++){
+            int count = pointCount[voxel];
+            int offset = voxel * step;
+            out.putFloat(offset, sumX[voxel] / count);
+            out.putFloat(offset + 4, sumY[voxel] / count);
+            out.putFloat(offset + 8, sumZ[voxel] / count);
+            if(color != null){
+                int half = count / 2;
+                out.putInt(offset + 12, (sumR[voxel] + half) / count << 16
+                        | (sumG[voxel] + half) / count << 8
+                        | (sumB[voxel] + half) / count);
+            }
+
+            voxelOfSlot[slotOfVoxel[voxel]] = -1;
+            sumX[voxel] = sumY[voxel] = sumZ[voxel] = 0;
+            sumR[voxel] = sumG[voxel] = sumB[voxel] = 0;
+            pointCount[voxel] = 0;
+        }
+
+        int points = voxelCount;
+        voxelCount = 0;
+        return points;
+    }
+
+    private static long voxelCoordinate(float value, float scale){
+        return ((long) Math.floor(value * scale) + VOXEL_OFFSET) & VOXEL_MASK;
+    }
+
+    /**
+     * Ray and color lookup tables, rebuilt when the color camera parameters change
+     * Color intrinsics are rescaled to the depth frame size, as in DepthRegistration
+     */
+    private void updateTables(){
+        int version = colorParam.getVersion();
+        if(version == colorVersion) return;
+
+        double scaleX = (double) width / colorParam.frameWidth;
+        double scaleY = (double) height / colorParam.frameHeight;
+        double fx = colorParam._fx * scaleX;
+        double fy = colorParam._fy * scaleY;
+        double cx = colorParam._cx * scaleX;
+        double cy = colorParam._cy * scaleY;
+
+        rayX = new float[width * height];
+        rayY = new float[width * height];
+        colorIndex = new int[width * height];
+        for(int v = 0; v < height; v++){
+            int colorRow = Math.min(colorParam.frameHeight - 1, (int) (v / scaleY));
+            for(int u = 0; u < width; u++){
+                int index = v * width + u;
+                // depth in millimeter, scale to meter here
+                rayX[index] = (float) ((u - cx) / fx / 1000.0);
+                rayY[index] = (float) ((v - cy) / fy / 1000.0);
+                colorIndex[index] = colorRow * colorParam.frameWidth + Math.min(colorParam.frameWidth - 1, (int) (u / scaleX));
+            }
+        }
+        colorVersion = version;
+    }
+
+}
@@ -0,0 +1,16 @@
+package com.MobileSLAM.RosCameraCapture;
+
+import org.ros.concurrent.CancellableLoop;
+
+/**
+ * rosjava loop of a publish stage, takes finished messages from the stage before it
+ * and only publishes, so its executor thread runs at the publish priority
+ */
+public abstract class PublishLoop extends CancellableLoop {
+
+    @Override
+    protected void setup() {
+        StageThread.setCurrentPriority(StageThread.PRIORITY_PUBLISH);
+    }
+
+}
@@ -0,0 +1,232 @@
+package com.MobileSLAM.RosCameraCapture;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * Play a recording of FrameRecorder as frame source, no Android classes, runs on a plain JVM
+ * The file is memory-mapped once, planes are handed out as views into the mapping, nothing is copied
+ * Frames are indexed on open, a truncated last frame is ignored
+ * Plays on an own thread at the recorded frame intervals, or as fast as the listener takes them,
+ * benchmarks may read frames directly with readFrame()
+ */
+public class ReplayFrameSource implements FrameSource {
+
+    private final MappedByteBuffer data;
+    private final int format;
+    private final int width;
+    private final int height;
+    private final int planeCount;
+
+    // Start of each frame record in data
+    private final int[] frameOffsets;
+    private final long[] frameTimestamps;
+
+    private volatile boolean realtime = true;
+    private volatile boolean loop = false;
+    private volatile LongSupplier timeBase;
+
+    private Thread replayThread;
+    private final Frame frame = new Frame();        // replay thread only
+
+    /**
+     * Map and index a recording
+     * @param file recording of FrameRecorder, up to 2 GB
+     * @throws IOException file not readable, too large or not a recording
+     */
+    public ReplayFrameSource(File file) throws IOException {
+        try(RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r")){
+            FileChannel channel = randomAccessFile.getChannel();
+            if(channel.size() > Integer.MAX_VALUE){
+                throw new IOException("Recording larger than 2 GB: " + file);
+            }
+            // mapping stays valid after the channel is closed
+            data = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        data.order(ByteOrder.LITTLE_ENDIAN);
+
+        if(data.limit() < FrameRecorder.HEADER_SIZE || data.getInt(0) != FrameRecorder.MAGIC){
+            throw new IOException("Not a frame recording: " + file);
+        }
+        if(data.getInt(4) != FrameRecorder.VERSION){
+            throw new IOException("Unsupported recording version " + data.getInt(4) + ": " + file);
+        }
+        format = data.getInt(8);
+        width = data.getInt(12);
+        height = data.getInt(16);
+        planeCount = data.getInt(20);
+        if(planeCount < 1 || planeCount > MAX_PLANES){
+            throw new IOException("Invalid plane count " + planeCount + ": " + file);
+        }
+
+        // First pass counts complete frames, second records their offsets
+        int frames = 0;
+        for(int offset = FrameRecorder.HEADER_SIZE; (offset = nextFrame(offset)) > 0; ){
+            frames++;
+        }
+        frameOffsets = new int[frames];
+        frameTimestamps = new long[frames];
+        int offset = FrameRecorder.HEADER_SIZE;
+        for(int i = 0; i < frames; i++){
+            frameOffsets[i] = offset;
+            frameTimestamps[i] = data.getLong(offset);
+            offset = nextFrame(offset);
+        }
+    }
+
+    /**
+     * Offset of the frame after the one at offset
+     * @return -1 if the frame at offset is not complete
+     */
+    private int nextFrame(int offset){
+        long position = offset + FrameRecorder.FRAME_HEADER_SIZE;
+        long planes = position + (long) planeCount * FrameRecorder.PLANE_HEADER_SIZE;
+        if(planes > data.limit()) return -1;
+
+        for(int i = 0; i < planeCount; i++){
+            int length = data.getInt((int) position + 8);
+            if(length < 0) return -1;
+            planes += length;
+            position += FrameRecorder.PLANE_HEADER_SIZE;
+        }
+        return planes <= data.limit() ? (int) planes : -1;
+    }
+
+    @Override
+    public int getFormat() {
+        return format;
+    }
+
+    @Override
+    public int getWidth() {
+        return width;
+    }
+
+    @Override
+    public int getHeight() {
+        return height;
+    }
+
+    public int getFrameCount(){
+        return frameOffsets.length;
+    }
+
+    /**
+     * Wait for the recorded frame intervals, otherwise deliver the next frame as soon as the listener returns
+     */
+    public void setRealtime(boolean realtime){
+        this.realtime = realtime;
+    }
+
+    /**
+     * Start over after the last frame, timestamps keep increasing
+     */
+    public void setLoop(boolean loop){
+        this.loop = loop;
+    }
+
+    /**
+     * Shift timestamps so the first frame carries the current time of clock at start(),
+     * e.g. SystemClock::elapsedRealtimeNanos on device, null keeps the recorded timestamps
+     */
+    public void setTimeBase(LongSupplier clock){
+        timeBase = clock;
+    }
+
+    /**
+     * Frame view of a recorded frame, planes in native byte order
+     * Creates the plane views, a few small objects per call
+     * @param index frame index, 0 to getFrameCount() - 1
+     * @param frame destination, timestamp as recorded
+     */
+    public void readFrame(int index, Frame frame){
+        int offset = frameOffsets[index];
+        int planeData = offset + FrameRecorder.FRAME_HEADER_SIZE + planeCount * FrameRecorder.PLANE_HEADER_SIZE;
+
+        frame.format = format;
+        frame.width = width;
+        frame.height = height;
+        frame.timestamp = frameTimestamps[index];
+        frame.planeCount = planeCount;
+        for(int i = 0; i < planeCount; i++){
+            int planeHeader = offset + FrameRecorder.FRAME_HEADER_SIZE + i * FrameRecorder.PLANE_HEADER_SIZE;
+            int length = data.getInt(planeHeader + 8);
+
+            ByteBuffer plane = data.duplicate();
+            plane.limit(planeData + length);
+            plane.position(planeData);
+            frame.planes[i] = plane.slice().order(ByteOrder.nativeOrder());
+            frame.rowStrides[i] = data.getInt(planeHeader);
+            frame.pixelStrides[i] = data.getInt(planeHeader + 4);
+            planeData += length;
+        }
+    }
+
+    @Override
+    public synchronized void start(Listener listener) {
+        if(replayThread != null || frameOffsets.length == 0) return;
+
+        replayThread = new Thread(() -> replay(listener), "FrameReplay");
+        replayThread.start();
+    }
+
+    @Override
+    public synchronized void stop() {
+        if(replayThread == null) return;
+
+        replayThread.interrupt();
+        try {
+            replayThread.join();
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+        replayThread = null;
+    }
+
+    /**
+     * Replay thread, delivers frames until the end of the recording or stop()
+     */
+    private void replay(Listener listener){
+        int frames = frameOffsets.length;
+        long first = frameTimestamps[0];
+        // one loop lasts the recording plus one mean frame interval
+        long loopDuration = frames > 1
+                ? (frameTimestamps[frames - 1] - first) * frames / (frames - 1)
+                : TimeUnit.MILLISECONDS.toNanos(33);
+
+        LongSupplier clock = timeBase;
+        long shift = clock != null ? clock.getAsLong() - first : 0;
+        long startNanos = System.nanoTime();
+
+        try{
+            for(long loops = 0; !Thread.currentThread().isInterrupted(); loops++){
+                for(int i = 0; i < frames; i++){
+                    long elapsed = frameTimestamps[i] - first + loops * loopDuration;
+                    if(realtime){
+                        long delay = startNanos + elapsed - System.nanoTime();
+                        if(delay > 0){
+                            TimeUnit.NANOSECONDS.sleep(delay);
+                        }
+                    }else if(Thread.currentThread().isInterrupted()){
+                        return;
+                    }
+
+                    readFrame(i, frame);
+                    frame.timestamp = first + elapsed + shift;
+                    listener.onFrame(frame);
+                }
+                if(!loop) return;
+            }
+        }catch (InterruptedException e){
+            // stopped
+        }
+    }
+
+}
@@ -0,0 +1,255 @@
+package com.MobileSLAM.RosCameraCapture;
+
+/**
+ * Nearest sensor timestamp pairing of registered depth and color frames, see RgbdSynchronizer
+ * A depth frame is paired once a color frame at or after its timestamp arrived (no closer one can follow),
+ * or after maxLatency with the nearest pending color frame
+ * Frames further apart than maxOffset are never paired and counted as unmatched,
+ * frames pushed out of a full queue are counted as dropped, unpaired messages are released
+ * Arrival time is passed in, so matching runs off device with synthetic stamps
+ * Not thread safe, RgbdSynchronizer guards it
+ */
+public class RgbdMatcher {
+
+    // Pending frames per stream, about 130 ms at 30 fps
+    public static final int QUEUE_SIZE = 4;
+
+    /**
+     * Frame waiting for its partner, message data owned by the matcher
+     */
+    public static class Entry {
+        public long timestampNanos;         // sensor timestamp, elapsedRealtimeNanos() base
+        public MessageBuffer message;
+        public ColorConverter.Encoding encoding;
+        long arrivalNanos;
+
+        void set(Entry other){
+            timestampNanos = other.timestampNanos;
+            message = other.message;
+            encoding = other.encoding;
+            arrivalNanos = other.arrivalNanos;
+        }
+    }
+
+    /**
+     * Matched frames, the caller owns both messages
+     */
+    public static class Pair {
+        public final Entry color = new Entry();
+        public final Entry depth = new Entry();
+    }
+
+    /**
+     * Fixed ring of pending entries, oldest first
+     */
+    private static class Queue {
+        final Entry[] entries = new Entry[QUEUE_SIZE];
+        int head = 0;
+        int count = 0;
+
+        Queue() {
+            for(int i = 0; i < entries.length; i++){
+                entries[i] = new Entry();
+            }
+        }
+
+        Entry get(int i){
+            return entries[(head + i) % entries.length];
+        }
+
+        Entry push(){
+            Entry entry = entries[(head + count) % entries.length];
+            count++;
+            return entry;
+        }
+
+        void pop(){
+            Entry entry = entries[head];
+            entry.message = null;
+            head = (head + 1) % entries.length;
+            count--;
+        }
+
+        void releaseHead(){
+            get(0).message.release();
+            pop();
+        }
+    }
+
+    private final Queue colorQueue = new Queue();
+    private final Queue depthQueue = new Queue();
+
+    private long maxOffsetNanos = 20_000_000L;
+    private long maxLatencyNanos = 100_000_000L;
+
+    private long pairs = 0;
+    private long unmatchedColor = 0;
+    private long unmatchedDepth = 0;
+    private long droppedColor = 0;
+    private long droppedDepth = 0;
+
+    /**
+     * Pairing window, frames further apart are not paired
+     */
+    public void setMaxOffset(long nanos){
+        maxOffsetNanos = nanos;
+    }
+
+    public long getMaxOffset(){
+        return maxOffsetNanos;
+    }
+
+    /**
+     * Longest wait for a better partner before a depth frame is paired with what is there
+     */
+    public void setMaxLatency(long nanos){
+        maxLatencyNanos = nanos;
+    }
+
+    public long getMaxLatency(){
+        return maxLatencyNanos;
+    }
+
+    /**
+     * Queue a color frame, ownership of message passes to the matcher
+     * @param nowNanos arrival time, System.nanoTime() base
+     */
+    public void offerColor(long timestampNanos, ColorConverter.Encoding encoding, MessageBuffer message, long nowNanos){
+        if(colorQueue.count == QUEUE_SIZE){
+            colorQueue.releaseHead();
+            droppedColor++;
+        }
+        offer(colorQueue, timestampNanos, encoding, message, nowNanos);
+    }
+
+    /**
+     * Queue a registered depth frame, ownership of message passes to the matcher
+     * @param nowNanos arrival time, System.nanoTime() base
+     */
+    public void offerDepth(long timestampNanos, MessageBuffer message, long nowNanos){
+        if(depthQueue.count == QUEUE_SIZE){
+            depthQueue.releaseHead();
+            droppedDepth++;
+        }
+        offer(depthQueue, timestampNanos, null, message, nowNanos);
+    }
+
+    private static void offer(Queue queue, long timestampNanos, ColorConverter.Encoding encoding, MessageBuffer message, long nowNanos){
+        Entry entry = queue.push();
+        entry.timestampNanos = timestampNanos;
+        entry.encoding = encoding;
+        entry.message = message;
+        entry.arrivalNanos = nowNanos;
+    }
+
+    /**
+     * Pair the oldest depth frame if it is decided
+     * @param out receives both frames on success, the caller owns their messages
+     * @param nowNanos current time, System.nanoTime() base
+     * @return 0 if out holds a pair, otherwise time to wait for more frames
+     */
+    public long match(Pair out, long nowNanos){
+        while(depthQueue.count > 0){
+            Entry depth = depthQueue.get(0);
+
+            // depth frames arrive in order, colors this old never match again
+            while(colorQueue.count > 0 && colorQueue.get(0).timestampNanos < depth.timestampNanos - maxOffsetNanos){
+                dropColor();
+            }
+
+            long waited = nowNanos - depth.arrivalNanos;
+            if(colorQueue.count == 0){
+                if(waited < maxLatencyNanos) return maxLatencyNanos - waited;
+                dropDepth();
+                continue;
+            }
+
+            int best = 0;
+            long bestOffset = Long.MAX_VALUE;
+            for(int i = 0; i < colorQueue.count; i++){
+                long offset = Math.abs(colorQueue.get(i).timestampNanos - depth.timestampNanos);
+                if(offset < bestOffset){
+                    best = i;
+                    bestOffset = offset;
+                }
+            }
+
+            if(bestOffset > maxOffsetNanos){
+                // all pending colors are later than the window
+                dropDepth();
+                continue;
+            }
+
+            boolean decided = colorQueue.get(colorQueue.count - 1).timestampNanos >= depth.timestampNanos;
+            if(!decided && waited < maxLatencyNanos){
+                return maxLatencyNanos - waited;
+            }
+
+            for(int i = 0; i < best; i++){
+                dropColor();
+            }
+            out.color.set(colorQueue.get(0));
+            out.depth.set(depth);
+            colorQueue.pop();
+            depthQueue.pop();
+            pairs++;
+            return 0;
+        }
+
+        return maxLatencyNanos;
+    }
+
+    private void dropColor(){
+        colorQueue.releaseHead();
+        unmatchedColor++;
+    }
+
+    private void dropDepth(){
+        depthQueue.releaseHead();
+        unmatchedDepth++;
+    }
+
+    /**
+     * Release all pending frames, statistics are kept
+     */
+    public void clear(){
+        while(colorQueue.count > 0){
+            colorQueue.releaseHead();
+        }
+        while(depthQueue.count > 0){
+            depthQueue.releaseHead();
+        }
+    }
+
+    /**
+     * Pending frames, {color, depth}
+     */
+    public int[] getPending(){
+        return new int[] {colorQueue.count, depthQueue.count};
+    }
+
+    public long getPairs() {
+        return pairs;
+    }
+
+    /**
+     * Frames without partner within maxOffset, {color, depth}
+     */
+    public long[] getUnmatched() {
+        return new long[] {unmatchedColor, unmatchedDepth};
+    }
+
+    /**
+     * Frames pushed out of a full queue, {color, depth}
+     */
+    public long[] getDropped() {
+        return new long[] {droppedColor, droppedDepth};
+    }
+
+    @Override
+    public String toString(){
+        return "pairs " + pairs + ", unmatched color " + unmatchedColor + " depth " + unmatchedDepth
+                + ", dropped color " + droppedColor + " depth " + droppedDepth;
+    }
+
+}
@@ -0,0 +1,337 @@
+package com.MobileSLAM.RosCameraCapture;
+
+import android.util.Log;
+
+import org.ros.android.RosActivity;
+import org.ros.concurrent.CancellableLoop;
+import org.ros.message.Time;
+import org.ros.namespace.GraphName;
+import org.ros.node.ConnectedNode;
+import org.ros.node.Node;
+import org.ros.node.NodeConfiguration;
+import org.ros.node.NodeMain;
+import org.ros.node.NodeMainExecutor;
+import org.ros.node.parameter.ParameterTree;
+import org.ros.node.topic.Publisher;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Pair registered depth and low resolution color frames by nearest sensor timestamp
+ * and publish each pair with one stamp, consumers need no approximate-time buffering
+ * Both cameras hand in message data while the rgbd topics have subscribers, see isEnabled()
+ * Pairing rules are in RgbdMatcher, this class guards it and waits for decided pairs
+ */
+public class RgbdSynchronizer {
+
+    final static private String TAG = RgbdSynchronizer.class.getSimpleName();
+
+    final static private long STATS_INTERVAL_NANOS = 10_000_000_000L;
+
+    private final RosActivity mMainActivity;
+    private final CameraUtil.CameraParam colorParam;
+    private final CameraUtil.CameraParam depthParam;
+
+    private final MessageBufferPool colorMessagePool;
+    private final MessageBufferPool depthMessagePool;
+
+    // Guarded by this
+    private final RgbdMatcher matcher = new RgbdMatcher();
+
+    // Publish time per stream, frames lost for want of a buffer and data released unread, on /diagnostics
+    private final PipelineMetrics metrics = new PipelineMetrics("rgbd");
+    private final PipelineMetrics.Stage colorStage = metrics.stage("color");
+    private final PipelineMetrics.Stage depthStage = metrics.stage("depth");
+
+    private final StreamGate gate = new StreamGate("~rgb/image, ~depth_registered/image");
+    private final CopyOnWriteArrayList<Runnable> enabledListeners = new CopyOnWriteArrayList<>();
+
+    public String colorFrameId = "camera_link";
+    public String depthFrameId = "/depth";
+
+    /**
+     * @param context main activity, for the ROS master
+     * @param colorParam low resolution color camera
+     * @param depthParam depth camera, registered depth has its frame size
+     */
+    public RgbdSynchronizer(RosActivity context, CameraUtil.CameraParam colorParam, CameraUtil.CameraParam depthParam) {
+        this.mMainActivity = context;
+        this.colorParam = colorParam;
+        this.depthParam = depthParam;
+
+        // Every queued frame and the one being filled hold a buffer, bgra8 at most for color, 16UC1 depth
+        colorMessagePool = MessageBufferPool.forFrame(colorParam, 4, RgbdMatcher.QUEUE_SIZE + 1);
+        depthMessagePool = MessageBufferPool.forFrame(depthParam, 2, RgbdMatcher.QUEUE_SIZE + 1);
+
+        gate.setListener((streamGate, open) -> {
+            if(!open) clear();
+            for(Runnable listener : enabledListeners){
+                listener.run();
+            }
+        });
+    }
+
+    /**
+     * Pairing window, frames further apart are not paired
+     */
+    public synchronized void setMaxOffset(long nanos){
+        matcher.setMaxOffset(nanos);
+    }
+
+    /**
+     * Longest wait for a better partner before a depth frame is paired with what is there
+     */
+    public synchronized void setMaxLatency(long nanos){
+        matcher.setMaxLatency(nanos);
+    }
+
+    /**
+     * Whether the cameras should hand in frames, i.e. the rgbd topics have subscribers
+     */
+    public boolean isEnabled(){
+        return gate.isOpen();
+    }
+
+    /**
+     * Called from the thread that noticed a change of isEnabled()
+     */
+    public void addEnabledListener(Runnable listener){
+        enabledListeners.add(listener);
+    }
+
+    /**
+     * Publish timing and drops per stream, see DiagnosticsPublisher
+     */
+    public PipelineMetrics getMetrics(){
+        return metrics;
+    }
+
+    /**
+     * Buffer for a color frame, fill it and pass it to offerColor()
+     * @return null if every buffer is queued or in flight, the frame is dropped
+     */
+    public MessageBuffer acquireColorBuffer(){
+        MessageBuffer buffer = colorMessagePool.acquire();
+        if(buffer == null){
+            colorStage.drop(1);
+        }
+        return buffer;
+    }
+
+    /**
+     * Buffer for a 16UC1 depth frame, fill it and pass it to offerDepth()
+     * @return null if every buffer is queued or in flight, the frame is dropped
+     */
+    public MessageBuffer acquireDepthBuffer(){
+        MessageBuffer buffer = depthMessagePool.acquire();
+        if(buffer == null){
+            depthStage.drop(1);
+        }
+        return buffer;
+    }
+
+    /**
+     * Hand in a color frame, ownership of message passes to the synchronizer
+     * @param timestampNanos sensor timestamp, elapsedRealtimeNanos() base
+     */
+    public synchronized void offerColor(long timestampNanos, ColorConverter.Encoding encoding, MessageBuffer message){
+        matcher.offerColor(timestampNanos, encoding, message, System.nanoTime());
+        notifyAll();
+    }
+
+    /**
+     * Hand in a registered depth frame (16UC1), ownership of message passes to the synchronizer
+     * @param timestampNanos sensor timestamp, elapsedRealtimeNanos() base
+     */
+    public synchronized void offerDepth(long timestampNanos, MessageBuffer message){
+        matcher.offerDepth(timestampNanos, message, System.nanoTime());
+        notifyAll();
+    }
+
+    /**
+     * Wait for the next pair
+     * @param out receives both frames, the caller owns their messages
+     * @throws InterruptedException thread interrupted while waiting
+     */
+    public synchronized void takePair(RgbdMatcher.Pair out) throws InterruptedException {
+        while(true){
+            long waitNanos = matcher.match(out, System.nanoTime());
+            if(waitNanos == 0) return;
+            long waitMillis = Math.max(1, waitNanos / 1_000_000);
+            wait(waitMillis);
+        }
+    }
+
+    /**
+     * Release all pending frames, e.g. once nobody subscribes
+     */
+    public synchronized void clear(){
+        matcher.clear();
+    }
+
+    public synchronized long getPairs() {
+        return matcher.getPairs();
+    }
+
+    /**
+     * Frames without partner within maxOffset, {color, depth}
+     */
+    public synchronized long[] getUnmatched() {
+        return matcher.getUnmatched();
+    }
+
+    /**
+     * Frames pushed out of a full queue, {color, depth}
+     */
+    public synchronized long[] getDropped() {
+        return matcher.getDropped();
+    }
+
+    private synchronized String statistics(){
+        return matcher.toString();
+    }
+
+
+    /**
+     * Start ROS node publishing synchronized pairs
+     * Started node will running in new thread
+     * @param nodeMainExecutor ROS activity node executor
+     */
+    public void startRosNode(NodeMainExecutor nodeMainExecutor){
+
+        NodeConfiguration nodeConfiguration = NodeConfiguration.newPublic(mMainActivity.getRosHostname());
+        nodeConfiguration.setMasterUri(mMainActivity.getMasterUri());
+        nodeConfiguration.setNodeName("mobile_camera/rgbd");
+
+        nodeMainExecutor.execute(publishNodeRgbd, nodeConfiguration);
+    }
+
+    private static sensor_msgs.CameraInfo cameraInfo(Publisher<sensor_msgs.CameraInfo> publisher, CameraUtil.CameraParam param, String frameId){
+        sensor_msgs.CameraInfo info = publisher.newMessage();
+        info.getHeader().setFrameId(frameId);
+        info.setHeight(param.frameHeight);
+        info.setWidth(param.frameWidth);
+        info.setDistortionModel("plumb_bob");
+        info.setD(param.getDistortionParam());
+        info.setK(param.getK());
+        info.setR(new double[] {1, 0, 0, 0, 1, 0, 0, 0, 1});
+        info.getRoi().setHeight(param.frameHeight);
+        info.getRoi().setWidth(param.frameWidth);
+        info.setP(param.getP());
+        return info;
+    }
+
+    /**
+     * ROS node publishing color and registered depth pairs
+     * Both images and camera infos of a pair carry the depth sensor timestamp
+     * Send color in sensor_msgs/Image (~image encoding of the color node) and depth in sensor_msgs/Image (16UC1)
+     */
+    private final NodeMain publishNodeRgbd = new NodeMain() {
+        @Override
+        public GraphName getDefaultNodeName() {
+            return GraphName.of("rgbd");
+        }
+
+        @Override
+        public void onStart(ConnectedNode connectedNode) {
+
+            // Ring of messages owning their data until serialized, see MessagePublisher
+            MessagePublisher<sensor_msgs.Image> colorPublisher = new MessagePublisher<>(
+                    connectedNode.newPublisher("~rgb/image", sensor_msgs.Image._TYPE), colorImg -> {
+                colorImg.setWidth(colorParam.frameWidth);
+                colorImg.setHeight(colorParam.frameHeight);
+                colorImg.setIsBigendian((byte) 0);
+                colorImg.getHeader().setFrameId(colorFrameId);
+            }, sensor_msgs.Image::setData, colorStage);
+
+            MessagePublisher<sensor_msgs.Image> depthPublisher = new MessagePublisher<>(
+                    connectedNode.newPublisher("~depth_registered/image", sensor_msgs.Image._TYPE), depthImg -> {
+                depthImg.setWidth(depthParam.frameWidth);
+                depthImg.setHeight(depthParam.frameHeight);
+                depthImg.setIsBigendian((byte) 0);
+                depthImg.setEncoding("16UC1");
+                depthImg.setStep(depthParam.frameWidth * 2);
+                depthImg.getHeader().setFrameId(depthFrameId);
+            }, sensor_msgs.Image::setData, depthStage);
+
+            Publisher<sensor_msgs.CameraInfo> colorInfoPublisher = connectedNode.newPublisher("~rgb/camera_info", sensor_msgs.CameraInfo._TYPE);
+            sensor_msgs.CameraInfo colorInfo = cameraInfo(colorInfoPublisher, colorParam, colorFrameId);
+            Publisher<sensor_msgs.CameraInfo> depthInfoPublisher = connectedNode.newPublisher("~depth_registered/camera_info", sensor_msgs.CameraInfo._TYPE);
+            sensor_msgs.CameraInfo depthInfo = cameraInfo(depthInfoPublisher, depthParam, depthFrameId);
+
+            // Pairing window and latency bound in seconds, e.g. _max_offset:=0.015 _max_latency:=0.05
+            ParameterTree params = connectedNode.getParameterTree();
+            synchronized (RgbdSynchronizer.this){
+                matcher.setMaxOffset((long) (params.getDouble("~max_offset", matcher.getMaxOffset() / 1e9) * 1e9));
+                matcher.setMaxLatency((long) (params.getDouble("~max_latency", matcher.getMaxLatency() / 1e9) * 1e9));
+            }
+
+            gate.addPublisher(colorPublisher.getPublisher());
+            gate.addPublisher(depthPublisher.getPublisher());
+
+            RgbdMatcher.Pair pair = new RgbdMatcher.Pair();
+
+            connectedNode.executeCancellableLoop(new CancellableLoop() {
+                private long lastStatsNanos = System.nanoTime();
+
+                @Override
+                protected void loop(){
+
+                    try{
+                        gate.awaitOpen();
+                        takePair(pair);
+                    }catch (InterruptedException e){
+                        e.printStackTrace();
+                        return;
+                    }
+
+                    Time timestamp = SensorClock.toRosTime(pair.depth.timestampNanos, connectedNode.getCurrentTime());
+
+                    sensor_msgs.Image colorImg = colorPublisher.nextMessage();
+                    colorImg.getHeader().setStamp(timestamp);
+                    colorImg.setEncoding(pair.color.encoding.rosEncoding);
+                    colorImg.setStep(colorParam.frameWidth * pair.color.encoding.stepBytes);
+                    long begin = colorStage.begin();
+                    colorPublisher.publish(pair.color.message);
+                    colorStage.end(begin);
+
+                    depthPublisher.nextMessage().getHeader().setStamp(timestamp);
+                    begin = depthStage.begin();
+                    depthPublisher.publish(pair.depth.message);
+                    depthStage.end(begin);
+
+                    colorInfo.getHeader().setStamp(timestamp);
+                    colorInfoPublisher.publish(colorInfo);
+                    depthInfo.getHeader().setStamp(timestamp);
+                    depthInfoPublisher.publish(depthInfo);
+
+                    pair.color.message = null;
+                    pair.depth.message = null;
+
+                    long now = System.nanoTime();
+                    if(now - lastStatsNanos > STATS_INTERVAL_NANOS){
+                        Log.i(TAG, statistics());
+                        lastStatsNanos = now;
+                    }
+                }
+            });
+
+        }
+
+        @Override
+        public void onShutdown(Node node) {
+
+        }
+
+        @Override
+        public void onShutdownComplete(Node node) {
+
+        }
+
+        @Override
+        public void onError(Node node, Throwable throwable) {
+
+        }
+    };
+
+}
@@ -0,0 +1,150 @@
+package com.MobileSLAM.RosCameraCapture;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Run a per-row task over a frame in horizontal bands on a fixed set of worker threads
+ * The calling thread works on bands too and returns once every band is done
+ * Workers are started once and parked between frames, nothing is allocated per call
+ */
+public class RowParallelExecutor {
+
+    /**
+     * Work on rows [rowStart, rowEnd), bands never overlap
+     */
+    public interface RowTask {
+        void run(int rowStart, int rowEnd);
+    }
+
+    private final Thread[] workers;
+    private final Runnable workerSetup;
+    private final int bandCount;
+
+    private volatile RowTask currentTask;
+    private volatile int currentRows;
+    private volatile Thread callerThread;
+    private volatile int generation = 0;
+    private volatile boolean shutdown = false;
+    private volatile Throwable failure;
+
+    private final AtomicInteger nextBand = new AtomicInteger();
+    private final AtomicInteger pendingBands = new AtomicInteger();
+
+    /**
+     * @param workerCount number of worker threads besides the caller, 0 runs everything on the caller
+     * @param name thread name prefix
+     */
+    public RowParallelExecutor(int workerCount, String name) {
+        this(workerCount, name, null);
+    }
+
+    /**
+     * @param workerCount number of worker threads besides the caller, 0 runs everything on the caller
+     * @param name thread name prefix
+     * @param workerSetup run once on every worker before its first band, e.g. to set the thread priority, may be null
+     */
+    public RowParallelExecutor(int workerCount, String name, Runnable workerSetup) {
+        this.workerSetup = workerSetup;
+        workers = new Thread[workerCount];
+        bandCount = workerCount + 1;
+        for(int i = 0; i < workerCount; i++){
+            workers[i] = new Thread(workerLoop, name + "_" + i);
+            workers[i].setDaemon(true);
+            workers[i].start();
+        }
+    }
+
+    /**
+     * Worker count suited for this device, leaves one core for camera and ROS threads
+     */
+    public static int defaultWorkerCount(){
+        return Math.max(0, Math.min(3, Runtime.getRuntime().availableProcessors() - 2));
+    }
+
+    /**
+     * Split rows into bands and run task on all of them
+     * Calls from different threads are serialized
+     * @param rows frame height
+     * @param task work for a band of rows
+     */
+    public synchronized void forEachBand(int rows, RowTask task){
+        if(workers.length == 0 || rows < bandCount){
+            task.run(0, rows);
+            return;
+        }
+
+        currentTask = task;
+        currentRows = rows;
+        callerThread = Thread.currentThread();
+        failure = null;
+        pendingBands.set(bandCount);
+        nextBand.set(0);
+        generation++;
+        for(Thread worker : workers){
+            LockSupport.unpark(worker);
+        }
+
+        runBands();
+        while(pendingBands.get() > 0){
+            LockSupport.park(this);
+        }
+        currentTask = null;
+
+        if(failure != null){
+            throw new RuntimeException("Row task failed", failure);
+        }
+    }
+
+    /**
+     * Stop worker threads, the executor must not be used afterwards
+     */
+    public void shutdown(){
+        shutdown = true;
+        for(Thread worker : workers){
+            LockSupport.unpark(worker);
+        }
+        try{
+            for(Thread worker : workers){
+                worker.join();
+            }
+        }catch (InterruptedException e){
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void runBands(){
+        int band;
+        while((band = nextBand.getAndIncrement()) < bandCount){
+            int rows = currentRows;
+            try{
+                currentTask.run(rows * band / bandCount, rows * (band + 1) / bandCount);
+            }catch (Throwable t){
+                failure = t;
+            }
+            if(pendingBands.decrementAndGet() == 0){
+                LockSupport.unpark(callerThread);
+            }
+        }
+    }
+
+    private final Runnable workerLoop = new Runnable() {
+        @Override
+        public void run() {
+            if(workerSetup != null){
+                workerSetup.run();
+            }
+            int seenGeneration = 0;
+            while(!shutdown){
+                int current = generation;
+                if(current != seenGeneration){
+                    seenGeneration = current;
+                    runBands();
+                }else{
+                    LockSupport.park(this);
+                }
+            }
+        }
+    };
+
+}
@@ -0,0 +1,172 @@
+package com.MobileSLAM.RosCameraCapture;
+
+import java.nio.ByteBuffer;
+
+/**
+ * RVL lossless depth codec (run length of zeros / non-zeros, variable length deltas)
+ * A. D. Wilson, "Fast Lossless Depth Image Compression", ISS 2017,
+ * bit-compatible with the RvlCodec of compressed_depth_image_transport
+ * Encoded data is a sequence of little-endian 32 bit words, 4 bit nibbles from the top
+ * Encoder and decoder keep their state in fields, nothing is allocated per frame,
+ * an instance must be used from one thread at a time
+ */
+public class RvlCodec {
+
+    // Encoder / decoder state
+    private ByteBuffer buffer;
+    private int position;
+    private int limit;
+    private int word;
+    private int nibbles;
+    private boolean overflow;
+
+    /**
+     * Upper bound of encoded size in bytes, any 16 bit depth content
+     */
+    public static int maxEncodedSize(int pixels){
+        return 4 * pixels + 8;
+    }
+
+    /**
+     * Encode depth frame into out, starting at out.position(), positions are not changed
+     * @param depth depth values, unsigned 16 bit
+     * @param length number of pixels
+     * @param out destination, written up to out.limit()
+     * @return number of bytes written, -1 if out has not enough room
+     */
+    public int encode(short[] depth, int length, ByteBuffer out){
+        buffer = out;
+        position = out.position();
+        limit = out.limit();
+        word = 0;
+        nibbles = 0;
+        overflow = false;
+
+        int start = position;
+        int previous = 0;
+        int index = 0;
+        while(index < length && !overflow){
+            int zeros = 0;
+            for(; index < length && depth[index] == 0; index++, zeros++);
+            encodeVLE(zeros);
+
+            int nonzeros = 0;
+            for(int p = index; p < length && depth[p] != 0; p++, nonzeros++);
+            encodeVLE(nonzeros);
+
+            for(int i = 0; i < nonzeros; i++){
+                int current = depth[index++] & 0xFFFF;
+                int delta = current - previous;
+                encodeVLE((delta << 1) ^ (delta >> 31));    // zigzag, small magnitudes first
+                previous = current;
+            }
+        }
+
+        // last few values
+        if(nibbles != 0){
+            writeWord(word << 4 * (8 - nibbles));
+        }
+
+        buffer = null;
+        return overflow ? -1 : position - start;
+    }
+
+    /**
+     * Decode depth frame from in, starting at in.position(), positions are not changed
+     * @param in encoded data
+     * @param out decoded depth values
+     * @param length number of pixels
+     * @return number of bytes read
+     */
+    public int decode(ByteBuffer in, short[] out, int length){
+        buffer = in;
+        position = in.position();
+        limit = in.limit();
+        nibbles = 0;
+
+        int start = position;
+        int previous = 0;
+        int index = 0;
+        int remaining = length;
+        while(remaining > 0){
+            int zeros = decodeVLE();
+            remaining -= zeros;
+            for(; zeros > 0; zeros--){
+                out[index++] = 0;
+            }
+
+            int nonzeros = decodeVLE();
+            remaining -= nonzeros;
+            for(; nonzeros > 0; nonzeros--){
+                int positive = decodeVLE();
+                int delta = (positive >>> 1) ^ -(positive & 1);
+                int current = previous + delta;
+                out[index++] = (short) current;
+                previous = current;
+            }
+        }
+
+        buffer = null;
+        return position - start;
+    }
+
+    /**
+     * 3 value bits per nibble, low bits first, top bit set while more nibbles follow
+     */
+    private void encodeVLE(int value){
+        do{
+            int nibble = value & 0x7;
+            value >>>= 3;
+            if(value != 0) nibble |= 0x8;
+            word = (word << 4) | nibble;
+            if(++nibbles == 8){
+                writeWord(word);
+                nibbles = 0;
+                word = 0;
+            }
+        }while(value != 0);
+    }
+
+    private int decodeVLE(){
+        int nibble;
+        int value = 0;
+        int bits = 29;
+        do{
+            if(nibbles == 0){
+                word = readWord();
+                nibbles = 8;
+            }
+            nibble = word & 0xF0000000;
+            value |= (nibble << 1) >>> bits;
+            word <<= 4;
+            nibbles--;
+            bits -= 3;
+        }while((nibble & 0x80000000) != 0);
+        return value;
+    }
+
+    private void writeWord(int value){
+        if(position + 4 > limit){
+            overflow = true;
+            return;
+        }
+        buffer.put(position, (byte) value);
+        buffer.put(position + 1, (byte) (value >> 8));
+        buffer.put(position + 2, (byte) (value >> 16));
+        buffer.put(position + 3, (byte) (value >> 24));
+        position += 4;
+    }
+
+    private int readWord(){
+        if(position + 4 > limit){
+            throw new IndexOutOfBoundsException("RVL data truncated at " + position);
+        }
+        int value = (buffer.get(position) & 0xFF)
+                | (buffer.get(position + 1) & 0xFF) << 8
+                | (buffer.get(position + 2) & 0xFF) << 16
+                | (buffer.get(position + 3) & 0xFF) << 24;
+        position += 4;
+        return value;
+    }
+
+}
@@ -0,0 +1,78 @@
+package com.MobileSLAM.RosCameraCapture;
+
+import android.hardware.camera2.CameraAccessException;
+import android.hardware.camera2.CameraCharacteristics;
+import android.hardware.camera2.CameraManager;
+import android.os.SystemClock;
+
+import org.ros.message.Time;
+
+/**
+ * Convert camera sensor timestamps (Image.getTimestamp(), start of exposure) to ROS time
+ * REALTIME sensors count in SystemClock.elapsedRealtimeNanos(), UNKNOWN ones in the monotonic clock,
+ * frames are stamped on the elapsedRealtimeNanos() base so timestamps of both cameras compare
+ * At publishing the age of the frame is subtracted from the current ROS time,
+ * messages carry the capture time instead of the time they were published
+ */
+public class SensorClock {
+
+    private final boolean realtime;
+
+    /**
+     * @param realtime timestamps in elapsedRealtimeNanos() time base
+     */
+    public SensorClock(boolean realtime) {
+        this.realtime = realtime;
+    }
+
+    /**
+     * Clock of a camera from its SENSOR_INFO_TIMESTAMP_SOURCE
+     */
+    public static SensorClock forCamera(CameraManager cameraManager, String cameraId){
+        try {
+            Integer source = cameraManager.getCameraCharacteristics(cameraId).get(CameraCharacteristics.SENSOR_INFO_TIMESTAMP_SOURCE);
+            return new SensorClock(source != null && source == CameraCharacteristics.SENSOR_INFO_TIMESTAMP_SOURCE_REALTIME);
+        } catch (CameraAccessException e) {
+            e.printStackTrace();
+        }
+        return new SensorClock(false);
+    }
+
+    /**
+     * Sensor timestamp on the SystemClock.elapsedRealtimeNanos() time base, common to all cameras
+     * Frames carry this value, see toRosTime()
+     */
+    public long toRealtimeNanos(long sensorNanos){
+        if(realtime) return sensorNanos;
+        return sensorNanos + SystemClock.elapsedRealtimeNanos() - System.nanoTime();
+    }
+
+    /**
+     * ROS time of a frame timestamp
+     * @param realtimeNanos timestamp from toRealtimeNanos(), 0 for unknown (then now is returned)
+     * @param now current ROS time, e.g. connectedNode.getCurrentTime()
+     */
+    public static Time toRosTime(long realtimeNanos, Time now){
+        if(realtimeNanos == 0) return now;
+        long age = Math.max(0, SystemClock.elapsedRealtimeNanos() - realtimeNanos);
+        return Time.fromNano(now.totalNsecs() - age);
+    }
+
+    /**
+     * Offset from the elapsedRealtimeNanos() base to ROS time in nanoseconds,
+     * read once per batch of a high rate stream instead of toRosTime() per sample
+     * @param now current ROS time, e.g. connectedNode.getCurrentTime()
+     */
+    public static long rosTimeOffsetNanos(Time now){
+        return now.totalNsecs() - SystemClock.elapsedRealtimeNanos();
+    }
+
+    /**
+     * Set time in place to a ROS time in nanoseconds, e.g. the stamp of a reused message
+     */
+    public static void setRosTime(Time time, long rosNanos){
+        time.secs = (int) (rosNanos / 1_000_000_000L);
+        time.nsecs = (int) (rosNanos % 1_000_000_000L);
+    }
+
+}
@@ -0,0 +1,81 @@
+package com.MobileSLAM.RosCameraCapture;
+
+import android.os.Process;
+import android.util.Log;
+
+/**
+ * Thread of one pipeline stage, repeating its step with a fixed Linux thread priority until stopped
+ * Stages hand frames over through FrameExchanger / FrameFanOut / FrameQueue, the step blocks on
+ * its input, so stop() interrupts the wait and joins the thread
+ * Priorities from acquire to preview: draining the camera must never wait for serialization,
+ * the publish stage only writes finished messages so it runs just above the default
+ * A step failing with a RuntimeException loses its frame, the failure is logged and counted
+ * as a drop of the stage, and the stage goes on with the next frame
+ */
+public class StageThread {
+
+    final static private String TAG = "StageThread";
+
+    public static final int PRIORITY_ACQUIRE = Process.THREAD_PRIORITY_URGENT_DISPLAY;
+    public static final int PRIORITY_PROCESS = Process.THREAD_PRIORITY_DISPLAY;
+    public static final int PRIORITY_PUBLISH = Process.THREAD_PRIORITY_MORE_FAVORABLE;
+    public static final int PRIORITY_SERIALIZE = Process.THREAD_PRIORITY_DEFAULT;
+    public static final int PRIORITY_PREVIEW = Process.THREAD_PRIORITY_BACKGROUND;
+
+    /**
+     * One iteration of the stage, e.g. take a frame, work on it, hand it to the next stage
+     * Frames taken from a FrameFanOut and pooled buffers must be given back when the step throws
+     */
+    public interface Step {
+        void run() throws InterruptedException;
+    }
+
+    private final Thread thread;
+
+    /**
+     * @param name thread name, shown in systrace
+     * @param priority android.os.Process priority, one of the PRIORITY_ constants
+     * @param step repeated until stop()
+     * @param dropStage metrics stage counting frames lost to a failed step
+     */
+    public StageThread(String name, int priority, Step step, PipelineMetrics.Stage dropStage) {
+        thread = new Thread(() -> {
+            Process.setThreadPriority(priority);
+            while(!Thread.currentThread().isInterrupted()){
+                try{
+                    step.run();
+                }catch (InterruptedException e){
+                    // stopped
+                    return;
+                }catch (RuntimeException e){
+                    Log.e(TAG, name + " step failed, frame dropped", e);
+                    dropStage.drop(1);
+                }
+            }
+        }, name);
+    }
+
+    public void start(){
+        thread.start();
+    }
+
+    /**
+     * Interrupt the stage and wait until its step returned
+     */
+    public void stop(){
+        thread.interrupt();
+        try{
+            thread.join();
+        }catch (InterruptedException e){
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Give the calling thread a stage priority, for threads owned by others, e.g. rosjava loops
+     */
+    public static void setCurrentPriority(int priority){
+        Process.setThreadPriority(priority);
+    }
+
+}
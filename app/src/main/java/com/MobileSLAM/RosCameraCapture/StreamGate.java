@@ -0,0 +1,115 @@
+package com.MobileSLAM.RosCameraCapture;
+
+import org.ros.internal.node.topic.SubscriberIdentifier;
+import org.ros.node.topic.DefaultPublisherListener;
+import org.ros.node.topic.Publisher;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Open while at least one of its publishers has subscribers, work for an idle stream is skipped
+ * A new subscriber opens the gate right away through a publisher listener,
+ * rosjava reports no unsubscribe, the subscriber count is read again by refresh() / awaitOpen()
+ * to close it, publish loops call awaitOpen() or refresh() once per frame
+ */
+public class StreamGate {
+
+    /**
+     * Called on open / close, from the thread that noticed the change
+     */
+    public interface Listener {
+        void onGateChanged(StreamGate gate, boolean open);
+    }
+
+    // Closed gates re-read subscriber counts at this interval while waiting
+    private static final long POLL_INTERVAL_MS = 200;
+
+    private final String name;
+    private final CopyOnWriteArrayList<Publisher<?>> publishers = new CopyOnWriteArrayList<>();
+    private final Object lock = new Object();
+    private volatile boolean open = false;
+    private volatile Listener listener;
+
+    /**
+     * @param name stream name for logging
+     */
+    public StreamGate(String name) {
+        this.name = name;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public void setListener(Listener listener){
+        this.listener = listener;
+    }
+
+    /**
+     * Gate the stream on subscribers of publisher, in addition to publishers added before
+     */
+    public <T> void addPublisher(Publisher<T> publisher){
+        publishers.add(publisher);
+        publisher.addListener(new DefaultPublisherListener<T>() {
+            @Override
+            public void onNewSubscriber(Publisher<T> publisher, SubscriberIdentifier subscriberIdentifier) {
+                update(true);
+            }
+        });
+        refresh();
+    }
+
+    /**
+     * Last known state, no subscriber count read
+     */
+    public boolean isOpen(){
+        return open;
+    }
+
+    /**
+     * Read subscriber counts and update state
+     * @return true if any publisher has subscribers
+     */
+    public boolean refresh(){
+        boolean subscribed = false;
+        for(Publisher<?> publisher : publishers){
+            if(publisher.getNumberOfSubscribers() > 0){
+                subscribed = true;
+                break;
+            }
+        }
+        update(subscribed);
+        return subscribed;
+    }
+
+    /**
+     * Return once the stream has subscribers, right away if it has
+     * @throws InterruptedException thread interrupted while waiting
+     */
+    public void awaitOpen() throws InterruptedException {
+        while(!refresh()){
+            synchronized (lock){
+                if(!open){
+                    lock.wait(POLL_INTERVAL_MS);
+                }
+            }
+        }
+    }
+
+    private void update(boolean subscribed){
+        boolean changed;
+        synchronized (lock){
+            changed = open != subscribed;
+            open = subscribed;
+            if(subscribed){
+                lock.notifyAll();
+            }
+        }
+
+        Listener current = listener;
+        if(changed && current != null){
+            current.onGateChanged(this, subscribed);
+        }
+    }
+
+}
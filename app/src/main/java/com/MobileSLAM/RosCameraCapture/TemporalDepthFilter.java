@@ -0,0 +1,137 @@
+package com.MobileSLAM.RosCameraCapture;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Streaming temporal filter of raw DEPTH16 frames, replaces parsing in front of registration
+ * Per pixel a confidence weighted running estimate:
+ *   weight = smoothing * weight + confidence,  estimate += (depth - estimate) * confidence / weight
+ * so a steady pixel converges to an exponential average with factor (1 - smoothing),
+ * and low confidence samples move the estimate less
+ * A sample far from the estimate (depth edge, moving object) restarts the pixel instead of blending
+ * Samples not above the confidence threshold are holes, the last estimate is kept for
+ * holePersistence frames with decaying confidence, then the pixel drops to 0
+ * State is fixed-size primitive arrays, nothing is allocated per frame
+ * Pixels are independent, row bands may run in parallel
+ */
+public class TemporalDepthFilter {
+
+    private final int width;
+    private final int height;
+
+    // Per-pixel state
+    private final float[] estimate;         // depth in millimeter, 0 for none
+    private final float[] weight;           // accumulated confidence
+    private final byte[] holeAge;           // frames since the last valid sample
+
+    private volatile float smoothing = 0.6f;
+    private volatile int holePersistence = 2;
+    private volatile float jumpThreshold = 0.06f;
+    private volatile float confidenceThreshold = 0.1f;
+
+    /**
+     * @param width depth frame width
+     * @param height depth frame height
+     */
+    public TemporalDepthFilter(int width, int height) {
+        this.width = width;
+        this.height = height;
+        estimate = new float[width * height];
+        weight = new float[width * height];
+        holeAge = new byte[width * height];
+    }
+
+    /**
+     * Weight of the history, 0 passes samples through, close to 1 averages over many frames
+     */
+    public void setSmoothing(float smoothing){
+        this.smoothing = Math.max(0, Math.min(0.95f, smoothing));
+    }
+
+    /**
+     * Frames a hole keeps the last estimate, 0 drops holes right away
+     */
+    public void setHolePersistence(int frames){
+        holePersistence = Math.max(0, Math.min(Byte.MAX_VALUE, frames));
+    }
+
+    /**
+     * Relative difference between sample and estimate above which the pixel restarts
+     */
+    public void setJumpThreshold(float relative){
+        jumpThreshold = Math.max(0, relative);
+    }
+
+    /**
+     * Samples with confidence not above threshold are holes, as in CameraUtil.parseDepth16
+     */
+    public void setConfidenceThreshold(float threshold){
+        confidenceThreshold = threshold;
+    }
+
+    /**
+     * Forget all history, next frame passes through
+     */
+    public void reset(){
+        Arrays.fill(estimate, 0);
+        Arrays.fill(weight, 0);
+        Arrays.fill(holeAge, (byte) 0);
+    }
+
+    /**
+     * Filter whole frame
+     * @see #filterRows(ByteBuffer, short[], byte[], int, int)
+     */
+    public void filter(ByteBuffer rawData, short[] depthOut, byte[] confidenceOut){
+        filterRows(rawData, depthOut, confidenceOut, 0, height);
+    }
+
+    /**
+     * Filter rows [rowStart, rowEnd) of a raw frame into depth and confidence
+     * @param rawData raw DEPTH16 frame, native byte order
+     * @param depthOut filtered depth in millimeter, 0 for no depth
+     * @param confidenceOut confidence of the estimate 0 - 255, null to skip
+     */
+    public void filterRows(ByteBuffer rawData, short[] depthOut, byte[] confidenceOut, int rowStart, int rowEnd){
+        float smoothing = this.smoothing;
+        int holePersistence = this.holePersistence;
+        float jumpThreshold = this.jumpThreshold;
+        float confidenceThreshold = this.confidenceThreshold;
+        // normalized confidence of a pixel is its weight over the steady state weight of confidence 1
+        float confidenceScale = 255 * (1 - smoothing);
+
+        int end = rowEnd * width;
+        for(int i = rowStart * width; i < end; i++){
+            int raw = rawData.getShort(i * 2);
+            int depthRange = raw & 0x1FFF;
+            int depthConfidence = (raw >> 13) & 0x7;
+            float confidence = depthConfidence == 0 ? 1.f : (depthConfidence - 1) / 7.f;
+
+            float current = estimate[i];
+            if(depthRange != 0 && confidence > confidenceThreshold){
+                if(current == 0 || Math.abs(depthRange - current) > jumpThreshold * current){
+                    estimate[i] = depthRange;
+                    weight[i] = confidence;
+                }else{
+                    float w = smoothing * weight[i] + confidence;
+                    estimate[i] = current + (depthRange - current) * confidence / w;
+                    weight[i] = w;
+                }
+                holeAge[i] = 0;
+            }else if(current != 0 && holeAge[i] < holePersistence){
+                weight[i] *= smoothing;
+                holeAge[i]++;
+            }else{
+                estimate[i] = 0;
+                weight[i] = 0;
+            }
+
+            depthOut[i] = (short) (int) (estimate[i] + 0.5f);
+            if(confidenceOut != null){
+                confidenceOut[i] = (byte) Math.min(255, (int) (weight[i] * confidenceScale + 0.5f));
+            }
+        }
+    }
+
+}
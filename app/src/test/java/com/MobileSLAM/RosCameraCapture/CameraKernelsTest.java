@@ -0,0 +1,241 @@
+package com.MobileSLAM.RosCameraCapture;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Java reference kernels: known values, YUV layouts,
+ * fused depth kernel against the staged parse / undistort / register / serialize chain
+ * The natives are checked against these references on device, see CameraUtilConformanceTest
+ */
+public class CameraKernelsTest {
+
+    private static final float CONFIDENCE_THRESHOLD = 0.1f;
+    private static final short MAX_DEPTH = 5000;
+
+    private static CameraUtil.CameraParam depthParam(int width, int height, double scaleFactor){
+        return new CameraUtil.CameraParam(width, height, scaleFactor,
+                536.9581, 536.7106, 312.9077, 233.22255, 0,
+                -0.011234, 0, 0, 0.70304, -0.71113, 0.00172, 0,
+                0.32826, -0.56677, 0.12383, 0, 0);
+    }
+
+    private static CameraUtil.CameraParam colorParam(){
+        return new CameraUtil.CameraParam(320, 240, 0.0794,
+                3054.3071, 3052.0754, 1990.2135, 1512.378, 0,
+                0, 0, 0, 0.7071, -0.7071, 0, 0,
+                0.05797, -0.05520, 0.00144, 0, 0);
+    }
+
+    /**
+     * Synthetic DEPTH16 frame, smooth depth surface with random confidence and holes
+     */
+    private static short[] syntheticFrame(int width, int height, long seed){
+        Random random = new Random(seed);
+        short[] raw = new short[width * height];
+        for(int v = 0; v < height; v++){
+            for(int u = 0; u < width; u++){
+                int range = 300 + (u * 7 + v * 5) % 4000 + random.nextInt(50);
+                if(random.nextInt(20) == 0) range = 0;
+                int confidence = random.nextInt(8);
+                raw[v * width + u] = (short) ((confidence << 13) | (range & 0x1FFF));
+            }
+        }
+        return raw;
+    }
+
+    private static void assertFusedMatchesStaged(CameraUtil.CameraParam depthParam, int outputFormat){
+        CameraUtil.CameraParam colorParam = colorParam();
+        int length = depthParam.frameWidth * depthParam.frameHeight;
+        int bytesPerPixel = outputFormat == CameraKernels.DEPTH_FORMAT_16UC1 ? 2 : 1;
+
+        int[] undistortionMap = depthParam.getUndistortionMap();
+        DepthRegistration registration = DepthRegistration.forCameras(depthParam, colorParam);
+
+        for(long seed = 0; seed < 5; seed++){
+            short[] raw = syntheticFrame(depthParam.frameWidth, depthParam.frameHeight, seed);
+
+            // staged chain
+            short[] parsed = new short[length];
+            CameraKernels.parseDepth16(raw, parsed, length, CONFIDENCE_THRESHOLD);
+            short[] undistorted = new short[length];
+            for(int i = 0; i < length; i++){
+                undistorted[i] = undistortionMap[i] < 0 ? 0 : parsed[undistortionMap[i]];
+            }
+            short[] registered = new short[length];
+            registration.register(undistorted, registered);
+            byte[] expected = new byte[length * bytesPerPixel];
+            if(outputFormat == CameraKernels.DEPTH_FORMAT_16UC1){
+                CameraKernels.convertShortToByte(registered, expected, length);
+            }else{
+                CameraKernels.convertShortToGray(registered, expected, length, MAX_DEPTH);
+            }
+
+            // fused kernel, output buffers dirty from a previous frame
+            short[] depthOut = new short[length];
+            byte[] outData = new byte[length * bytesPerPixel];
+            Arrays.fill(depthOut, (short) 1234);
+            Arrays.fill(outData, (byte) 0x5A);
+            CameraKernels.processDepthFrame(raw, undistortionMap, registration,
+                    CONFIDENCE_THRESHOLD, MAX_DEPTH, outputFormat, depthOut, outData);
+
+            assertArrayEquals(registered, depthOut);
+            assertArrayEquals(expected, outData);
+        }
+    }
+
+    @Test
+    public void parseDepth16_knownValues() {
+        // confidence 0 means full confidence
+        assertEquals(1000, CameraKernels.parseDepth16((short) 1000, CONFIDENCE_THRESHOLD));
+        // confidence 1 -> 0%, rejected
+        assertEquals(0, CameraKernels.parseDepth16((short) ((1 << 13) | 1000), CONFIDENCE_THRESHOLD));
+        // confidence 2 -> 14%, accepted
+        assertEquals(1000, CameraKernels.parseDepth16((short) ((2 << 13) | 1000), CONFIDENCE_THRESHOLD));
+        // confidence 7, sign bit set, range keeps 13 bits
+        assertEquals(0x1FFF, CameraKernels.parseDepth16((short) 0xFFFF, CONFIDENCE_THRESHOLD));
+    }
+
+    @Test
+    public void convertShortToByte_littleEndian() {
+        byte[] out = new byte[4];
+        CameraKernels.convertShortToByte(new short[] {0x1234, (short) 0xABCD}, out, 2);
+        assertArrayEquals(new byte[] {0x34, 0x12, (byte) 0xCD, (byte) 0xAB}, out);
+    }
+
+    @Test
+    public void fused16UC1_matchesStaged_320x240() {
+        assertFusedMatchesStaged(depthParam(320, 240, 0.5), CameraKernels.DEPTH_FORMAT_16UC1);
+    }
+
+    @Test
+    public void fused8UC1_matchesStaged_320x240() {
+        assertFusedMatchesStaged(depthParam(320, 240, 0.5), CameraKernels.DEPTH_FORMAT_8UC1);
+    }
+
+    @Test
+    public void fused16UC1_matchesStaged_640x480() {
+        assertFusedMatchesStaged(depthParam(640, 480, 1.0), CameraKernels.DEPTH_FORMAT_16UC1);
+    }
+
+    @Test
+    public void fused8UC1_matchesStaged_640x480() {
+        assertFusedMatchesStaged(depthParam(640, 480, 1.0), CameraKernels.DEPTH_FORMAT_8UC1);
+    }
+
+    @Test
+    public void convertShortToARGB_knownValues() {
+        int[] out = new int[4];
+        CameraKernels.convertShortToARGB(new short[] {0, 5000, 2500, 6000}, out, 4, MAX_DEPTH);
+        // no depth and depth above threshold are black, near is bright
+        assertEquals(0xFF000000, out[0]);
+        assertEquals(0xFF000000, out[1]);
+        assertEquals(0xFF808080, out[2]);
+        assertEquals(0xFF000000, out[3]);
+    }
+
+    @Test
+    public void convertShortToGray_knownValues() {
+        byte[] out = new byte[3];
+        CameraKernels.convertShortToGray(new short[] {0, 2500, 5000}, out, 3, MAX_DEPTH);
+        assertArrayEquals(new byte[] {0, (byte) 128, 0}, out);
+    }
+
+    @Test
+    public void yuvToRGB_knownValues() {
+        assertEquals(0x000000, CameraKernels.yuvToRGB(16, 128, 128));
+        assertEquals(0xFEFEFE, CameraKernels.yuvToRGB(235, 128, 128));
+        assertEquals(0xFFFFFF, CameraKernels.yuvToRGB(255, 128, 128));
+        // pure red in BT.601 video range
+        int red = CameraKernels.yuvToRGB(81, 90, 240);
+        assertTrue((red >> 16) > 250 && ((red >> 8) & 0xFF) < 5 && (red & 0xFF) < 5);
+    }
+
+    /**
+     * Same frame in planar (I420) and semi-planar (NV12) layout with padded rows converts identically
+     */
+    @Test
+    public void convertYUV_planarMatchesSemiPlanar() {
+        int width = 6, height = 4, yRowStride = 8;
+        Random random = new Random(1);
+        byte[] y = new byte[yRowStride * height];
+        byte[] u = new byte[width / 2 * height / 2];
+        byte[] v = new byte[u.length];
+        random.nextBytes(y);
+        random.nextBytes(u);
+        random.nextBytes(v);
+
+        // planar, padded chroma rows
+        int planarRowStride = width / 2 + 1;
+        ByteBuffer planarU = ByteBuffer.allocate(planarRowStride * height / 2);
+        ByteBuffer planarV = ByteBuffer.allocate(planarRowStride * height / 2);
+        // semi-planar, U and V views into one interleaved plane
+        int semiRowStride = width + 2;
+        ByteBuffer interleaved = ByteBuffer.allocate(semiRowStride * height / 2 + 1);
+        for(int row = 0; row < height / 2; row++){
+            for(int col = 0; col < width / 2; col++){
+                planarU.put(row * planarRowStride + col, u[row * width / 2 + col]);
+                planarV.put(row * planarRowStride + col, v[row * width / 2 + col]);
+                interleaved.put(row * semiRowStride + col * 2, u[row * width / 2 + col]);
+                interleaved.put(row * semiRowStride + col * 2 + 1, v[row * width / 2 + col]);
+            }
+        }
+        ByteBuffer semiU = interleaved.duplicate();
+        interleaved.position(1);
+        ByteBuffer semiV = interleaved.slice();
+
+        ByteBuffer planarOut = ByteBuffer.allocate(width * height * 4);
+        ByteBuffer semiOut = ByteBuffer.allocate(width * height * 4);
+        CameraKernels.convertYUVToBGRA(ByteBuffer.wrap(y), planarU, planarV, yRowStride, planarRowStride, 1,
+                width, height, planarOut);
+        CameraKernels.convertYUVToBGRA(ByteBuffer.wrap(y), semiU, semiV, yRowStride, semiRowStride, 2,
+                width, height, semiOut);
+        assertArrayEquals(planarOut.array(), semiOut.array());
+
+        // ARGB pixels hold the same channels
+        int[] argb = new int[width * height];
+        CameraKernels.convertYUVToARGBUint32(ByteBuffer.wrap(y), semiU, semiV, yRowStride, semiRowStride, 2,
+                width, height, argb);
+        for(int i = 0; i < argb.length; i++){
+            assertEquals(planarOut.get(4*i) & 0xFF, argb[i] & 0xFF);
+            assertEquals(planarOut.get(4*i + 1) & 0xFF, (argb[i] >> 8) & 0xFF);
+            assertEquals(planarOut.get(4*i + 2) & 0xFF, (argb[i] >> 16) & 0xFF);
+            assertEquals(0xFF, planarOut.get(4*i + 3) & 0xFF);
+            assertEquals(0xFF, argb[i] >>> 24);
+        }
+
+        // BGR drops the alpha of BGRA
+        ByteBuffer bgr = ByteBuffer.allocate(width * height * 3);
+        CameraKernels.convertYUVToBGR(ByteBuffer.wrap(y), semiU, semiV, yRowStride, semiRowStride, 2,
+                width, height, bgr);
+        for(int i = 0; i < width * height; i++){
+            for(int c = 0; c < 3; c++){
+                assertEquals(planarOut.get(4*i + c), bgr.get(3*i + c));
+            }
+        }
+
+        // NV12 packs both layouts alike
+        ByteBuffer planarNV12 = ByteBuffer.allocate(width * height * 3 / 2);
+        ByteBuffer semiNV12 = ByteBuffer.allocate(width * height * 3 / 2);
+        CameraKernels.packYUVToNV12(ByteBuffer.wrap(y), planarU, planarV, yRowStride, planarRowStride, 1,
+                width, height, planarNV12);
+        CameraKernels.packYUVToNV12(ByteBuffer.wrap(y), semiU, semiV, yRowStride, semiRowStride, 2,
+                width, height, semiNV12);
+        assertArrayEquals(planarNV12.array(), semiNV12.array());
+        for(int row = 0; row < height; row++){
+            for(int col = 0; col < width; col++){
+                assertEquals(y[row * yRowStride + col], planarNV12.get(row * width + col));
+            }
+        }
+        for(int i = 0; i < u.length; i++){
+            assertEquals(u[i], planarNV12.get(width * height + 2*i));
+            assertEquals(v[i], planarNV12.get(width * height + 2*i + 1));
+        }
+    }
+
+}
@@ -0,0 +1,153 @@
+package com.MobileSLAM.RosCameraCapture;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Row band processing on a worker pool against the fused reference kernel, with Java kernels
+ * Same output whether DepthCameraCapture runs with ~parallel_processing or not
+ */
+public class DepthFrameProcessorTest {
+
+    private static final float CONFIDENCE_THRESHOLD = 0.1f;
+    private static final short MAX_DEPTH = 5000;
+
+    private static CameraUtil.CameraParam depthParam(int width, int height, double scaleFactor){
+        return new CameraUtil.CameraParam(width, height, scaleFactor,
+                536.9581, 536.7106, 312.9077, 233.22255, 0,
+                -0.011234, 0, 0, 0.70304, -0.71113, 0.00172, 0,
+                0.32826, -0.56677, 0.12383, 0, 0);
+    }
+
+    private static CameraUtil.CameraParam colorParam(){
+        return new CameraUtil.CameraParam(320, 240, 0.0794,
+                3054.3071, 3052.0754, 1990.2135, 1512.378, 0,
+                0, 0, 0, 0.7071, -0.7071, 0, 0,
+                0.05797, -0.05520, 0.00144, 0, 0);
+    }
+
+    /**
+     * Synthetic DEPTH16 frame, smooth depth surface with random confidence and holes
+     */
+    private static short[] syntheticFrame(int width, int height, long seed){
+        Random random = new Random(seed);
+        short[] raw = new short[width * height];
+        for(int v = 0; v < height; v++){
+            for(int u = 0; u < width; u++){
+                int range = 300 + (u * 7 + v * 5) % 4000 + random.nextInt(50);
+                if(random.nextInt(20) == 0) range = 0;
+                raw[v * width + u] = (short) ((random.nextInt(8) << 13) | (range & 0x1FFF));
+            }
+        }
+        return raw;
+    }
+
+    private static ByteBuffer direct(short[] raw){
+        ByteBuffer buffer = ByteBuffer.allocateDirect(raw.length * 2).order(ByteOrder.nativeOrder());
+        buffer.asShortBuffer().put(raw);
+        return buffer;
+    }
+
+    private static byte[] bytes(ByteBuffer data, int length){
+        byte[] out = new byte[length];
+        ByteBuffer view = data.duplicate();
+        view.clear();
+        view.get(out);
+        return out;
+    }
+
+    private static void assertBandedMatchesFused(CameraUtil.CameraParam depthParam, int format){
+        CameraUtil.CameraParam colorParam = colorParam();
+        int length = depthParam.frameWidth * depthParam.frameHeight;
+        int dataLength = length * (format == CameraKernels.DEPTH_FORMAT_16UC1 ? 2 : 1);
+
+        DepthFrameProcessor processor = new DepthFrameProcessor(depthParam, colorParam, false);
+        processor.setConfidenceThreshold(CONFIDENCE_THRESHOLD);
+        processor.setMaxDepthThreshold(MAX_DEPTH);
+        RowParallelExecutor executor = new RowParallelExecutor(3, "DepthFrameProcessorTestRows");
+        processor.setRowExecutor(executor);
+
+        try{
+            for(long seed = 0; seed < 4; seed++){
+                short[] raw = syntheticFrame(depthParam.frameWidth, depthParam.frameHeight, seed);
+
+                short[] expectedDepth = new short[length];
+                byte[] expectedData = new byte[dataLength];
+                CameraKernels.processDepthFrame(raw, depthParam.getUndistortionMap(),
+                        DepthRegistration.forCameras(depthParam, colorParam),
+                        CONFIDENCE_THRESHOLD, MAX_DEPTH, format, expectedDepth, expectedData);
+
+                // output dirty from a previous frame
+                short[] depth = new short[length];
+                Arrays.fill(depth, (short) 1234);
+                ByteBuffer data = ByteBuffer.allocateDirect(dataLength).order(ByteOrder.LITTLE_ENDIAN);
+                assertFalse(processor.process(direct(raw), format, depth, null, data));
+                assertArrayEquals(expectedDepth, depth);
+                assertArrayEquals(expectedData, bytes(data, dataLength));
+
+                // switched back to the calling thread between frames, as setParallelProcessing() does
+                processor.setRowExecutor(null);
+                short[] serialDepth = new short[length];
+                ByteBuffer serialData = ByteBuffer.allocateDirect(dataLength).order(ByteOrder.LITTLE_ENDIAN);
+                processor.process(direct(raw), format, serialDepth, null, serialData);
+                assertArrayEquals(expectedDepth, serialDepth);
+                assertArrayEquals(expectedData, bytes(serialData, dataLength));
+                processor.setRowExecutor(executor);
+            }
+        }finally{
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void banded16UC1_matchesFused_320x240() {
+        assertBandedMatchesFused(depthParam(320, 240, 0.5), CameraKernels.DEPTH_FORMAT_16UC1);
+    }
+
+    @Test
+    public void banded8UC1_matchesFused_320x240() {
+        assertBandedMatchesFused(depthParam(320, 240, 0.5), CameraKernels.DEPTH_FORMAT_8UC1);
+    }
+
+    @Test
+    public void banded16UC1_matchesFused_640x480() {
+        assertBandedMatchesFused(depthParam(640, 480, 1.0), CameraKernels.DEPTH_FORMAT_16UC1);
+    }
+
+    @Test
+    public void bandedTemporalFilter_matchesSerial() {
+        CameraUtil.CameraParam depthParam = depthParam(320, 240, 0.5);
+        CameraUtil.CameraParam colorParam = colorParam();
+        int length = depthParam.frameWidth * depthParam.frameHeight;
+
+        DepthFrameProcessor banded = new DepthFrameProcessor(depthParam, colorParam, false);
+        DepthFrameProcessor serial = new DepthFrameProcessor(depthParam, colorParam, false);
+        banded.setTemporalFilter(new TemporalDepthFilter(depthParam.frameWidth, depthParam.frameHeight));
+        serial.setTemporalFilter(new TemporalDepthFilter(depthParam.frameWidth, depthParam.frameHeight));
+        RowParallelExecutor executor = new RowParallelExecutor(3, "DepthFrameProcessorTestRows");
+        banded.setRowExecutor(executor);
+
+        try{
+            for(long seed = 0; seed < 4; seed++){
+                ByteBuffer raw = direct(syntheticFrame(depthParam.frameWidth, depthParam.frameHeight, seed));
+                short[] bandedDepth = new short[length];
+                byte[] bandedConfidence = new byte[length];
+                short[] serialDepth = new short[length];
+                byte[] serialConfidence = new byte[length];
+                assertTrue(banded.process(raw, CameraKernels.DEPTH_FORMAT_NONE, bandedDepth, bandedConfidence, null));
+                assertTrue(serial.process(raw, CameraKernels.DEPTH_FORMAT_NONE, serialDepth, serialConfidence, null));
+                assertArrayEquals(serialDepth, bandedDepth);
+                assertArrayEquals(serialConfidence, bandedConfidence);
+            }
+        }finally{
+            executor.shutdown();
+        }
+    }
+
+}
@@ -0,0 +1,97 @@
+package com.MobileSLAM.RosCameraCapture;
+
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+/**
+ * Concurrency checks for the triple buffer frame exchange
+ */
+public class FrameExchangerTest {
+
+    private static final int FRAME_SIZE = 4096;
+    private static final int FRAME_COUNT = 200000;
+
+    @Test
+    public void poll_returnsNullUntilPublished() {
+        FrameExchanger<int[]> exchanger = new FrameExchanger<>(() -> new int[1]);
+        assertFalse(exchanger.hasNext());
+        assertNull(exchanger.poll());
+
+        exchanger.beginWrite().data[0] = 42;
+        exchanger.publish();
+
+        FrameExchanger.Slot<int[]> slot = exchanger.poll();
+        assertNotNull(slot);
+        assertEquals(42, slot.data[0]);
+        assertEquals(1, slot.getSequence());
+        assertNull(exchanger.poll());
+    }
+
+    @Test
+    public void poll_skipsToNewestFrame() {
+        FrameExchanger<int[]> exchanger = new FrameExchanger<>(() -> new int[1]);
+        for(int i = 1; i <= 5; i++){
+            exchanger.beginWrite().data[0] = i;
+            exchanger.publish();
+        }
+
+        FrameExchanger.Slot<int[]> slot = exchanger.poll();
+        assertEquals(5, slot.data[0]);
+        assertEquals(5, slot.getSequence());
+    }
+
+    @Test
+    public void take_noTearingAndIncreasingSequence() throws Exception {
+        FrameExchanger<long[]> exchanger = new FrameExchanger<>(() -> new long[FRAME_SIZE]);
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+
+        Thread producer = new Thread(() -> {
+            for(long frame = 1; frame <= FRAME_COUNT; frame++){
+                long[] data = exchanger.beginWrite().data;
+                for(int i = 0; i < data.length; i++){
+                    data[i] = frame;
+                }
+                exchanger.publish();
+            }
+        });
+
+        Thread consumer = new Thread(() -> {
+            long lastSequence = 0;
+            try{
+                while(lastSequence < FRAME_COUNT){
+                    FrameExchanger.Slot<long[]> slot = exchanger.take();
+                    long sequence = slot.getSequence();
+                    assertTrue("sequence went from " + lastSequence + " to " + sequence, sequence > lastSequence);
+                    for(long value : slot.data){
+                        assertEquals("torn frame", sequence, value);
+                    }
+                    lastSequence = sequence;
+                }
+            }catch (Throwable t){
+                failure.set(t);
+            }
+        });
+
+        consumer.start();
+        producer.start();
+        producer.join(30000);
+        consumer.join(30000);
+
+        assertFalse(producer.isAlive());
+        assertFalse(consumer.isAlive());
+        if(failure.get() != null){
+            throw new AssertionError(failure.get());
+        }
+    }
+
+    @Test(expected = InterruptedException.class)
+    public void take_throwsWhenInterrupted() throws Exception {
+        FrameExchanger<int[]> exchanger = new FrameExchanger<>(() -> new int[1]);
+        Thread.currentThread().interrupt();
+        exchanger.take();
+    }
+
+}
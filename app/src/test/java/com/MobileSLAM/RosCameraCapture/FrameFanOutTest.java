@@ -0,0 +1,170 @@
+package com.MobileSLAM.RosCameraCapture;
+
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+/**
+ * Concurrency checks for the reference counted frame fan-out
+ */
+public class FrameFanOutTest {
+
+    private static final int FRAME_SIZE = 4096;
+    private static final int FRAME_COUNT = 100000;
+    private static final int SUBSCRIBERS = 3;
+
+    /**
+     * Frame storage counting the subscribers holding it
+     */
+    private static class Checked {
+        final long[] values = new long[FRAME_SIZE];
+        final AtomicInteger holders = new AtomicInteger();
+    }
+
+    @Test
+    public void poll_returnsNullUntilPublished() {
+        FrameFanOut<int[]> fanOut = new FrameFanOut<>(3, () -> new int[1]);
+        FrameFanOut<int[]>.Subscriber subscriber = fanOut.subscribe();
+        assertNull(subscriber.poll());
+
+        FrameFanOut.Frame<int[]> written = fanOut.beginWrite();
+        written.data[0] = 42;
+        fanOut.publish(written);
+
+        FrameFanOut.Frame<int[]> frame = subscriber.poll();
+        assertNotNull(frame);
+        assertEquals(42, frame.data[0]);
+        assertEquals(1, frame.getSequence());
+        subscriber.release(frame);
+        assertNull(subscriber.poll());
+    }
+
+    @Test
+    public void poll_skipsToNewestFrame() {
+        FrameFanOut<int[]> fanOut = new FrameFanOut<>(4, () -> new int[1]);
+        FrameFanOut<int[]>.Subscriber early = fanOut.subscribe();
+        FrameFanOut<int[]>.Subscriber late = fanOut.subscribe();
+
+        publish(fanOut, 1);
+        early.release(early.poll());
+        for(int i = 2; i <= 5; i++){
+            publish(fanOut, i);
+        }
+
+        // each subscriber drops relative to its own cursor
+        FrameFanOut.Frame<int[]> frame = early.poll();
+        assertEquals(5, frame.getSequence());
+        assertEquals(3, early.getDroppedFrames());
+        early.release(frame);
+
+        frame = late.poll();
+        assertEquals(5, frame.data[0]);
+        assertEquals(0, late.getDroppedFrames());
+        late.release(frame);
+    }
+
+    @Test
+    public void beginWrite_skipsHeldFrames() {
+        FrameFanOut<int[]> fanOut = new FrameFanOut<>(2, () -> new int[1]);
+        FrameFanOut<int[]>.Subscriber subscriber = fanOut.subscribe();
+
+        publish(fanOut, 1);
+        FrameFanOut.Frame<int[]> held = subscriber.poll();
+        publish(fanOut, 2);
+
+        // frame 1 held by the subscriber, frame 2 held as latest
+        assertNull(fanOut.beginWrite());
+        subscriber.release(held);
+        assertSame(held, fanOut.beginWrite());
+    }
+
+    @Test
+    public void take_noReuseWhileHeldAndIncreasingSequence() throws Exception {
+        FrameFanOut<Checked> fanOut = new FrameFanOut<>(SUBSCRIBERS + 2, Checked::new);
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+
+        Thread producer = new Thread(() -> {
+            try{
+                for(long sequence = 1; sequence <= FRAME_COUNT; sequence++){
+                    FrameFanOut.Frame<Checked> frame = fanOut.beginWrite();
+                    assertNotNull("producer stalled", frame);
+                    assertEquals("frame handed out while held", 0, frame.data.holders.get());
+                    long[] values = frame.data.values;
+                    for(int i = 0; i < values.length; i++){
+                        values[i] = sequence;
+                    }
+                    fanOut.publish(frame);
+                }
+            }catch (Throwable t){
+                failure.set(t);
+            }
+        });
+
+        Thread[] consumers = new Thread[SUBSCRIBERS];
+        for(int s = 0; s < SUBSCRIBERS; s++){
+            FrameFanOut<Checked>.Subscriber subscriber = fanOut.subscribe();
+            consumers[s] = new Thread(() -> {
+                long firstSequence = 0;
+                long lastSequence = 0;
+                long delivered = 0;
+                try{
+                    while(lastSequence < FRAME_COUNT){
+                        FrameFanOut.Frame<Checked> frame = subscriber.take();
+                        frame.data.holders.incrementAndGet();
+                        long sequence = frame.getSequence();
+                        assertTrue("sequence went from " + lastSequence + " to " + sequence, sequence > lastSequence);
+                        for(long value : frame.data.values){
+                            assertEquals("frame rewritten while held", sequence, value);
+                        }
+                        frame.data.holders.decrementAndGet();
+                        subscriber.release(frame);
+
+                        if(firstSequence == 0){
+                            firstSequence = sequence;
+                        }
+                        lastSequence = sequence;
+                        delivered++;
+                    }
+                    assertEquals("dropped frames", lastSequence - firstSequence + 1 - delivered, subscriber.getDroppedFrames());
+                }catch (Throwable t){
+                    failure.set(t);
+                }
+            });
+        }
+
+        for(Thread consumer : consumers){
+            consumer.start();
+        }
+        producer.start();
+        producer.join(30000);
+        for(Thread consumer : consumers){
+            consumer.join(30000);
+        }
+
+        assertFalse(producer.isAlive());
+        for(Thread consumer : consumers){
+            assertFalse(consumer.isAlive());
+        }
+        if(failure.get() != null){
+            throw new AssertionError(failure.get());
+        }
+    }
+
+    @Test(expected = InterruptedException.class)
+    public void take_throwsWhenInterrupted() throws Exception {
+        FrameFanOut<int[]> fanOut = new FrameFanOut<>(3, () -> new int[1]);
+        FrameFanOut<int[]>.Subscriber subscriber = fanOut.subscribe();
+        Thread.currentThread().interrupt();
+        subscriber.take();
+    }
+
+    private static void publish(FrameFanOut<int[]> fanOut, int value){
+        FrameFanOut.Frame<int[]> frame = fanOut.beginWrite();
+        frame.data[0] = value;
+        fanOut.publish(frame);
+    }
+
+}
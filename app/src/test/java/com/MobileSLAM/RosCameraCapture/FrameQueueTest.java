@@ -0,0 +1,110 @@
+package com.MobileSLAM.RosCameraCapture;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * In order delivery, bounded capacity and producer / consumer handoff of the stage queue
+ */
+public class FrameQueueTest {
+
+    private static class Packet {
+        long value;
+    }
+
+    @Test
+    public void fullQueue_rejectsUntilReleased() {
+        FrameQueue<Packet> queue = new FrameQueue<>(3, Packet::new);
+        assertEquals(4, queue.capacity());
+        assertNull(queue.poll());
+
+        for(int i = 0; i < 4; i++){
+            Packet packet = queue.beginWrite();
+            assertNotNull(packet);
+            packet.value = i;
+            queue.publish();
+        }
+        assertNull(queue.beginWrite());
+        assertEquals(4, queue.size());
+
+        // taken slots stay with the consumer until released
+        assertEquals(0, queue.poll().value);
+        assertEquals(1, queue.poll().value);
+        assertNull(queue.beginWrite());
+        queue.release();
+        Packet packet = queue.beginWrite();
+        assertNotNull(packet);
+        packet.value = 4;
+        queue.publish();
+        assertNull(queue.beginWrite());
+
+        queue.release();
+        for(int i = 2; i <= 4; i++){
+            assertEquals(i, queue.poll().value);
+            queue.release();
+        }
+        assertNull(queue.poll());
+        assertEquals(0, queue.size());
+    }
+
+    @Test
+    public void concurrentStages_everyFrameInOrder() throws Exception {
+        FrameQueue<Packet> queue = new FrameQueue<>(2, Packet::new);
+        int frames = 200_000;
+        long[] dropped = new long[1];
+
+        // producer never blocks, a full queue drops the frame
+        Thread producer = new Thread(() -> {
+            for(int i = 1; i <= frames; i++){
+                Packet packet = queue.beginWrite();
+                if(packet == null){
+                    dropped[0]++;
+                    continue;
+                }
+                packet.value = i;
+                queue.publish();
+            }
+            Packet end;
+            while((end = queue.beginWrite()) == null){
+                Thread.yield();
+            }
+            end.value = -1;
+            queue.publish();
+        });
+        producer.start();
+
+        long last = 0;
+        long received = 0;
+        while(true){
+            Packet packet = queue.take();
+            long value = packet.value;
+            queue.release();
+            if(value < 0) break;
+            assertTrue(value > last);
+            last = value;
+            received++;
+        }
+        producer.join();
+
+        assertEquals(frames, received + dropped[0]);
+        assertTrue(received > 0);
+    }
+
+    @Test(expected = InterruptedException.class)
+    public void take_interruptible() throws Exception {
+        FrameQueue<Packet> queue = new FrameQueue<>(2, Packet::new);
+        Thread consumer = Thread.currentThread();
+        Thread interrupter = new Thread(() -> {
+            try{
+                Thread.sleep(50);
+            }catch (InterruptedException e){
+                return;
+            }
+            consumer.interrupt();
+        });
+        interrupter.start();
+        queue.take();
+    }
+
+}
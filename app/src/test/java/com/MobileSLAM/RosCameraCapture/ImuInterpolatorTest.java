@@ -0,0 +1,130 @@
+package com.MobileSLAM.RosCameraCapture;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Sample rings and accelerometer interpolation onto the gyroscope timeline
+ */
+public class ImuInterpolatorTest {
+
+    private static final float EPSILON = 1e-5f;
+
+    @Test
+    public void ring_roundsCapacityAndDropsWhenFull() {
+        ImuRingBuffer ring = new ImuRingBuffer(5);
+        assertEquals(8, ring.capacity());
+
+        for(int i = 0; i < 8; i++){
+            assertTrue(ring.push(i, i, 2 * i, 3 * i));
+        }
+        assertFalse(ring.push(8, 0, 0, 0));
+        assertEquals(1, ring.getDropped());
+        assertEquals(8, ring.size());
+
+        ring.pop();
+        assertEquals(1, ring.timestamp(0));
+        assertEquals(2f, ring.y(0), 0);
+        assertTrue(ring.push(9, 9, 18, 27));
+        assertEquals(9, ring.timestamp(7));
+        assertEquals(27f, ring.z(7), 0);
+
+        ring.clear();
+        assertEquals(0, ring.size());
+    }
+
+    @Test
+    public void accel_interpolatedAtGyroTimestamps() {
+        ImuInterpolator interpolator = new ImuInterpolator(16);
+        ImuInterpolator.Sample sample = new ImuInterpolator.Sample();
+
+        interpolator.pushAccel(1000, 0, 10, -2);
+        interpolator.pushGyro(1250, 1, 2, 3);
+        interpolator.pushGyro(1500, 4, 5, 6);
+        // no accelerometer sample after the gyroscope yet
+        assertFalse(interpolator.next(sample));
+
+        interpolator.pushAccel(2000, 4, 20, 2);
+        assertTrue(interpolator.next(sample));
+        assertEquals(1250, sample.timestamp);
+        assertEquals(1f, sample.ax, EPSILON);
+        assertEquals(12.5f, sample.ay, EPSILON);
+        assertEquals(-1f, sample.az, EPSILON);
+        assertEquals(1f, sample.gx, 0);
+        assertEquals(3f, sample.gz, 0);
+
+        assertTrue(interpolator.next(sample));
+        assertEquals(1500, sample.timestamp);
+        assertEquals(2f, sample.ax, EPSILON);
+        assertEquals(6f, sample.gz, 0);
+        assertFalse(interpolator.next(sample));
+
+        // exact timestamp needs no later sample
+        interpolator.pushGyro(2000, 7, 8, 9);
+        assertTrue(interpolator.next(sample));
+        assertEquals(4f, sample.ax, 0);
+        assertEquals(20f, sample.ay, 0);
+    }
+
+    @Test
+    public void unpairedGyro_dropped() {
+        ImuInterpolator interpolator = new ImuInterpolator(16);
+        interpolator.setMaxGap(1000);
+        ImuInterpolator.Sample sample = new ImuInterpolator.Sample();
+
+        // before the accelerometer stream
+        interpolator.pushGyro(500, 0, 0, 0);
+        interpolator.pushAccel(1000, 1, 1, 1);
+        interpolator.pushAccel(1500, 1, 1, 1);
+        // across a gap
+        interpolator.pushGyro(2000, 0, 0, 0);
+        interpolator.pushAccel(5000, 1, 1, 1);
+        interpolator.pushGyro(5000, 0, 0, 0);
+
+        assertTrue(interpolator.next(sample));
+        assertEquals(5000, sample.timestamp);
+        assertFalse(interpolator.next(sample));
+        assertEquals(2, interpolator.getDropped()[2]);
+    }
+
+    /**
+     * Sensor thread pushing while the consumer takes, every sample arrives once and in order
+     */
+    @Test
+    public void concurrentProducer_deliversAllInOrder() throws Exception {
+        int samples = 20_000;
+        ImuInterpolator interpolator = new ImuInterpolator(4096);
+
+        Thread producer = new Thread(() -> {
+            for(int i = 0; i <= samples; i++){
+                interpolator.pushAccel(i * 2500L, i, 0, 0);
+                interpolator.pushGyro(i * 2500L + 1250, i, 0, 0);
+                if(i % 32 == 0){
+                    try {
+                        Thread.sleep(1);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }
+        });
+        producer.start();
+
+        ImuInterpolator.Sample sample = new ImuInterpolator.Sample();
+        int received = 0;
+        while(received < samples){
+            if(interpolator.next(sample)){
+                assertEquals(received * 2500L + 1250, sample.timestamp);
+                assertEquals(received + 0.5f, sample.ax, 1e-2f);
+                assertEquals(received, sample.gx, 0);
+                received++;
+            }else{
+                interpolator.await(10_000_000L);
+            }
+        }
+        producer.join();
+        assertArrayEquals(new long[] {0, 0, 0}, interpolator.getDropped());
+    }
+
+}
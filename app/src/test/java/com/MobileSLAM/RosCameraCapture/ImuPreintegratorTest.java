@@ -0,0 +1,299 @@
+package com.MobileSLAM.RosCameraCapture;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+
+import static org.junit.Assert.*;
+
+/**
+ * Preintegration of synthetic IMU trajectories against closed form ground truth
+ */
+public class ImuPreintegratorTest {
+
+    private static final double GRAVITY = 9.81;
+
+    @Test
+    public void constantRotationRate_exactRotation() {
+        double[] omega = {0.3, -0.2, 1.0};
+        ImuPreintegrator preintegrator = new ImuPreintegrator();
+        preintegrator.reset(0);
+        for(int i = 0; i <= 40; i++){
+            preintegrator.addSample(i * 2_500_000L, 0, 0, 0, omega[0], omega[1], omega[2]);
+        }
+
+        double t = 0.1;
+        double[] rotation = new double[9];
+        preintegrator.getDeltaRotation(rotation, 0);
+        assertArrayEquals(exp(omega[0] * t, omega[1] * t, omega[2] * t), rotation, 1e-12);
+
+        double norm = Math.sqrt(omega[0] * omega[0] + omega[1] * omega[1] + omega[2] * omega[2]);
+        double[] quaternion = new double[4];
+        preintegrator.getDeltaQuaternion(quaternion, 0);
+        double s = Math.sin(norm * t / 2) / norm;
+        assertArrayEquals(new double[] {omega[0] * s, omega[1] * s, omega[2] * s, Math.cos(norm * t / 2)},
+                quaternion, 1e-12);
+    }
+
+    @Test
+    public void stationary_gravityAndCovariance() {
+        double gyroNoise = 0.002, accelNoise = 0.02;
+        ImuPreintegrator preintegrator = new ImuPreintegrator();
+        preintegrator.setNoise(gyroNoise, accelNoise);
+        preintegrator.reset(0);
+        // accelerometer measures the reaction to gravity
+        for(int i = 0; i <= 200; i++){
+            preintegrator.addSample(i * 1_000_000L, 0, 0, GRAVITY, 0, 0, 0);
+        }
+
+        double t = 0.2;
+        double[] v = new double[3];
+        double[] p = new double[3];
+        preintegrator.getDeltaVelocity(v, 0);
+        preintegrator.getDeltaPosition(p, 0);
+        assertArrayEquals(new double[] {0, 0, GRAVITY * t}, v, 1e-12);
+        assertArrayEquals(new double[] {0, 0, GRAVITY * t * t / 2}, p, 1e-12);
+
+        double[] covariance = new double[81];
+        preintegrator.getCovariance(covariance, 0);
+        for(int r = 0; r < 9; r++){
+            assertTrue(covariance[r * 9 + r] > 0);
+            for(int c = 0; c < 9; c++){
+                assertEquals(covariance[r * 9 + c], covariance[c * 9 + r], 1e-18);
+            }
+        }
+        // rotation noise random walk
+        for(int i = 0; i < 3; i++){
+            assertEquals(gyroNoise * gyroNoise * t, covariance[i * 9 + i], 1e-15);
+        }
+        // along gravity velocity and position see accelerometer noise only, continuous time t and t^3 / 3
+        double variance = accelNoise * accelNoise;
+        assertEquals(variance * t, covariance[5 * 9 + 5], 1e-15);
+        assertEquals(variance * t * t / 2, covariance[5 * 9 + 8], 1e-15);
+        assertEquals(variance * t * t * t / 3, covariance[8 * 9 + 8], variance * t * t * t / 3 * 1e-3);
+        // tilt uncertainty leaks gravity into horizontal velocity
+        assertTrue(covariance[3 * 9 + 3] > variance * t);
+    }
+
+    @Test
+    public void rotatingTrajectory_matchesGroundTruth() {
+        ImuPreintegrator preintegrator = new ImuPreintegrator();
+        double t0 = 0.3, t1 = 0.4;
+        long step = 1_000_000L;
+        preintegrator.reset(nanos(t0));
+        double[] sample = new double[6];
+        for(long n = nanos(t0); n <= nanos(t1); n += step){
+            trajectorySample(n * 1e-9, sample);
+            preintegrator.addSample(n, sample[0], sample[1], sample[2], sample[3], sample[4], sample[5]);
+        }
+
+        double[] ri = trajectoryRotation(t0);
+        double[] rj = trajectoryRotation(t1);
+        double dt = t1 - t0;
+
+        double[] expectedR = multiplyTransposed(ri, rj);
+        double[] rotation = new double[9];
+        preintegrator.getDeltaRotation(rotation, 0);
+        assertArrayEquals(expectedR, rotation, 1e-3);
+
+        double[] pi = trajectoryPosition(t0), pj = trajectoryPosition(t1);
+        double[] vi = trajectoryVelocity(t0), vj = trajectoryVelocity(t1);
+        double[] dv = new double[3];
+        double[] dp = new double[3];
+        for(int k = 0; k < 3; k++){
+            double g = k == 2 ? -GRAVITY : 0;
+            dv[k] = vj[k] - vi[k] - g * dt;
+            dp[k] = pj[k] - pi[k] - vi[k] * dt - g * dt * dt / 2;
+        }
+        double[] velocity = new double[3];
+        double[] position = new double[3];
+        preintegrator.getDeltaVelocity(velocity, 0);
+        preintegrator.getDeltaPosition(position, 0);
+        assertArrayEquals(rotateTransposed(ri, dv), velocity, 2e-3);
+        assertArrayEquals(rotateTransposed(ri, dp), position, 2e-4);
+    }
+
+    /**
+     * Frames between samples and offered late, intervals end exactly at the frame stamps
+     * Acceleration along the rotation axis stays constant in the start frame, so all deltas are closed form
+     */
+    @Test
+    public void frameIntervals_alignedToFrameStamps() {
+        ImuFrameIntegrator integrator = new ImuFrameIntegrator(256, 8);
+        ImuPreintegrator preintegrator = integrator.getPreintegrator();
+        ImuInterpolator.Sample sample = new ImuInterpolator.Sample();
+        sample.gx = 0.5f;
+        sample.gy = -1f;
+        sample.gz = 2f;
+        sample.ax = 0.25f;
+        sample.ay = -0.5f;
+        sample.az = 1f;
+
+        long frameInterval = 33_333_333L;
+        long firstFrame = 1_001_000L;
+        long latency = 20_000_000L;
+        int frame = 0;
+        int intervals = 0;
+        long previousEnd = 0;
+        double[] rotation = new double[9];
+        double[] velocity = new double[3];
+        double[] position = new double[3];
+
+        for(long t = 0; t < 400_000_000L; t += 2_500_000L){
+            sample.timestamp = t;
+            integrator.addSample(sample);
+            while(firstFrame + frame * frameInterval + latency <= t){
+                integrator.offerFrame(firstFrame + frame * frameInterval);
+                frame++;
+            }
+            while(integrator.next()){
+                intervals++;
+                long start = preintegrator.getStartNanos();
+                long end = preintegrator.getEndNanos();
+                assertEquals(firstFrame + intervals * frameInterval, end);
+                assertEquals(frameInterval, end - start);
+                if(intervals > 1){
+                    assertEquals(previousEnd, start);
+                }
+                previousEnd = end;
+
+                double dt = (end - start) * 1e-9;
+                preintegrator.getDeltaRotation(rotation, 0);
+                assertArrayEquals(exp(0.5 * dt, -dt, 2 * dt), rotation, 1e-9);
+                preintegrator.getDeltaVelocity(velocity, 0);
+                assertArrayEquals(new double[] {0.25 * dt, -0.5 * dt, dt}, velocity, 1e-9);
+                preintegrator.getDeltaPosition(position, 0);
+                assertArrayEquals(new double[] {0.125 * dt * dt, -0.25 * dt * dt, 0.5 * dt * dt}, position, 1e-9);
+            }
+        }
+        assertEquals(frame - 1, intervals);
+        assertArrayEquals(new long[] {0, 0}, integrator.getDropped());
+
+        // late and repeated stamps are ignored
+        integrator.offerFrame(firstFrame);
+        assertFalse(integrator.next());
+    }
+
+    @Test
+    public void steadyState_allocatesNothing() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+        Assume.assumeTrue(threads.isThreadAllocatedMemorySupported());
+        threads.setThreadAllocatedMemoryEnabled(true);
+
+        ImuFrameIntegrator integrator = new ImuFrameIntegrator(256, 8);
+        integrator.getPreintegrator().setNoise(0.002, 0.02);
+        ImuInterpolator.Sample sample = new ImuInterpolator.Sample();
+        sample.gz = 1f;
+        sample.az = (float) GRAVITY;
+
+        long id = Thread.currentThread().getId();
+        long before = 0;
+        int intervals = 0;
+        for(int i = 0; i < 200_000; i++){
+            if(i == 100_000){
+                before = threads.getThreadAllocatedBytes(id);
+            }
+            sample.timestamp = i * 2_500_000L;
+            integrator.addSample(sample);
+            if(i % 13 == 0){
+                integrator.offerFrame(sample.timestamp - 1_000_000L);
+            }
+            while(integrator.next()){
+                intervals++;
+            }
+        }
+        long allocated = threads.getThreadAllocatedBytes(id) - before;
+
+        assertTrue(intervals > 15_000);
+        // the measurement itself may allocate a few bytes
+        assertTrue("allocated " + allocated + " bytes", allocated < 1024);
+    }
+
+    private static long nanos(double seconds){
+        return Math.round(seconds * 1e9);
+    }
+
+    // Synthetic trajectory: rotation about a fixed axis, smooth translation
+
+    private static final double[] AXIS = {1 / Math.sqrt(14), 2 / Math.sqrt(14), 3 / Math.sqrt(14)};
+
+    private static double[] trajectoryRotation(double t){
+        double angle = 0.5 * Math.sin(3 * t);
+        return exp(AXIS[0] * angle, AXIS[1] * angle, AXIS[2] * angle);
+    }
+
+    private static double[] trajectoryPosition(double t){
+        return new double[] {Math.sin(t), Math.cos(2 * t), 0.5 * t * t};
+    }
+
+    private static double[] trajectoryVelocity(double t){
+        return new double[] {Math.cos(t), -2 * Math.sin(2 * t), t};
+    }
+
+    /**
+     * Body frame accelerometer and gyroscope at t
+     */
+    private static void trajectorySample(double t, double[] out){
+        double[] acceleration = {-Math.sin(t), -4 * Math.cos(2 * t), 1 + GRAVITY};
+        double[] body = rotateTransposed(trajectoryRotation(t), acceleration);
+        double rate = 1.5 * Math.cos(3 * t);
+        out[0] = body[0];
+        out[1] = body[1];
+        out[2] = body[2];
+        out[3] = AXIS[0] * rate;
+        out[4] = AXIS[1] * rate;
+        out[5] = AXIS[2] * rate;
+    }
+
+    /**
+     * Rodrigues formula
+     */
+    private static double[] exp(double x, double y, double z){
+        double angle = Math.sqrt(x * x + y * y + z * z);
+        double[] r = {1, 0, 0, 0, 1, 0, 0, 0, 1};
+        if(angle == 0) return r;
+        double ux = x / angle, uy = y / angle, uz = z / angle;
+        double s = Math.sin(angle), c = 1 - Math.cos(angle);
+        double[] k = {0, -uz, uy, uz, 0, -ux, -uy, ux, 0};
+        for(int i = 0; i < 3; i++){
+            for(int j = 0; j < 3; j++){
+                double k2 = 0;
+                for(int m = 0; m < 3; m++){
+                    k2 += k[i * 3 + m] * k[m * 3 + j];
+                }
+                r[i * 3 + j] += s * k[i * 3 + j] + c * k2;
+            }
+        }
+        return r;
+    }
+
+    /**
+     * a^T b
+     */
+    private static double[] multiplyTransposed(double[] a, double[] b){
+        double[] out = new double[9];
+        for(int i = 0; i < 3; i++){
+            for(int j = 0; j < 3; j++){
+                for(int m = 0; m < 3; m++){
+                    out[i * 3 + j] += a[m * 3 + i] * b[m * 3 + j];
+                }
+            }
+        }
+        return out;
+    }
+
+    /**
+     * r^T v
+     */
+    private static double[] rotateTransposed(double[] r, double[] v){
+        double[] out = new double[3];
+        for(int i = 0; i < 3; i++){
+            out[i] = r[i] * v[0] + r[3 + i] * v[1] + r[6 + i] * v[2];
+        }
+        return out;
+    }
+
+}
@@ -0,0 +1,96 @@
+package com.MobileSLAM.RosCameraCapture;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Histogram buckets, interval statistics and lock-free recording of the pipeline metrics
+ */
+public class LatencyHistogramTest {
+
+    @Test
+    public void buckets_contiguousAndContainTheirLatencies() {
+        assertEquals(0, LatencyHistogram.bucketLowerNanos(0));
+        for(int i = 1; i < LatencyHistogram.BUCKET_COUNT; i++){
+            assertEquals(LatencyHistogram.bucketUpperNanos(i - 1), LatencyHistogram.bucketLowerNanos(i));
+            long lower = LatencyHistogram.bucketLowerNanos(i);
+            long upper = LatencyHistogram.bucketUpperNanos(i);
+            assertEquals(i, LatencyHistogram.bucketIndex(lower));
+            assertEquals(i, LatencyHistogram.bucketIndex(upper - 1));
+            // at most a quarter of the lower bound wide
+            assertTrue(i < 4 || (upper - lower) * 4 <= lower);
+        }
+        assertEquals(0, LatencyHistogram.bucketIndex(-5));
+        assertEquals(LatencyHistogram.BUCKET_COUNT - 1, LatencyHistogram.bucketIndex(Long.MAX_VALUE));
+    }
+
+    @Test
+    public void interval_percentilesOfKnownDistribution() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        LatencyHistogram.Interval interval = new LatencyHistogram.Interval();
+
+        // 1 ms to 100 ms in 1 ms steps
+        for(int i = 1; i <= 100; i++){
+            histogram.record(i * 1_000_000L);
+        }
+        interval.update(histogram);
+        assertEquals(100, interval.getCount());
+        assertEquals(50_500_000L, interval.getMeanNanos());
+        assertEquals(100_000_000L, interval.getMaxNanos());
+        assertEquals(50e6, interval.getPercentileNanos(0.5), 50e6 * 0.125);
+        assertEquals(95e6, interval.getPercentileNanos(0.95), 95e6 * 0.125);
+        assertEquals(99e6, interval.getPercentileNanos(0.99), 99e6 * 0.125);
+        assertTrue(interval.getPercentileNanos(1) <= 100_000_000L);
+
+        // next interval sees only what came after
+        histogram.record(2_000_000L);
+        interval.update(histogram);
+        assertEquals(1, interval.getCount());
+        assertEquals(2_000_000L, interval.getMeanNanos());
+        assertEquals(2_000_000L, interval.getMaxNanos());
+        assertEquals(2e6, interval.getPercentileNanos(0.5), 2e6 * 0.125);
+
+        interval.update(histogram);
+        assertEquals(0, interval.getCount());
+        assertEquals(0, interval.getPercentileNanos(0.99));
+        assertEquals(101, histogram.getCount());
+    }
+
+    @Test
+    public void concurrentRecording_countsEverySample() throws Exception {
+        PipelineMetrics metrics = new PipelineMetrics("test");
+        PipelineMetrics.Stage stage = metrics.stage("process");
+        assertSame(stage, metrics.stage("process"));
+        assertEquals(1, metrics.getStages().size());
+
+        int threads = 4;
+        int samples = 50_000;
+        Thread[] workers = new Thread[threads];
+        for(int t = 0; t < threads; t++){
+            workers[t] = new Thread(() -> {
+                for(int i = 0; i < samples; i++){
+                    long begin = stage.begin();
+                    stage.end(begin);
+                    stage.record(i * 1000L);
+                    if(i % 10 == 0){
+                        stage.drop(1);
+                    }
+                }
+            });
+            workers[t].start();
+        }
+        for(Thread worker : workers){
+            worker.join();
+        }
+
+        assertEquals(2L * threads * samples, stage.getHistogram().getCount());
+        assertEquals(threads * samples / 10, stage.getDropped());
+
+        LatencyHistogram.Interval interval = new LatencyHistogram.Interval();
+        interval.update(stage.getHistogram());
+        assertEquals(2L * threads * samples, interval.getCount());
+        assertTrue(interval.getMaxNanos() >= (samples - 1) * 1000L);
+    }
+
+}
@@ -0,0 +1,221 @@
+package com.MobileSLAM.RosCameraCapture;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.junit.Test;
+import org.ros.node.topic.Publisher;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Message data goes back to its pool whether rosjava serializes it or drops the message,
+ * reads of a message whose data was released never touch the buffer's new owner
+ */
+public class MessagePublisherTest {
+
+    private static final int POOL_SIZE = MessageBufferPool.IN_FLIGHT_MESSAGES + 1;
+    private static final int CAPACITY = 64;
+
+    private static class Message {
+        ChannelBuffer data;
+    }
+
+    /**
+     * Publisher handing every published message to sink, newMessage() creates a new Message
+     */
+    @SuppressWarnings("unchecked")
+    private static Publisher<Message> publisher(List<Message> sink){
+        return (Publisher<Message>) Proxy.newProxyInstance(Publisher.class.getClassLoader(), new Class<?>[] {Publisher.class},
+                (proxy, method, args) -> {
+                    switch (method.getName()){
+                        case "newMessage":
+                            return new Message();
+                        case "publish":
+                            sink.add((Message) args[0]);
+                            return null;
+                        case "hashCode":
+                            return System.identityHashCode(proxy);
+                        case "equals":
+                            return proxy == args[0];
+                        default:
+                            return null;
+                    }
+                });
+    }
+
+    private static MessagePublisher<Message> dataPublisher(List<Message> sink, PipelineMetrics.Stage dropStage){
+        return new MessagePublisher<>(publisher(sink), null, (message, data) -> message.data = data, dropStage);
+    }
+
+    private static MessageBuffer filled(MessageBufferPool pool, int length, int first){
+        MessageBuffer data = pool.acquire();
+        for(int i = 0; i < length; i++){
+            data.getStorage().put(i, (byte) (first + i));
+        }
+        data.setLength(length);
+        return data;
+    }
+
+    /**
+     * Serialize as rosjava does, length first, then the bytes in one read
+     */
+    private static byte[] serialize(Message message){
+        byte[] out = new byte[message.data.readableBytes()];
+        message.data.getBytes(0, out, 0, out.length);
+        return out;
+    }
+
+    private static boolean held(MessageBuffer data){
+        return (data.getOwnership() & 0x3) == 1;
+    }
+
+    @Test
+    public void serializedMessages_releasedOnRead() {
+        MessageBufferPool pool = new MessageBufferPool(POOL_SIZE, CAPACITY);
+        List<Message> sent = new ArrayList<>();
+        PipelineMetrics.Stage drops = new PipelineMetrics("test").stage("publish");
+        MessagePublisher<Message> publisher = dataPublisher(sent, drops);
+
+        for(int i = 0; i < 100; i++){
+            publisher.publish(filled(pool, 16, i));
+            byte[] out = serialize(sent.get(sent.size() - 1));
+            assertEquals(16, out.length);
+            assertEquals((byte) i, out[0]);
+            assertEquals((byte) (i + 15), out[15]);
+            // back before the next acquire
+            assertEquals(POOL_SIZE, pool.getAvailableBuffers());
+        }
+        assertEquals(0, drops.getDropped());
+    }
+
+    @Test
+    public void messageRing_reusedWithoutAllocation() {
+        List<Message> sent = new ArrayList<>();
+        MessagePublisher<Message> publisher = new MessagePublisher<>(publisher(sent), 3, message -> message.data = null);
+
+        for(int i = 0; i < 9; i++){
+            assertSame(publisher.nextMessage(), publisher.nextMessage());
+            publisher.publish();
+        }
+        assertEquals(9, sent.size());
+        for(int i = 3; i < sent.size(); i++){
+            assertSame(sent.get(i - 3), sent.get(i));
+        }
+        assertNotSame(sent.get(0), sent.get(1));
+    }
+
+    @Test
+    public void unreadData_releasedWhenMessageComesAround() {
+        MessageBufferPool pool = new MessageBufferPool(POOL_SIZE, CAPACITY);
+        List<Message> sent = new ArrayList<>();
+        PipelineMetrics.Stage drops = new PipelineMetrics("test").stage("publish");
+        MessagePublisher<Message> publisher = dataPublisher(sent, drops);
+
+        // nothing is ever serialized, e.g. every message dropped from rosjava's queue,
+        // one buffer held on the capture side is all the pool needs beyond the ring
+        for(int i = 0; i < 10 * MessageBufferPool.IN_FLIGHT_MESSAGES; i++){
+            MessageBuffer data = filled(pool, CAPACITY, i);
+            assertNotNull(data);
+            publisher.publish(data);
+        }
+        assertEquals(1, pool.getAvailableBuffers());
+        assertEquals(9 * MessageBufferPool.IN_FLIGHT_MESSAGES, drops.getDropped());
+
+        // zero length data is never read, released the same way
+        publisher.publish(filled(pool, 0, 0));
+        assertEquals(9 * MessageBufferPool.IN_FLIGHT_MESSAGES + 1, drops.getDropped());
+    }
+
+    @Test
+    public void staleRead_leavesNewOwnerAlone() {
+        MessageBufferPool pool = new MessageBufferPool(1, CAPACITY);
+        List<Message> sent = new ArrayList<>();
+        MessagePublisher<Message> publisher = dataPublisher(sent, new PipelineMetrics("test").stage("publish"));
+
+        MessageBuffer data = filled(pool, 16, 1);
+        publisher.publish(data);
+        Message first = sent.get(0);
+        assertArrayEquals(new byte[] {1, 2, 3}, Arrays.copyOf(serialize(first), 3));
+
+        // same buffer under a new acquire, published by the next message, not read yet
+        MessageBuffer again = filled(pool, 16, 50);
+        assertSame(data, again);
+        publisher.publish(again);
+        Message second = sent.get(1);
+        assertNotSame(first, second);
+
+        // first message serialized again (e.g. latched), token gone: zeros, the new owner keeps the buffer
+        assertArrayEquals(new byte[16], serialize(first));
+        assertTrue(held(again));
+        assertNull(pool.acquire());
+
+        byte[] out = serialize(second);
+        assertEquals(50, out[0]);
+        assertEquals(1, pool.getAvailableBuffers());
+    }
+
+    @Test
+    public void partialRead_releasedAtEnd() {
+        MessageBufferPool pool = new MessageBufferPool(1, CAPACITY);
+        List<Message> sent = new ArrayList<>();
+        MessagePublisher<Message> publisher = dataPublisher(sent, new PipelineMetrics("test").stage("publish"));
+
+        publisher.publish(filled(pool, 16, 0));
+        ChannelBuffer data = sent.get(0).data;
+        byte[] out = new byte[16];
+        data.getBytes(0, out, 0, 8);
+        assertEquals(0, pool.getAvailableBuffers());
+        data.getBytes(8, out, 8, 8);
+        assertEquals(15, out[15]);
+        assertEquals(1, pool.getAvailableBuffers());
+    }
+
+    @Test
+    public void releasedToken_ownsNothing() {
+        MessageBufferPool pool = new MessageBufferPool(1, CAPACITY);
+
+        MessageBuffer data = pool.acquire();
+        long token = data.getOwnership();
+        assertTrue(data.releaseUnread(token));
+        assertFalse(data.releaseUnread(token));
+
+        // acquired again, the old token can neither read nor release it
+        MessageBuffer again = pool.acquire();
+        assertSame(data, again);
+        long current = again.getOwnership();
+        assertNotEquals(token, current);
+        assertFalse(again.beginRead(token));
+        again.endRead(token);
+        assertFalse(again.releaseUnread(token));
+        assertEquals(current, again.getOwnership());
+
+        // release() of the owner after a read started is ignored
+        assertTrue(again.beginRead(current));
+        again.release();
+        assertNull(pool.acquire());
+        again.endRead(current);
+        assertSame(again, pool.acquire());
+    }
+
+    @Test
+    public void emptyPool_allocatesNothing() {
+        MessageBufferPool pool = new MessageBufferPool(2, CAPACITY);
+        MessageBuffer a = pool.acquire();
+        MessageBuffer b = pool.acquire();
+        assertNotNull(a);
+        assertNotNull(b);
+        assertNull(pool.acquire());
+
+        b.release();
+        assertSame(b, pool.acquire());
+        // later release() of the same acquire is ignored, the buffer is not pooled twice
+        a.release();
+        a.release();
+        assertEquals(1, pool.getAvailableBuffers());
+    }
+
+}
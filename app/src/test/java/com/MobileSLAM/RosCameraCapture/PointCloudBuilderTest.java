@@ -0,0 +1,186 @@
+package com.MobileSLAM.RosCameraCapture;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * Point layout, stride and voxel grid downsampling on a synthetic plane
+ * Depth 8x6 registered to a 16x12 color camera with fx = fy = 10, cx = 8, cy = 6,
+ * so at depth frame size a pixel (u, v) at 1 m lies at x = (u - 4) / 5, y = (v - 3) / 5
+ */
+public class PointCloudBuilderTest {
+
+    private static final int WIDTH = 8;
+    private static final int HEIGHT = 6;
+    private static final float EPSILON = 1e-5f;
+
+    private static CameraUtil.CameraParam depthParam(){
+        return new CameraUtil.CameraParam(WIDTH, HEIGHT, 1,
+                10, 10, 4, 3, 0,
+                0, 0, 0, 0, 0, 0, 1,
+                0, 0, 0, 0, 0);
+    }
+
+    private static CameraUtil.CameraParam colorParam(){
+        return new CameraUtil.CameraParam(WIDTH * 2, HEIGHT * 2, 1,
+                10, 10, 8, 6, 0,
+                0, 0, 0, 0, 0, 0, 1,
+                0, 0, 0, 0, 0);
+    }
+
+    private static short[] plane(int millimeter){
+        short[] depth = new short[WIDTH * HEIGHT];
+        Arrays.fill(depth, (short) millimeter);
+        return depth;
+    }
+
+    /**
+     * Color of color pixel (x, y), alpha set to check it is dropped
+     */
+    private static int[] colorFrame(){
+        int[] color = new int[WIDTH * 2 * HEIGHT * 2];
+        for(int y = 0; y < HEIGHT * 2; y++){
+            for(int x = 0; x < WIDTH * 2; x++){
+                color[y * WIDTH * 2 + x] = 0xFF000000 | x << 16 | y << 8 | (x + y);
+            }
+        }
+        return color;
+    }
+
+    private static MessageBuffer message(PointCloudBuilder builder){
+        return new MessageBufferPool(1, builder.bufferCapacity()).acquire();
+    }
+
+    private static void assertPoint(ByteBuffer data, int offset, float x, float y, float z){
+        assertEquals(x, data.getFloat(offset), EPSILON);
+        assertEquals(y, data.getFloat(offset + 4), EPSILON);
+        assertEquals(z, data.getFloat(offset + 8), EPSILON);
+    }
+
+    @Test
+    public void xyz_packedLittleEndian() {
+        PointCloudBuilder builder = new PointCloudBuilder(depthParam(), colorParam());
+        MessageBuffer message = message(builder);
+        short[] depth = new short[WIDTH * HEIGHT];
+        depth[3 * WIDTH + 4] = 1000;        // optical axis
+        depth[5 * WIDTH + 7] = 2000;
+        depth[0] = (short) 50000;           // unsigned millimeter
+
+        assertEquals(3, builder.build(depth, null, message));
+        assertEquals(3 * PointCloudBuilder.XYZ_POINT_STEP, message.writerIndex());
+
+        // byte order on the wire, independent of the storage order
+        byte[] bytes = new byte[message.writerIndex()];
+        message.getBytes(0, bytes, 0, bytes.length);
+        ByteBuffer data = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+        assertPoint(data, 0, -0.8f * 50, -0.6f * 50, 50);
+        assertPoint(data, 12, 0, 0, 1);
+        assertPoint(data, 24, 0.6f * 2, 0.4f * 2, 2);
+        assertEquals(0x3F800000, Integer.reverseBytes(ByteBuffer.wrap(bytes, 20, 4).getInt()));
+    }
+
+    @Test
+    public void xyzrgb_colorFromColorFrame() {
+        PointCloudBuilder builder = new PointCloudBuilder(depthParam(), colorParam());
+        MessageBuffer message = message(builder);
+        short[] depth = new short[WIDTH * HEIGHT];
+        depth[2 * WIDTH + 5] = 1000;
+
+        assertEquals(1, builder.build(depth, colorFrame(), message));
+        assertEquals(PointCloudBuilder.XYZRGB_POINT_STEP, message.writerIndex());
+        ByteBuffer data = message.getStorage();
+        assertPoint(data, 0, 0.2f, -0.2f, 1);
+        // color pixel (10, 4) behind depth pixel (5, 2), alpha dropped
+        assertEquals(10 << 16 | 4 << 8 | 14, data.getInt(12));
+    }
+
+    @Test
+    public void stride_keepsEveryNthPixel() {
+        PointCloudBuilder builder = new PointCloudBuilder(depthParam(), colorParam());
+        MessageBuffer message = message(builder);
+        builder.setStride(2);
+
+        assertEquals(WIDTH / 2 * HEIGHT / 2, builder.build(plane(1000), null, message));
+        ByteBuffer data = message.getStorage();
+        int point = 0;
+        for(int v = 0; v < HEIGHT; v += 2){
+            for(int u = 0; u < WIDTH; u += 2){
+                assertPoint(data, point++ * PointCloudBuilder.XYZ_POINT_STEP, (u - 4) / 5f, (v - 3) / 5f, 1);
+            }
+        }
+
+        builder.setStride(3);
+        assertEquals(3 * 2, builder.build(plane(1000), null, message));
+        builder.setStride(0);
+        assertEquals(WIDTH * HEIGHT, builder.build(plane(1000), null, message));
+    }
+
+    @Test
+    public void voxelGrid_centroidPerVoxel() {
+        PointCloudBuilder builder = new PointCloudBuilder(depthParam(), colorParam());
+        MessageBuffer message = message(builder);
+        builder.setVoxelSize(1);
+
+        // 1 m voxels split the plane at x = 0 and y = 0, negative coordinates floor to -1
+        int[] color = colorFrame();
+        assertEquals(4, builder.build(plane(1000), color, message));
+        ByteBuffer data = message.getStorage();
+        int step = PointCloudBuilder.XYZRGB_POINT_STEP;
+        // voxels in creation order, each the mean of its 12 points
+        assertPoint(data, 0, -0.5f, -0.4f, 1);
+        assertPoint(data, step, 0.3f, -0.4f, 1);
+        assertPoint(data, 2 * step, -0.5f, 0.2f, 1);
+        assertPoint(data, 3 * step, 0.3f, 0.2f, 1);
+        // mean color of color pixels x 0, 2, 4, 6 and y 0, 2, 4
+        assertEquals(3 << 16 | 2 << 8 | 5, data.getInt(12));
+
+        // centroid is the mean over the point count of the voxel
+        short[] depth = plane(0);
+        depth[0] = 1000;
+        depth[1] = 1000;
+        depth[2] = 1100;
+        assertEquals(1, builder.build(depth, null, message));
+        assertPoint(message.getStorage(), 0,
+                (-0.8f - 0.6f - 0.4f * 1.1f) / 3, -0.6f * (1 + 1 + 1.1f) / 3, (1 + 1 + 1.1f) / 3);
+    }
+
+    @Test
+    public void voxelGrid_distinctVoxelsAndReset() {
+        PointCloudBuilder builder = new PointCloudBuilder(depthParam(), colorParam());
+        MessageBuffer message = message(builder);
+        builder.setVoxelSize(0.001f);
+
+        // every point its own voxel, 48 keys in a 128 slot table, no two keys may merge
+        short[] depth = new short[WIDTH * HEIGHT];
+        for(int i = 0; i < depth.length; i++){
+            depth[i] = (short) (500 + i * 37);
+        }
+        assertEquals(WIDTH * HEIGHT, builder.build(depth, null, message));
+        ByteBuffer first = ByteBuffer.allocate(message.writerIndex());
+        for(int i = 0; i < first.capacity(); i++){
+            first.put(i, message.getStorage().get(i));
+        }
+        for(int i = 0; i < depth.length; i++){
+            int u = i % WIDTH;
+            int v = i / WIDTH;
+            float z = depth[i] / 1000f;
+            assertPoint(message.getStorage(), i * PointCloudBuilder.XYZ_POINT_STEP, (u - 4) / 5f * z, (v - 3) / 5f * z, z);
+        }
+
+        // grid is cleared after each frame, the same frame gives the same cloud
+        assertEquals(WIDTH * HEIGHT, builder.build(depth, null, message));
+        for(int i = 0; i < first.capacity(); i++){
+            assertEquals(first.get(i), message.getStorage().get(i));
+        }
+
+        // voxel grid off again
+        builder.setVoxelSize(0);
+        assertEquals(WIDTH * HEIGHT, builder.build(depth, null, message));
+    }
+
+}
@@ -0,0 +1,266 @@
+package com.MobileSLAM.RosCameraCapture;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Record / replay round trip and the depth path on replayed frames with Java kernels
+ */
+public class ReplayFrameSourceTest {
+
+    private static final int WIDTH = 320;
+    private static final int HEIGHT = 240;
+    private static final float CONFIDENCE_THRESHOLD = 0.1f;
+    private static final short MAX_DEPTH = 5000;
+    private static final long FRAME_INTERVAL = 33_000_000L;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static CameraUtil.CameraParam depthParam(){
+        return new CameraUtil.CameraParam(WIDTH, HEIGHT, 0.5,
+                536.9581, 536.7106, 312.9077, 233.22255, 0,
+                -0.011234, 0, 0, 0.70304, -0.71113, 0.00172, 0,
+                0.32826, -0.56677, 0.12383, 0, 0);
+    }
+
+    private static CameraUtil.CameraParam colorParam(){
+        return new CameraUtil.CameraParam(320, 240, 0.0794,
+                3054.3071, 3052.0754, 1990.2135, 1512.378, 0,
+                0, 0, 0, 0.7071, -0.7071, 0, 0,
+                0.05797, -0.05520, 0.00144, 0, 0);
+    }
+
+    private static short[] syntheticFrame(long seed){
+        Random random = new Random(seed);
+        short[] raw = new short[WIDTH * HEIGHT];
+        for(int i = 0; i < raw.length; i++){
+            int range = 300 + (i * 7) % 4000 + random.nextInt(50);
+            raw[i] = (short) ((random.nextInt(8) << 13) | (range & 0x1FFF));
+        }
+        return raw;
+    }
+
+    /**
+     * Record DEPTH16 frames as the camera delivers them, direct buffers in native byte order
+     */
+    private static List<short[]> record(File file, int frames) throws IOException {
+        List<short[]> recorded = new ArrayList<>();
+        FrameSource.Frame frame = new FrameSource.Frame();
+        frame.format = FrameSource.FORMAT_DEPTH16;
+        frame.width = WIDTH;
+        frame.height = HEIGHT;
+        frame.planeCount = 1;
+        frame.rowStrides[0] = WIDTH * 2;
+        frame.pixelStrides[0] = 2;
+
+        FrameRecorder recorder = new FrameRecorder(file, null);
+        for(int i = 0; i < frames; i++){
+            short[] raw = syntheticFrame(i);
+            ByteBuffer plane = ByteBuffer.allocateDirect(raw.length * 2).order(ByteOrder.nativeOrder());
+            plane.asShortBuffer().put(raw);
+            frame.planes[0] = plane;
+            frame.timestamp = 1_000_000_000L + i * FRAME_INTERVAL;
+            recorder.onFrame(frame);
+            assertEquals("plane position unchanged", 0, plane.position());
+            recorded.add(raw);
+        }
+        recorder.close();
+        assertEquals(frames, recorder.getFrameCount());
+        return recorded;
+    }
+
+    @Test
+    public void readFrame_returnsRecordedFrames() throws IOException {
+        File file = folder.newFile("depth.rec");
+        List<short[]> recorded = record(file, 3);
+
+        ReplayFrameSource source = new ReplayFrameSource(file);
+        assertEquals(FrameSource.FORMAT_DEPTH16, source.getFormat());
+        assertEquals(WIDTH, source.getWidth());
+        assertEquals(HEIGHT, source.getHeight());
+        assertEquals(3, source.getFrameCount());
+
+        FrameSource.Frame frame = new FrameSource.Frame();
+        for(int i = 0; i < 3; i++){
+            source.readFrame(i, frame);
+            assertEquals(1_000_000_000L + i * FRAME_INTERVAL, frame.timestamp);
+            assertEquals(1, frame.planeCount);
+            assertEquals(WIDTH * 2, frame.rowStrides[0]);
+            assertEquals(2, frame.pixelStrides[0]);
+
+            short[] replayed = new short[WIDTH * HEIGHT];
+            frame.planes[0].asShortBuffer().get(replayed);
+            assertArrayEquals(recorded.get(i), replayed);
+        }
+    }
+
+    @Test
+    public void truncatedRecording_endsAtLastCompleteFrame() throws IOException {
+        File file = folder.newFile("truncated.rec");
+        record(file, 3);
+        try(RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw")){
+            randomAccessFile.setLength(randomAccessFile.length() - 100);
+        }
+
+        assertEquals(2, new ReplayFrameSource(file).getFrameCount());
+    }
+
+    @Test(expected = IOException.class)
+    public void notARecording_throws() throws IOException {
+        File file = folder.newFile("empty.rec");
+        new ReplayFrameSource(file);
+    }
+
+    /**
+     * Replayed frames through the whole path on the JVM, against the fused reference kernel
+     */
+    @Test
+    public void replay_processesLikeFusedKernel() throws Exception {
+        File file = folder.newFile("process.rec");
+        List<short[]> recorded = record(file, 4);
+
+        CameraUtil.CameraParam depthParam = depthParam();
+        CameraUtil.CameraParam colorParam = colorParam();
+        DepthFrameProcessor processor = new DepthFrameProcessor(depthParam, colorParam, false);
+        processor.setConfidenceThreshold(CONFIDENCE_THRESHOLD);
+        processor.setMaxDepthThreshold(MAX_DEPTH);
+        RowParallelExecutor executor = new RowParallelExecutor(2, "ReplayTestRows");
+        processor.setRowExecutor(executor);
+
+        int length = WIDTH * HEIGHT;
+        List<short[]> depthFrames = new ArrayList<>();
+        List<byte[]> messageFrames = new ArrayList<>();
+        List<Long> timestamps = new ArrayList<>();
+        CountDownLatch done = new CountDownLatch(recorded.size() * 2);
+
+        ReplayFrameSource source = new ReplayFrameSource(file);
+        source.setRealtime(false);
+        source.setLoop(true);
+        ByteBuffer raw = ByteBuffer.allocateDirect(length * 2).order(ByteOrder.nativeOrder());
+        ByteBuffer out = ByteBuffer.allocateDirect(length * 2).order(ByteOrder.LITTLE_ENDIAN);
+        source.start(frame -> {
+            if(done.getCount() == 0) return;
+            raw.clear();
+            raw.put(frame.planes[0]);
+
+            short[] depth = new short[length];
+            processor.process(raw, CameraKernels.DEPTH_FORMAT_16UC1, depth, null, out);
+            byte[] message = new byte[length * 2];
+            ByteBuffer data = out.duplicate();
+            data.clear();
+            data.get(message);
+            depthFrames.add(depth);
+            messageFrames.add(message);
+            timestamps.add(frame.timestamp);
+            done.countDown();
+        });
+        assertTrue(done.await(30, TimeUnit.SECONDS));
+        source.stop();
+        executor.shutdown();
+
+        for(int i = 0; i < recorded.size() * 2; i++){
+            short[] expectedDepth = new short[length];
+            byte[] expectedData = new byte[length * 2];
+            CameraKernels.processDepthFrame(recorded.get(i % recorded.size()), depthParam.getUndistortionMap(),
+                    DepthRegistration.forCameras(depthParam, colorParam),
+                    CONFIDENCE_THRESHOLD, MAX_DEPTH, CameraKernels.DEPTH_FORMAT_16UC1, expectedDepth, expectedData);
+            assertArrayEquals(expectedDepth, depthFrames.get(i));
+            assertArrayEquals(expectedData, messageFrames.get(i));
+
+            // looping keeps the frame interval
+            if(i > 0){
+                assertEquals(FRAME_INTERVAL, timestamps.get(i) - timestamps.get(i - 1));
+            }
+        }
+    }
+
+    @Test
+    public void copyRows_dropsRowPadding() {
+        int rowBytes = WIDTH * 2;
+        int rowStride = rowBytes + 64;
+        // last row unpadded, as camera planes end
+        ByteBuffer plane = ByteBuffer.allocateDirect(rowStride * (HEIGHT - 1) + rowBytes);
+        for(int row = 0; row < HEIGHT; row++){
+            for(int x = 0; x < rowStride && row * rowStride + x < plane.capacity(); x++){
+                plane.put(row * rowStride + x, (byte) (x < rowBytes ? row + x : 0xEE));
+            }
+        }
+        ByteBuffer packed = ByteBuffer.allocateDirect(rowBytes * HEIGHT);
+
+        FrameSource.copyRows(plane, rowStride, rowBytes, HEIGHT, packed);
+        assertFalse(packed.hasRemaining());
+        assertEquals(0, plane.position());
+        assertEquals(plane.capacity(), plane.limit());
+        for(int row = 0; row < HEIGHT; row++){
+            for(int x = 0; x < rowBytes; x++){
+                assertEquals((byte) (row + x), packed.get(row * rowBytes + x));
+            }
+        }
+
+        // tightly packed, a larger plane is cut at the frame
+        ByteBuffer copy = ByteBuffer.allocateDirect(rowBytes * HEIGHT);
+        ByteBuffer large = ByteBuffer.allocateDirect(rowBytes * HEIGHT + 128);
+        packed.clear();
+        large.put(packed).clear();
+        FrameSource.copyRows(large, rowBytes, rowBytes, HEIGHT, copy);
+        packed.clear();
+        copy.clear();
+        assertEquals(packed, copy);
+    }
+
+    @Test
+    public void frameCopyFrom_keepsPlanesAndStrides() {
+        FrameSource.Frame yuv = new FrameSource.Frame();
+        yuv.format = FrameSource.FORMAT_YUV_420_888;
+        yuv.width = WIDTH;
+        yuv.height = HEIGHT;
+        yuv.timestamp = 42;
+        yuv.planeCount = 3;
+        for(int i = 0; i < 3; i++){
+            ByteBuffer plane = ByteBuffer.allocate(i == 0 ? 64 : 32);
+            for(int b = 0; b < plane.capacity(); b++){
+                plane.put(b, (byte) (i * 100 + b));
+            }
+            yuv.planes[i] = plane;
+            yuv.rowStrides[i] = i == 0 ? 16 : 8;
+            yuv.pixelStrides[i] = i == 0 ? 1 : 2;
+        }
+
+        FrameSource.Frame copy = new FrameSource.Frame();
+        copy.copyFrom(yuv);
+        assertEquals(42, copy.timestamp);
+        assertEquals(3, copy.planeCount);
+        for(int i = 0; i < 3; i++){
+            assertTrue(copy.planes[i].isDirect());
+            assertEquals(yuv.planes[i], copy.planes[i]);
+            assertEquals(0, yuv.planes[i].position());
+            assertEquals(yuv.rowStrides[i], copy.rowStrides[i]);
+            assertEquals(yuv.pixelStrides[i], copy.pixelStrides[i]);
+        }
+
+        // planes are reused while they fit, the copy is independent of the source
+        ByteBuffer luma = copy.planes[0];
+        yuv.planes[0].put(0, (byte) 7);
+        copy.copyFrom(yuv);
+        assertSame(luma, copy.planes[0]);
+        assertEquals(7, copy.planes[0].get(0));
+        yuv.planes[0].put(0, (byte) 8);
+        assertEquals(7, copy.planes[0].get(0));
+    }
+
+}
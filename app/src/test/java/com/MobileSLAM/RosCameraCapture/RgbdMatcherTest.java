@@ -0,0 +1,141 @@
+package com.MobileSLAM.RosCameraCapture;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Pairing of synthetic depth and color stamps, 30 fps depth against 30 fps color
+ * Stamps in milliseconds, the matcher defaults: maxOffset 20 ms, maxLatency 100 ms
+ */
+public class RgbdMatcherTest {
+
+    private static final long MS = 1_000_000L;
+
+    private final MessageBufferPool pool = new MessageBufferPool(16, 4);
+    private final RgbdMatcher matcher = new RgbdMatcher();
+    private final RgbdMatcher.Pair pair = new RgbdMatcher.Pair();
+
+    private MessageBuffer color(long stampMs, long nowMs){
+        MessageBuffer message = pool.acquire();
+        matcher.offerColor(stampMs * MS, ColorConverter.Encoding.MONO8, message, nowMs * MS);
+        return message;
+    }
+
+    private MessageBuffer depth(long stampMs, long nowMs){
+        MessageBuffer message = pool.acquire();
+        matcher.offerDepth(stampMs * MS, message, nowMs * MS);
+        return message;
+    }
+
+    private static boolean released(MessageBuffer message){
+        return (message.getOwnership() & 0x3) == 0;
+    }
+
+    private void assertPair(MessageBuffer color, MessageBuffer depth, long nowMs){
+        assertEquals(0, matcher.match(pair, nowMs * MS));
+        assertSame(color, pair.color.message);
+        assertSame(depth, pair.depth.message);
+        assertFalse(released(color));
+        assertFalse(released(depth));
+    }
+
+    @Test
+    public void nearestColor_pairedWithinMaxOffset() {
+        MessageBuffer early = color(990, 0);
+        MessageBuffer near = color(1005, 0);
+        MessageBuffer d = depth(1000, 0);
+        // a color after the depth stamp decides, the nearest one wins
+        assertPair(near, d, 0);
+        assertTrue(released(early));
+        assertEquals(1, matcher.getPairs());
+        assertArrayEquals(new long[] {1, 0}, matcher.getUnmatched());
+
+        // no color after the depth stamp yet, a closer one may follow
+        MessageBuffer before = color(1028, 10);
+        MessageBuffer d2 = depth(1033, 10);
+        assertEquals(100 * MS, matcher.match(pair, 10 * MS));
+        assertEquals(40 * MS, matcher.match(pair, 70 * MS));
+        // a later color arrives, but further away than the pending one
+        color(1045, 80);
+        assertPair(before, d2, 80);
+        assertArrayEquals(new int[] {1, 0}, matcher.getPending());
+    }
+
+    @Test
+    public void maxLatency_pairsWithWhatIsThere() {
+        MessageBuffer c = color(1000, 0);
+        MessageBuffer d = depth(1010, 5);
+        assertEquals(100 * MS, matcher.match(pair, 5 * MS));
+        assertEquals(1 * MS, matcher.match(pair, 104 * MS));
+        assertPair(c, d, 105);
+    }
+
+    @Test
+    public void beyondMaxOffset_unmatched() {
+        // color too old for the depth, dropped, the depth waits alone
+        MessageBuffer old = color(900, 0);
+        MessageBuffer lonely = depth(1000, 0);
+        assertEquals(100 * MS, matcher.match(pair, 0));
+        assertTrue(released(old));
+
+        // no color at all until maxLatency, the depth goes unpaired
+        assertEquals(50 * MS, matcher.match(pair, 50 * MS));
+        assertEquals(100 * MS, matcher.match(pair, 100 * MS));
+        assertTrue(released(lonely));
+        assertArrayEquals(new long[] {1, 1}, matcher.getUnmatched());
+
+        // only colors later than the window, the depth is dropped right away
+        MessageBuffer late = color(1100, 110);
+        MessageBuffer early = depth(1050, 110);
+        assertEquals(100 * MS, matcher.match(pair, 110 * MS));
+        assertTrue(released(early));
+        assertFalse(released(late));
+        assertArrayEquals(new long[] {1, 2}, matcher.getUnmatched());
+        assertEquals(0, matcher.getPairs());
+
+        // the window follows setMaxOffset, no later color, paired after maxLatency
+        matcher.setMaxOffset(60 * MS);
+        MessageBuffer wide = depth(1150, 120);
+        assertEquals(100 * MS, matcher.match(pair, 120 * MS));
+        assertPair(late, wide, 220);
+    }
+
+    @Test
+    public void fullQueue_dropsOldest() {
+        MessageBuffer[] colors = new MessageBuffer[RgbdMatcher.QUEUE_SIZE + 2];
+        for(int i = 0; i < colors.length; i++){
+            colors[i] = color(1000 + 33 * i, 0);
+        }
+        assertArrayEquals(new int[] {RgbdMatcher.QUEUE_SIZE, 0}, matcher.getPending());
+        assertArrayEquals(new long[] {2, 0}, matcher.getDropped());
+        assertTrue(released(colors[0]));
+        assertTrue(released(colors[1]));
+        assertFalse(released(colors[2]));
+
+        MessageBuffer[] depths = new MessageBuffer[RgbdMatcher.QUEUE_SIZE + 1];
+        for(int i = 0; i < depths.length; i++){
+            depths[i] = depth(1000 + 33 * i, 0);
+        }
+        assertArrayEquals(new long[] {2, 1}, matcher.getDropped());
+        assertTrue(released(depths[0]));
+
+        // depth 1033 has no color within 20 ms left, depth 1066 pairs with color 1066
+        assertPair(colors[2], depths[2], 0);
+        assertTrue(released(depths[1]));
+        assertArrayEquals(new long[] {0, 1}, matcher.getUnmatched());
+
+        matcher.clear();
+        assertArrayEquals(new int[] {0, 0}, matcher.getPending());
+        for(int i = 3; i < colors.length; i++){
+            assertTrue(released(colors[i]));
+        }
+        for(int i = 3; i < depths.length; i++){
+            assertTrue(released(depths[i]));
+        }
+        // statistics are kept
+        assertArrayEquals(new long[] {2, 1}, matcher.getDropped());
+        assertEquals(1, matcher.getPairs());
+    }
+
+}
@@ -0,0 +1,112 @@
+package com.MobileSLAM.RosCameraCapture;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * RVL encoder / decoder round trip, known encoding, compressedDepth message layout
+ */
+public class RvlCodecTest {
+
+    private static final int WIDTH = 320;
+    private static final int HEIGHT = 240;
+
+    /**
+     * Depth frame like the registered output: smooth surface, holes from registration and low confidence
+     */
+    private static short[] syntheticDepth(long seed){
+        Random random = new Random(seed);
+        short[] depth = new short[WIDTH * HEIGHT];
+        for(int v = 0; v < HEIGHT; v++){
+            for(int u = 0; u < WIDTH; u++){
+                if(random.nextInt(8) == 0 || (u > 100 && u < 140)) continue;
+                depth[v * WIDTH + u] = (short) (800 + u * 3 + v * 2 + random.nextInt(20));
+            }
+        }
+        return depth;
+    }
+
+    private static void assertRoundTrip(short[] depth){
+        RvlCodec codec = new RvlCodec();
+        ByteBuffer encoded = ByteBuffer.allocate(RvlCodec.maxEncodedSize(depth.length));
+        int length = codec.encode(depth, depth.length, encoded);
+        assertTrue(length > 0);
+        assertEquals(0, length % 4);
+        assertEquals(0, encoded.position());
+
+        short[] decoded = new short[depth.length];
+        Arrays.fill(decoded, (short) 1234);
+        assertEquals(length, codec.decode(encoded, decoded, depth.length));
+        assertArrayEquals(depth, decoded);
+    }
+
+    @Test
+    public void roundTrip_syntheticDepth() {
+        for(long seed = 0; seed < 5; seed++){
+            assertRoundTrip(syntheticDepth(seed));
+        }
+    }
+
+    @Test
+    public void roundTrip_edgeCases() {
+        short[] depth = new short[WIDTH * HEIGHT];
+        assertRoundTrip(depth);                                 // all holes
+
+        Arrays.fill(depth, (short) 0xFFFF);
+        assertRoundTrip(depth);                                 // unsigned maximum
+
+        Random random = new Random(0);
+        for(int i = 0; i < depth.length; i++){
+            depth[i] = (short) (i % 2 == 0 ? 0 : random.nextInt(1 << 16));
+        }
+        assertRoundTrip(depth);                                 // worst case runs and deltas
+
+        assertRoundTrip(new short[] {5});
+        assertRoundTrip(new short[] {0, 7, 0});
+    }
+
+    @Test
+    public void encode_knownWords() {
+        // zeros 2, nonzeros 1, delta 5 -> zigzag 10 = nibbles 0xA 0x1
+        ByteBuffer encoded = ByteBuffer.allocate(16);
+        int length = new RvlCodec().encode(new short[] {0, 0, 5}, 3, encoded);
+        assertEquals(4, length);
+        assertArrayEquals(new byte[] {0x00, 0x00, (byte) 0xA1, 0x21}, Arrays.copyOf(encoded.array(), 4));
+    }
+
+    @Test
+    public void encode_overflowReported() {
+        short[] depth = syntheticDepth(0);
+        ByteBuffer tooSmall = ByteBuffer.allocate(64);
+        assertEquals(-1, new RvlCodec().encode(depth, depth.length, tooSmall));
+    }
+
+    @Test
+    public void compressedDepth_rvlLayout() {
+        short[] depth = syntheticDepth(1);
+        CompressedDepthEncoder encoder = new CompressedDepthEncoder(WIDTH, HEIGHT);
+        MessageBufferPool pool = new MessageBufferPool(1, encoder.bufferCapacity());
+        MessageBuffer message = pool.acquire();
+
+        assertEquals(CompressedDepthEncoder.Format.RVL, encoder.encode(depth, CompressedDepthEncoder.Format.RVL, message));
+        assertEquals("16UC1; compressedDepth rvl", CompressedDepthEncoder.formatString(CompressedDepthEncoder.Format.RVL));
+        // registered depth compresses well below the raw 16 bit frame
+        assertTrue(message.readableBytes() < WIDTH * HEIGHT);
+
+        ByteBuffer data = message.getStorage().duplicate();
+        data.limit(message.readableBytes());
+        for(int i = 0; i < CompressedDepthEncoder.CONFIG_HEADER_SIZE; i++){
+            assertEquals(0, data.get(i));
+        }
+
+        short[] decoded = new short[WIDTH * HEIGHT];
+        assertArrayEquals(new int[] {WIDTH, HEIGHT}, CompressedDepthEncoder.decodeRVL(data, decoded));
+        assertArrayEquals(depth, decoded);
+    }
+
+}
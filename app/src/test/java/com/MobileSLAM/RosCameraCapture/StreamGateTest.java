@@ -0,0 +1,95 @@
+package com.MobileSLAM.RosCameraCapture;
+
+import org.junit.Test;
+import org.ros.node.topic.Publisher;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Gate state follows the subscriber counts of its publishers
+ */
+public class StreamGateTest {
+
+    /**
+     * Publisher reporting subscribers as set in count, everything else is a no-op
+     */
+    @SuppressWarnings("unchecked")
+    private static Publisher<Object> publisher(AtomicInteger count){
+        return (Publisher<Object>) Proxy.newProxyInstance(Publisher.class.getClassLoader(), new Class<?>[] {Publisher.class},
+                (proxy, method, args) -> {
+                    switch (method.getName()){
+                        case "getNumberOfSubscribers":
+                            return count.get();
+                        case "hasSubscribers":
+                            return count.get() > 0;
+                        case "hashCode":
+                            return System.identityHashCode(proxy);
+                        case "equals":
+                            return proxy == args[0];
+                        default:
+                            return null;
+                    }
+                });
+    }
+
+    @Test
+    public void refresh_closesAfterUnsubscribe() {
+        AtomicInteger image = new AtomicInteger();
+        AtomicInteger info = new AtomicInteger();
+        StreamGate gate = new StreamGate("~image");
+        List<Boolean> changes = new ArrayList<>();
+        gate.setListener((g, open) -> changes.add(open));
+
+        gate.addPublisher(publisher(image));
+        assertFalse(gate.isOpen());
+
+        image.set(1);
+        assertTrue(gate.refresh());
+        assertTrue(gate.isOpen());
+
+        // isOpen() alone never sees the unsubscribe
+        image.set(0);
+        assertTrue(gate.isOpen());
+        assertFalse(gate.refresh());
+        assertFalse(gate.isOpen());
+
+        // any publisher with subscribers keeps it open
+        gate.addPublisher(publisher(info));
+        info.set(2);
+        assertTrue(gate.refresh());
+        info.set(0);
+        assertFalse(gate.refresh());
+
+        assertEquals(4, changes.size());
+        assertEquals(true, changes.get(0));
+        assertEquals(false, changes.get(1));
+        assertEquals(true, changes.get(2));
+        assertEquals(false, changes.get(3));
+    }
+
+    @Test
+    public void awaitOpen_returnsOnceSubscribed() throws Exception {
+        AtomicInteger count = new AtomicInteger();
+        StreamGate gate = new StreamGate("~points");
+        gate.addPublisher(publisher(count));
+
+        Thread subscriber = new Thread(() -> {
+            try{
+                Thread.sleep(50);
+            }catch (InterruptedException e){
+                return;
+            }
+            count.set(1);
+        });
+        subscriber.start();
+        gate.awaitOpen();
+        assertTrue(gate.isOpen());
+        subscriber.join();
+    }
+
+}
@@ -0,0 +1,156 @@
+package com.MobileSLAM.RosCameraCapture;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import static org.junit.Assert.*;
+
+/**
+ * Per pixel convergence, restart on a depth step and hole persistence of the temporal filter
+ */
+public class TemporalDepthFilterTest {
+
+    private static final int WIDTH = 4;
+    private static final int HEIGHT = 2;
+
+    // DEPTH16 confidence code 0 is full confidence, 1 is none, 1 + n is n / 7
+    private static final int FULL = 0;
+    private static final int NONE = 1;
+
+    private final TemporalDepthFilter filter = new TemporalDepthFilter(WIDTH, HEIGHT);
+    private final ByteBuffer raw = ByteBuffer.allocateDirect(WIDTH * HEIGHT * 2).order(ByteOrder.nativeOrder());
+    private final short[] depth = new short[WIDTH * HEIGHT];
+    private final byte[] confidence = new byte[WIDTH * HEIGHT];
+
+    /**
+     * Filter a frame with every pixel at millimeter and confidence code
+     */
+    private void frame(int millimeter, int confidenceCode){
+        for(int i = 0; i < WIDTH * HEIGHT; i++){
+            raw.putShort(i * 2, (short) (millimeter | confidenceCode << 13));
+        }
+        filter.filter(raw, depth, confidence);
+    }
+
+    private void assertFrame(int millimeter){
+        for(short value : depth){
+            assertEquals(millimeter, value);
+        }
+    }
+
+    @Test
+    public void steadySamples_converge() {
+        filter.setSmoothing(0.6f);
+        frame(1000, FULL);
+        assertFrame(1000);
+        // weight of a single sample over the steady state weight 1 / (1 - 0.6)
+        assertEquals(102, confidence[0] & 0xFF);
+
+        // within the jump threshold, blended, each step closes part of the gap
+        int previous = 1000;
+        for(int i = 0; i < 30; i++){
+            frame(1040, FULL);
+            assertTrue(depth[0] >= previous && depth[0] <= 1040);
+            previous = depth[0];
+        }
+        assertFrame(1040);
+        assertEquals(255, confidence[0] & 0xFF);
+
+        // first blend: weight 0.6 + 1, the estimate moves 1 / 1.6 of the difference
+        filter.reset();
+        frame(1000, FULL);
+        frame(1040, FULL);
+        assertFrame(1025);
+
+        // low confidence moves the estimate less
+        filter.reset();
+        frame(1000, FULL);
+        frame(1040, 1 + 2);
+        assertTrue(depth[0] > 1000 && depth[0] < 1025);
+
+        // no smoothing passes samples through
+        filter.setSmoothing(0);
+        frame(1050, FULL);
+        assertFrame(1050);
+    }
+
+    @Test
+    public void depthStep_restarts() {
+        for(int i = 0; i < 30; i++){
+            frame(1000, FULL);
+        }
+        assertEquals(255, confidence[0] & 0xFF);
+
+        // 20% above the estimate, no blending across the edge, history dropped
+        frame(1200, FULL);
+        assertFrame(1200);
+        assertEquals(102, confidence[0] & 0xFF);
+
+        // and below
+        filter.setJumpThreshold(0.1f);
+        frame(1000, FULL);
+        assertFrame(1000);
+        frame(1090, FULL);
+        assertTrue(depth[0] > 1000 && depth[0] < 1090);
+    }
+
+    @Test
+    public void hole_holdsThenClears() {
+        filter.setHolePersistence(3);
+        for(int i = 0; i < 10; i++){
+            frame(1500, FULL);
+        }
+        int held = confidence[0] & 0xFF;
+
+        // estimate kept for holePersistence frames, confidence decays
+        for(int i = 0; i < 3; i++){
+            frame(0, FULL);
+            assertFrame(1500);
+            assertTrue((confidence[0] & 0xFF) < held);
+            held = confidence[0] & 0xFF;
+        }
+        frame(0, FULL);
+        assertFrame(0);
+        assertEquals(0, confidence[0]);
+        frame(0, FULL);
+        assertFrame(0);
+
+        // samples not above the confidence threshold are holes too
+        frame(1500, FULL);
+        frame(1600, NONE);
+        assertFrame(1500);
+
+        // next valid sample starts over at its value
+        frame(0, FULL);
+        frame(0, FULL);
+        frame(0, FULL);
+        frame(1700, FULL);
+        assertFrame(1700);
+
+        // no persistence drops holes right away
+        filter.setHolePersistence(0);
+        frame(0, FULL);
+        assertFrame(0);
+    }
+
+    @Test
+    public void rowBands_matchWholeFrame() {
+        TemporalDepthFilter banded = new TemporalDepthFilter(WIDTH, HEIGHT);
+        short[] bandedDepth = new short[WIDTH * HEIGHT];
+        byte[] bandedConfidence = new byte[WIDTH * HEIGHT];
+        for(int f = 0; f < 8; f++){
+            for(int i = 0; i < WIDTH * HEIGHT; i++){
+                int value = f % 3 == 2 && i % 2 == 0 ? 0 : 800 + 10 * f + i;
+                raw.putShort(i * 2, (short) (value | (i % 4) << 13));
+            }
+            filter.filter(raw, depth, confidence);
+            banded.filterRows(raw, bandedDepth, bandedConfidence, 1, HEIGHT);
+            banded.filterRows(raw, bandedDepth, bandedConfidence, 0, 1);
+            assertArrayEquals(depth, bandedDepth);
+            assertArrayEquals(confidence, bandedConfidence);
+        }
+    }
+
+}
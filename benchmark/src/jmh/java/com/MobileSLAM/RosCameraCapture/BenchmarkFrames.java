@@ -0,0 +1,203 @@
+package com.MobileSLAM.RosCameraCapture;
+
+import android.util.Size;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+
+/**
+ * Input frames of the benchmarks, synthetic or read from a recording of FrameRecorder
+ * Sizes are given as "WIDTHxHEIGHT" and must be one of the CameraUtil output sizes,
+ * camera parameters are the CameraUtil defaults scaled to the size
+ */
+final class BenchmarkFrames {
+
+    // Value of the frames parameter for generated frames, anything else is a recording path
+    static final String SYNTHETIC = "synthetic";
+    static final int SYNTHETIC_DEPTH_FRAMES = 8;
+    // a full resolution color frame takes 18 MB
+    static final int SYNTHETIC_YUV_FRAMES = 2;
+
+    static final String JAVA_KERNELS = "java";
+    static final String NATIVE_KERNELS = "native";
+
+    private BenchmarkFrames() {}
+
+    /**
+     * Parse size parameter, it must be one of supported
+     * @return width, height
+     */
+    static int[] parseSize(String size, Size[] supported){
+        String[] parts = size.split("x");
+        int width = Integer.parseInt(parts[0]);
+        int height = Integer.parseInt(parts[1]);
+        for(Size s : supported){
+            if(s.getWidth() == width && s.getHeight() == height) return new int[] {width, height};
+        }
+        throw new IllegalArgumentException("Not an output size of CameraUtil: " + size);
+    }
+
+    /**
+     * Select kernels, native loads camera-util from java.library.path
+     * A native run without the library fails, it never falls back to the Java references
+     * @return true for the CameraUtil natives, false for the CameraKernels references
+     */
+    static boolean loadKernels(String kernels){
+        if(NATIVE_KERNELS.equals(kernels)){
+            try{
+                System.loadLibrary("camera-util");
+            }catch (UnsatisfiedLinkError e){
+                throw new IllegalStateException("kernels=native needs a host build of camera-util on java.library.path ("
+                        + System.getProperty("java.library.path") + ")", e);
+            }
+            return true;
+        }
+        if(JAVA_KERNELS.equals(kernels)) return false;
+        throw new IllegalArgumentException("Unknown kernels: " + kernels);
+    }
+
+    /**
+     * Camera parameters of base at another frame size of the same aspect ratio
+     */
+    static CameraUtil.CameraParam scaledParam(CameraUtil.CameraParam base, int width, int height){
+        double baseScale = base._scaleFactor;
+        return new CameraUtil.CameraParam(width, height, baseScale * width / base.frameWidth,
+                base._fx / baseScale, base._fy / baseScale, base._cx / baseScale, base._cy / baseScale, base._s,
+                base._tx, base._ty, base._tz, base._qx, base._qy, base._qz, base._qw,
+                base._k1, base._k2, base._k3, base._p1, base._p2);
+    }
+
+    /**
+     * DEPTH16 frames, direct buffers in native byte order without row padding as the camera delivers them
+     * @param frames SYNTHETIC or path of a DEPTH16 recording of width x height
+     */
+    static ByteBuffer[] depthFrames(String frames, int width, int height) throws IOException {
+        if(SYNTHETIC.equals(frames)){
+            ByteBuffer[] raw = new ByteBuffer[SYNTHETIC_DEPTH_FRAMES];
+            for(int i = 0; i < raw.length; i++){
+                raw[i] = ByteBuffer.allocateDirect(width * height * 2).order(ByteOrder.nativeOrder());
+                raw[i].asShortBuffer().put(syntheticDepth(width, height, i));
+            }
+            return raw;
+        }
+
+        ReplayFrameSource source = openRecording(frames, FrameSource.FORMAT_DEPTH16, width, height);
+        ByteBuffer[] raw = new ByteBuffer[source.getFrameCount()];
+        FrameSource.Frame frame = new FrameSource.Frame();
+        for(int i = 0; i < raw.length; i++){
+            source.readFrame(i, frame);
+            raw[i] = ByteBuffer.allocateDirect(width * height * 2).order(ByteOrder.nativeOrder());
+            copyRows(frame.planes[0], frame.rowStrides[0], width * 2, height, raw[i]);
+        }
+        return raw;
+    }
+
+    /**
+     * DEPTH16 frame as short array
+     */
+    static short[] toShorts(ByteBuffer raw){
+        short[] data = new short[raw.capacity() / 2];
+        raw.duplicate().order(raw.order()).asShortBuffer().get(data);
+        return data;
+    }
+
+    /**
+     * Smooth depth surface with random confidence and holes
+     */
+    static short[] syntheticDepth(int width, int height, long seed){
+        Random random = new Random(seed);
+        short[] raw = new short[width * height];
+        for(int v = 0; v < height; v++){
+            for(int u = 0; u < width; u++){
+                int range = 300 + (u * 7 + v * 5 + (int) seed * 13) % 4000 + random.nextInt(50);
+                if(random.nextInt(20) == 0) range = 0;
+                int confidence = random.nextInt(8);
+                raw[v * width + u] = (short) ((confidence << 13) | (range & 0x1FFF));
+            }
+        }
+        return raw;
+    }
+
+    /**
+     * YUV_420_888 frames with their planes in direct buffers
+     * Synthetic frames use the semi-planar layout of most devices, U and V views into one interleaved plane
+     * Recorded planes are views into the mapped recording, kept as recorded
+     * @param frames SYNTHETIC or path of a YUV_420_888 recording of width x height
+     */
+    static FrameSource.Frame[] yuvFrames(String frames, int width, int height) throws IOException {
+        if(SYNTHETIC.equals(frames)){
+            FrameSource.Frame[] yuv = new FrameSource.Frame[SYNTHETIC_YUV_FRAMES];
+            for(int i = 0; i < yuv.length; i++){
+                yuv[i] = syntheticYUV(width, height, i);
+            }
+            return yuv;
+        }
+
+        ReplayFrameSource source = openRecording(frames, FrameSource.FORMAT_YUV_420_888, width, height);
+        FrameSource.Frame[] yuv = new FrameSource.Frame[source.getFrameCount()];
+        for(int i = 0; i < yuv.length; i++){
+            yuv[i] = new FrameSource.Frame();
+            source.readFrame(i, yuv[i]);
+        }
+        return yuv;
+    }
+
+    static FrameSource.Frame syntheticYUV(int width, int height, long seed){
+        Random random = new Random(seed);
+        byte[] y = new byte[width * height];
+        byte[] uv = new byte[width * height / 2];
+        random.nextBytes(y);
+        random.nextBytes(uv);
+
+        ByteBuffer yPlane = ByteBuffer.allocateDirect(y.length);
+        yPlane.put(y).clear();
+        ByteBuffer uvPlane = ByteBuffer.allocateDirect(uv.length);
+        uvPlane.put(uv).clear();
+
+        FrameSource.Frame frame = new FrameSource.Frame();
+        frame.format = FrameSource.FORMAT_YUV_420_888;
+        frame.width = width;
+        frame.height = height;
+        frame.timestamp = seed;
+        frame.planeCount = 3;
+        frame.planes[0] = yPlane;
+        // U starts the interleaved plane, V one byte later, each view ends at the last sample
+        uvPlane.limit(uv.length - 1);
+        frame.planes[1] = uvPlane.slice();
+        uvPlane.limit(uv.length).position(1);
+        frame.planes[2] = uvPlane.slice();
+        frame.rowStrides[0] = width;
+        frame.rowStrides[1] = frame.rowStrides[2] = width;
+        frame.pixelStrides[0] = 1;
+        frame.pixelStrides[1] = frame.pixelStrides[2] = 2;
+        return frame;
+    }
+
+    private static ReplayFrameSource openRecording(String path, int format, int width, int height) throws IOException {
+        ReplayFrameSource source = new ReplayFrameSource(new File(path));
+        if(source.getFormat() != format || source.getWidth() != width || source.getHeight() != height){
+            throw new IllegalArgumentException("Recording " + path + " is not " + width + "x" + height
+                    + " of format 0x" + Integer.toHexString(format));
+        }
+        if(source.getFrameCount() == 0){
+            throw new IllegalArgumentException("Recording " + path + " has no frames");
+        }
+        return source;
+    }
+
+    /**
+     * Copy rows of a plane without their padding, plane position is not changed
+     */
+    private static void copyRows(ByteBuffer plane, int rowStride, int rowBytes, int height, ByteBuffer out){
+        ByteBuffer src = plane.duplicate();
+        for(int row = 0; row < height; row++){
+            src.limit(row * rowStride + rowBytes).position(row * rowStride);
+            out.put(src);
+        }
+        out.clear();
+    }
+
+}
@@ -0,0 +1,126 @@
+package com.MobileSLAM.RosCameraCapture;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * YUV_420_888 conversions of CameraUtil on a whole frame, at each of CameraUtil.COLOR_OUTPUT_SIZES
+ * kernels=java (default) runs the CameraKernels references, kernels=native the CameraUtil natives
+ * (packYUVToNV21 is Java in both)
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class ColorKernelBenchmark {
+
+    @Param({"4032x3024", "2560x1920", "1440x1080", "960x720", "640x480", "320x240"})
+    public String size;
+
+    @Param({BenchmarkFrames.SYNTHETIC})
+    public String frames;
+
+    @Param({BenchmarkFrames.JAVA_KERNELS})
+    public String kernels;
+
+    private boolean nativeKernels;
+    private int width;
+    private int height;
+
+    private FrameSource.Frame[] yuvFrames;
+    private int frameIndex = 0;
+
+    // Outputs, reused
+    private ByteBuffer colorOut;
+    private int[] argbOut;
+    private byte[] nv21Out;
+
+    @Setup
+    public void setup() throws IOException {
+        nativeKernels = BenchmarkFrames.loadKernels(kernels);
+        int[] frameSize = BenchmarkFrames.parseSize(size, CameraUtil.COLOR_OUTPUT_SIZES);
+        width = frameSize[0];
+        height = frameSize[1];
+
+        yuvFrames = BenchmarkFrames.yuvFrames(frames, width, height);
+        colorOut = ByteBuffer.allocateDirect(width * height * 4);
+        argbOut = new int[width * height];
+        nv21Out = new byte[width * height * 3 / 2];
+    }
+
+    private FrameSource.Frame nextFrame(){
+        FrameSource.Frame frame = yuvFrames[frameIndex];
+        frameIndex = (frameIndex + 1) % yuvFrames.length;
+        return frame;
+    }
+
+    @Benchmark
+    public ByteBuffer convertYUVToBGRA(){
+        FrameSource.Frame f = nextFrame();
+        if(nativeKernels){
+            CameraUtil.convertYUVToBGRARows(f.planes[0], f.planes[1], f.planes[2], f.rowStrides[0], f.rowStrides[1],
+                    f.pixelStrides[1], width, 0, height, colorOut);
+        }else{
+            CameraKernels.convertYUVToBGRA(f.planes[0], f.planes[1], f.planes[2], f.rowStrides[0], f.rowStrides[1],
+                    f.pixelStrides[1], width, height, colorOut);
+        }
+        return colorOut;
+    }
+
+    @Benchmark
+    public ByteBuffer convertYUVToBGR(){
+        FrameSource.Frame f = nextFrame();
+        if(nativeKernels){
+            CameraUtil.convertYUVToBGRRows(f.planes[0], f.planes[1], f.planes[2], f.rowStrides[0], f.rowStrides[1],
+                    f.pixelStrides[1], width, 0, height, colorOut);
+        }else{
+            CameraKernels.convertYUVToBGR(f.planes[0], f.planes[1], f.planes[2], f.rowStrides[0], f.rowStrides[1],
+                    f.pixelStrides[1], width, height, colorOut);
+        }
+        return colorOut;
+    }
+
+    @Benchmark
+    public int[] convertYUVToARGB(){
+        FrameSource.Frame f = nextFrame();
+        if(nativeKernels){
+            CameraUtil.convertYUVToARGBUint32Into(f.planes[0], f.planes[1], f.planes[2], f.rowStrides[0], f.rowStrides[1],
+                    f.pixelStrides[1], width, height, argbOut);
+        }else{
+            CameraKernels.convertYUVToARGBUint32(f.planes[0], f.planes[1], f.planes[2], f.rowStrides[0], f.rowStrides[1],
+                    f.pixelStrides[1], width, height, argbOut);
+        }
+        return argbOut;
+    }
+
+    @Benchmark
+    public ByteBuffer packYUVToNV12(){
+        FrameSource.Frame f = nextFrame();
+        if(nativeKernels){
+            CameraUtil.packYUVToNV12(f.planes[0], f.planes[1], f.planes[2], f.rowStrides[0], f.rowStrides[1],
+                    f.pixelStrides[1], width, height, colorOut);
+        }else{
+            CameraKernels.packYUVToNV12(f.planes[0], f.planes[1], f.planes[2], f.rowStrides[0], f.rowStrides[1],
+                    f.pixelStrides[1], width, height, colorOut);
+        }
+        return colorOut;
+    }
+
+    @Benchmark
+    public byte[] packYUVToNV21(){
+        FrameSource.Frame f = nextFrame();
+        CameraUtil.packYUVToNV21(f.planes[0], f.planes[1], f.planes[2], f.rowStrides[0], f.rowStrides[1],
+                f.pixelStrides[1], width, height, nv21Out);
+        return nv21Out;
+    }
+
+}
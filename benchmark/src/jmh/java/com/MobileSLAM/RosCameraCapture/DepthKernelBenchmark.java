@@ -0,0 +1,189 @@
+package com.MobileSLAM.RosCameraCapture;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Depth kernels of CameraUtil one stage at a time, at each of CameraUtil.DEPTH_OUTPUT_SIZES
+ * Each stage reads the precomputed output of the stage before, frames are cycled
+ * kernels=java (default) runs the CameraKernels references, kernels=native the CameraUtil natives
+ * (undistortion and registration are Java in both)
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class DepthKernelBenchmark {
+
+    private static final float CONFIDENCE_THRESHOLD = 0.1f;
+    private static final short MAX_DEPTH = 5000;
+
+    @Param({"640x480", "320x240"})
+    public String size;
+
+    @Param({BenchmarkFrames.SYNTHETIC})
+    public String frames;
+
+    @Param({BenchmarkFrames.JAVA_KERNELS})
+    public String kernels;
+
+    private boolean nativeKernels;
+    private int width;
+    private int height;
+    private int length;
+    private CameraUtil.CameraParam depthParam;
+    private CameraUtil.CameraParam colorParam;
+
+    // Input of each stage, per frame
+    private ByteBuffer[] rawFrames;
+    private short[][] rawShorts;
+    private short[][] parsedFrames;
+    private short[][] undistortedFrames;
+    private short[][] registeredFrames;
+    private int frameIndex = 0;
+
+    // Outputs, reused
+    private short[] depthOut;
+    private int[] argbOut;
+    private byte[] byteOut;
+    private byte[] confidenceOut;
+    private ByteBuffer messageOut;
+    private ByteBuffer rvlOut;
+    private final RvlCodec rvlCodec = new RvlCodec();
+    private TemporalDepthFilter temporalFilter;
+
+    @Setup
+    public void setup() throws IOException {
+        nativeKernels = BenchmarkFrames.loadKernels(kernels);
+        int[] frameSize = BenchmarkFrames.parseSize(size, CameraUtil.DEPTH_OUTPUT_SIZES);
+        width = frameSize[0];
+        height = frameSize[1];
+        length = width * height;
+        depthParam = BenchmarkFrames.scaledParam(CameraUtil.depthCameraParam, width, height);
+        colorParam = CameraUtil.colorCameraParam;
+
+        rawFrames = BenchmarkFrames.depthFrames(frames, width, height);
+        int count = rawFrames.length;
+        rawShorts = new short[count][];
+        parsedFrames = new short[count][];
+        undistortedFrames = new short[count][];
+        registeredFrames = new short[count][];
+        for(int i = 0; i < count; i++){
+            rawShorts[i] = BenchmarkFrames.toShorts(rawFrames[i]);
+            parsedFrames[i] = new short[length];
+            CameraKernels.parseDepth16(rawShorts[i], parsedFrames[i], length, CONFIDENCE_THRESHOLD);
+            undistortedFrames[i] = CameraUtil.undistortion(parsedFrames[i], depthParam);
+            registeredFrames[i] = CameraUtil.depthRegister(undistortedFrames[i], depthParam, colorParam);
+        }
+
+        depthOut = new short[length];
+        argbOut = new int[length];
+        byteOut = new byte[length * 2];
+        confidenceOut = new byte[length];
+        messageOut = ByteBuffer.allocateDirect(length * 2).order(ByteOrder.LITTLE_ENDIAN);
+        rvlOut = ByteBuffer.allocateDirect(RvlCodec.maxEncodedSize(length)).order(ByteOrder.LITTLE_ENDIAN);
+        temporalFilter = new TemporalDepthFilter(width, height);
+        temporalFilter.setConfidenceThreshold(CONFIDENCE_THRESHOLD);
+    }
+
+    private int nextFrame(){
+        int index = frameIndex;
+        frameIndex = (index + 1) % rawFrames.length;
+        return index;
+    }
+
+    @Benchmark
+    public short[] parseDepth16(){
+        ByteBuffer raw = rawFrames[nextFrame()];
+        if(nativeKernels){
+            CameraUtil.parseDepth16Rows(raw, depthOut, width, 0, height, CONFIDENCE_THRESHOLD);
+        }else{
+            CameraKernels.parseDepth16Rows(raw, depthOut, width, 0, height, CONFIDENCE_THRESHOLD);
+        }
+        return depthOut;
+    }
+
+    @Benchmark
+    public short[] temporalFilter(){
+        temporalFilter.filter(rawFrames[nextFrame()], depthOut, confidenceOut);
+        return depthOut;
+    }
+
+    @Benchmark
+    public short[] undistortion(){
+        CameraUtil.undistortion(parsedFrames[nextFrame()], depthOut, depthParam);
+        return depthOut;
+    }
+
+    @Benchmark
+    public short[] depthRegister(){
+        CameraUtil.depthRegister(undistortedFrames[nextFrame()], depthOut, depthParam, colorParam);
+        return depthOut;
+    }
+
+    @Benchmark
+    public ByteBuffer convertShortToByte(){
+        short[] depth = registeredFrames[nextFrame()];
+        if(nativeKernels){
+            CameraUtil.convertShortToByteRows(depth, messageOut, width, 0, height);
+        }else{
+            CameraKernels.convertShortToByteRows(depth, messageOut, width, 0, height);
+        }
+        return messageOut;
+    }
+
+    @Benchmark
+    public ByteBuffer convertShortToGray(){
+        short[] depth = registeredFrames[nextFrame()];
+        if(nativeKernels){
+            CameraUtil.convertShortToGrayRows(depth, messageOut, width, 0, height, MAX_DEPTH);
+        }else{
+            CameraKernels.convertShortToGrayRows(depth, messageOut, width, 0, height, MAX_DEPTH);
+        }
+        return messageOut;
+    }
+
+    @Benchmark
+    public int[] convertShortToARGB(){
+        short[] depth = registeredFrames[nextFrame()];
+        if(nativeKernels){
+            CameraUtil.convertShortToARGBInto(depth, argbOut, width, height, MAX_DEPTH);
+        }else{
+            CameraKernels.convertShortToARGB(depth, argbOut, length, MAX_DEPTH);
+        }
+        return argbOut;
+    }
+
+    /**
+     * parse + undistort + register + 16UC1 serialization in one pass
+     */
+    @Benchmark
+    public short[] processDepthFrame(){
+        int index = nextFrame();
+        if(nativeKernels){
+            CameraUtil.processDepthFrame(rawFrames[index], depthParam, colorParam,
+                    CONFIDENCE_THRESHOLD, MAX_DEPTH, CameraKernels.DEPTH_FORMAT_16UC1, depthOut, messageOut);
+        }else{
+            CameraKernels.processDepthFrame(rawShorts[index], depthParam.getUndistortionMap(),
+                    DepthRegistration.forCameras(depthParam, colorParam),
+                    CONFIDENCE_THRESHOLD, MAX_DEPTH, CameraKernels.DEPTH_FORMAT_16UC1, depthOut, byteOut);
+        }
+        return depthOut;
+    }
+
+    @Benchmark
+    public int rvlEncode(){
+        return rvlCodec.encode(registeredFrames[nextFrame()], length, rvlOut);
+    }
+
+}
@@ -0,0 +1,142 @@
+package com.MobileSLAM.RosCameraCapture;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Depth frames end to end as DepthCameraCapture handles them, score is frames per second
+ * camera plane -> raw slot copy -> DepthFrameProcessor -> message buffer -> serialization,
+ * with compressed=true the registered frame is RVL encoded into a second message
+ * kernels=java (default) processes with the CameraKernels references, kernels=native with the CameraUtil natives
+ * Serialization reads the message into a heap array as rosjava's outgoing queue does,
+ * which hands the buffer back to its pool
+ * Run with -prof gc (default in build.gradle), gc.alloc.rate.norm is the allocation per frame
+ * and stays near 0 while nothing on the path allocates
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class PipelineBenchmark {
+
+    private static final float CONFIDENCE_THRESHOLD = 0.1f;
+    private static final short MAX_DEPTH = 5000;
+    private static final int HELD_FRAMES = 2;
+
+    @Param({"640x480", "320x240"})
+    public String size;
+
+    @Param({BenchmarkFrames.SYNTHETIC})
+    public String frames;
+
+    @Param({BenchmarkFrames.JAVA_KERNELS})
+    public String kernels;
+
+    // Row workers besides the processing thread
+    @Param({"0", "3"})
+    public int workers;
+
+    @Param({"false", "true"})
+    public boolean temporalFilter;
+
+    @Param({"false", "true"})
+    public boolean compressed;
+
+    private ByteBuffer[] cameraFrames;
+    private int frameIndex = 0;
+
+    private ByteBuffer rawSlot;
+    private short[] depth;
+    private byte[] confidence;
+    private RowParallelExecutor rowExecutor;
+    private DepthFrameProcessor processor;
+    private MessageBufferPool messagePool;
+    private MessageBufferPool compressedMessagePool;
+    private final MessageBufferView published = new MessageBufferView();
+    private CompressedDepthEncoder depthEncoder;
+    private byte[] serialized;
+
+    @Setup
+    public void setup() throws IOException {
+        boolean nativeKernels = BenchmarkFrames.loadKernels(kernels);
+        int[] frameSize = BenchmarkFrames.parseSize(size, CameraUtil.DEPTH_OUTPUT_SIZES);
+        int width = frameSize[0];
+        int height = frameSize[1];
+        CameraUtil.CameraParam depthParam = BenchmarkFrames.scaledParam(CameraUtil.depthCameraParam, width, height);
+
+        cameraFrames = BenchmarkFrames.depthFrames(frames, width, height);
+        rawSlot = ByteBuffer.allocateDirect(width * height * 2).order(ByteOrder.nativeOrder());
+        depth = new short[width * height];
+        confidence = new byte[width * height];
+
+        processor = new DepthFrameProcessor(depthParam, CameraUtil.colorCameraParam, nativeKernels);
+        processor.setConfidenceThreshold(CONFIDENCE_THRESHOLD);
+        processor.setMaxDepthThreshold(MAX_DEPTH);
+        if(workers > 0){
+            rowExecutor = new RowParallelExecutor(workers, "BenchmarkRows");
+            processor.setRowExecutor(rowExecutor);
+        }
+        if(temporalFilter){
+            TemporalDepthFilter filter = new TemporalDepthFilter(width, height);
+            filter.setConfidenceThreshold(CONFIDENCE_THRESHOLD);
+            processor.setTemporalFilter(filter);
+        }
+
+        messagePool = MessageBufferPool.forFrame(depthParam, 2, HELD_FRAMES);
+        depthEncoder = new CompressedDepthEncoder(width, height);
+        compressedMessagePool = new MessageBufferPool(1 + MessageBufferPool.IN_FLIGHT_MESSAGES, depthEncoder.bufferCapacity());
+        serialized = new byte[Math.max(messagePool.getBufferCapacity(), compressedMessagePool.getBufferCapacity())];
+    }
+
+    @TearDown
+    public void tearDown(){
+        if(rowExecutor != null){
+            rowExecutor.shutdown();
+        }
+    }
+
+    @Benchmark
+    public int frame(){
+        ByteBuffer cameraFrame = cameraFrames[frameIndex];
+        frameIndex = (frameIndex + 1) % cameraFrames.length;
+
+        // camera thread: copy out of the image before it goes back to the reader
+        rawSlot.clear();
+        rawSlot.put(cameraFrame.duplicate());
+
+        // processing thread
+        MessageBuffer message = messagePool.acquire();
+        processor.process(rawSlot, CameraKernels.DEPTH_FORMAT_16UC1, depth, confidence, message.getStorage());
+        message.setLength(depth.length * 2);
+        int bytes = serialize(message);
+
+        if(compressed){
+            MessageBuffer compressedMessage = compressedMessagePool.acquire();
+            depthEncoder.encode(depth, CompressedDepthEncoder.Format.RVL, compressedMessage);
+            bytes += serialize(compressedMessage);
+        }
+        return bytes;
+    }
+
+    /**
+     * Read message data to the end as rosjava's serializer reads a MessagePublisher message, releases the buffer
+     */
+    private int serialize(MessageBuffer message){
+        published.bind(message);
+        int length = published.readableBytes();
+        published.getBytes(0, serialized, 0, length);
+        return length;
+    }
+
+}